@@ -0,0 +1,738 @@
+package fr.upec.e2ee;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import fr.upec.e2ee.mystate.MyDirectory;
+import fr.upec.e2ee.protocol.Cipher;
+import fr.upec.e2ee.protocol.CipherContext;
+import fr.upec.e2ee.protocol.CipherSuite;
+import fr.upec.e2ee.protocol.Communication;
+import fr.upec.e2ee.protocol.Conversation;
+import fr.upec.e2ee.protocol.Der.DerInputStream;
+import fr.upec.e2ee.protocol.Der.DerOutputStream;
+import fr.upec.e2ee.protocol.Der.DerValue;
+import fr.upec.e2ee.protocol.Envelope;
+import fr.upec.e2ee.protocol.EphemeralKeyPool;
+import fr.upec.e2ee.protocol.HandshakeResponder;
+import fr.upec.e2ee.protocol.Hkdf;
+import fr.upec.e2ee.protocol.KeyExchange;
+import fr.upec.e2ee.protocol.KeySuite;
+import fr.upec.e2ee.protocol.Message1;
+import fr.upec.e2ee.protocol.ParallelCipher;
+import fr.upec.e2ee.protocol.PrekeyBundle;
+import fr.upec.e2ee.protocol.PrekeyMessage;
+import fr.upec.e2ee.protocol.RandomService;
+import fr.upec.e2ee.protocol.Ratchet;
+import fr.upec.e2ee.protocol.Resumption;
+import fr.upec.e2ee.protocol.SecretBuild;
+import fr.upec.e2ee.protocol.Sign;
+import fr.upec.e2ee.protocol.SignatureTranscoder;
+import fr.upec.e2ee.protocol.SigningSubkey;
+import fr.upec.e2ee.protocol.StreamCipher;
+
+public class BenchmarkTest {
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Print the cost per operation
+     *
+     * @param label      Label of the measure
+     * @param start      Start in nanoseconds
+     * @param iterations Number of operations
+     */
+    private static void report(String label, long start, int iterations) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(label + ": " + (elapsed / iterations) + " ns/op");
+    }
+
+    @Test
+    public void benchCipherContext() throws GeneralSecurityException {
+        byte[] secretKey = Tools.generateRandomBytes(32);
+        SecretKey key = Tools.toSecretKey(secretKey);
+        CipherContext cipherContext = new CipherContext(secretKey);
+        byte[] message = "Short message sent in bulk".getBytes(StandardCharsets.UTF_8);
+
+        for (int i = 0; i < WARMUP; i++) {
+            Cipher.decipher(key, Cipher.cipher(key, message));
+            cipherContext.decipher(cipherContext.cipher(message));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cipher.decipher(Tools.toSecretKey(secretKey), Cipher.cipher(Tools.toSecretKey(secretKey), message));
+        }
+        report("Cipher static", start, ITERATIONS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            cipherContext.decipher(cipherContext.cipher(message));
+        }
+        report("CipherContext", start, ITERATIONS);
+
+        assertArrayEquals(message, cipherContext.decipher(Cipher.cipher(key, message)));
+        assertArrayEquals(message, Cipher.decipher(key, cipherContext.cipher(message)));
+    }
+
+    @Test
+    public void benchParallelCipher() throws GeneralSecurityException, IOException {
+        byte[] secretKey = Tools.generateRandomBytes(32);
+        byte[] payload = new byte[8 * 1024 * 1024];
+        int iterations = 5;
+
+        ByteArrayOutputStream serial = new ByteArrayOutputStream(StreamCipher.HEADER_LENGTH + payload.length + 4096);
+        StreamCipher.cipher(secretKey, new ByteArrayInputStream(payload), serial);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            serial.reset();
+            StreamCipher.cipher(secretKey, new ByteArrayInputStream(payload), serial);
+        }
+        report("StreamCipher serial 8 MiB", start, iterations);
+
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            ParallelCipher.cipher(secretKey, payload, pool);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                ParallelCipher.cipher(secretKey, payload, pool);
+            }
+            report("ParallelCipher " + threads + " threads 8 MiB", start, iterations);
+            pool.shutdown();
+        }
+
+        assertArrayEquals(payload, ParallelCipher.decipher(secretKey, serial.toByteArray()));
+    }
+
+    @Test
+    public void benchEnvelope() throws GeneralSecurityException {
+        List<Conversation> conversations = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            conversations.add(new Conversation("user" + i, Tools.getCurrentTime(), Tools.generateRandomBytes(32)));
+        }
+        byte[] message = new byte[64 * 1024];
+        int iterations = 20;
+
+        for (int i = 0; i < WARMUP / 10; i++) {
+            Envelope.cipher(conversations, message);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (Conversation conversation : conversations) {
+                Cipher.cipher(Tools.toSecretKey(conversation.getSecretKey()), message);
+            }
+        }
+        report("Cipher 50 conversations 64 KiB", start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Envelope.cipher(conversations, message);
+        }
+        report("Envelope 50 conversations 64 KiB", start, iterations);
+
+        assertArrayEquals(message, Envelope.decipher(conversations.get(49), Envelope.cipher(conversations, message)));
+    }
+
+    @Test
+    public void benchRandom() throws GeneralSecurityException {
+        byte[] iv = new byte[Cipher.GCM_IV_LENGTH];
+
+        for (int i = 0; i < WARMUP; i++) {
+            RandomService.nextBytes(iv);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES"); //Previous Tools.generateSecureRandom
+            keyGenerator.init(256);
+            new SecureRandom(keyGenerator.generateKey().getEncoded()).nextBytes(iv);
+        }
+        report("SecureRandom per draw 12 bytes", start, ITERATIONS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            RandomService.getSecureRandom().nextBytes(iv);
+        }
+        report("SecureRandom per thread 12 bytes", start, ITERATIONS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            RandomService.nextBytes(iv);
+        }
+        report("RandomService pool 12 bytes", start, ITERATIONS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            RandomService.nextBytes(32);
+        }
+        report("RandomService pool 32 bytes", start, ITERATIONS);
+    }
+
+    @Test
+    public void benchHkdf() throws GeneralSecurityException {
+        byte[] salt = Tools.generateRandomBytes(32);
+        byte[] ikm = Tools.generateRandomBytes(32);
+        byte[] encryptionKey = new byte[32];
+        byte[] keyId = new byte[8];
+        byte[] ivSeed = new byte[16];
+
+        for (int i = 0; i < WARMUP; i++) {
+            Hkdf.derive(salt, ikm, "conversation", encryptionKey, keyId, ivSeed);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            KeyExchange.hkdfExpand(KeyExchange.hkdfExtract(salt, ikm), "encryption", 32);
+            KeyExchange.hkdfExpand(KeyExchange.hkdfExtract(salt, ikm), "key-id", 8);
+            KeyExchange.hkdfExpand(KeyExchange.hkdfExtract(salt, ikm), "iv", 16);
+        }
+        report("HKDF 3 derivations", start, ITERATIONS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Hkdf.derive(salt, ikm, "conversation", encryptionKey, keyId, ivSeed);
+        }
+        report("HKDF 3 sub-keys in one pass", start, ITERATIONS);
+    }
+
+    @Test
+    public void benchEphemeralKeyPool() throws GeneralSecurityException, InterruptedException {
+        int iterations = 20;
+
+        for (int i = 0; i < WARMUP / 10; i++) {
+            EphemeralKeyPool.generate();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            EphemeralKeyPool.generate();
+        }
+        report("Ephemeral key pair inline", start, iterations);
+
+        long elapsed = 0;
+        for (int i = 0; i < iterations; i++) {
+            while (EphemeralKeyPool.size() < EphemeralKeyPool.CAPACITY) { //Idle between two handshakes
+                EphemeralKeyPool.refill();
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            start = System.nanoTime();
+            EphemeralKeyPool.take();
+            elapsed += System.nanoTime() - start;
+        }
+        System.out.println("Ephemeral key pair from the pool: " + (elapsed / iterations) + " ns/op");
+        System.out.println("Ephemeral key pool hit rate: " + EphemeralKeyPool.getHitRate()
+                + ", refill: " + EphemeralKeyPool.getAverageRefillTime() + " ns/key pair");
+    }
+
+    @Test
+    public void benchKeySuite() throws GeneralSecurityException {
+        if (!KeySuite.CURVE25519.isSupported()) {
+            return;
+        }
+        int iterations = 50;
+        byte[] message = new byte[416];
+
+        for (KeySuite keySuite : KeySuite.values()) {
+            KeyPairGenerator keyPairGenerator = keySuite == KeySuite.CURVE25519
+                    ? KeyPairGenerator.getInstance(keySuite.getSignatureAlgorithm())
+                    : KeyPairGenerator.getInstance("EC");
+            if (keySuite == KeySuite.SECP384R1_P256) {
+                keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+            }
+            KeyPair identity = keyPairGenerator.generateKeyPair();
+            byte[] signature = Sign.sign(identity.getPrivate(), message);
+            KeyPair other = keySuite == KeySuite.CURVE25519 ? keySuite.generateAgreementKeyPair() : EphemeralKeyPool.generate();
+
+            for (int i = 0; i < WARMUP / 10; i++) {
+                keySuite.agree(keySuite == KeySuite.CURVE25519 ? keySuite.generateAgreementKeyPair().getPrivate() : EphemeralKeyPool.generate().getPrivate(), other.getPublic());
+                Sign.verify(identity.getPublic(), signature, message);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                KeyPair keyPair = keySuite == KeySuite.CURVE25519 ? keySuite.generateAgreementKeyPair() : EphemeralKeyPool.generate();
+                keySuite.agree(keyPair.getPrivate(), other.getPublic());
+            }
+            report(keySuite + " ephemeral keygen + agreement", start, iterations);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                Sign.verify(identity.getPublic(), signature, message);
+            }
+            report(keySuite + " verify", start, iterations);
+        }
+    }
+
+    @Test
+    public void benchResumption() throws GeneralSecurityException {
+        int iterations = 50;
+        Conversation conversation = new Conversation("user", Tools.getCurrentTime(), Tools.generateRandomBytes(32));
+        long timestamp = Tools.getCurrentTime();
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        PublicKey publicKeyUser1 = keyPairGenerator.generateKeyPair().getPublic();
+        PublicKey publicKeyUser2 = keyPairGenerator.generateKeyPair().getPublic();
+
+        for (int i = 0; i < WARMUP / 10; i++) {
+            new Resumption(conversation, publicKeyUser1, publicKeyUser2).handle(new Resumption(conversation, publicKeyUser2, publicKeyUser1).toBytes());
+            Communication.handleMessage1(new Message1(timestamp, CipherSuite.AES_256_GCM, KeySuite.SECP384R1_P256),
+                    Communication.createMessage1(new Message1(timestamp, CipherSuite.AES_256_GCM, KeySuite.SECP384R1_P256)));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Communication.handleMessage1(new Message1(timestamp, CipherSuite.AES_256_GCM, KeySuite.SECP384R1_P256),
+                    Communication.createMessage1(new Message1(timestamp, CipherSuite.AES_256_GCM, KeySuite.SECP384R1_P256)));
+        }
+        report("Re-key with Message1 handshake", start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            new Resumption(conversation, publicKeyUser1, publicKeyUser2).handle(new Resumption(conversation, publicKeyUser2, publicKeyUser1).toBytes());
+        }
+        report("Re-key with Resumption", start, iterations);
+    }
+
+    @Test
+    public void benchHandshakeResponder() throws GeneralSecurityException, InterruptedException {
+        int iterations = 200;
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair service = keyPairGenerator.generateKeyPair();
+        List<String> inbound = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) {
+            inbound.add(Communication.createMessage1(new Message1(Tools.getCurrentTime())));
+        }
+        HandshakeResponder handshakeResponder = new HandshakeResponder(service.getPrivate(), service.getPublic());
+        handshakeResponder.respondAll(inbound.subList(0, WARMUP / 10));
+
+        long start = System.nanoTime();
+        for (String otherMessage1 : inbound) {
+            handshakeResponder.respond(otherMessage1);
+        }
+        report("Handshake responder sequential", start, iterations);
+
+        start = System.nanoTime();
+        HandshakeResponder.Report report = handshakeResponder.respondAll(inbound);
+        report("Handshake responder batch", start, iterations);
+        System.out.println(report);
+        handshakeResponder.shutdown();
+    }
+
+    @Test
+    public void benchRatchet() throws GeneralSecurityException {
+        Conversation conversation = new Conversation("user", Tools.getCurrentTime(), Tools.generateRandomBytes(32));
+        CipherContext cipherContext = new CipherContext(conversation);
+        Ratchet ratchetUser1 = new Ratchet(conversation);
+        Ratchet ratchetUser2 = new Ratchet(conversation);
+        byte[] message = "Short message sent in bulk".getBytes(StandardCharsets.UTF_8);
+
+        for (int i = 0; i < WARMUP; i++) {
+            cipherContext.decipher(cipherContext.cipher(message));
+            ratchetUser2.decipher(ratchetUser1.cipher(message));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            cipherContext.decipher(cipherContext.cipher(message));
+        }
+        report("Static key cipher + decipher", start, ITERATIONS);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ratchetUser2.decipher(ratchetUser1.cipher(message));
+        }
+        report("Ratchet cipher + decipher", start, ITERATIONS);
+
+        //Deliver each group of 64 messages in reverse order, the first one derives the keys of the 63 others
+        List<byte[]> group = new ArrayList<>();
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            group.add(ratchetUser1.cipher(message));
+            if (group.size() == 64) {
+                for (int j = group.size() - 1; j >= 0; j--) {
+                    ratchetUser2.decipher(group.get(j));
+                }
+                group.clear();
+            }
+        }
+        report("Ratchet out of order", start, ITERATIONS);
+    }
+
+    /**
+     * Previous conversion of R and S to DER, with BigInteger and the DER objects
+     *
+     * @param signature Signature as R and S
+     * @return Return signature as DER
+     * @throws IOException Throws IOException if there is an I/O exception
+     */
+    private static byte[] legacyToDer(byte[] signature) throws IOException {
+        int n = signature.length >> 1;
+        byte[] bytes = new byte[n];
+        System.arraycopy(signature, 0, bytes, 0, n);
+        BigInteger r = new BigInteger(1, bytes);
+        System.arraycopy(signature, n, bytes, 0, n);
+        BigInteger s = new BigInteger(1, bytes);
+
+        DerOutputStream out = new DerOutputStream(signature.length + 10);
+        out.putInteger(r);
+        out.putInteger(s);
+        return new DerValue(DerValue.tag_Sequence, out.toByteArray()).toByteArray();
+    }
+
+    /**
+     * Previous conversion of DER to R and S, with BigInteger and the DER objects
+     *
+     * @param sig Signature as DER
+     * @return Return signature as R and S
+     * @throws IOException Throws IOException if there is an I/O exception
+     */
+    private static byte[] legacyToRaw(byte[] sig) throws IOException {
+        DerValue[] values = new DerInputStream(sig, 0, sig.length, false).getSequence(2);
+        byte[] rBytes = values[0].getPositiveBigInteger().toByteArray();
+        byte[] sBytes = values[1].getPositiveBigInteger().toByteArray();
+        int rStart = rBytes.length > 1 && rBytes[0] == 0 ? 1 : 0;
+        int sStart = sBytes.length > 1 && sBytes[0] == 0 ? 1 : 0;
+        int k = Math.max(rBytes.length - rStart, sBytes.length - sStart);
+        byte[] result = new byte[k << 1];
+        System.arraycopy(rBytes, rStart, result, k - rBytes.length + rStart, rBytes.length - rStart);
+        System.arraycopy(sBytes, sStart, result, result.length - sBytes.length + sStart, sBytes.length - sStart);
+        return result;
+    }
+
+    @Test
+    public void benchSignatureTranscoder() throws GeneralSecurityException, IOException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        Signature signature = Signature.getInstance("SHA512withECDSA");
+        signature.initSign(keyPairGenerator.generateKeyPair().getPrivate());
+        signature.update(new byte[416]);
+        byte[] providerDer = signature.sign();
+        byte[] raw = new byte[SignatureTranscoder.RAW_LENGTH];
+        byte[] der = new byte[SignatureTranscoder.MAX_DER_LENGTH];
+        SignatureTranscoder.toRaw(providerDer, 0, providerDer.length, raw, 0);
+        assertArrayEquals(raw, legacyToRaw(providerDer));
+        assertArrayEquals(legacyToDer(raw), Arrays.copyOf(der, SignatureTranscoder.toDer(raw, 0, raw.length, der, 0)));
+
+        for (int i = 0; i < WARMUP * 10; i++) {
+            legacyToRaw(providerDer);
+            legacyToDer(raw);
+            SignatureTranscoder.toRaw(providerDer, 0, providerDer.length, raw, 0);
+            SignatureTranscoder.toDer(raw, 0, raw.length, der, 0);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS * 10; i++) {
+            legacyToRaw(providerDer);
+        }
+        report("DER to R and S with BigInteger and DerValue", start, ITERATIONS * 10);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS * 10; i++) {
+            SignatureTranscoder.toRaw(providerDer, 0, providerDer.length, raw, 0);
+        }
+        report("DER to R and S with SignatureTranscoder", start, ITERATIONS * 10);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS * 10; i++) {
+            legacyToDer(raw);
+        }
+        report("R and S to DER with BigInteger and DerOutputStream", start, ITERATIONS * 10);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS * 10; i++) {
+            SignatureTranscoder.toDer(raw, 0, raw.length, der, 0);
+        }
+        report("R and S to DER with SignatureTranscoder", start, ITERATIONS * 10);
+    }
+
+    @Test
+    public void benchDirectoryCache() throws GeneralSecurityException, IOException {
+        int contacts = 20;
+        int iterations = 100;
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        MyDirectory myDirectory = new MyDirectory();
+        List<byte[]> encodedKeys = new ArrayList<>();
+        KeyPair signer = null;
+        for (int i = 0; i < contacts; i++) {
+            signer = keyPairGenerator.generateKeyPair();
+            encodedKeys.add(signer.getPublic().getEncoded());
+            myDirectory.addPerson("user" + i, signer.getPublic().getEncoded());
+        }
+        byte[] message = new byte[416];
+        byte[] signature = Sign.sign(signer.getPrivate(), message);
+
+        for (int i = 0; i < WARMUP / 10; i++) {
+            myDirectory.getSigner(signature, message);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] encodedKey : encodedKeys) { //Previous getSigner: decode then verify every person
+                PublicKey publicKey = Tools.toPublicKey(encodedKey);
+                if (Sign.verify(publicKey, signature, message)) {
+                    break;
+                }
+            }
+        }
+        report("Signer among " + contacts + " decoding each key", start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            myDirectory.getSigner(signature, message);
+        }
+        report("Signer among " + contacts + " with cached keys and verifiers", start, iterations);
+    }
+
+    @Test
+    public void benchSigningSubkey() throws GeneralSecurityException, IOException {
+        int iterations = 200;
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair identity = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectory = new MyDirectory();
+        myDirectory.addPerson("user", identity.getPublic().getEncoded());
+        Message1 message1User1 = new Message1(Tools.getCurrentTime());
+        Message1 message1User2 = new Message1(Tools.getCurrentTime());
+        SecretBuild secretBuildUser1 = Communication.handleMessage1(message1User1, Communication.createMessage1(message1User2));
+        SecretBuild secretBuildUser2 = Communication.handleMessage1(message1User2, Communication.createMessage1(message1User1));
+
+        long start = System.nanoTime();
+        SigningSubkey signingSubkey = new SigningSubkey(identity.getPrivate());
+        report("SigningSubkey certificate", start, 1);
+
+        String identityMessage2 = null;
+        String delegatedMessage2 = null;
+        for (int i = 0; i < WARMUP; i++) {
+            identityMessage2 = Communication.createMessage2(identity.getPrivate(), identity.getPublic(), secretBuildUser2);
+            delegatedMessage2 = Communication.createMessage2(signingSubkey, identity.getPublic(), secretBuildUser2);
+        }
+
+        //The identity key is a software key here, on a device each of its signatures is a KeyStore operation
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Communication.createMessage2(identity.getPrivate(), identity.getPublic(), secretBuildUser2);
+        }
+        report("Message2 signed by the identity key", start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Communication.createMessage2(signingSubkey, identity.getPublic(), secretBuildUser2);
+        }
+        report("Message2 signed by the subkey", start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Communication.handleMessage2(myDirectory, secretBuildUser1, identityMessage2);
+        }
+        report("Message2 of the identity key verified", start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Communication.handleMessage2(myDirectory, secretBuildUser1, delegatedMessage2);
+        }
+        report("Message2 of the subkey and its certificate verified", start, iterations);
+    }
+
+    @Test
+    public void benchSignedMessage1() throws GeneralSecurityException, IOException {
+        int iterations = 50;
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPairUser1 = keyPairGenerator.generateKeyPair();
+        KeyPair keyPairUser2 = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectoryUser1 = new MyDirectory();
+        myDirectoryUser1.addPerson("user2", keyPairUser2.getPublic().getEncoded());
+        MyDirectory myDirectoryUser2 = new MyDirectory();
+        myDirectoryUser2.addPerson("user1", keyPairUser1.getPublic().getEncoded());
+
+        //Two transfers per person: Message1 then Message2
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Message1 message1User1 = new Message1(Tools.getCurrentTime());
+            Message1 message1User2 = new Message1(Tools.getCurrentTime());
+            SecretBuild secretBuildUser1 = Communication.handleMessage1(message1User1, Communication.createMessage1(message1User2));
+            SecretBuild secretBuildUser2 = Communication.handleMessage1(message1User2, Communication.createMessage1(message1User1));
+            String message2User1 = Communication.createMessage2(keyPairUser1.getPrivate(), keyPairUser1.getPublic(), secretBuildUser1);
+            String message2User2 = Communication.createMessage2(keyPairUser2.getPrivate(), keyPairUser2.getPublic(), secretBuildUser2);
+            Communication.handleMessage2(myDirectoryUser1, secretBuildUser1, message2User2);
+            Communication.handleMessage2(myDirectoryUser2, secretBuildUser2, message2User1);
+        }
+        report("Handshake Message1 + Message2", start, iterations);
+
+        //One transfer per person: signed Message1
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Message1 message1User1 = new Message1(Tools.getCurrentTime());
+            Message1 message1User2 = new Message1(Tools.getCurrentTime());
+            String signedMessage1User1 = Communication.createMessage1(message1User1, keyPairUser1.getPrivate(), keyPairUser1.getPublic());
+            String signedMessage1User2 = Communication.createMessage1(message1User2, keyPairUser2.getPrivate(), keyPairUser2.getPublic());
+            Communication.handleMessage1(myDirectoryUser1, message1User1, keyPairUser1.getPublic(), signedMessage1User2);
+            Communication.handleMessage1(myDirectoryUser2, message1User2, keyPairUser2.getPublic(), signedMessage1User1);
+        }
+        report("Handshake signed Message1", start, iterations);
+    }
+
+    @Test
+    public void benchPrekeys() throws GeneralSecurityException, IOException {
+        int iterations = 50;
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPairUser1 = keyPairGenerator.generateKeyPair();
+        KeyPair keyPairUser2 = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectoryUser1 = new MyDirectory();
+        myDirectoryUser1.addPerson("user2", keyPairUser2.getPublic().getEncoded());
+        MyDirectory myDirectoryUser2 = new MyDirectory();
+        myDirectoryUser2.addPerson("user1", keyPairUser1.getPublic().getEncoded());
+
+        //Done in the background by the owner of the prekeys
+        long start = System.nanoTime();
+        TreeMap<Integer, KeyPair> prekeys = new TreeMap<>();
+        for (int i = 0; i < PrekeyBundle.MAX_PREKEYS; i++) {
+            prekeys.put(i, EphemeralKeyPool.generate());
+        }
+        report("Prekey generation", start, PrekeyBundle.MAX_PREKEYS);
+        TreeMap<Integer, PublicKey> publicPrekeys = new TreeMap<>();
+        for (Map.Entry<Integer, KeyPair> prekey : prekeys.entrySet()) {
+            publicPrekeys.put(prekey.getKey(), prekey.getValue().getPublic());
+        }
+        byte[] bundle = PrekeyBundle.create(publicPrekeys, EphemeralKeyPool.generate().getPublic(), keyPairUser2.getPrivate(), keyPairUser2.getPublic());
+        byte[] firstMessage = "One More Time".getBytes(StandardCharsets.UTF_8);
+
+        //Two transfers per person before the first message
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Message1 message1User1 = new Message1(Tools.getCurrentTime());
+            Message1 message1User2 = new Message1(Tools.getCurrentTime());
+            SecretBuild secretBuildUser1 = Communication.handleMessage1(message1User1, Communication.createMessage1(message1User2));
+            SecretBuild secretBuildUser2 = Communication.handleMessage1(message1User2, Communication.createMessage1(message1User1));
+            String message2User1 = Communication.createMessage2(keyPairUser1.getPrivate(), keyPairUser1.getPublic(), secretBuildUser1);
+            String message2User2 = Communication.createMessage2(keyPairUser2.getPrivate(), keyPairUser2.getPublic(), secretBuildUser2);
+            Conversation conversationUser1 = Communication.handleMessage2(myDirectoryUser1, secretBuildUser1, message2User2);
+            Communication.handleMessage2(myDirectoryUser2, secretBuildUser2, message2User1);
+            SecretKey secretKey = Tools.toSecretKey(conversationUser1.getSecretKey());
+            Cipher.decipher(secretKey, Cipher.cipher(secretKey, firstMessage));
+        }
+        report("Handshake + first message", start, iterations);
+
+        //No transfer before the first message, the bundle was published before
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            PrekeyMessage prekeyMessage = new PrekeyMessage(PrekeyBundle.open(myDirectoryUser1, bundle), firstMessage, keyPairUser1.getPrivate(), keyPairUser1.getPublic());
+            byte[] message = prekeyMessage.toBytes();
+            PrekeyMessage.open(myDirectoryUser2, keyPairUser2.getPublic(), message, prekeys.get(PrekeyMessage.getPrekeyId(message)));
+        }
+        report("Prekey message", start, iterations);
+    }
+
+    @Test
+    public void benchParallelSigner() throws GeneralSecurityException, IOException {
+        int contacts = 10000;
+        int iterations = 3;
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        MyDirectory myDirectory = new MyDirectory();
+        List<KeyPair> keyPairs = new ArrayList<>();
+        for (int i = 0; i < contacts; i++) {
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+            keyPairs.add(keyPair);
+            myDirectory.addPerson("user" + i, keyPair.getPublic().getEncoded());
+        }
+        byte[] message = new byte[416];
+        List<byte[]> signatures = new ArrayList<>();
+        for (int i = 0; i < iterations; i++) { //A new signer each time, the last signer is not tried first
+            signatures.add(Sign.sign(keyPairs.get((i + 1) * contacts / (iterations + 1)).getPrivate(), message));
+        }
+        List<String> names = myDirectory.getListName();
+
+        long start = System.nanoTime();
+        for (byte[] signature : signatures) {
+            for (String name : names) { //Previous getSigner: every person on the calling thread
+                try {
+                    if (myDirectory.verify(name, signature, message)) {
+                        break;
+                    }
+                } catch (SignatureException ignored) {
+                }
+            }
+        }
+        report("Signer among " + contacts + " serial", start, iterations);
+
+        start = System.nanoTime();
+        for (byte[] signature : signatures) {
+            myDirectory.getSigner(signature, message);
+        }
+        report("Signer among " + contacts + " parallel on " + Runtime.getRuntime().availableProcessors() + " cores", start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            myDirectory.getSigner(signatures.get(iterations - 1), message);
+        }
+        report("Signer among " + contacts + " last signer", start, ITERATIONS);
+    }
+
+    @Test
+    public void benchMessage2Hint() throws GeneralSecurityException, IOException {
+        int contacts = 50;
+        int iterations = 100;
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        MyDirectory myDirectory = new MyDirectory();
+        KeyPair signer = null;
+        for (int i = 0; i < contacts; i++) {
+            signer = keyPairGenerator.generateKeyPair();
+            myDirectory.addPerson("user" + i, signer.getPublic().getEncoded());
+        }
+        byte[] message = new byte[416];
+        byte[] signature = Sign.sign(signer.getPrivate(), message);
+        byte[] hinted = ByteBuffer.allocate(signature.length + MyDirectory.HINT_LENGTH)
+                .put(signature)
+                .putLong(MyDirectory.getFingerprint(signer.getPublic().getEncoded()))
+                .array();
+
+        for (int i = 0; i < WARMUP / 10; i++) {
+            myDirectory.getSigner(signature, message);
+            myDirectory.getSigner(hinted, message);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            myDirectory.getSigner(signature, message);
+        }
+        report("Signer among " + contacts + " without fingerprint", start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            myDirectory.getSigner(hinted, message);
+        }
+        report("Signer among " + contacts + " with fingerprint", start, iterations);
+    }
+}
@@ -4,6 +4,9 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
@@ -13,25 +16,81 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import fr.upec.e2ee.mystate.MyConversations;
+import fr.upec.e2ee.mystate.MyDictionaries;
 import fr.upec.e2ee.mystate.MyDirectory;
+import fr.upec.e2ee.mystate.MyIvCounters;
 import fr.upec.e2ee.mystate.MyKeyPair;
+import fr.upec.e2ee.mystate.MyOutbox;
+import fr.upec.e2ee.mystate.MyPrekeys;
+import fr.upec.e2ee.mystate.MyRatchets;
 import fr.upec.e2ee.mystate.MyState;
 import fr.upec.e2ee.protocol.Cipher;
+import fr.upec.e2ee.protocol.CipherContext;
+import fr.upec.e2ee.protocol.CipherSuite;
 import fr.upec.e2ee.protocol.Communication;
+import fr.upec.e2ee.protocol.Compression;
 import fr.upec.e2ee.protocol.Conversation;
+import fr.upec.e2ee.protocol.DecipheredMessage;
+import fr.upec.e2ee.protocol.Envelope;
+import fr.upec.e2ee.protocol.EphemeralKeyPool;
+import fr.upec.e2ee.protocol.HandshakeResponder;
+import fr.upec.e2ee.protocol.Hkdf;
+import fr.upec.e2ee.protocol.KeyExchange;
+import fr.upec.e2ee.protocol.KeyId;
+import fr.upec.e2ee.protocol.KeySuite;
 import fr.upec.e2ee.protocol.Message1;
+import fr.upec.e2ee.protocol.PrekeyBundle;
+import fr.upec.e2ee.protocol.PrekeyMessage;
+import fr.upec.e2ee.protocol.RandomService;
+import fr.upec.e2ee.protocol.Ratchet;
+import fr.upec.e2ee.protocol.Resumption;
 import fr.upec.e2ee.protocol.SecretBuild;
+import fr.upec.e2ee.protocol.SeekableDecipher;
 import fr.upec.e2ee.protocol.Sign;
+import fr.upec.e2ee.protocol.SignatureTranscoder;
+import fr.upec.e2ee.protocol.SignedMessage1;
+import fr.upec.e2ee.protocol.SigningSubkey;
+import fr.upec.e2ee.protocol.StreamCipher;
 
 public class MainTest {
     static private MyState user1;
@@ -60,6 +119,11 @@ public class MainTest {
         Tools.deleteFile(MyState.FILENAME);
         Tools.deleteFile(MyDirectory.FILENAME);
         Tools.deleteFile(MyConversations.FILENAME);
+        Tools.deleteFile(MyIvCounters.FILENAME);
+        Tools.deleteFile(MyOutbox.FILENAME);
+        Tools.deleteFile(MyDictionaries.FILENAME);
+        Tools.deleteFile(MyRatchets.FILENAME);
+        Tools.deleteFile(MyPrekeys.FILENAME);
     }
 
     @After
@@ -67,12 +131,17 @@ public class MainTest {
         Tools.deleteFile(MyState.FILENAME);
         Tools.deleteFile(MyDirectory.FILENAME);
         Tools.deleteFile(MyConversations.FILENAME);
+        Tools.deleteFile(MyIvCounters.FILENAME);
+        Tools.deleteFile(MyOutbox.FILENAME);
+        Tools.deleteFile(MyDictionaries.FILENAME);
+        Tools.deleteFile(MyRatchets.FILENAME);
+        Tools.deleteFile(MyPrekeys.FILENAME);
     }
 
     @Test
     public void testMessage1() throws GeneralSecurityException {
-        Message1 message1User1 = new Message1(System.currentTimeMillis() / 1000L, user1.getMyNonce());
-        Message1 message1User2 = new Message1(System.currentTimeMillis() / 1000L, user2.getMyNonce());
+        Message1 message1User1 = new Message1(System.currentTimeMillis() / 1000L);
+        Message1 message1User2 = new Message1(System.currentTimeMillis() / 1000L);
 
         user2.getMyDirectory().addPerson("user1", user1.getMyPublicKey().getEncoded());
         String message1User1For2 = Communication.createMessage1(message1User1);
@@ -93,8 +162,8 @@ public class MainTest {
 
     @Test
     public void testMessage2() throws Exception {
-        Message1 message1User1 = new Message1(System.currentTimeMillis() / 1000L, user1.getMyNonce());
-        Message1 message1User2 = new Message1(System.currentTimeMillis() / 1000L, user2.getMyNonce());
+        Message1 message1User1 = new Message1(System.currentTimeMillis() / 1000L);
+        Message1 message1User2 = new Message1(System.currentTimeMillis() / 1000L);
 
         user2.getMyDirectory().addPerson("user1", user1.getMyPublicKey().getEncoded());
         String message1User1For2 = Communication.createMessage1(message1User1);
@@ -128,6 +197,391 @@ public class MainTest {
         assertTrue(Sign.verify(user1.getMyPublicKey(), signatureFromUser1, textString.getBytes(StandardCharsets.UTF_8)));
     }
 
+    @Test
+    public void testSignatureTranscoder() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        byte[] raw = new byte[SignatureTranscoder.RAW_LENGTH];
+        byte[] der = new byte[SignatureTranscoder.MAX_DER_LENGTH];
+        for (int i = 0; i < 100; i++) { //The provider gives strict DER, so DER -> R and S -> DER is the identity
+            Signature signature = Signature.getInstance("SHA512withECDSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(new byte[]{(byte) i});
+            byte[] providerDer = signature.sign();
+            assertEquals(SignatureTranscoder.RAW_LENGTH, SignatureTranscoder.toRaw(providerDer, 0, providerDer.length, raw, 0));
+            int length = SignatureTranscoder.toDer(raw, 0, raw.length, der, 0);
+            assertArrayEquals(providerDer, Arrays.copyOf(der, length));
+        }
+
+        byte[][] edges = new byte[4][SignatureTranscoder.RAW_LENGTH];
+        Arrays.fill(edges[1], (byte) 0xFF); //Leading zero needed
+        edges[2][33] = 1; //R = 0, S with 30 leading zeros
+        edges[2][63] = 0x7F;
+        edges[3][0] = 0x7F; //No leading zero
+        edges[3][32] = (byte) 0x80;
+        for (byte[] edge : edges) {
+            int length = SignatureTranscoder.toDer(edge, 0, edge.length, der, 0);
+            SignatureTranscoder.toRaw(der, 0, length, raw, 0);
+            assertArrayEquals(edge, raw);
+        }
+        assertEquals(8, SignatureTranscoder.toDer(edges[0], 0, edges[0].length, der, 0));
+        assertEquals(SignatureTranscoder.MAX_DER_LENGTH, SignatureTranscoder.toDer(edges[1], 0, edges[1].length, der, 0));
+
+        byte[] shorter = Arrays.copyOfRange(edges[3], 1, 63); //Halves of 31 bytes
+        int length = SignatureTranscoder.toDer(shorter, 0, shorter.length, der, 0);
+        SignatureTranscoder.toRaw(der, 0, length, raw, 0);
+        assertEquals(0, raw[0]);
+        assertArrayEquals(Arrays.copyOfRange(shorter, 0, 31), Arrays.copyOfRange(raw, 1, 32));
+
+        assertThrows(SignatureException.class, () -> SignatureTranscoder.toDer(new byte[63], 0, 63, new byte[72], 0));
+        assertThrows(SignatureException.class, () -> SignatureTranscoder.toDer(new byte[66], 0, 66, new byte[72], 0));
+        assertThrows(SignatureException.class, () -> SignatureTranscoder.toRaw(new byte[]{0x30, 6, 2, 1, 1, 2, 1, 1, 0}, 0, 9, new byte[64], 0)); //Trailing data
+        assertThrows(SignatureException.class, () -> SignatureTranscoder.toRaw(new byte[]{0x30, 7, 2, 2, 0, 1, 2, 1, 1}, 0, 9, new byte[64], 0)); //Useless zero
+        assertThrows(SignatureException.class, () -> SignatureTranscoder.toRaw(new byte[]{0x30, 6, 2, 1, (byte) 0x81, 2, 1, 1}, 0, 8, new byte[64], 0)); //Negative
+        assertThrows(SignatureException.class, () -> SignatureTranscoder.toRaw(new byte[]{0x30, 6, 2, 1, 1, 2, 2, 1}, 0, 8, new byte[64], 0)); //Truncated
+
+        byte[] message = "Around the World, Around the World".getBytes(StandardCharsets.UTF_8);
+        byte[] signature = Sign.sign(keyPair.getPrivate(), message);
+        assertEquals(SignatureTranscoder.RAW_LENGTH, signature.length);
+        assertTrue(Sign.verify(keyPair.getPublic(), signature, message));
+        signature[10] ^= 1;
+        assertFalse(Sign.verify(keyPair.getPublic(), signature, message));
+    }
+
+    @Test
+    public void testDirectoryCache() throws GeneralSecurityException, IOException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPairUser1 = keyPairGenerator.generateKeyPair();
+        KeyPair keyPairUser2 = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectory = new MyDirectory();
+        myDirectory.addPerson("user1", keyPairUser1.getPublic().getEncoded());
+        myDirectory.addPerson("user2", keyPairUser2.getPublic().getEncoded());
+
+        byte[] message = "Around the World, Around the World".getBytes(StandardCharsets.UTF_8);
+        byte[] signatureUser2 = Sign.sign(keyPairUser2.getPrivate(), message);
+        for (int i = 0; i < 2 * MyDirectory.VERIFIERS_PER_PERSON; i++) { //Verifiers reused
+            assertEquals("user2", myDirectory.getSigner(signatureUser2, message));
+        }
+        assertSame(myDirectory.getPublicKey("user1"), myDirectory.getPublicKey("user1"));
+        assertArrayEquals(keyPairUser1.getPublic().getEncoded(), myDirectory.getPublicKey("user1").getEncoded());
+        assertFalse(myDirectory.verify("user1", signatureUser2, message));
+
+        myDirectory.addPerson("user2", keyPairUser1.getPublic().getEncoded()); //New key, cache invalidated
+        assertArrayEquals(keyPairUser1.getPublic().getEncoded(), myDirectory.getPublicKey("user2").getEncoded());
+        assertThrows(NoSuchElementException.class, () -> myDirectory.getSigner(signatureUser2, message));
+
+        myDirectory.deletePerson("user2");
+        assertNull(myDirectory.getPublicKey("user2"));
+        assertFalse(myDirectory.verify("user2", signatureUser2, message));
+
+        for (int i = 0; i < 100; i++) { //A scan of a large directory keeps every decoded key
+            myDirectory.addPerson("person" + i, keyPairGenerator.generateKeyPair().getPublic().getEncoded());
+        }
+        PublicKey first = myDirectory.getPublicKey("person0");
+        for (int i = 0; i < 100; i++) {
+            myDirectory.getPublicKey("person" + i);
+        }
+        assertSame(first, myDirectory.getPublicKey("person0"));
+
+        //Persons added and deleted while the threads of the search read the directory
+        myDirectory.addPerson("user2", keyPairUser2.getPublic().getEncoded());
+        byte[] otherKey = keyPairGenerator.generateKeyPair().getPublic().getEncoded();
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 500; i++) {
+                myDirectory.addPerson("writer" + i, otherKey);
+                myDirectory.deletePerson("writer" + (i / 2));
+            }
+        });
+        byte[] signatureUser1 = Sign.sign(keyPairUser1.getPrivate(), message);
+        while (!writer.isDone()) { //Each signer is not the last one, so the whole directory is searched
+            assertEquals("user1", myDirectory.getSigner(signatureUser1, message));
+            assertEquals("user2", myDirectory.getSigner(signatureUser2, message));
+        }
+        writer.join();
+        assertEquals(102 + 250, myDirectory.sizeOfDirectory());
+    }
+
+    @Test
+    public void testSigningSubkey() throws GeneralSecurityException, IOException, InterruptedException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPairUser1 = keyPairGenerator.generateKeyPair();
+        KeyPair keyPairUser2 = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectory = new MyDirectory();
+        myDirectory.addPerson("user1", keyPairUser1.getPublic().getEncoded());
+        myDirectory.addPerson("user2", keyPairUser2.getPublic().getEncoded());
+
+        Message1 message1User1 = new Message1(Tools.getCurrentTime());
+        Message1 message1User2 = new Message1(Tools.getCurrentTime());
+        SecretBuild secretBuildUser1 = Communication.handleMessage1(message1User1, Communication.createMessage1(message1User2));
+        SecretBuild secretBuildUser2 = Communication.handleMessage1(message1User2, Communication.createMessage1(message1User1));
+
+        SigningSubkey signingSubkey = new SigningSubkey(keyPairUser2.getPrivate());
+        assertFalse(signingSubkey.isExpiring());
+        for (int i = 0; i < 3; i++) { //One certificate for every handshake
+            assertEquals("user2", Communication.handleMessage2(myDirectory, secretBuildUser1,
+                    Communication.createMessage2(signingSubkey, keyPairUser2.getPublic(), secretBuildUser2)).getName());
+            assertEquals("user2", Communication.handleMessage2(myDirectory, secretBuildUser1,
+                    Communication.createMessage2(signingSubkey, null, secretBuildUser2)).getName());
+        }
+        assertEquals("user2", Communication.handleMessage2(myDirectory, secretBuildUser1,
+                Communication.createMessage2(keyPairUser2.getPrivate(), keyPairUser2.getPublic(), secretBuildUser2)).getName()); //Previous versions
+
+        byte[] message = "Digital Love".getBytes(StandardCharsets.UTF_8);
+        byte[] delegated = signingSubkey.sign(message);
+        assertTrue(SigningSubkey.isDelegated(delegated));
+        assertFalse(SigningSubkey.isDelegated(Sign.sign(keyPairUser2.getPrivate(), message)));
+        assertEquals("user2", SigningSubkey.getSigner(myDirectory, delegated, message));
+        assertThrows(SignatureException.class, () -> SigningSubkey.getSigner(myDirectory, delegated, "Wrong".getBytes(StandardCharsets.UTF_8)));
+        byte[] forged = delegated.clone();
+        forged[forged.length - KeySuite.SIGNATURE_LENGTH - 1] ^= 1; //Certificate signature
+        assertThrows(NoSuchElementException.class, () -> SigningSubkey.getSigner(myDirectory, forged, message));
+
+        myDirectory.deletePerson("user2");
+        assertThrows(NoSuchElementException.class, () -> SigningSubkey.getSigner(myDirectory, delegated, message));
+
+        assertThrows(IllegalArgumentException.class, () -> new SigningSubkey(keyPairUser1.getPrivate(), 0));
+        assertThrows(IllegalArgumentException.class, () -> new SigningSubkey(keyPairUser1.getPrivate(), SigningSubkey.MAX_LIFETIME + 1));
+        SigningSubkey shortSubkey = new SigningSubkey(keyPairUser1.getPrivate(), 1);
+        assertTrue(shortSubkey.isExpiring());
+        byte[] expiring = shortSubkey.sign(message);
+        assertEquals("user1", SigningSubkey.getSigner(myDirectory, expiring, message));
+        TimeUnit.MILLISECONDS.sleep(2100);
+        assertThrows(CertificateExpiredException.class, () -> SigningSubkey.getSigner(myDirectory, expiring, message));
+    }
+
+    @Test
+    public void testSignedMessage1() throws GeneralSecurityException, IOException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPairUser1 = keyPairGenerator.generateKeyPair();
+        KeyPair keyPairUser2 = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectoryUser1 = new MyDirectory();
+        myDirectoryUser1.addPerson("user2", keyPairUser2.getPublic().getEncoded());
+        MyDirectory myDirectoryUser2 = new MyDirectory();
+        myDirectoryUser2.addPerson("user1", keyPairUser1.getPublic().getEncoded());
+
+        Message1 message1User1 = new Message1(Tools.getCurrentTime());
+        Message1 message1User2 = new Message1(Tools.getCurrentTime());
+        String signedMessage1User1 = Communication.createMessage1(message1User1, keyPairUser1.getPrivate(), keyPairUser1.getPublic());
+        String signedMessage1User2 = Communication.createMessage1(message1User2, new SigningSubkey(keyPairUser2.getPrivate()), keyPairUser2.getPublic());
+        assertTrue(SignedMessage1.isSigned(Tools.toBytes(signedMessage1User1)));
+        assertTrue(SignedMessage1.isSigned(Tools.toBytes(signedMessage1User2)));
+        assertFalse(SignedMessage1.isSigned(message1User1.toBytes()));
+        assertArrayEquals(message1User1.toBytes(), SignedMessage1.getMessage1(Tools.toBytes(signedMessage1User1)));
+
+        //One exchange
+        Conversation conversationUser1 = Communication.handleMessage1(myDirectoryUser1, message1User1, keyPairUser1.getPublic(), signedMessage1User2);
+        Conversation conversationUser2 = Communication.handleMessage1(myDirectoryUser2, message1User2, keyPairUser2.getPublic(), signedMessage1User1);
+        assertEquals("user2", conversationUser1.getName());
+        assertEquals("user1", conversationUser2.getName());
+        assertArrayEquals(conversationUser1.getSecretKey(), conversationUser2.getSecretKey());
+        assertEquals(conversationUser1.getCipherSuite(), conversationUser2.getCipherSuite());
+
+        //Message2 can still follow a signed Message1
+        SecretBuild secretBuildUser1 = Communication.handleMessage1(message1User1, signedMessage1User2);
+        SecretBuild secretBuildUser2 = Communication.handleMessage1(message1User2, signedMessage1User1);
+        assertTrue(secretBuildUser1.equals(secretBuildUser2));
+        assertFalse(Arrays.equals(conversationUser1.getSecretKey(), secretBuildUser1.getSymKey())); //Bound to the identities
+
+        assertThrows(IllegalArgumentException.class, () -> Communication.handleMessage1(myDirectoryUser1, message1User1, keyPairUser1.getPublic(), Communication.createMessage1(message1User2)));
+        byte[] forgedUser1 = Tools.toBytes(signedMessage1User1);
+        forgedUser1[20] ^= 1; //Nonce
+        assertThrows(NoSuchElementException.class, () -> Communication.handleMessage1(myDirectoryUser2, message1User2, keyPairUser2.getPublic(), Tools.toBase64(forgedUser1)));
+        byte[] forgedUser2 = Tools.toBytes(signedMessage1User2);
+        forgedUser2[20] ^= 1;
+        assertThrows(SignatureException.class, () -> Communication.handleMessage1(myDirectoryUser1, message1User1, keyPairUser1.getPublic(), Tools.toBase64(forgedUser2))); //Subkey
+        assertThrows(NoSuchElementException.class, () -> Communication.handleMessage1(myDirectoryUser1, message1User1, keyPairUser1.getPublic(), signedMessage1User1)); //Unknown signer
+        Message1 oldMessage1 = new Message1(Tools.getCurrentTime() - SignedMessage1.MAX_AGE - 60);
+        assertThrows(IllegalArgumentException.class, () -> Communication.handleMessage1(myDirectoryUser1, message1User1, keyPairUser1.getPublic(),
+                Communication.createMessage1(oldMessage1, keyPairUser2.getPrivate(), keyPairUser2.getPublic())));
+
+        //Unknown key share: user3 signs again the Message1 of user1 and sends it to user2 as its own
+        KeyPair keyPairUser3 = keyPairGenerator.generateKeyPair();
+        myDirectoryUser2.addPerson("user3", keyPairUser3.getPublic().getEncoded());
+        String resignedMessage1 = Communication.createMessage1(message1User1, keyPairUser3.getPrivate(), keyPairUser3.getPublic());
+        Conversation conversationUser2WithUser3 = Communication.handleMessage1(myDirectoryUser2, message1User2, keyPairUser2.getPublic(), resignedMessage1);
+        assertEquals("user3", conversationUser2WithUser3.getName());
+        assertFalse(Arrays.equals(conversationUser1.getSecretKey(), conversationUser2WithUser3.getSecretKey()));
+        byte[] messageUser1 = new CipherContext(conversationUser1).cipher("From user1".getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals("From user1".getBytes(StandardCharsets.UTF_8), new CipherContext(conversationUser2).decipher(messageUser1));
+        assertThrows(AEADBadTagException.class, () -> new CipherContext(conversationUser2WithUser3).decipher(messageUser1)); //Not taken as from user3
+    }
+
+    @Test
+    public void testPrekeys() throws GeneralSecurityException, IOException, InterruptedException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPairUser1 = keyPairGenerator.generateKeyPair();
+        KeyPair keyPairUser2 = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectoryUser1 = new MyDirectory();
+        myDirectoryUser1.addPerson("user2", keyPairUser2.getPublic().getEncoded());
+        MyDirectory myDirectoryUser2 = new MyDirectory();
+        myDirectoryUser2.addPerson("user1", keyPairUser1.getPublic().getEncoded());
+
+        MyPrekeys myPrekeysUser2 = new MyPrekeys();
+        assertEquals(MyPrekeys.BATCH_SIZE, myPrekeysUser2.fill());
+        assertEquals(0, myPrekeysUser2.fill());
+        byte[] bundle = myPrekeysUser2.getBundle(new SigningSubkey(keyPairUser2.getPrivate()), keyPairUser2.getPublic());
+        PrekeyBundle prekeyBundle = PrekeyBundle.open(myDirectoryUser1, bundle);
+        assertEquals("user2", prekeyBundle.getName());
+        assertEquals(MyPrekeys.BATCH_SIZE, prekeyBundle.getSize());
+        assertEquals(MyPrekeys.BATCH_SIZE, new MyPrekeys().getSize()); //Saved
+
+        //user1 sends its first message without waiting for user2
+        byte[] firstMessage = "One More Time".getBytes(StandardCharsets.UTF_8);
+        PrekeyMessage prekeyMessage = new PrekeyMessage(prekeyBundle, firstMessage, keyPairUser1.getPrivate(), keyPairUser1.getPublic());
+        byte[] message = prekeyMessage.toBytes();
+        assertTrue(PrekeyMessage.isPrekeyMessage(message));
+        assertFalse(Ratchet.isRatchet(message));
+        assertFalse(KeyId.isTagged(message));
+
+        byte[] forged = message.clone();
+        forged[PrekeyMessage.HEADER_LENGTH + 20] ^= 1;
+        assertThrows(NoSuchElementException.class, () -> myPrekeysUser2.decipher(myDirectoryUser2, keyPairUser2.getPublic(), forged));
+        assertFalse(myPrekeysUser2.isConsumed(PrekeyMessage.getPrekeyId(message)));
+
+        DecipheredMessage decipheredMessage = myPrekeysUser2.decipher(myDirectoryUser2, keyPairUser2.getPublic(), message);
+        assertEquals("user1", decipheredMessage.getConversation().getName());
+        assertArrayEquals(firstMessage, decipheredMessage.getMessage());
+        assertArrayEquals(prekeyMessage.getConversation().getSecretKey(), decipheredMessage.getConversation().getSecretKey());
+        assertEquals(prekeyMessage.getConversation().getCipherSuite(), decipheredMessage.getConversation().getCipherSuite());
+        assertEquals("user2", prekeyMessage.getConversation().getName());
+
+        //One-time prekey
+        assertTrue(myPrekeysUser2.isConsumed(PrekeyMessage.getPrekeyId(message)));
+        assertEquals(MyPrekeys.BATCH_SIZE - 1, myPrekeysUser2.getSize());
+        assertThrows(GeneralSecurityException.class, () -> myPrekeysUser2.decipher(myDirectoryUser2, keyPairUser2.getPublic(), message));
+        assertFalse(new MyPrekeys().getPublicPrekeys().containsKey(PrekeyMessage.getPrekeyId(message)));
+
+        //Refill under the watermark
+        while (myPrekeysUser2.getSize() >= MyPrekeys.LOW_WATERMARK) {
+            PrekeyMessage next = new PrekeyMessage(prekeyBundle, firstMessage, keyPairUser1.getPrivate(), keyPairUser1.getPublic());
+            if (!myPrekeysUser2.isConsumed(PrekeyMessage.getPrekeyId(next.toBytes()))) {
+                myPrekeysUser2.decipher(myDirectoryUser2, keyPairUser2.getPublic(), next.toBytes());
+            }
+        }
+        for (int i = 0; i < 500 && (myPrekeysUser2.isRefilling() || myPrekeysUser2.getSize() < MyPrekeys.BATCH_SIZE); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(MyPrekeys.BATCH_SIZE, myPrekeysUser2.getSize());
+
+        //Last-resort prekey of a bundle without one-time prekey, never consumed
+        PublicKey lastResort = prekeyBundle.getPrekey(PrekeyBundle.LAST_RESORT_ID);
+        PrekeyBundle emptyBundle = PrekeyBundle.open(myDirectoryUser1, PrekeyBundle.create(new TreeMap<>(), lastResort, keyPairUser2.getPrivate(), keyPairUser2.getPublic()));
+        assertEquals(0, emptyBundle.getSize());
+        assertEquals(PrekeyBundle.LAST_RESORT_ID, emptyBundle.pickPrekeyId());
+        PrekeyMessage lastResortMessage = new PrekeyMessage(emptyBundle, firstMessage, keyPairUser1.getPrivate(), keyPairUser1.getPublic());
+        byte[] lastResortBytes = lastResortMessage.toBytes();
+        assertEquals(PrekeyBundle.LAST_RESORT_ID, PrekeyMessage.getPrekeyId(lastResortBytes));
+        for (int i = 0; i < 2; i++) {
+            DecipheredMessage lastResortDeciphered = myPrekeysUser2.decipher(myDirectoryUser2, keyPairUser2.getPublic(), lastResortBytes);
+            assertArrayEquals(firstMessage, lastResortDeciphered.getMessage());
+            assertArrayEquals(lastResortMessage.getConversation().getSecretKey(), lastResortDeciphered.getConversation().getSecretKey());
+        }
+        assertFalse(myPrekeysUser2.isConsumed(PrekeyBundle.LAST_RESORT_ID));
+        assertEquals(MyPrekeys.BATCH_SIZE, myPrekeysUser2.getSize());
+        assertArrayEquals(lastResort.getEncoded(), PrekeyBundle.open(myDirectoryUser1, new MyPrekeys().getBundle(keyPairUser2.getPrivate(), keyPairUser2.getPublic()))
+                .getPrekey(PrekeyBundle.LAST_RESORT_ID).getEncoded()); //Saved
+
+        //Unknown key share: user3 signs again the prekey message of user1 and sends it to user2 as its own
+        KeyPair keyPairUser3 = keyPairGenerator.generateKeyPair();
+        myDirectoryUser2.addPerson("user3", keyPairUser3.getPublic().getEncoded());
+        int signatureLength = ByteBuffer.wrap(lastResortBytes, lastResortBytes.length - 2, 2).getShort();
+        byte[] body = Arrays.copyOf(lastResortBytes, lastResortBytes.length - 10 - signatureLength);
+        byte[] context = "e2ee-prekey-message".getBytes(StandardCharsets.UTF_8);
+        byte[] signed = ByteBuffer.allocate(context.length + PrekeyBundle.KEY_LENGTH + body.length)
+                .put(context)
+                .put(lastResort.getEncoded())
+                .put(body)
+                .array();
+        byte[] signature = Sign.sign(keyPairUser3.getPrivate(), signed);
+        byte[] resigned = ByteBuffer.allocate(body.length + signature.length + 10)
+                .put(body)
+                .put(signature)
+                .putLong(MyDirectory.getFingerprint(keyPairUser3.getPublic().getEncoded()))
+                .putShort((short) signature.length)
+                .array();
+        assertThrows(AEADBadTagException.class, () -> myPrekeysUser2.decipher(myDirectoryUser2, keyPairUser2.getPublic(), resigned)); //Not taken as from user3
+
+        byte[] forgedBundle = bundle.clone();
+        forgedBundle[20] ^= 1;
+        assertThrows(SignatureException.class, () -> PrekeyBundle.open(myDirectoryUser1, forgedBundle)); //Subkey
+        assertThrows(NoSuchElementException.class, () -> PrekeyBundle.open(myDirectoryUser2, bundle)); //Unknown signer
+    }
+
+    @Test
+    public void testParallelSigner() throws GeneralSecurityException, IOException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        MyDirectory myDirectory = new MyDirectory();
+        List<KeyPair> keyPairs = new ArrayList<>();
+        for (int i = 0; i < 2 * MyDirectory.PARALLEL_THRESHOLD; i++) {
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+            keyPairs.add(keyPair);
+            myDirectory.addPerson("user" + i, keyPair.getPublic().getEncoded());
+        }
+
+        byte[] message = "One More Time".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < keyPairs.size(); i += 7) {
+            byte[] signature = Sign.sign(keyPairs.get(i).getPrivate(), message);
+            assertEquals("user" + i, myDirectory.getSigner(signature, message));
+            assertEquals("user" + i, myDirectory.getSigner(signature, message)); //Last signer
+        }
+
+        byte[] signatureStranger = Sign.sign(keyPairGenerator.generateKeyPair().getPrivate(), message);
+        assertThrows(NoSuchElementException.class, () -> myDirectory.getSigner(signatureStranger, message));
+        byte[] signatureUser0 = Sign.sign(keyPairs.get(0).getPrivate(), message);
+        assertThrows(NoSuchElementException.class, () -> myDirectory.getSigner(signatureUser0, "Wrong".getBytes(StandardCharsets.UTF_8)));
+
+        myDirectory.deletePerson("user0");
+        assertThrows(NoSuchElementException.class, () -> myDirectory.getSigner(signatureUser0, message));
+    }
+
+    @Test
+    public void testMessage2Hint() throws GeneralSecurityException, IOException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPairUser1 = keyPairGenerator.generateKeyPair();
+        KeyPair keyPairUser2 = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectory = new MyDirectory();
+        myDirectory.addPerson("user1", keyPairUser1.getPublic().getEncoded());
+        myDirectory.addPerson("user2", keyPairUser2.getPublic().getEncoded());
+
+        Message1 message1User1 = new Message1(Tools.getCurrentTime());
+        Message1 message1User2 = new Message1(Tools.getCurrentTime());
+        SecretBuild secretBuildUser1 = Communication.handleMessage1(message1User1, Communication.createMessage1(message1User2));
+        SecretBuild secretBuildUser2 = Communication.handleMessage1(message1User2, Communication.createMessage1(message1User1));
+
+        String hintedMessage2 = Communication.createMessage2(keyPairUser2.getPrivate(), keyPairUser2.getPublic(), secretBuildUser2);
+        String legacyMessage2 = Communication.createMessage2(keyPairUser2.getPrivate(), secretBuildUser2);
+        assertEquals(MyDirectory.HINT_LENGTH, Tools.toBytes(hintedMessage2).length - Tools.toBytes(legacyMessage2).length);
+        assertEquals("user2", Communication.handleMessage2(myDirectory, secretBuildUser1, hintedMessage2).getName());
+        assertEquals("user2", Communication.handleMessage2(myDirectory, secretBuildUser1, legacyMessage2).getName()); //Previous versions
+
+        byte[] message = "Harder, Better, Faster, Stronger".getBytes(StandardCharsets.UTF_8);
+        byte[] signature = Sign.sign(keyPairUser2.getPrivate(), message);
+        byte[] wrongHint = ByteBuffer.allocate(signature.length + MyDirectory.HINT_LENGTH)
+                .put(signature)
+                .putLong(MyDirectory.getFingerprint(keyPairUser1.getPublic().getEncoded()))
+                .array();
+        assertEquals("user2", myDirectory.getSigner(wrongHint, message)); //Falls back to the scan
+        byte[] unknownHint = Arrays.copyOf(signature, signature.length + MyDirectory.HINT_LENGTH);
+        assertEquals("user2", myDirectory.getSigner(unknownHint, message));
+
+        byte[] hint = ByteBuffer.allocate(signature.length + MyDirectory.HINT_LENGTH)
+                .put(signature)
+                .putLong(MyDirectory.getFingerprint(keyPairUser2.getPublic().getEncoded()))
+                .array();
+        myDirectory.addPerson("user3", keyPairUser2.getPublic().getEncoded()); //Same key, the fingerprint now points to user3
+        assertEquals("user3", myDirectory.getSigner(hint, message));
+        myDirectory.deletePerson("user3");
+        myDirectory.deletePerson("user2");
+        assertThrows(NoSuchElementException.class, () -> myDirectory.getSigner(hint, message));
+    }
+
     @Test
     public void testCipherDecipher() throws GeneralSecurityException {
         String textString = "Moeagare Moeagare GANDAMU!";
@@ -138,6 +592,611 @@ public class MainTest {
         assertEquals(textString, new String(Cipher.decipher(Tools.toSecretKey(sbUser2.getSymKey()), cipheredTextFromUser1)));
     }
 
+    @Test
+    public void testCipherDecipherByteBuffer() throws GeneralSecurityException {
+        byte[] textBytes = "Moeagare Moeagare GANDAMU!".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer input = ByteBuffer.allocateDirect(textBytes.length).put(textBytes);
+        input.flip();
+        ByteBuffer ciphered = ByteBuffer.allocateDirect(Cipher.getCipherOutputSize(textBytes.length));
+
+        assertEquals(ciphered.capacity(), Cipher.cipher(Tools.toSecretKey(sbUser1.getSymKey()), input, ciphered));
+        ciphered.flip();
+
+        ByteBuffer deciphered = ByteBuffer.allocate(Cipher.getDecipherOutputSize(ciphered.remaining()));
+        Cipher.decipher(Tools.toSecretKey(sbUser2.getSymKey()), ciphered, deciphered);
+        assertArrayEquals(textBytes, deciphered.array());
+    }
+
+    @Test
+    public void testIvCounters() throws GeneralSecurityException, IOException {
+        Conversation conversation = new Conversation("user2", Tools.getCurrentTime(), sbUser1.getSymKey());
+        MyIvCounters myIvCounters = new MyIvCounters();
+        Set<String> ivs = new HashSet<>();
+        for (int i = 0; i < MyIvCounters.BLOCK_SIZE + 10; i++) {
+            assertTrue(ivs.add(Tools.toBase64(myIvCounters.nextIv(conversation))));
+        }
+
+        MyIvCounters myIvCountersFile = new MyIvCounters(); //After a restart
+        assertFalse(ivs.contains(Tools.toBase64(myIvCountersFile.nextIv(conversation))));
+
+        CipherContext cipherContext = new CipherContext(conversation, myIvCountersFile);
+        String textString = "Moeagare Moeagare GANDAMU!";
+        byte[] cipheredText = cipherContext.cipher(textString.getBytes(StandardCharsets.UTF_8));
+        assertEquals(textString, new String(Cipher.decipher(Tools.toSecretKey(sbUser2.getSymKey()), cipheredText)));
+    }
+
+    @Test
+    public void testStreamCipher() throws GeneralSecurityException, IOException {
+        byte[] secretKey = Tools.generateRandomBytes(32);
+        byte[] input = new byte[3 * StreamCipher.SEGMENT_SIZE + 42];
+        Arrays.fill(input, (byte) 'E');
+
+        ByteArrayOutputStream ciphered = new ByteArrayOutputStream();
+        StreamCipher.cipher(secretKey, new ByteArrayInputStream(input), ciphered);
+        assertEquals(StreamCipher.getCipherSize(input.length), ciphered.size());
+
+        ByteArrayOutputStream deciphered = new ByteArrayOutputStream();
+        StreamCipher.decipher(secretKey, new ByteArrayInputStream(ciphered.toByteArray()), deciphered);
+        assertArrayEquals(input, deciphered.toByteArray());
+
+        //The streams of the caller are left open
+        ReadableByteChannel plainChannel = Channels.newChannel(new ByteArrayInputStream(input));
+        WritableByteChannel cipheredChannel = Channels.newChannel(new ByteArrayOutputStream());
+        StreamCipher.cipher(secretKey, plainChannel, cipheredChannel);
+        assertTrue(plainChannel.isOpen());
+        assertTrue(cipheredChannel.isOpen());
+        ReadableByteChannel cipheredInChannel = Channels.newChannel(new ByteArrayInputStream(ciphered.toByteArray()));
+        WritableByteChannel plainOutChannel = Channels.newChannel(new ByteArrayOutputStream());
+        StreamCipher.decipher(secretKey, cipheredInChannel, plainOutChannel);
+        assertTrue(cipheredInChannel.isOpen());
+        assertTrue(plainOutChannel.isOpen());
+
+        try (InputStream decipherStream = StreamCipher.newDecipherStream(secretKey, new ByteArrayInputStream(ciphered.toByteArray()))) {
+            assertEquals(0, decipherStream.skip(-1));
+            assertEquals(0, decipherStream.skip(0));
+            assertEquals(StreamCipher.SEGMENT_SIZE + 1, decipherStream.skip(StreamCipher.SEGMENT_SIZE + 1));
+            assertEquals('E', decipherStream.read());
+        }
+
+        byte[] truncated = Arrays.copyOf(ciphered.toByteArray(), StreamCipher.HEADER_LENGTH + StreamCipher.CIPHER_SEGMENT_SIZE);
+        assertThrows(IOException.class, () -> StreamCipher.decipher(secretKey, new ByteArrayInputStream(truncated), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testSeekableDecipher() throws GeneralSecurityException, IOException {
+        Conversation conversation = new Conversation("user2", Tools.getCurrentTime(), Tools.generateRandomBytes(32));
+        byte[] input = new byte[5 * StreamCipher.SEGMENT_SIZE + 42];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) (i / 7);
+        }
+
+        File file = File.createTempFile("seekable", ".bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            StreamCipher.cipher(conversation.getStreamKey(), new ByteArrayInputStream(input), out);
+        }
+        try (SeekableDecipher seekableDecipher = new SeekableDecipher(conversation, file)) {
+            assertEquals(input.length, seekableDecipher.size());
+            long position = 2 * StreamCipher.SEGMENT_SIZE - 10; //Across two segments
+            assertArrayEquals(Arrays.copyOfRange(input, (int) position, (int) position + 100), seekableDecipher.read(position, 100));
+            assertArrayEquals(Arrays.copyOfRange(input, input.length - 42, input.length), seekableDecipher.read(input.length - 42, 1000));
+            assertEquals(-1, seekableDecipher.read(input.length, new byte[1], 0, 1));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testCipherSuite() throws Exception {
+        Message1 message1User1 = new Message1(System.currentTimeMillis() / 1000L, CipherSuite.CHACHA20_POLY1305);
+        Message1 message1User2 = new Message1(System.currentTimeMillis() / 1000L, CipherSuite.CHACHA20_POLY1305);
+        Message1 message1Legacy = new Message1(System.currentTimeMillis() / 1000L, CipherSuite.AES_256_GCM);
+        assertEquals(Message1.EXTENDED_SIZE, message1User1.toBytes().length);
+        assertEquals(Message1.SIZE, message1Legacy.toBytes().length);
+
+        user1.getMyDirectory().addPerson("user2", user2.getMyPublicKey().getEncoded());
+        user2.getMyDirectory().addPerson("user1", user1.getMyPublicKey().getEncoded());
+        SecretBuild secretBuildUser1 = Communication.handleMessage1(message1User1, Communication.createMessage1(message1User2));
+        SecretBuild secretBuildUser2 = Communication.handleMessage1(message1User2, Communication.createMessage1(message1User1));
+        assertEquals(CipherSuite.CHACHA20_POLY1305, secretBuildUser1.getCipherSuite());
+        assertTrue(secretBuildUser1.equals(secretBuildUser2));
+        assertEquals(CipherSuite.AES_256_GCM, Communication.handleMessage1(message1User1, Communication.createMessage1(message1Legacy)).getCipherSuite());
+
+        //A person preferring AES-256-GCM still advertises ChaCha20-Poly1305, so the other preference wins
+        Message1 message1Advertised = new Message1(System.currentTimeMillis() / 1000L, CipherSuite.AES_256_GCM, KeySuite.SECP384R1_P256, true);
+        assertEquals(Message1.EXTENDED_SIZE, message1Advertised.toBytes().length);
+        assertEquals(CipherSuite.CHACHA20_POLY1305, Communication.handleMessage1(message1User1, Communication.createMessage1(message1Advertised)).getCipherSuite());
+        assertEquals(CipherSuite.CHACHA20_POLY1305, Communication.handleMessage1(message1Advertised, Communication.createMessage1(message1User1)).getCipherSuite());
+        Message1 message1NotAdvertised = new Message1(System.currentTimeMillis() / 1000L, CipherSuite.AES_256_GCM, KeySuite.SECP384R1_P256, false);
+        assertEquals(Message1.SIZE, message1NotAdvertised.toBytes().length);
+
+        Conversation conversationUser1 = Communication.handleMessage2(user1.getMyDirectory(), secretBuildUser1,
+                Communication.createMessage2(user2.getMyPrivateKey(), secretBuildUser2));
+        Conversation conversationUser2 = Communication.handleMessage2(user2.getMyDirectory(), secretBuildUser2,
+                Communication.createMessage2(user1.getMyPrivateKey(), secretBuildUser1));
+        assertEquals(CipherSuite.CHACHA20_POLY1305, conversationUser1.getCipherSuite());
+
+        String message = "Around the World, Around the World";
+        byte[] cipheredMessage = new CipherContext(conversationUser1).cipher(message.getBytes(StandardCharsets.UTF_8));
+        assertEquals(message, new String(new CipherContext(conversationUser2).decipher(cipheredMessage), StandardCharsets.UTF_8));
+
+        MyConversations myConversations = new MyConversations();
+        myConversations.addConversation(conversationUser1);
+        myConversations.save();
+        assertEquals(CipherSuite.CHACHA20_POLY1305, new MyConversations().getConversation(0).getCipherSuite());
+    }
+
+    @Test
+    public void testEnvelope() throws GeneralSecurityException {
+        List<Conversation> conversations = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            CipherSuite cipherSuite = i % 2 == 0 ? CipherSuite.AES_256_GCM : CipherSuite.CHACHA20_POLY1305;
+            conversations.add(new Conversation("user" + i, Tools.getCurrentTime(), Tools.generateRandomBytes(32), cipherSuite));
+        }
+        byte[] message = "Around the World, Around the World".getBytes(StandardCharsets.UTF_8);
+
+        byte[] envelope = Envelope.cipher(conversations, message);
+        assertEquals(Envelope.getCipherSize(conversations.size(), message.length), envelope.length);
+        for (Conversation conversation : conversations) {
+            assertArrayEquals(message, Envelope.decipher(conversation, envelope));
+        }
+
+        Conversation stranger = new Conversation("stranger", Tools.getCurrentTime(), Tools.generateRandomBytes(32));
+        assertThrows(GeneralSecurityException.class, () -> Envelope.decipher(stranger, envelope));
+        envelope[envelope.length - 1] ^= 1;
+        assertThrows(GeneralSecurityException.class, () -> Envelope.decipher(conversations.get(0), envelope));
+    }
+
+    @Test
+    public void testOutbox() throws Exception {
+        MyConversations myConversations = new MyConversations();
+        Conversation conversation = new Conversation("user2", Tools.getCurrentTime(), Tools.generateRandomBytes(32));
+        myConversations.addConversation(conversation);
+        MyIvCounters myIvCounters = new MyIvCounters();
+        MyOutbox myOutbox = new MyOutbox(myConversations, myIvCounters);
+
+        List<CompletableFuture<String>> cipheredMessages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            cipheredMessages.add(myOutbox.add(conversation, ("Message " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        CipherContext cipherContext = new CipherContext(conversation);
+        for (int i = 0; i < 20; i++) {
+            String cipheredMessage = cipheredMessages.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals("Message " + i, new String(cipherContext.decipher(Tools.toBytes(cipheredMessage)), StandardCharsets.UTF_8));
+        }
+        assertEquals(0, myOutbox.getPendingSize());
+        assertEquals(20, myOutbox.getReady(conversation).size());
+
+        assertTrue(myOutbox.remove(conversation, cipheredMessages.get(0).get()));
+        assertFalse(myOutbox.remove(conversation, cipheredMessages.get(0).get()));
+        myOutbox.awaitSaved();
+        MyOutbox myOutboxFile = new MyOutbox(myConversations, myIvCounters); //After a restart
+        assertEquals(19, myOutboxFile.getReady(conversation).size());
+        myOutboxFile.deleteConversation(conversation);
+        assertEquals(0, myOutboxFile.getReady(conversation).size());
+
+        //With ratchets, the heads are saved once for the batch before the messages are released
+        MyOutbox myRatchetOutbox = new MyOutbox(myConversations, myIvCounters, null, new MyRatchets());
+        cipheredMessages.clear();
+        for (int i = 0; i < 10; i++) {
+            cipheredMessages.add(myRatchetOutbox.add(conversation, ("Ratchet " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        Ratchet ratchet = new Ratchet(conversation);
+        for (int i = 0; i < 10; i++) {
+            byte[] cipheredMessage = Tools.toBytes(cipheredMessages.get(i).get(10, TimeUnit.SECONDS));
+            assertTrue(Ratchet.isRatchet(cipheredMessage));
+            assertEquals("Ratchet " + i, new String(ratchet.decipher(cipheredMessage), StandardCharsets.UTF_8));
+        }
+        byte[] afterRestart = new MyRatchets().cipher(conversation, "Restart".getBytes(StandardCharsets.UTF_8));
+        assertEquals("Restart", new String(ratchet.decipher(afterRestart), StandardCharsets.UTF_8)); //No key used again
+        myRatchetOutbox.deleteConversation(conversation);
+        myRatchetOutbox.awaitSaved();
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        byte[] shortMessage = "Hello".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(shortMessage, Compression.compress(shortMessage, null));
+
+        byte[] longMessage = "Around the World, Around the World. ".repeat(100).getBytes(StandardCharsets.UTF_8);
+        byte[] compressedMessage = Compression.compress(longMessage, null);
+        assertTrue(compressedMessage.length < longMessage.length);
+        assertArrayEquals(longMessage, Compression.decompress(compressedMessage, null));
+
+        Conversation conversation = new Conversation("user2", Tools.getCurrentTime(), Tools.generateRandomBytes(32));
+        MyDictionaries myDictionariesUser1 = new MyDictionaries();
+        MyDictionaries myDictionariesUser2 = new MyDictionaries();
+        for (int i = 0; i < 20; i++) {
+            byte[] message = ("See you tomorrow at the station, platform " + i).getBytes(StandardCharsets.UTF_8);
+            myDictionariesUser2.addSent(conversation, message);
+            if (i < 18) { //The last messages are not received yet
+                myDictionariesUser1.addReceived(conversation, message);
+            }
+        }
+
+        byte[] message = "See you tomorrow at the station, platform 9 3/4".getBytes(StandardCharsets.UTF_8);
+        byte[] compressedWithDictionary = Compression.compress(message, myDictionariesUser1.getDictionary(conversation));
+        assertTrue(compressedWithDictionary.length < Compression.compress(message, null).length);
+        assertArrayEquals(message, Compression.decompress(compressedWithDictionary, myDictionariesUser2.getCandidateDictionaries(conversation)));
+        assertThrows(DataFormatException.class, () -> Compression.decompress(compressedWithDictionary, new ArrayList<>()));
+
+        //A message never shared, a message deciphered twice and my own message deciphered do not break the dictionaries
+        myDictionariesUser2.addSent(conversation, "Never shared, platform 21".getBytes(StandardCharsets.UTF_8));
+        byte[] received = "See you tomorrow at the station, platform 17".getBytes(StandardCharsets.UTF_8);
+        myDictionariesUser1.addReceived(conversation, received);
+        myDictionariesUser1.addReceived(conversation, received);
+        byte[] mine = "See you tomorrow at the station, platform 42".getBytes(StandardCharsets.UTF_8);
+        myDictionariesUser1.addSent(conversation, mine);
+        myDictionariesUser1.addReceived(conversation, mine);
+        assertArrayEquals(received, myDictionariesUser1.getDictionary(conversation));
+        byte[] compressedAfterDrift = Compression.compress(message, myDictionariesUser1.getDictionary(conversation));
+        assertEquals(Compression.DEFLATE_DICTIONARY, compressedAfterDrift[0]);
+        assertArrayEquals(message, Compression.decompress(compressedAfterDrift, myDictionariesUser2.getCandidateDictionaries(conversation)));
+    }
+
+    @Test
+    public void testKeyId() throws GeneralSecurityException, IOException {
+        MyConversations myConversations = new MyConversations();
+        for (int i = 0; i < 50; i++) {
+            myConversations.addConversation(new Conversation("user" + i, Tools.getCurrentTime(), Tools.generateRandomBytes(32)));
+        }
+        Conversation conversation = myConversations.getConversation(42);
+        CipherContext cipherContext = new CipherContext(conversation);
+        byte[] message = "Around the World, Around the World".getBytes(StandardCharsets.UTF_8);
+
+        byte[] taggedMessage = cipherContext.cipherWithKeyId(message);
+        assertTrue(KeyId.isTagged(taggedMessage));
+        assertEquals(conversation.getKeyId(), KeyId.getKeyId(taggedMessage));
+        assertSame(conversation, myConversations.getConversationByKeyId(conversation.getKeyId()));
+        assertArrayEquals(message, cipherContext.decipher(taggedMessage));
+
+        DecipheredMessage decipheredMessage = myConversations.decipher(taggedMessage);
+        assertSame(conversation, decipheredMessage.getConversation());
+        assertArrayEquals(message, decipheredMessage.getMessage());
+
+        DecipheredMessage decipheredLegacy = myConversations.decipher(cipherContext.cipher(message)); //Without key identifier
+        assertSame(conversation, decipheredLegacy.getConversation());
+        assertNull(myConversations.decipher(new CipherContext(Tools.generateRandomBytes(32)).cipherWithKeyId(message)));
+    }
+
+    @Test
+    public void testRandomService() throws InterruptedException {
+        Set<String> ivs = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            byte[] iv = RandomService.nextIv();
+            assertEquals(Cipher.GCM_IV_LENGTH, iv.length);
+            assertTrue(ivs.add(Tools.toBase64(iv)));
+        }
+
+        byte[][] otherIvs = new byte[1000][];
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < otherIvs.length; i++) {
+                otherIvs[i] = RandomService.nextIv();
+            }
+        });
+        thread.start();
+        thread.join();
+        for (byte[] iv : otherIvs) {
+            assertTrue(ivs.add(Tools.toBase64(iv)));
+        }
+
+        byte[] bytes = new byte[RandomService.POOL_SIZE * 2];
+        RandomService.nextBytes(bytes, 1, bytes.length - 2);
+        assertEquals(0, bytes[0]);
+        assertEquals(0, bytes[bytes.length - 1]);
+        assertFalse(Arrays.equals(new byte[32], Arrays.copyOfRange(bytes, 1, 33)));
+        for (int i = 0; i < 1000; i++) {
+            int value = RandomService.nextInt(100);
+            assertTrue(value >= 0 && value < 100);
+        }
+    }
+
+    @Test
+    public void testHkdf() throws GeneralSecurityException {
+        byte[] salt = Tools.generateRandomBytes(32);
+        byte[] ikm = Tools.generateRandomBytes(48);
+        byte[] prk = KeyExchange.hkdfExtract(salt, ikm);
+        byte[] okm = KeyExchange.hkdfExpand(prk, "conversation", 32 + 8 + 100);
+
+        byte[] prkEngine = new byte[Hkdf.HASH_LENGTH];
+        Hkdf.extract(salt, ikm, prkEngine);
+        assertArrayEquals(prk, prkEngine);
+
+        byte[] encryptionKey = new byte[32];
+        byte[] keyId = new byte[8];
+        byte[] ivSeed = new byte[100]; //Across two blocks
+        Hkdf.derive(salt, ikm, "conversation", encryptionKey, keyId, ivSeed);
+        assertArrayEquals(Arrays.copyOfRange(okm, 0, 32), encryptionKey);
+        assertArrayEquals(Arrays.copyOfRange(okm, 32, 40), keyId);
+        assertArrayEquals(Arrays.copyOfRange(okm, 40, okm.length), ivSeed);
+
+        //Key identifier, identifier and stream key of a conversation come from one derivation
+        Conversation conversation = new Conversation("user2", Tools.getCurrentTime(), ikm);
+        byte[] conversationOkm = KeyExchange.hkdfExpand(KeyExchange.hkdfExtract(new byte[Hkdf.HASH_LENGTH], ikm), "conversation", 8 + 16 + Hkdf.HASH_LENGTH);
+        assertEquals(ByteBuffer.wrap(conversationOkm, 0, 8).getLong(), conversation.getKeyId());
+        assertEquals(Tools.toBase64(Arrays.copyOfRange(conversationOkm, 8, 24)), conversation.getId());
+        assertArrayEquals(Arrays.copyOfRange(conversationOkm, 24, conversationOkm.length), conversation.getStreamKey());
+
+        byte[] output = new byte[10 + 130];
+        Hkdf.expand(prk, "conversation".getBytes(StandardCharsets.UTF_8), output, 10, 130);
+        assertArrayEquals(new byte[10], Arrays.copyOfRange(output, 0, 10));
+        assertArrayEquals(Arrays.copyOfRange(okm, 0, 130), Arrays.copyOfRange(output, 10, output.length));
+        assertThrows(IllegalArgumentException.class, () -> Hkdf.expand(prk, new byte[0], new byte[Hkdf.MAX_LENGTH + 1]));
+    }
+
+    @Test
+    public void testEphemeralKeyPool() throws GeneralSecurityException, InterruptedException {
+        EphemeralKeyPool.refill();
+        for (int i = 0; i < 100 && EphemeralKeyPool.size() < EphemeralKeyPool.CAPACITY; i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertEquals(EphemeralKeyPool.CAPACITY, EphemeralKeyPool.size());
+
+        long hits = EphemeralKeyPool.getHits();
+        long takes = hits + EphemeralKeyPool.getMisses();
+        Set<String> publicKeys = new HashSet<>();
+        for (int i = 0; i < 2 * EphemeralKeyPool.CAPACITY; i++) {
+            assertTrue(publicKeys.add(Tools.toBase64(EphemeralKeyPool.take().getPublic().getEncoded())));
+        }
+        assertTrue(EphemeralKeyPool.getHits() >= hits + EphemeralKeyPool.CAPACITY);
+        assertEquals(takes + 2 * EphemeralKeyPool.CAPACITY, EphemeralKeyPool.getHits() + EphemeralKeyPool.getMisses());
+        assertTrue(EphemeralKeyPool.getAverageRefillTime() > 0);
+
+        Message1 message1 = new Message1(Tools.getCurrentTime());
+        assertTrue(publicKeys.add(Tools.toBase64(message1.getPublicKey().getEncoded())));
+    }
+
+    @Test
+    public void testKeySuite() throws GeneralSecurityException {
+        if (!KeySuite.CURVE25519.isSupported()) {
+            return;
+        }
+        long timestamp = Tools.getCurrentTime();
+        Message1 message1User1 = new Message1(timestamp, CipherSuite.AES_256_GCM, KeySuite.CURVE25519);
+        Message1 message1User2 = new Message1(timestamp, CipherSuite.AES_256_GCM, KeySuite.CURVE25519);
+        Message1 message1Legacy = new Message1(timestamp, CipherSuite.AES_256_GCM, KeySuite.SECP384R1_P256);
+        assertEquals(Message1.CURVE25519_SIZE, message1User1.toBytes().length);
+        assertEquals(Message1.SIZE, message1Legacy.toBytes().length);
+
+        SecretBuild secretBuildUser1 = Communication.handleMessage1(message1User1, Communication.createMessage1(message1User2));
+        SecretBuild secretBuildUser2 = Communication.handleMessage1(message1User2, Communication.createMessage1(message1User1));
+        assertEquals(KeySuite.CURVE25519, secretBuildUser1.getKeySuite());
+        assertTrue(secretBuildUser1.equals(secretBuildUser2));
+        assertArrayEquals(secretBuildUser1.toBytesWithSymKey(), new SecretBuild(null, secretBuildUser1.toBytesWithSymKey()).toBytesWithSymKey());
+
+        assertNull(message1User1.getPublicKey()); //No secp384r1 key pair generated
+        assertThrows(IllegalArgumentException.class, () -> Communication.handleMessage1(message1User1, Communication.createMessage1(message1Legacy)));
+        assertThrows(IllegalArgumentException.class, () -> Communication.handleMessage1(message1Legacy, Communication.createMessage1(message1User1)));
+
+        KeyPair identity = KeyPairGenerator.getInstance(KeySuite.CURVE25519.getSignatureAlgorithm()).generateKeyPair();
+        byte[] message = secretBuildUser1.toBytesWithoutSymKey();
+        byte[] signature = Sign.sign(identity.getPrivate(), message);
+        assertEquals(KeySuite.SIGNATURE_LENGTH, signature.length);
+        PublicKey publicKey = Tools.toPublicKey(identity.getPublic().getEncoded());
+        assertTrue(Sign.verify(publicKey, signature, message));
+        assertFalse(Sign.verify(publicKey, signature, secretBuildUser2.toBytesWithoutSymKey()));
+    }
+
+    @Test
+    public void testResumption() throws GeneralSecurityException, IOException {
+        MyConversations myConversations = new MyConversations();
+        for (int i = 0; i < 5; i++) {
+            myConversations.addConversation(new Conversation("user" + i, Tools.getCurrentTime(), Tools.generateRandomBytes(32), CipherSuite.CHACHA20_POLY1305));
+        }
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        PublicKey publicKeyUser1 = keyPairGenerator.generateKeyPair().getPublic();
+        PublicKey publicKeyUser2 = keyPairGenerator.generateKeyPair().getPublic();
+        Conversation conversation = myConversations.getConversation(3);
+        Resumption resumptionUser1 = new Resumption(conversation, publicKeyUser1, publicKeyUser2);
+        Resumption resumptionUser2 = new Resumption(conversation, publicKeyUser2, publicKeyUser1);
+        byte[] messageUser1 = resumptionUser1.toBytes();
+        byte[] messageUser2 = resumptionUser2.toBytes();
+        assertEquals(Resumption.SIZE, messageUser1.length);
+        assertTrue(Resumption.isResumption(messageUser1));
+        assertEquals(conversation.getKeyId(), Resumption.getKeyId(messageUser1));
+        assertThrows(IllegalArgumentException.class, () -> new Resumption(conversation, publicKeyUser1, publicKeyUser1));
+
+        Conversation resumedUser1 = resumptionUser1.handle(messageUser2);
+        Conversation resumedUser2 = resumptionUser2.handle(messageUser1);
+        assertArrayEquals(resumedUser1.getSecretKey(), resumedUser2.getSecretKey());
+        assertFalse(Arrays.equals(conversation.getSecretKey(), resumedUser1.getSecretKey()));
+        assertEquals(conversation.getName(), resumedUser1.getName());
+        assertEquals(CipherSuite.CHACHA20_POLY1305, resumedUser1.getCipherSuite());
+
+        assertThrows(GeneralSecurityException.class, () -> resumptionUser1.handle(messageUser1)); //Reflected
+        assertThrows(GeneralSecurityException.class, () -> new Resumption(conversation, publicKeyUser1, publicKeyUser2).handle(messageUser1)); //Reflected to a new resumption
+        byte[] tampered = messageUser2.clone();
+        tampered[20] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> resumptionUser1.handle(tampered));
+        assertThrows(IllegalArgumentException.class, () -> new Resumption(myConversations.getConversation(0), publicKeyUser1, publicKeyUser2).handle(messageUser2));
+
+        //Old message with a valid MAC, only the direction of user2 passes the MAC and is refused as too old
+        byte[] stale = messageUser2.clone();
+        ByteBuffer.wrap(stale, 9, 8).putLong(Tools.getCurrentTime() - Resumption.MAX_AGE - 60);
+        byte[] authKey = new byte[32];
+        Hkdf.derive(new byte[0], conversation.getSecretKey(), "resumption-auth", authKey);
+        int tooOld = 0;
+        for (byte direction = 0; direction < 2; direction++) {
+            Mac mac = Mac.getInstance(Hkdf.ALGORITHM);
+            mac.init(new SecretKeySpec(authKey, Hkdf.ALGORITHM));
+            mac.update(direction);
+            mac.update(stale, 0, Resumption.SIZE - Resumption.MAC_LENGTH);
+            System.arraycopy(mac.doFinal(), 0, stale, Resumption.SIZE - Resumption.MAC_LENGTH, Resumption.MAC_LENGTH);
+            GeneralSecurityException e = assertThrows(GeneralSecurityException.class, () -> resumptionUser1.handle(stale));
+            if (!(e instanceof AEADBadTagException)) {
+                tooOld++;
+            }
+        }
+        assertEquals(1, tooOld);
+
+        byte[] oldMessage = new CipherContext(conversation).cipher("before".getBytes(StandardCharsets.UTF_8));
+        myConversations.replaceConversation(conversation, resumedUser1);
+        assertEquals(3, myConversations.indexOf(resumedUser1));
+        assertEquals(-1, myConversations.indexOf(conversation));
+        assertSame(resumedUser1, myConversations.getConversationByKeyId(resumedUser1.getKeyId()));
+        assertSame(resumedUser1, myConversations.getConversationByKeyId(conversation.getKeyId()));
+        assertSame(conversation, myConversations.getPrevious(resumedUser1));
+        MyConversations reloaded = new MyConversations();
+        assertArrayEquals(conversation.getSecretKey(), reloaded.getPrevious(reloaded.getConversation(3)).getSecretKey());
+
+        //The previous secret still deciphers until a message comes with the new one
+        DecipheredMessage decipheredMessage = myConversations.decipher(oldMessage);
+        assertSame(resumedUser1, decipheredMessage.getConversation());
+        assertTrue(decipheredMessage.isPreviousKey());
+        assertEquals("before", new String(decipheredMessage.getMessage(), StandardCharsets.UTF_8));
+        decipheredMessage = myConversations.decipher(new CipherContext(resumedUser2).cipher("after".getBytes(StandardCharsets.UTF_8)));
+        assertSame(resumedUser1, decipheredMessage.getConversation());
+        assertFalse(decipheredMessage.isPreviousKey());
+        assertSame(conversation, myConversations.confirmResumption(resumedUser1));
+        assertNull(myConversations.getPrevious(resumedUser1));
+        assertNull(myConversations.getConversationByKeyId(conversation.getKeyId()));
+        assertNull(myConversations.decipher(oldMessage));
+        reloaded = new MyConversations();
+        assertArrayEquals(resumedUser1.getSecretKey(), reloaded.getConversation(3).getSecretKey());
+        assertNull(reloaded.getPrevious(reloaded.getConversation(3)));
+    }
+
+    @Test
+    public void testHandshakeResponder() throws GeneralSecurityException, IOException, InterruptedException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair service = keyPairGenerator.generateKeyPair();
+        MyDirectory myDirectory = new MyDirectory();
+        myDirectory.addPerson("service", service.getPublic().getEncoded());
+
+        List<Message1> clients = new ArrayList<>();
+        List<String> inbound = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Message1 message1 = new Message1(Tools.getCurrentTime());
+            clients.add(message1);
+            inbound.add(Communication.createMessage1(message1));
+        }
+        inbound.add("AAAA"); //Not a Message1
+        inbound.add(null); //NullPointerException, fails alone
+
+        EphemeralKeyPool.clear();
+        long misses = EphemeralKeyPool.getMisses();
+        HandshakeResponder handshakeResponder = new HandshakeResponder(service.getPrivate(), service.getPublic(), 4);
+        HandshakeResponder.Report report = handshakeResponder.respondAll(inbound);
+        handshakeResponder.shutdown();
+        assertEquals(misses, EphemeralKeyPool.getMisses()); //Key pairs generated by the threads of the batch
+        assertEquals(inbound.size(), report.getResponses().size());
+        assertEquals(2, report.getFailures());
+        assertFalse(report.getResponses().get(20).isSuccess());
+        assertFalse(report.getResponses().get(21).isSuccess());
+        assertTrue(report.getPercentile(50) <= report.getPercentile(99));
+        assertTrue(report.getThroughput() > 0);
+
+        for (int i = 0; i < clients.size(); i++) {
+            HandshakeResponder.Response response = report.getResponses().get(i);
+            assertTrue(response.isSuccess());
+            assertEquals(inbound.get(i), response.getOtherMessage1());
+            SecretBuild secretBuild = Communication.handleMessage1(clients.get(i), response.getMyMessage1());
+            assertTrue(secretBuild.equals(response.getSecretBuild()));
+            Conversation conversation = Communication.handleMessage2(myDirectory, secretBuild, response.getMessage2());
+            assertEquals("service", conversation.getName());
+        }
+    }
+
+    @Test
+    public void testRatchet() throws GeneralSecurityException, IOException {
+        Conversation conversation = new Conversation("user", Tools.getCurrentTime(), Tools.generateRandomBytes(32), CipherSuite.CHACHA20_POLY1305);
+        Ratchet ratchetUser1 = new Ratchet(conversation);
+        Ratchet ratchetUser2 = new Ratchet(conversation);
+
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            messages.add(ratchetUser1.cipher(("Message " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        assertTrue(Ratchet.isRatchet(messages.get(0)));
+        assertFalse(KeyId.isTagged(messages.get(0)));
+        assertEquals(conversation.getKeyId(), Ratchet.getKeyId(messages.get(0)));
+        assertFalse(Arrays.equals(Arrays.copyOfRange(messages.get(0), Ratchet.HEADER_LENGTH, messages.get(0).length),
+                Arrays.copyOfRange(messages.get(1), Ratchet.HEADER_LENGTH, messages.get(1).length)));
+
+        assertArrayEquals("Message 4".getBytes(StandardCharsets.UTF_8), ratchetUser2.decipher(messages.get(4)));
+        assertEquals(4, ratchetUser2.getSkippedKeysSize());
+        assertArrayEquals("Message 1".getBytes(StandardCharsets.UTF_8), ratchetUser2.decipher(messages.get(1)));
+        assertEquals(3, ratchetUser2.getSkippedKeysSize());
+        assertThrows(GeneralSecurityException.class, () -> ratchetUser2.decipher(messages.get(1))); //Key erased
+        assertThrows(GeneralSecurityException.class, () -> ratchetUser2.decipher(messages.get(4)));
+        assertThrows(GeneralSecurityException.class, () -> ratchetUser1.decipher(messages.get(0))); //Reflected
+
+        byte[] tampered = messages.get(5).clone();
+        tampered[tampered.length - 1] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> ratchetUser2.decipher(tampered));
+        assertArrayEquals("Message 5".getBytes(StandardCharsets.UTF_8), ratchetUser2.decipher(messages.get(5)));
+
+        Ratchet restored = new Ratchet(conversation, ratchetUser2.toBytes()); //Skipped keys are not saved
+        assertEquals(0, restored.getSkippedKeysSize());
+        assertThrows(GeneralSecurityException.class, () -> restored.decipher(messages.get(0)));
+        assertArrayEquals("Answer".getBytes(StandardCharsets.UTF_8), ratchetUser1.decipher(restored.cipher("Answer".getBytes(StandardCharsets.UTF_8))));
+
+        byte[] farAhead = null;
+        for (int i = 0; i <= Ratchet.MAX_SKIP + 1; i++) {
+            farAhead = ratchetUser1.cipher(new byte[1]);
+        }
+        byte[] finalFarAhead = farAhead;
+        assertThrows(GeneralSecurityException.class, () -> ratchetUser2.decipher(finalFarAhead));
+
+        MyRatchets myRatchets = new MyRatchets();
+        byte[] saved = myRatchets.cipher(conversation, "Saved".getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals("Saved".getBytes(StandardCharsets.UTF_8), ratchetUser2.decipher(saved));
+        byte[] afterRestart = new MyRatchets().cipher(conversation, "Restart".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Ratchet.getKeyId(saved), Ratchet.getKeyId(afterRestart));
+        assertArrayEquals(Arrays.copyOfRange(saved, 10, 18), Arrays.copyOfRange(afterRestart, 10, 18)); //Same chain
+        assertArrayEquals("Restart".getBytes(StandardCharsets.UTF_8), ratchetUser2.decipher(afterRestart));
+        myRatchets.deleteRatchet(conversation);
+        assertEquals(0, new MyRatchets().getSize());
+    }
+
+    @Test
+    public void testRatchetMarker() throws GeneralSecurityException, IOException {
+        Conversation conversation = new Conversation("user1", Tools.getCurrentTime(), Tools.generateRandomBytes(32), CipherSuite.AES_256_GCM);
+        user2.addAConversation(conversation);
+        SecretKey secretKey = conversation.getCipherSuite().toSecretKey(conversation.getSecretKey());
+        byte[] message = "Untagged message whose IV starts like a ratchet header".getBytes(StandardCharsets.UTF_8);
+
+        //Unknown key identifier
+        byte[] iv = Tools.generateRandomBytes(12);
+        iv[0] = Ratchet.MARKER;
+        iv[1] = Ratchet.VERSION;
+        byte[] cipherMessage = Cipher.cipher(conversation.getCipherSuite(), secretKey, iv, message);
+        assertTrue(Ratchet.isRatchet(cipherMessage));
+        DecipheredMessage decipheredMessage = user2.decipherAnything(Tools.toBase64(cipherMessage));
+        assertNotNull(decipheredMessage);
+        assertEquals(conversation, decipheredMessage.getConversation());
+        assertArrayEquals(message, decipheredMessage.getMessage());
+
+        //Key identifier of the conversation, the ratchet fails
+        ByteBuffer.wrap(iv, 2, 8).putLong(conversation.getKeyId());
+        byte[] keyIdMessage = Cipher.cipher(conversation.getCipherSuite(), secretKey, iv, message);
+        assertEquals(conversation.getKeyId(), Ratchet.getKeyId(keyIdMessage));
+        decipheredMessage = user2.decipherAnything(Tools.toBase64(keyIdMessage));
+        assertNotNull(decipheredMessage);
+        assertArrayEquals(message, decipheredMessage.getMessage());
+        user2.getMyConversations().deleteConversation(conversation);
+    }
+
+    @Test
+    public void testPrekeyMarker() throws GeneralSecurityException, IOException {
+        Conversation conversation = new Conversation("user1", Tools.getCurrentTime(), Tools.generateRandomBytes(32), CipherSuite.AES_256_GCM);
+        user2.addAConversation(conversation);
+        byte[] message = new byte[PrekeyMessage.HEADER_LENGTH + KeySuite.SIGNATURE_LENGTH + SignedMessage1.TRAILER_LENGTH];
+        Arrays.fill(message, (byte) 'a');
+
+        byte[] iv = Tools.generateRandomBytes(12);
+        iv[0] = PrekeyMessage.MARKER;
+        iv[1] = PrekeyMessage.VERSION;
+        byte[] cipherMessage = Cipher.cipher(conversation.getCipherSuite(), conversation.getCipherSuite().toSecretKey(conversation.getSecretKey()), iv, message);
+        assertTrue(PrekeyMessage.isPrekeyMessage(cipherMessage));
+        DecipheredMessage decipheredMessage = user2.decipherAnything(Tools.toBase64(cipherMessage));
+        assertNotNull(decipheredMessage);
+        assertEquals(conversation, decipheredMessage.getConversation());
+        assertArrayEquals(message, decipheredMessage.getMessage());
+        user2.getMyConversations().deleteConversation(conversation);
+    }
+
     @Test
     public void testSaveAndLoadMyKeyPair() throws GeneralSecurityException, IOException {
         MyKeyPair myKeyPair = new MyKeyPair("fr.upec.e2ee.keypair.unittest3"); //Without File
@@ -241,8 +1300,8 @@ public class MainTest {
         assertEquals(myStatePhone.getMyNonce(), myStatePhoneFile.getMyNonce());
 
         //Create Conversation
-        Message1 message1User1 = new Message1(System.currentTimeMillis() / 1000L, myStatePhone.getMyNonce());
-        Message1 message1User2 = new Message1(System.currentTimeMillis() / 1000L, user2.getMyNonce());
+        Message1 message1User1 = new Message1(System.currentTimeMillis() / 1000L);
+        Message1 message1User2 = new Message1(System.currentTimeMillis() / 1000L);
 
         user2.getMyDirectory().addPerson("user1", myStatePhone.getMyPublicKey().getEncoded());
         String message1User1For2 = Communication.createMessage1(message1User1);
@@ -4,7 +4,56 @@ import android.annotation.SuppressLint;
 import android.app.Application;
 import android.content.Context;
 
+import fr.upec.e2ee.protocol.CipherSuite;
+import fr.upec.e2ee.protocol.EphemeralKeyPool;
+import fr.upec.e2ee.protocol.KeySuite;
+
 public class E2EE extends Application {
+    /**
+     * Benchmark the cipher suites at startup and prefer the fastest one on this device, the previous versions can not read a Message1 preferring ChaCha20-Poly1305
+     */
+    public static final boolean SELECT_FASTEST_CIPHER_SUITE = false;
+    /**
+     * Advertise ChaCha20-Poly1305 in Message1 even if AES-256-GCM is preferred, so it is chosen when the other person prefers it, the previous versions can not read an extended Message1
+     */
+    public static final boolean ADVERTISE_CIPHER_SUITES = false;
+    /**
+     * Compress the messages before ciphering them, the previous versions can not read compressed messages
+     */
+    public static final boolean COMPRESS_MESSAGES = false;
+    /**
+     * Tag the ciphered messages with the key identifier of the conversation, the previous versions can not read tagged messages
+     */
+    public static final boolean TAG_KEY_ID = false;
+    /**
+     * Generate the ephemeral key pairs of Message1 in the background
+     */
+    public static final boolean PRECOMPUTE_EPHEMERAL_KEYS = true;
+    /**
+     * Prefer X25519 and Ed25519 when the device supports them, the previous versions can not read a Curve25519 Message1
+     */
+    public static final boolean PREFER_CURVE25519 = false;
+    /**
+     * Cipher each message with its own key from the ratchet of the conversation, the previous versions can not read ratchet messages
+     */
+    public static final boolean RATCHET_MESSAGES = false;
+    /**
+     * Add the fingerprint of my Public Key to Message2, the previous versions can not read a Message2 with a fingerprint
+     */
+    public static final boolean MESSAGE2_KEY_HINT = false;
+    /**
+     * Sign Message2 with a software subkey certified once by my Private Key, the previous versions can not read a delegated Message2.
+     * Turning it on is the explicit choice to skip the biometric prompt of Message2 while the subkey is valid
+     */
+    public static final boolean DELEGATED_SIGNING = false;
+    /**
+     * Sign Message1 to create the conversation after one exchange, the previous versions can not read a signed Message1
+     */
+    public static final boolean SIGNED_MESSAGE1 = false;
+    /**
+     * Publish one-time prekeys to start a conversation without Message1, the previous versions can not read a prekey message
+     */
+    public static final boolean PREKEYS = false;
     @SuppressLint("StaticFieldLeak")
     private static Context context;
 
@@ -16,5 +65,14 @@ public class E2EE extends Application {
     public void onCreate() {
         super.onCreate();
         E2EE.context = getApplicationContext();
+        if (SELECT_FASTEST_CIPHER_SUITE) {
+            new Thread(CipherSuite::selectFastest, "CipherSuite").start();
+        }
+        if (PREFER_CURVE25519 && KeySuite.CURVE25519.isSupported()) {
+            KeySuite.setPreferred(KeySuite.CURVE25519);
+        }
+        if (PRECOMPUTE_EPHEMERAL_KEYS) {
+            EphemeralKeyPool.refill();
+        }
     }
 }
@@ -33,11 +33,12 @@ import java.security.SecureRandom;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
-import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
+import fr.upec.e2ee.protocol.KeySuite;
 import fr.upec.e2ee.protocol.Keys;
+import fr.upec.e2ee.protocol.RandomService;
 
 /**
  * Frequently used functions
@@ -90,6 +91,9 @@ public class Tools {
      * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
      */
     public static PublicKey toPublicKey(byte[] bytesPubKey) throws GeneralSecurityException {
+        if (KeySuite.isEd25519(bytesPubKey)) {
+            return KeyFactory.getInstance(KeySuite.CURVE25519.getSignatureAlgorithm()).generatePublic(new X509EncodedKeySpec(bytesPubKey));
+        }
         return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(bytesPubKey));
     }
 
@@ -104,15 +108,13 @@ public class Tools {
     }
 
     /**
-     * Generate a SecureRandom using AES(256)
+     * Get the SecureRandom of the current thread
      *
      * @return Return a SecureRandom
-     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @see RandomService#getSecureRandom()
      */
-    public static SecureRandom generateSecureRandom() throws NoSuchAlgorithmException {
-        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-        keyGenerator.init(256);
-        return new SecureRandom(keyGenerator.generateKey().getEncoded());
+    public static SecureRandom generateSecureRandom() {
+        return RandomService.getSecureRandom();
     }
 
     /**
@@ -120,10 +122,10 @@ public class Tools {
      *
      * @param size Size of the list
      * @return Return Random Bytes in list
-     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @see RandomService#nextBytes(int)
      */
-    public static byte[] generateRandomBytes(int size) throws NoSuchAlgorithmException {
-        return generateSecureRandom().generateSeed(size);
+    public static byte[] generateRandomBytes(int size) {
+        return RandomService.nextBytes(size);
     }
 
     /**
@@ -5,22 +5,36 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+import javax.crypto.AEADBadTagException;
+
 import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.protocol.Cipher;
+import fr.upec.e2ee.protocol.CipherContext;
+import fr.upec.e2ee.protocol.CipherSuite;
 import fr.upec.e2ee.protocol.Conversation;
+import fr.upec.e2ee.protocol.DecipheredMessage;
+import fr.upec.e2ee.protocol.KeyId;
 
 /**
  * MyConversations contains SecretBuild for each conversation
- * <pre>MUST BE HIDDEN!!! CONTAINS SENSITIVE INFORMATION!!!</pre>
+ * <pre>MUST BE HIDDEN!!! CONTAINS SENSITIVE INFORMATION!!!
+ * The methods are synchronized, a message can be deciphered in the background while the UI changes the conversations.
+ * After a resumption, the previous secret of a conversation is kept to decipher the messages of the other person
+ * until one of them comes with the new secret, it is saved after the CipherSuite as Base64 secret:Base64 date</pre>
  */
 public class MyConversations {
     /**
      * Filename
      */
     public static final String FILENAME = ".MyConversations";
+    private final HashMap<Conversation, Conversation> previousConversations = new HashMap<>();
     private final List<Conversation> myConversations;
+    private HashMap<Long, Conversation> keyIdIndex;
 
     /**
      * Constructor for MyConversations
@@ -47,9 +61,20 @@ public class MyConversations {
                 String[] rawConversations = new String(rawData).split(",");
                 for (String rawConversation : rawConversations) {
                     String[] splitConversation = rawConversation.split(":");
-                    myConversations.add(new Conversation(new String(Tools.toBytes(splitConversation[0])),
+                    CipherSuite cipherSuite = splitConversation.length > 3
+                            ? CipherSuite.fromId(Tools.toBytes(splitConversation[3])[0])
+                            : CipherSuite.AES_256_GCM; //Saved before the cipher suites
+                    Conversation conversation = new Conversation(new String(Tools.toBytes(splitConversation[0])),
                             Tools.bytesToLong(Tools.toBytes(splitConversation[1])),
-                            Tools.toBytes(splitConversation[2])));
+                            Tools.toBytes(splitConversation[2]),
+                            cipherSuite);
+                    myConversations.add(conversation);
+                    if (splitConversation.length > 5) {
+                        previousConversations.put(conversation, new Conversation(conversation.getName(),
+                                Tools.bytesToLong(Tools.toBytes(splitConversation[5])),
+                                Tools.toBytes(splitConversation[4]),
+                                cipherSuite));
+                    }
                 }
             }
         }
@@ -61,11 +86,13 @@ public class MyConversations {
      *
      * @throws IOException Throws IOException if there is an I/O exception
      */
-    public void save() throws IOException, GeneralSecurityException {
+    public synchronized void save() throws IOException, GeneralSecurityException {
         String rawConversations = myConversations.stream()
                 .map(conversation -> Tools.toBase64(conversation.getName().getBytes(StandardCharsets.UTF_8)) + ":" +
                         Tools.toBase64(Tools.longToByteArray(conversation.getDate())) + ":" +
-                        Tools.toBase64(conversation.getSecretKey()))
+                        Tools.toBase64(conversation.getSecretKey()) + ":" +
+                        Tools.toBase64(new byte[]{conversation.getCipherSuite().getId()}) +
+                        toPrevious(previousConversations.get(conversation)))
                 .collect(Collectors.joining(","));
 
         if (myConversations.size() > 0) {
@@ -76,12 +103,22 @@ public class MyConversations {
         }
     }
 
+    /**
+     * Encode the previous secret of a conversation
+     *
+     * @param previous Previous conversation, or null
+     * @return Return :Base64 secret:Base64 date, empty if there is no previous conversation
+     */
+    private static String toPrevious(Conversation previous) {
+        return previous == null ? "" : ":" + Tools.toBase64(previous.getSecretKey()) + ":" + Tools.toBase64(Tools.longToByteArray(previous.getDate()));
+    }
+
     /**
      * Get size of the list of conversations
      *
      * @return Return the size of the list of conversations
      */
-    public int getSize() {
+    public synchronized int getSize() {
         return myConversations.size();
     }
 
@@ -90,8 +127,9 @@ public class MyConversations {
      *
      * @param conversation Conversation to be added
      */
-    public void addConversation(Conversation conversation) {
+    public synchronized void addConversation(Conversation conversation) {
         myConversations.add(conversation);
+        keyIdIndex = null;
     }
 
     /**
@@ -100,7 +138,7 @@ public class MyConversations {
      * @param index Index of the conversation
      * @return Return a conversation (as SecretBuild)
      */
-    public Conversation getConversation(int index) {
+    public synchronized Conversation getConversation(int index) {
         return myConversations.get(index);
     }
 
@@ -109,8 +147,161 @@ public class MyConversations {
      *
      * @param conversation Conversation (as SecretBuild) to be deleted
      */
-    public void deleteConversation(Conversation conversation) {
+    public synchronized void deleteConversation(Conversation conversation) {
         myConversations.remove(conversation);
+        previousConversations.remove(conversation);
+        keyIdIndex = null;
+    }
+
+    /**
+     * Replace a conversation by its re-keyed version and save
+     * <pre>The new conversation takes the place of the old one, the old one is kept if the file can not be saved.
+     * The old one is then kept as the previous conversation until {@link #confirmResumption(Conversation)}</pre>
+     *
+     * @param oldConversation Conversation to replace
+     * @param newConversation Re-keyed conversation
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void replaceConversation(Conversation oldConversation, Conversation newConversation) throws IOException, GeneralSecurityException {
+        int index = myConversations.indexOf(oldConversation);
+        if (index == -1) {
+            throw new IllegalArgumentException("Unknown conversation");
+        }
+        myConversations.set(index, newConversation);
+        Conversation olderConversation = previousConversations.remove(oldConversation);
+        previousConversations.put(newConversation, oldConversation);
+        keyIdIndex = null;
+        try {
+            save();
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            myConversations.set(index, oldConversation);
+            previousConversations.remove(newConversation);
+            if (olderConversation != null) {
+                previousConversations.put(oldConversation, olderConversation);
+            }
+            keyIdIndex = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Get the conversation replaced by a resumption
+     *
+     * @param conversation Conversation
+     * @return Return the previous conversation, null if the other person already used the new secret
+     */
+    public synchronized Conversation getPrevious(Conversation conversation) {
+        return previousConversations.get(conversation);
+    }
+
+    /**
+     * Forget the previous secret of a conversation once the other person used the new one, and save
+     *
+     * @param conversation Conversation whose new secret was used by the other person
+     * @return Return the previous conversation forgotten, null if there was none
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized Conversation confirmResumption(Conversation conversation) throws IOException, GeneralSecurityException {
+        Conversation previous = previousConversations.remove(conversation);
+        if (previous != null) {
+            keyIdIndex = null;
+            save();
+        }
+        return previous;
+    }
+
+    /**
+     * Get the index of a conversation
+     *
+     * @param conversation Conversation
+     * @return Return the index, -1 if the conversation is not in MyConversations
+     */
+    public synchronized int indexOf(Conversation conversation) {
+        return myConversations.indexOf(conversation);
+    }
+
+    /**
+     * Get a conversation from its key identifier
+     * <pre>The index is built on the first call after a change,
+     * the key identifier of a previous conversation gives the conversation that replaced it</pre>
+     *
+     * @param keyId Key identifier
+     * @return Return the conversation, null if unknown
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized Conversation getConversationByKeyId(long keyId) throws GeneralSecurityException {
+        if (keyIdIndex == null) {
+            HashMap<Long, Conversation> index = new HashMap<>();
+            for (Map.Entry<Conversation, Conversation> previous : previousConversations.entrySet()) {
+                index.put(previous.getValue().getKeyId(), previous.getKey());
+            }
+            for (Conversation conversation : myConversations) {
+                index.put(conversation.getKeyId(), conversation);
+            }
+            keyIdIndex = index;
+        }
+        return keyIdIndex.get(keyId);
+    }
+
+    /**
+     * Find the conversation of a ciphered message
+     * <pre>A tagged message is found in O(1) with its key identifier,
+     * any other message is tried with every conversation, then with the previous conversations</pre>
+     *
+     * @param cipherMessage Ciphered message, tagged or not
+     * @return Return the conversation and the deciphered message, null if no conversation can decipher it
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized DecipheredMessage decipher(byte[] cipherMessage) throws GeneralSecurityException {
+        if (KeyId.isTagged(cipherMessage)) {
+            long keyId = KeyId.getKeyId(cipherMessage);
+            Conversation conversation = getConversationByKeyId(keyId);
+            if (conversation != null) {
+                boolean previousKey = conversation.getKeyId() != keyId;
+                try {
+                    return new DecipheredMessage(conversation,
+                            new CipherContext(previousKey ? previousConversations.get(conversation) : conversation).decipher(cipherMessage),
+                            previousKey);
+                } catch (AEADBadTagException ignored) {
+                    //Untagged message starting like a tagged one, tried below
+                }
+            }
+        }
+        if (cipherMessage.length < Cipher.getCipherOutputSize(0)) {
+            return null;
+        }
+        for (Conversation conversation : myConversations) {
+            byte[] message = decipherUntagged(conversation, cipherMessage);
+            if (message != null) {
+                return new DecipheredMessage(conversation, message);
+            }
+        }
+        for (Map.Entry<Conversation, Conversation> previous : previousConversations.entrySet()) {
+            byte[] message = decipherUntagged(previous.getValue(), cipherMessage);
+            if (message != null) {
+                return new DecipheredMessage(previous.getKey(), message, true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decipher a message without key identifier with the secret of a conversation
+     *
+     * @param conversation  Conversation
+     * @param cipherMessage Ciphered message
+     * @return Return the deciphered message, null if it is not from this conversation
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private static byte[] decipherUntagged(Conversation conversation, byte[] cipherMessage) throws GeneralSecurityException {
+        try {
+            CipherSuite cipherSuite = conversation.getCipherSuite();
+            return Cipher.decipher(cipherSuite, cipherSuite.toSecretKey(conversation.getSecretKey()), cipherMessage);
+        } catch (AEADBadTagException e) {
+            return null;
+        }
     }
 
     /**
@@ -118,7 +309,7 @@ public class MyConversations {
      *
      * @return Return a list of name
      */
-    public ArrayList<String> nameConversations() {
+    public synchronized ArrayList<String> nameConversations() {
         ArrayList<String> temp = new ArrayList<>();
         for (Conversation c : myConversations) {
             temp.add(c.getName());
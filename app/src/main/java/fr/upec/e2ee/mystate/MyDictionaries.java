@@ -0,0 +1,241 @@
+package fr.upec.e2ee.mystate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.protocol.Compression;
+import fr.upec.e2ee.protocol.Conversation;
+
+/**
+ * MyDictionaries contains the compression dictionary of each conversation
+ * <pre>MUST BE HIDDEN!!! CONTAINS SENSITIVE INFORMATION!!!
+ * A message is compressed with the last message received from the other person,
+ * the other person knows it as one of its sent messages and finds it with the Adler-32 of the zlib header.
+ * A single message is used, so a message sent but never shared, a message deciphered twice
+ * or my own message deciphered by mistake never make the dictionaries of both persons differ.
+ * Entry = conversationId:sent messages:received messages, messages as Base64 separated by ";"</pre>
+ */
+public class MyDictionaries {
+    /**
+     * Filename
+     */
+    public static final String FILENAME = ".MyDictionaries";
+    /**
+     * Number of received messages kept
+     */
+    public static final int HISTORY_SIZE = 16;
+    /**
+     * Number of sent messages kept, the other person may compress with any of them
+     */
+    public static final int SENT_HISTORY_SIZE = 2 * HISTORY_SIZE;
+    /**
+     * Maximum size of a dictionary
+     */
+    public static final int DICTIONARY_SIZE = 4096;
+    private final HashMap<String, History> histories;
+
+    /**
+     * Constructor MyDictionaries
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public MyDictionaries() throws IOException, GeneralSecurityException {
+        this.histories = readFile();
+    }
+
+    /**
+     * Decode a list of messages
+     *
+     * @param rawMessages Messages as Base64 separated by ";"
+     * @return Return the messages
+     */
+    private static List<byte[]> toMessages(String rawMessages) {
+        List<byte[]> messages = new ArrayList<>();
+        if (!rawMessages.isEmpty()) {
+            for (String rawMessage : rawMessages.split(";")) {
+                messages.add(Tools.toBytes(rawMessage));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Encode a list of messages
+     *
+     * @param messages Messages
+     * @return Return the messages as Base64 separated by ";"
+     */
+    private static String fromMessages(List<byte[]> messages) {
+        return messages.stream().map(Tools::toBase64).collect(Collectors.joining(";"));
+    }
+
+    /**
+     * Read .MyDictionaries
+     *
+     * @return Return HashMap
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private HashMap<String, History> readFile() throws IOException, GeneralSecurityException {
+        HashMap<String, History> map = new HashMap<>();
+
+        if (Tools.isFileExists(FILENAME)) {
+            byte[] cipheredData = Tools.readFile(FILENAME);
+            if (cipheredData.length != 0) {
+                byte[] rawData = Tools.readEncryptedFile(FILENAME);
+                String[] rawHistories = new String(rawData).split(",");
+
+                for (String rawHistory : rawHistories) {
+                    String[] historyInfo = rawHistory.split(":", -1);
+                    map.put(historyInfo[0], new History(toMessages(historyInfo[1]), toMessages(historyInfo[2])));
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Save MyDictionaries to .MyDictionaries
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void saveFile() throws IOException, GeneralSecurityException {
+        String output = histories.entrySet().stream()
+                .map(history -> history.getKey() + ":" +
+                        fromMessages(history.getValue().sent) + ":" +
+                        fromMessages(history.getValue().received))
+                .collect(Collectors.joining(","));
+
+        if (histories.size() > 0) {
+            Tools.writeEncryptFile(FILENAME, output.getBytes(StandardCharsets.UTF_8));
+        } else {
+            Tools.deleteFile(FILENAME);
+            Tools.createFile(FILENAME);
+        }
+    }
+
+    /**
+     * Get the history of a conversation
+     *
+     * @param conversation Conversation
+     * @return Return the history
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private History getHistory(Conversation conversation) throws GeneralSecurityException {
+        return histories.computeIfAbsent(conversation.getId(), id -> new History(new ArrayList<>(), new ArrayList<>()));
+    }
+
+    /**
+     * Get the part of a message kept in a history
+     *
+     * @param message Message
+     * @return Return the last DICTIONARY_SIZE bytes of the message
+     */
+    private static byte[] toEntry(byte[] message) {
+        return message.length > DICTIONARY_SIZE ? Arrays.copyOfRange(message, message.length - DICTIONARY_SIZE, message.length) : message;
+    }
+
+    /**
+     * Add a message to a history, the oldest message is dropped if the history is full
+     *
+     * @param messages History
+     * @param message  Message
+     * @param size     Maximum number of messages
+     */
+    private static void addMessage(List<byte[]> messages, byte[] message, int size) {
+        messages.add(toEntry(message));
+        if (messages.size() > size) {
+            messages.remove(0);
+        }
+    }
+
+    /**
+     * Get the dictionary to compress a message for a conversation
+     *
+     * @param conversation Conversation
+     * @return Return the last message received, null if no message was received
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized byte[] getDictionary(Conversation conversation) throws GeneralSecurityException {
+        List<byte[]> received = getHistory(conversation).received;
+        return received.isEmpty() ? null : received.get(received.size() - 1);
+    }
+
+    /**
+     * Get the dictionaries the other person may have used to compress a message
+     * <pre>The other person may not have received my last messages yet, or some of them were never shared,
+     * so each of my sent messages is a candidate</pre>
+     *
+     * @param conversation Conversation
+     * @return Return the candidate dictionaries, most recent first
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized List<byte[]> getCandidateDictionaries(Conversation conversation) throws GeneralSecurityException {
+        List<byte[]> candidates = new ArrayList<>(getHistory(conversation).sent);
+        Collections.reverse(candidates);
+        return candidates;
+    }
+
+    /**
+     * Record a message sent in a conversation
+     *
+     * @param conversation Conversation
+     * @param message      Message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void addSent(Conversation conversation, byte[] message) throws GeneralSecurityException {
+        addMessage(getHistory(conversation).sent, message, SENT_HISTORY_SIZE);
+    }
+
+    /**
+     * Record a message received in a conversation
+     * <pre>A message equal to one of my sent messages is ignored, it may be my own message deciphered by mistake</pre>
+     *
+     * @param conversation Conversation
+     * @param message      Message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void addReceived(Conversation conversation, byte[] message) throws GeneralSecurityException {
+        History history = getHistory(conversation);
+        byte[] entry = toEntry(message);
+        if (history.sent.stream().noneMatch(sent -> Arrays.equals(sent, entry))) {
+            addMessage(history.received, message, HISTORY_SIZE);
+        }
+    }
+
+    /**
+     * Delete the dictionary of a conversation
+     *
+     * @param conversation Conversation
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void deleteConversation(Conversation conversation) throws IOException, GeneralSecurityException {
+        if (histories.remove(conversation.getId()) != null) {
+            saveFile();
+        }
+    }
+
+    /**
+     * Messages of a conversation
+     */
+    private static class History {
+        private final List<byte[]> sent;
+        private final List<byte[]> received;
+
+        History(List<byte[]> sent, List<byte[]> received) {
+            this.sent = sent;
+            this.received = received;
+        }
+    }
+}
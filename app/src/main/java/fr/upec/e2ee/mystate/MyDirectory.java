@@ -3,13 +3,24 @@ package fr.upec.e2ee.mystate;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.Signature;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import javax.crypto.AEADBadTagException;
@@ -18,16 +29,45 @@ import fr.upec.e2ee.E2EE;
 import fr.upec.e2ee.R;
 import fr.upec.e2ee.Tools;
 import fr.upec.e2ee.protocol.Sign;
+import fr.upec.e2ee.protocol.SignatureTranscoder;
 
 /**
  * MyDirectory contains a list of persons
+ * <pre>The decoded Public Key of every person is kept once decoded, so a search through the whole directory decodes each key once.
+ * Each person has a few verifiers already initialized with its key, reused from one Message2 to the next.
+ * A person is removed from the cache when added again or deleted.
+ * The persons are also indexed by the fingerprint of their Public Key (first HINT_LENGTH bytes of its SHA-512),
+ * so a Message2 carrying the fingerprint of its signer is verified once instead of against every person.
+ * Without fingerprint, the last signer found is tried first, then the other persons are verified on a bounded pool of threads,
+ * each thread taking a slice of the directory. The search stops on every thread as soon as one signature is verified.
+ * The persons, the fingerprints and the cache are guarded by the lock of the cache, taken by the threads of the search</pre>
  */
 public class MyDirectory {
     /**
      * Filename
      */
     public final static String FILENAME = ".MyDirectory";
+    /**
+     * Maximum number of idle verifiers per person
+     */
+    public static final int VERIFIERS_PER_PERSON = 4;
+    /**
+     * Length of the fingerprint of a Public Key
+     */
+    public static final int HINT_LENGTH = 8;
+    /**
+     * Minimum number of persons to search the signer on several threads
+     */
+    public static final int PARALLEL_THRESHOLD = 32;
+    /**
+     * Number of slices of the directory per thread of the search
+     */
+    public static final int SLICES_PER_THREAD = 4;
+    private static final ThreadPoolExecutor SEARCH_POOL = newSearchPool();
     private final HashMap<String, byte[]> directory;
+    private final HashMap<Long, String> fingerprints;
+    private final HashMap<String, Verifiers> cache = new HashMap<>(); //Lock of directory, fingerprints and cache
+    private volatile String lastSigner;
 
     /**
      * Constructor MyDirectory
@@ -36,6 +76,41 @@ public class MyDirectory {
      */
     public MyDirectory() throws IOException, GeneralSecurityException {
         this.directory = readFile();
+        this.fingerprints = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : directory.entrySet()) {
+            fingerprints.put(getFingerprint(entry.getValue()), entry.getKey());
+        }
+    }
+
+    /**
+     * Get the fingerprint of a Public Key
+     *
+     * @param pubKey Encoded Public Key
+     * @return Return the first HINT_LENGTH bytes of the SHA-512 of the key
+     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     */
+    public static long getFingerprint(byte[] pubKey) throws NoSuchAlgorithmException {
+        return Tools.bytesToLong(Arrays.copyOf(Tools.digest(pubKey), HINT_LENGTH));
+    }
+
+    /**
+     * Create the pool of threads of the signer search
+     * <pre>The queue is bounded: when several searches run at once, the calling thread verifies its slices itself</pre>
+     *
+     * @return Return the pool with one thread per core
+     */
+    private static ThreadPoolExecutor newSearchPool() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * SLICES_PER_THREAD),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "MyDirectory");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     /**
@@ -68,11 +143,14 @@ public class MyDirectory {
      * @throws IOException Throws IOException if there is an I/O exception
      */
     public void saveFile() throws IOException, GeneralSecurityException {
-        String output = directory.entrySet().stream()
-                .map(user -> Tools.toBase64(user.getKey().getBytes(StandardCharsets.UTF_8)) + ":" + Tools.toBase64(user.getValue()))
-                .collect(Collectors.joining(","));
+        String output;
+        synchronized (cache) {
+            output = directory.entrySet().stream()
+                    .map(user -> Tools.toBase64(user.getKey().getBytes(StandardCharsets.UTF_8)) + ":" + Tools.toBase64(user.getValue()))
+                    .collect(Collectors.joining(","));
+        }
 
-        if (directory.size() > 0) {
+        if (!output.isEmpty()) {
             Tools.writeEncryptFile(FILENAME, output.getBytes(StandardCharsets.UTF_8));
         } else {
             Tools.deleteFile(FILENAME);
@@ -87,12 +165,14 @@ public class MyDirectory {
      * @return Return a boolean if it is present
      */
     public boolean isInDirectory(byte[] otherPubKey) {
-        for (Map.Entry<String, byte[]> entry : directory.entrySet()) {
-            if (Arrays.equals(otherPubKey, entry.getValue())) {
-                return true;
+        synchronized (cache) {
+            for (Map.Entry<String, byte[]> entry : directory.entrySet()) {
+                if (Arrays.equals(otherPubKey, entry.getValue())) {
+                    return true;
+                }
             }
+            return false;
         }
-        return false;
     }
 
     /**
@@ -102,7 +182,9 @@ public class MyDirectory {
      * @return Return a boolean if it is present
      */
     public boolean isInDirectory(String key) {
-        return directory.containsKey(key);
+        synchronized (cache) {
+            return directory.containsKey(key);
+        }
     }
 
     /**
@@ -112,7 +194,18 @@ public class MyDirectory {
      * @param pubKey Public Key of the person
      */
     public void addPerson(String name, byte[] pubKey) {
-        directory.put(name, pubKey);
+        synchronized (cache) {
+            byte[] previous = directory.put(name, pubKey);
+            cache.remove(name);
+            try {
+                if (previous != null) {
+                    fingerprints.remove(getFingerprint(previous), name);
+                }
+                fingerprints.put(getFingerprint(pubKey), name);
+            } catch (NoSuchAlgorithmException ignored) {
+                //getSigner falls back to the scan
+            }
+        }
     }
 
     /**
@@ -121,7 +214,9 @@ public class MyDirectory {
      * @return Return the size of MyDirectory
      */
     public int sizeOfDirectory() {
-        return directory.size();
+        synchronized (cache) {
+            return directory.size();
+        }
     }
 
     /**
@@ -130,7 +225,79 @@ public class MyDirectory {
      * @param name Name of the person
      */
     public void deletePerson(String name) {
-        directory.remove(name);
+        synchronized (cache) {
+            byte[] previous = directory.remove(name);
+            cache.remove(name);
+            if (previous != null) {
+                try {
+                    fingerprints.remove(getFingerprint(previous), name);
+                } catch (NoSuchAlgorithmException ignored) {
+                    //Checked by verify
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the cached Public Key and verifiers of a person, decoded on the first use
+     *
+     * @param name Name of the person
+     * @return Return the Verifiers of the person, null if the person is not in MyDirectory
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the Public Key can not be decoded
+     */
+    private Verifiers getVerifiers(String name) throws GeneralSecurityException {
+        byte[] pubKey;
+        synchronized (cache) {
+            Verifiers verifiers = cache.get(name);
+            if (verifiers != null) {
+                return verifiers;
+            }
+            pubKey = directory.get(name);
+        }
+        if (pubKey == null) {
+            return null;
+        }
+
+        Verifiers decoded = new Verifiers(Tools.toPublicKey(pubKey)); //Out of the lock, the threads of the search decode at once
+        synchronized (cache) {
+            if (directory.get(name) != pubKey) {
+                return decoded; //Added again meanwhile, not cached
+            }
+            Verifiers verifiers = cache.putIfAbsent(name, decoded);
+            return verifiers != null ? verifiers : decoded;
+        }
+    }
+
+    /**
+     * Get the decoded Public Key of a person
+     *
+     * @param name Name of the person
+     * @return Return the Public Key of the person, null if the person is not in MyDirectory
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the Public Key can not be decoded
+     */
+    public PublicKey getPublicKey(String name) throws GeneralSecurityException {
+        Verifiers verifiers = getVerifiers(name);
+        return verifiers != null ? verifiers.publicKey : null;
+    }
+
+    /**
+     * Verify a signed message with the cached verifiers of a person
+     *
+     * @param name            Name of the person
+     * @param signedMessage   Signed message
+     * @param expectedMessage Expected message
+     * @return Return a boolean if the message was signed by the person
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public boolean verify(String name, byte[] signedMessage, byte[] expectedMessage) throws GeneralSecurityException {
+        Verifiers verifiers = getVerifiers(name);
+        if (verifiers == null) {
+            return false;
+        }
+        Signature verifier = verifiers.take();
+        boolean verified = Sign.verify(verifier, signedMessage, expectedMessage);
+        verifiers.give(verifier); //Not given back after an exception, its state is unknown
+        return verified;
     }
 
     /**
@@ -140,28 +307,136 @@ public class MyDirectory {
      * @return Return the Public Key of the person
      */
     public byte[] getPerson(String name) {
-        return directory.get(name);
+        synchronized (cache) {
+            return directory.get(name);
+        }
     }
 
     /**
      * Get the user who signed the message
+     * <pre>If the signature is followed by the fingerprint of the signer, only the person of the fingerprint is verified.
+     * Otherwise (previous versions) or if this person did not sign, the last signer is verified,
+     * then every other person, on several threads if there are at least PARALLEL_THRESHOLD persons</pre>
      *
-     * @param signedMessage    Signed message
+     * @param signedMessage    Signed message, with or without the fingerprint of the signer
      * @param expectedMessage2 Expected Message 2
-     * @return Return the name of the signer or null if not found
+     * @return Return the name of the signer
      * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     * @throws NoSuchElementException   Throws NoSuchElementException if nobody in MyDirectory signed the message
      */
     public String getSigner(byte[] signedMessage, byte[] expectedMessage2) throws GeneralSecurityException {
-        for (Map.Entry<String, byte[]> entry : directory.entrySet()) {
-            PublicKey otherPublicKey = Tools.toPublicKey(entry.getValue());
-            try {
-                if (Sign.verify(otherPublicKey, signedMessage, expectedMessage2)) {
-                    return entry.getKey();
+        if (signedMessage.length == SignatureTranscoder.RAW_LENGTH + HINT_LENGTH) {
+            long fingerprint = Tools.bytesToLong(Arrays.copyOfRange(signedMessage, SignatureTranscoder.RAW_LENGTH, signedMessage.length));
+            signedMessage = Arrays.copyOf(signedMessage, SignatureTranscoder.RAW_LENGTH);
+            String name;
+            synchronized (cache) {
+                name = fingerprints.get(fingerprint);
+            }
+            if (isSigner(name, signedMessage, expectedMessage2)) {
+                lastSigner = name;
+                return name;
+            }
+        }
+
+        String last = lastSigner;
+        if (isSigner(last, signedMessage, expectedMessage2)) {
+            return last;
+        }
+        ArrayList<String> candidates = getListName();
+        candidates.remove(last);
+        String name = candidates.size() < PARALLEL_THRESHOLD
+                ? searchSlice(candidates, signedMessage, expectedMessage2, new AtomicBoolean())
+                : searchParallel(candidates, signedMessage, expectedMessage2);
+        if (name == null) {
+            throw new NoSuchElementException(E2EE.getContext().getResources().getText(R.string.err_unk_send).toString());
+        }
+        lastSigner = name;
+        return name;
+    }
+
+    /**
+     * Check if a person signed the message, an invalid signature is not an error
+     *
+     * @param name            Name of the person, can be null
+     * @param signedMessage   Signed message
+     * @param expectedMessage Expected message
+     * @return Return a boolean if the person is in MyDirectory and signed the message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the Public Key can not be used
+     */
+    private boolean isSigner(String name, byte[] signedMessage, byte[] expectedMessage) throws GeneralSecurityException {
+        if (name == null) {
+            return false;
+        }
+        try {
+            return verify(name, signedMessage, expectedMessage);
+        } catch (AEADBadTagException | SignatureException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Verify the persons of a slice one after the other
+     *
+     * @param names           Names of the slice
+     * @param signedMessage   Signed message
+     * @param expectedMessage Expected message
+     * @param found           Set when a slice found the signer, the other slices stop
+     * @return Return the name of the signer, null if not in the slice or stopped
+     * @throws GeneralSecurityException Throws GeneralSecurityException if a Public Key can not be used
+     */
+    private String searchSlice(List<String> names, byte[] signedMessage, byte[] expectedMessage, AtomicBoolean found) throws GeneralSecurityException {
+        for (String name : names) {
+            if (found.get() || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            if (isSigner(name, signedMessage, expectedMessage)) {
+                found.set(true);
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Verify the persons on the pool, SLICES_PER_THREAD slices per thread, and cancel the other slices on the first signer
+     *
+     * @param names           Names of the persons
+     * @param signedMessage   Signed message
+     * @param expectedMessage Expected message
+     * @return Return the name of the signer, null if not found
+     * @throws GeneralSecurityException Throws GeneralSecurityException if a Public Key can not be used or the search is interrupted
+     */
+    private String searchParallel(List<String> names, byte[] signedMessage, byte[] expectedMessage) throws GeneralSecurityException {
+        int slices = Math.min(names.size(), SEARCH_POOL.getMaximumPoolSize() * SLICES_PER_THREAD);
+        ExecutorCompletionService<String> completionService = new ExecutorCompletionService<>(SEARCH_POOL);
+        AtomicBoolean found = new AtomicBoolean();
+        List<Future<String>> futures = new ArrayList<>(slices);
+        try {
+            for (int i = 0; i < slices; i++) {
+                List<String> slice = names.subList(i * names.size() / slices, (i + 1) * names.size() / slices);
+                futures.add(completionService.submit(() -> searchSlice(slice, signedMessage, expectedMessage, found)));
+            }
+            for (int i = 0; i < slices; i++) {
+                String name = completionService.take().get();
+                if (name != null) {
+                    return name;
                 }
-            } catch (AEADBadTagException | SignatureException ignored) {
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Search of the signer interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            found.set(true);
+            for (Future<String> future : futures) {
+                future.cancel(true);
             }
         }
-        throw new NoSuchElementException(E2EE.getContext().getResources().getText(R.string.err_unk_send).toString());
     }
 
     /**
@@ -170,6 +445,42 @@ public class MyDirectory {
      * @return Return list of names
      */
     public ArrayList<String> getListName() {
-        return new ArrayList<>(directory.keySet());
+        synchronized (cache) {
+            return new ArrayList<>(directory.keySet());
+        }
+    }
+
+    /**
+     * Decoded Public Key of a person and its idle verifiers
+     */
+    private static class Verifiers {
+        private final PublicKey publicKey;
+        private final ConcurrentLinkedQueue<Signature> idle = new ConcurrentLinkedQueue<>();
+
+        Verifiers(PublicKey publicKey) {
+            this.publicKey = publicKey;
+        }
+
+        /**
+         * Take an idle verifier or create one
+         *
+         * @return Return a verifier initialized with the Public Key
+         * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+         */
+        Signature take() throws GeneralSecurityException {
+            Signature verifier = idle.poll();
+            return verifier != null ? verifier : Sign.newVerifier(publicKey);
+        }
+
+        /**
+         * Give back a verifier after a verify
+         *
+         * @param verifier Verifier ready for the Public Key
+         */
+        void give(Signature verifier) {
+            if (idle.size() < VERIFIERS_PER_PERSON) {
+                idle.offer(verifier);
+            }
+        }
     }
 }
@@ -0,0 +1,169 @@
+package fr.upec.e2ee.mystate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.stream.Collectors;
+
+import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.protocol.Cipher;
+import fr.upec.e2ee.protocol.Conversation;
+import fr.upec.e2ee.protocol.RandomService;
+
+/**
+ * MyIvCounters contains the IV counter of each conversation
+ * <pre>IV = prefix (8 bytes) + counter (4 bytes)
+ * The prefix is random and drawn once per conversation (and again when the counter is exhausted),
+ * so the other person sharing the same key uses another prefix.
+ * The counter is reserved by blocks of BLOCK_SIZE: the high mark is saved before any IV of the block is used,
+ * after a restart the counter restarts from the high mark, so an IV is never used twice</pre>
+ */
+public class MyIvCounters {
+    /**
+     * Filename
+     */
+    public static final String FILENAME = ".MyIvCounters";
+    /**
+     * Number of IVs reserved per write
+     */
+    public static final int BLOCK_SIZE = 1024;
+    /**
+     * Prefix length
+     */
+    public static final int PREFIX_LENGTH = 8;
+    private static final long MAX_COUNTER = 1L << 32;
+    private final HashMap<String, Counter> counters;
+
+    /**
+     * Constructor MyIvCounters
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public MyIvCounters() throws IOException, GeneralSecurityException {
+        this.counters = readFile();
+    }
+
+    /**
+     * Read .MyIvCounters
+     *
+     * @return Return HashMap
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private HashMap<String, Counter> readFile() throws IOException, GeneralSecurityException {
+        HashMap<String, Counter> map = new HashMap<>();
+
+        if (Tools.isFileExists(FILENAME)) {
+            byte[] cipheredData = Tools.readFile(FILENAME);
+            if (cipheredData.length != 0) {
+                byte[] rawData = Tools.readEncryptedFile(FILENAME);
+                String[] rawCounters = new String(rawData).split(",");
+
+                for (String rawCounter : rawCounters) {
+                    String[] counterInfo = rawCounter.split(":");
+                    long reserved = Tools.bytesToLong(Tools.toBytes(counterInfo[2]));
+                    //Everything under the high mark may have been used before the restart
+                    map.put(counterInfo[0], new Counter(Tools.toBytes(counterInfo[1]), reserved, reserved));
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Save MyIvCounters to .MyIvCounters
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void saveFile() throws IOException, GeneralSecurityException {
+        String output = counters.entrySet().stream()
+                .map(counter -> counter.getKey() + ":" +
+                        Tools.toBase64(counter.getValue().prefix) + ":" +
+                        Tools.toBase64(Tools.longToByteArray(counter.getValue().reserved)))
+                .collect(Collectors.joining(","));
+
+        if (counters.size() > 0) {
+            Tools.writeEncryptFile(FILENAME, output.getBytes(StandardCharsets.UTF_8));
+        } else {
+            Tools.deleteFile(FILENAME);
+            Tools.createFile(FILENAME);
+        }
+    }
+
+    /**
+     * Get the next IV of a conversation
+     * <pre>Write .MyIvCounters only once every BLOCK_SIZE IVs, a block is used only once its high mark is saved</pre>
+     *
+     * @param conversation Conversation
+     * @return Return an IV never used with the key of the conversation
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized byte[] nextIv(Conversation conversation) throws IOException, GeneralSecurityException {
+        String id = conversation.getId();
+        Counter counter = counters.get(id);
+        if (counter == null || counter.next >= MAX_COUNTER) {
+            byte[] prefix = new byte[PREFIX_LENGTH];
+            RandomService.nextBytes(prefix);
+            counter = new Counter(prefix, 0, 0);
+            counters.put(id, counter);
+        }
+
+        if (counter.next == counter.reserved) {
+            long previous = counter.reserved;
+            counter.reserved = Math.min(counter.next + BLOCK_SIZE, MAX_COUNTER);
+            try {
+                saveFile();
+            } catch (IOException | GeneralSecurityException e) {
+                counter.reserved = previous; //The block is not on disk, no IV of it can be used
+                throw e;
+            }
+        }
+
+        return ByteBuffer.allocate(Cipher.GCM_IV_LENGTH)
+                .put(counter.prefix)
+                .putInt((int) counter.next++)
+                .array();
+    }
+
+    /**
+     * Delete the counter of a conversation
+     *
+     * @param conversation Conversation
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void deleteCounter(Conversation conversation) throws IOException, GeneralSecurityException {
+        if (counters.remove(conversation.getId()) != null) {
+            saveFile();
+        }
+    }
+
+    /**
+     * Get the number of counters
+     *
+     * @return Return the number of counters
+     */
+    public synchronized int getSize() {
+        return counters.size();
+    }
+
+    /**
+     * Counter of a conversation
+     */
+    private static class Counter {
+        private final byte[] prefix;
+        private long next;
+        private long reserved;
+
+        Counter(byte[] prefix, long next, long reserved) {
+            this.prefix = prefix;
+            this.next = next;
+            this.reserved = reserved;
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package fr.upec.e2ee.mystate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import fr.upec.e2ee.E2EE;
+import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.protocol.CipherContext;
+import fr.upec.e2ee.protocol.Compression;
+import fr.upec.e2ee.protocol.Conversation;
+import fr.upec.e2ee.protocol.Ratchet;
+
+/**
+ * MyOutbox contains the outgoing messages of each conversation
+ * <pre>The plaintexts are ciphered by batches on a background thread, then saved encrypted at rest in .MyOutbox:
+ * one CipherContext (engine and key schedule) per conversation per batch and one write of .MyOutbox per batch.
+ * Every write of .MyOutbox runs on the background thread, the calling thread only changes the outbox in memory.
+ * With MyDictionaries, the messages are compressed before being ciphered (see {@link Compression}).
+ * With MyRatchets, each message is ciphered with its own key (see {@link Ratchet}),
+ * the heads of the ratchets are saved once per batch before any message of the batch is released.
+ * The ciphered messages stay in .MyOutbox until they are removed after sharing or copying, or after MAX_AGE.
+ * Entry = conversationId:state:Base64(data):Base64(timestamp), state is P (plaintext, pending) or C (ciphered, ready)</pre>
+ */
+public class MyOutbox {
+    /**
+     * Filename
+     */
+    public static final String FILENAME = ".MyOutbox";
+    /**
+     * Maximum age in seconds of a ciphered message not shared
+     */
+    public static final long MAX_AGE = 7 * 24 * 60 * 60;
+    private static final String PENDING = "P";
+    private static final String READY = "C";
+    /**
+     * One thread for all the outboxes, so the batches and the writes never overlap
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MyOutbox");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final MyConversations myConversations;
+    private final MyIvCounters myIvCounters;
+    private final MyDictionaries myDictionaries;
+    private final MyRatchets myRatchets;
+    private final LinkedHashMap<String, List<Entry>> outbox;
+    private final Object flushLock = new Object();
+    private final Object fileLock = new Object();
+    private boolean flushScheduled;
+    private boolean saveScheduled;
+
+    /**
+     * Constructor MyOutbox
+     * <pre>Pending plaintexts of a previous run are ciphered in the background</pre>
+     *
+     * @param myConversations MyConversations to find the conversation of the pending plaintexts
+     * @param myIvCounters    MyIvCounters giving the IVs
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public MyOutbox(MyConversations myConversations, MyIvCounters myIvCounters) throws IOException, GeneralSecurityException {
+        this(myConversations, myIvCounters, null);
+    }
+
+    /**
+     * Constructor MyOutbox with compression
+     * <pre>Pending plaintexts of a previous run are ciphered in the background</pre>
+     *
+     * @param myConversations MyConversations to find the conversation of the pending plaintexts
+     * @param myIvCounters    MyIvCounters giving the IVs
+     * @param myDictionaries  MyDictionaries giving the compression dictionaries, null to not compress
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public MyOutbox(MyConversations myConversations, MyIvCounters myIvCounters, MyDictionaries myDictionaries) throws IOException, GeneralSecurityException {
+        this(myConversations, myIvCounters, myDictionaries, null);
+    }
+
+    /**
+     * Constructor MyOutbox with compression and ratchets
+     * <pre>Pending plaintexts of a previous run are ciphered in the background</pre>
+     *
+     * @param myConversations MyConversations to find the conversation of the pending plaintexts
+     * @param myIvCounters    MyIvCounters giving the IVs
+     * @param myDictionaries  MyDictionaries giving the compression dictionaries, null to not compress
+     * @param myRatchets      MyRatchets giving a key per message, null to cipher with the key of the conversation
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public MyOutbox(MyConversations myConversations, MyIvCounters myIvCounters, MyDictionaries myDictionaries, MyRatchets myRatchets) throws IOException, GeneralSecurityException {
+        this.myConversations = myConversations;
+        this.myIvCounters = myIvCounters;
+        this.myDictionaries = myDictionaries;
+        this.myRatchets = myRatchets;
+        this.outbox = readFile();
+        if (getPendingSize() > 0) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Read .MyOutbox
+     *
+     * @return Return LinkedHashMap
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private LinkedHashMap<String, List<Entry>> readFile() throws IOException, GeneralSecurityException {
+        LinkedHashMap<String, List<Entry>> map = new LinkedHashMap<>();
+
+        if (Tools.isFileExists(FILENAME)) {
+            byte[] cipheredData = Tools.readFile(FILENAME);
+            if (cipheredData.length != 0) {
+                byte[] rawData = Tools.readEncryptedFile(FILENAME);
+                String[] rawEntries = new String(rawData).split(",");
+
+                for (String rawEntry : rawEntries) {
+                    String[] entryInfo = rawEntry.split(":");
+                    //No timestamp in the previous versions, the entry expires MAX_AGE after this run
+                    long timestamp = entryInfo.length > 3 ? Tools.bytesToLong(Tools.toBytes(entryInfo[3])) : Tools.getCurrentTime();
+                    Entry entry = new Entry(entryInfo[1].equals(READY), Tools.toBytes(entryInfo[2]), timestamp);
+                    if (!entry.ready || !entry.isExpired()) {
+                        map.computeIfAbsent(entryInfo[0], id -> new ArrayList<>()).add(entry);
+                    }
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Save MyOutbox to .MyOutbox
+     * <pre>The outbox is copied under its lock and written outside, so add() never waits for a write</pre>
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public void saveFile() throws IOException, GeneralSecurityException {
+        synchronized (fileLock) { //The last copy is written last
+            String output;
+            synchronized (this) {
+                saveScheduled = false;
+                output = outbox.entrySet().stream()
+                        .flatMap(entries -> entries.getValue().stream()
+                                .filter(entry -> !entry.ready || !entry.isExpired())
+                                .map(entry -> entries.getKey() + ":" +
+                                        (entry.ready ? READY : PENDING) + ":" +
+                                        Tools.toBase64(entry.data) + ":" +
+                                        Tools.toBase64(Tools.longToByteArray(entry.timestamp))))
+                        .collect(Collectors.joining(","));
+            }
+
+            if (!output.isEmpty()) {
+                Tools.writeEncryptFile(FILENAME, output.getBytes(StandardCharsets.UTF_8));
+            } else {
+                Tools.deleteFile(FILENAME);
+                Tools.createFile(FILENAME);
+            }
+        }
+    }
+
+    /**
+     * Save the outbox on the background thread if no write is waiting
+     */
+    private synchronized void scheduleSave() {
+        if (!saveScheduled) {
+            saveScheduled = true;
+            EXECUTOR.execute(() -> {
+                try {
+                    saveFile();
+                } catch (IOException | GeneralSecurityException ignored) {
+                    //Saved again with the next change
+                }
+            });
+        }
+    }
+
+    /**
+     * Wait until the batches and the writes scheduled before are done, e.g. before closing the application
+     *
+     * @throws InterruptedException Throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void awaitSaved() throws InterruptedException {
+        try {
+            CompletableFuture.runAsync(() -> {
+            }, EXECUTOR).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add a message to the outbox of a conversation
+     * <pre>The message is ciphered and saved with the next batch, never on the calling thread</pre>
+     *
+     * @param conversation Conversation
+     * @param message      Text in Bytes
+     * @return Return a future completed with the ciphered message as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized CompletableFuture<String> add(Conversation conversation, byte[] message) throws GeneralSecurityException {
+        Entry entry = new Entry(false, message, Tools.getCurrentTime());
+        entry.future = new CompletableFuture<>();
+        outbox.computeIfAbsent(conversation.getId(), id -> new ArrayList<>()).add(entry);
+        scheduleFlush();
+        return entry.future;
+    }
+
+    /**
+     * Schedule a batch if none is waiting
+     */
+    private synchronized void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            EXECUTOR.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * Run a batch from the executor, the errors are given to the futures
+     */
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | GeneralSecurityException ignored) {
+        }
+    }
+
+    /**
+     * Cipher every pending message
+     * <pre>Called by the background thread, can also be called directly (e.g. before closing the application)</pre>
+     *
+     * @return Return the number of ciphered messages
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public int flush() throws IOException, GeneralSecurityException {
+        synchronized (flushLock) { //A message is never in two batches
+            return flushBatch();
+        }
+    }
+
+    /**
+     * Cipher the current batch
+     *
+     * @return Return the number of ciphered messages
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private int flushBatch() throws IOException, GeneralSecurityException {
+        //Take the batch, the messages added meanwhile go to the next batch
+        HashMap<String, List<Entry>> batch = new HashMap<>();
+        synchronized (this) {
+            flushScheduled = false;
+            for (Map.Entry<String, List<Entry>> entries : outbox.entrySet()) {
+                List<Entry> pending = entries.getValue().stream()
+                        .filter(entry -> !entry.ready)
+                        .collect(Collectors.toList());
+                if (!pending.isEmpty()) {
+                    batch.put(entries.getKey(), pending);
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        //Cipher outside the lock, so add() never waits for a batch
+        HashMap<Entry, byte[]> ciphered = new HashMap<>();
+        List<String> deleted = new ArrayList<>();
+        GeneralSecurityException exception = null;
+        for (Map.Entry<String, List<Entry>> entries : batch.entrySet()) {
+            Conversation conversation = getConversation(entries.getKey());
+            if (conversation == null) {
+                deleted.add(entries.getKey());
+                continue;
+            }
+            try {
+                CipherContext cipherContext = myRatchets == null ? new CipherContext(conversation, myIvCounters) : null;
+                byte[] dictionary = myDictionaries != null ? myDictionaries.getDictionary(conversation) : null;
+                List<byte[]> messages = new ArrayList<>(entries.getValue().size());
+                for (Entry entry : entries.getValue()) {
+                    if (myDictionaries != null) {
+                        myDictionaries.addSent(conversation, entry.data);
+                    }
+                    messages.add(myDictionaries != null ? Compression.compress(entry.data, dictionary) : entry.data);
+                }
+                List<byte[]> cipherMessages;
+                if (myRatchets != null) {
+                    cipherMessages = myRatchets.cipherAll(conversation, messages);
+                } else {
+                    cipherMessages = new ArrayList<>(messages.size());
+                    for (byte[] message : messages) {
+                        cipherMessages.add(E2EE.TAG_KEY_ID ? cipherContext.cipherWithKeyId(message) : cipherContext.cipher(message));
+                    }
+                }
+                for (int i = 0; i < cipherMessages.size(); i++) {
+                    ciphered.put(entries.getValue().get(i), cipherMessages.get(i));
+                }
+            } catch (GeneralSecurityException e) {
+                exception = e;
+                for (Entry entry : entries.getValue()) {
+                    if (entry.future != null) {
+                        entry.future.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+
+        //The heads of the ratchets are saved once, before any message of the batch is released
+        if (myRatchets != null && !ciphered.isEmpty()) {
+            try {
+                myRatchets.saveFile();
+            } catch (IOException | GeneralSecurityException e) {
+                exception = new GeneralSecurityException("Could not save the ratchets", e);
+                for (Entry entry : ciphered.keySet()) {
+                    if (entry.future != null) {
+                        entry.future.completeExceptionally(exception);
+                    }
+                }
+                ciphered.clear();
+            }
+        }
+
+        synchronized (this) {
+            for (String id : deleted) {
+                outbox.remove(id);
+            }
+            for (Map.Entry<Entry, byte[]> result : ciphered.entrySet()) {
+                result.getKey().ready = true;
+                result.getKey().data = result.getValue();
+            }
+        }
+        try {
+            saveFile();
+            if (myDictionaries != null) {
+                myDictionaries.saveFile();
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            //The futures are failed, else the callers would wait forever
+            for (Entry entry : ciphered.keySet()) {
+                if (entry.future != null) {
+                    entry.future.completeExceptionally(e);
+                }
+            }
+            throw e;
+        }
+
+        for (Map.Entry<Entry, byte[]> result : ciphered.entrySet()) {
+            if (result.getKey().future != null) {
+                result.getKey().future.complete(Tools.toBase64(result.getValue()));
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return ciphered.size();
+    }
+
+    /**
+     * Find a conversation from its identifier
+     *
+     * @param id Identifier of the conversation
+     * @return Return the conversation, null if it does not exist anymore
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private Conversation getConversation(String id) throws GeneralSecurityException {
+        for (int i = 0; i < myConversations.getSize(); i++) {
+            Conversation conversation = myConversations.getConversation(i);
+            if (conversation.getId().equals(id)) {
+                return conversation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the ciphered messages of a conversation ready to be shared
+     *
+     * @param conversation Conversation
+     * @return Return the ciphered messages as Base64, oldest first
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized List<String> getReady(Conversation conversation) throws GeneralSecurityException {
+        List<Entry> entries = outbox.get(conversation.getId());
+        if (entries == null) {
+            return new ArrayList<>();
+        }
+        return entries.stream()
+                .filter(entry -> entry.ready && !entry.isExpired())
+                .map(entry -> Tools.toBase64(entry.data))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Remove a ciphered message once shared or copied, the outbox is saved in the background
+     *
+     * @param conversation    Conversation
+     * @param cipheredMessage Ciphered message as Base64
+     * @return Return a boolean if the message was in the outbox
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized boolean remove(Conversation conversation, String cipheredMessage) throws GeneralSecurityException {
+        String id = conversation.getId();
+        List<Entry> entries = outbox.get(id);
+        if (entries == null || !entries.removeIf(entry -> entry.ready && Tools.toBase64(entry.data).equals(cipheredMessage))) {
+            return false;
+        }
+        if (entries.isEmpty()) {
+            outbox.remove(id);
+        }
+        scheduleSave();
+        return true;
+    }
+
+    /**
+     * Delete the outbox of a conversation, the outbox is saved in the background
+     *
+     * @param conversation Conversation
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void deleteConversation(Conversation conversation) throws GeneralSecurityException {
+        if (outbox.remove(conversation.getId()) != null) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Get the number of messages waiting to be ciphered
+     *
+     * @return Return the number of pending messages
+     */
+    public synchronized int getPendingSize() {
+        return (int) outbox.values().stream()
+                .flatMap(List::stream)
+                .filter(entry -> !entry.ready)
+                .count();
+    }
+
+    /**
+     * Message of the outbox
+     */
+    private static class Entry {
+        private final long timestamp;
+        private boolean ready;
+        private byte[] data;
+        private CompletableFuture<String> future;
+
+        Entry(boolean ready, byte[] data, long timestamp) {
+            this.ready = ready;
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Check if the message is too old to be shared
+         *
+         * @return Return a boolean if the message was added more than MAX_AGE ago
+         */
+        boolean isExpired() {
+            return Tools.getCurrentTime() - timestamp > MAX_AGE;
+        }
+    }
+}
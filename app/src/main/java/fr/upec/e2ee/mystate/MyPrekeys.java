@@ -0,0 +1,322 @@
+package fr.upec.e2ee.mystate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.protocol.DecipheredMessage;
+import fr.upec.e2ee.protocol.EphemeralKeyPool;
+import fr.upec.e2ee.protocol.PrekeyBundle;
+import fr.upec.e2ee.protocol.PrekeyMessage;
+import fr.upec.e2ee.protocol.SigningSubkey;
+
+/**
+ * MyPrekeys contains my one-time prekeys not used yet and my last-resort prekey (see {@link PrekeyBundle})
+ * <pre>Each prekey has an identifier drawn from a counter, a prekey is removed and the file saved as soon as a message used it,
+ * so an identifier under the counter and not in the file was consumed and a second message with it is refused.
+ * The last-resort prekey is never removed, it is used by the senders of a bundle without one-time prekey or too old.
+ * The prekeys are generated by batches of BATCH_SIZE on a background thread of low priority,
+ * a new batch is started when less than LOW_WATERMARK prekeys are left, the next bundle then contains the new prekeys.
+ * File = Base64 next identifier, then identifier:Base64 Private Key:Base64 Public Key for each prekey,
+ * the last-resort prekey has the identifier PrekeyBundle.LAST_RESORT_ID</pre>
+ */
+public class MyPrekeys {
+    /**
+     * Filename
+     */
+    public static final String FILENAME = ".MyPrekeys";
+    /**
+     * Number of prekeys after a refill
+     */
+    public static final int BATCH_SIZE = 20;
+    /**
+     * Number of prekeys under which a refill is started
+     */
+    public static final int LOW_WATERMARK = 5;
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MyPrekeys");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final TreeMap<Integer, KeyPair> prekeys;
+    private final AtomicBoolean refilling;
+    private int nextId;
+    private KeyPair lastResort;
+
+    /**
+     * Constructor MyPrekeys
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public MyPrekeys() throws IOException, GeneralSecurityException {
+        this.prekeys = new TreeMap<>();
+        this.refilling = new AtomicBoolean();
+        this.nextId = 0;
+        this.lastResort = null;
+        readFile();
+    }
+
+    /**
+     * Read .MyPrekeys
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private void readFile() throws IOException, GeneralSecurityException {
+        if (Tools.isFileExists(FILENAME)) {
+            byte[] cipheredData = Tools.readFile(FILENAME);
+            if (cipheredData.length != 0) {
+                String[] rawData = new String(Tools.readEncryptedFile(FILENAME)).split(",");
+                nextId = ByteBuffer.wrap(Tools.toBytes(rawData[0])).getInt();
+
+                KeyFactory keyFactory = KeyFactory.getInstance("EC");
+                for (int i = 1; i < rawData.length; i++) {
+                    String[] prekeyInfo = rawData[i].split(":");
+                    PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Tools.toBytes(prekeyInfo[1])));
+                    PublicKey publicKey = Tools.toPublicKey(Tools.toBytes(prekeyInfo[2]));
+                    int id = Integer.parseInt(prekeyInfo[0]);
+                    if (id == PrekeyBundle.LAST_RESORT_ID) {
+                        lastResort = new KeyPair(publicKey, privateKey);
+                    } else {
+                        prekeys.put(id, new KeyPair(publicKey, privateKey));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Save MyPrekeys to .MyPrekeys
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void saveFile() throws IOException, GeneralSecurityException {
+        if (nextId == 0 && lastResort == null) {
+            Tools.deleteFile(FILENAME);
+            Tools.createFile(FILENAME);
+            return;
+        }
+        StringBuilder output = new StringBuilder(Tools.toBase64(ByteBuffer.allocate(4).putInt(nextId).array()));
+        if (lastResort != null) {
+            appendPrekey(output, PrekeyBundle.LAST_RESORT_ID, lastResort);
+        }
+        for (Map.Entry<Integer, KeyPair> prekey : prekeys.entrySet()) {
+            appendPrekey(output, prekey.getKey(), prekey.getValue());
+        }
+        Tools.writeEncryptFile(FILENAME, output.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Append a prekey to the content of .MyPrekeys
+     *
+     * @param output  Content of the file
+     * @param id      Identifier of the prekey
+     * @param keyPair Prekey
+     */
+    private static void appendPrekey(StringBuilder output, int id, KeyPair keyPair) {
+        output.append(',')
+                .append(id).append(':')
+                .append(Tools.toBase64(keyPair.getPrivate().getEncoded())).append(':')
+                .append(Tools.toBase64(keyPair.getPublic().getEncoded()));
+    }
+
+    /**
+     * Generate the last-resort prekey if there is none and save it
+     * <pre>Only one key pair is generated, so a first bundle can be created at once and the one-time prekeys refilled in the background</pre>
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public void ensureLastResort() throws IOException, GeneralSecurityException {
+        if (getLastResort() != null) {
+            return;
+        }
+        KeyPair keyPair = EphemeralKeyPool.generate();
+        synchronized (this) {
+            if (lastResort == null) {
+                lastResort = keyPair;
+                saveFile();
+            }
+        }
+    }
+
+    /**
+     * Generate prekeys up to BATCH_SIZE and the last-resort prekey if there is none, then save them
+     * <pre>The key pairs are generated without holding the lock, so a message can be deciphered meanwhile</pre>
+     *
+     * @return Return the number of one-time prekeys added
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public int fill() throws IOException, GeneralSecurityException {
+        ensureLastResort();
+        int missing = BATCH_SIZE - getSize();
+        if (missing <= 0) {
+            return 0;
+        }
+        ArrayList<KeyPair> batch = new ArrayList<>(missing);
+        for (int i = 0; i < missing; i++) {
+            batch.add(EphemeralKeyPool.generate());
+        }
+        synchronized (this) {
+            for (KeyPair keyPair : batch) {
+                prekeys.put(nextId++, keyPair);
+            }
+            saveFile();
+        }
+        return batch.size();
+    }
+
+    /**
+     * Fill the prekeys in the background if less than LOW_WATERMARK are left, does nothing if a refill is running
+     */
+    public void refill() {
+        if (getSize() < LOW_WATERMARK && refilling.compareAndSet(false, true)) {
+            EXECUTOR.execute(() -> {
+                try {
+                    fill();
+                } catch (IOException | GeneralSecurityException ignored) {
+                    //Retried after the next prekey message
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Check if a refill is running
+     *
+     * @return Return a boolean if prekeys are generated in the background
+     */
+    public boolean isRefilling() {
+        return refilling.get();
+    }
+
+    /**
+     * Create my bundle of all the prekeys not used and my last-resort prekey, signed by my Private Key
+     *
+     * @param myPrivateKey My Private Key
+     * @param myPublicKey  My Public Key
+     * @return Return the signed bundle
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public byte[] getBundle(PrivateKey myPrivateKey, PublicKey myPublicKey) throws GeneralSecurityException {
+        return PrekeyBundle.create(getPublicPrekeys(), getLastResortPublic(), myPrivateKey, myPublicKey);
+    }
+
+    /**
+     * Create my bundle of all the prekeys not used and my last-resort prekey, signed by my SigningSubkey
+     *
+     * @param mySigningSubkey My SigningSubkey
+     * @param myPublicKey     My Public Key
+     * @return Return the signed bundle
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public byte[] getBundle(SigningSubkey mySigningSubkey, PublicKey myPublicKey) throws GeneralSecurityException {
+        return PrekeyBundle.create(getPublicPrekeys(), getLastResortPublic(), mySigningSubkey, myPublicKey);
+    }
+
+    /**
+     * Get the Public Key of the last-resort prekey
+     *
+     * @return Return the last-resort Public Key
+     */
+    private PublicKey getLastResortPublic() {
+        KeyPair keyPair = getLastResort();
+        if (keyPair == null) {
+            throw new IllegalStateException("No last-resort prekey");
+        }
+        return keyPair.getPublic();
+    }
+
+    /**
+     * Get the last-resort prekey
+     *
+     * @return Return the last-resort prekey, null if not generated yet
+     */
+    private synchronized KeyPair getLastResort() {
+        return lastResort;
+    }
+
+    /**
+     * Get the Public Keys of the prekeys not used
+     *
+     * @return Return the Public Keys by identifier, at most PrekeyBundle.MAX_PREKEYS
+     */
+    public synchronized TreeMap<Integer, PublicKey> getPublicPrekeys() {
+        return prekeys.entrySet().stream()
+                .limit(PrekeyBundle.MAX_PREKEYS)
+                .collect(Collectors.toMap(Map.Entry::getKey, prekey -> prekey.getValue().getPublic(), (a, b) -> a, TreeMap::new));
+    }
+
+    /**
+     * Decipher a prekey message and consume its prekey
+     * <pre>The prekey is removed only if the message is authentic, so a forged message can not consume it.
+     * The last-resort prekey is never removed.</pre>
+     *
+     * @param myDirectory MyDirectory
+     * @param myPublicKey My Public Key
+     * @param message     Prekey message
+     * @return Return the new conversation and the first message
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the prekey was already used or the message is not authentic
+     */
+    public DecipheredMessage decipher(MyDirectory myDirectory, PublicKey myPublicKey, byte[] message) throws IOException, GeneralSecurityException {
+        int id = PrekeyMessage.getPrekeyId(message);
+        DecipheredMessage decipheredMessage;
+        synchronized (this) {
+            if (id == PrekeyBundle.LAST_RESORT_ID) {
+                if (lastResort == null) {
+                    throw new GeneralSecurityException("Unknown prekey");
+                }
+                return PrekeyMessage.open(myDirectory, myPublicKey, message, lastResort);
+            }
+            KeyPair prekey = prekeys.get(id);
+            if (prekey == null) {
+                throw new GeneralSecurityException(isConsumed(id) ? "Prekey already used" : "Unknown prekey");
+            }
+            decipheredMessage = PrekeyMessage.open(myDirectory, myPublicKey, message, prekey);
+            prekeys.remove(id);
+            saveFile();
+        }
+        refill();
+        return decipheredMessage;
+    }
+
+    /**
+     * Check if a prekey was used
+     *
+     * @param id Identifier of the prekey
+     * @return Return a boolean if the prekey was generated and used
+     */
+    public synchronized boolean isConsumed(int id) {
+        return id >= 0 && id < nextId && !prekeys.containsKey(id);
+    }
+
+    /**
+     * Get the number of prekeys not used
+     *
+     * @return Return the number of prekeys
+     */
+    public synchronized int getSize() {
+        return prekeys.size();
+    }
+}
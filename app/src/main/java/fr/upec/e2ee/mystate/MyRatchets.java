@@ -0,0 +1,180 @@
+package fr.upec.e2ee.mystate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.protocol.Conversation;
+import fr.upec.e2ee.protocol.Ratchet;
+
+/**
+ * MyRatchets contains the Ratchet of each conversation
+ * <pre>Only the heads of the chains are saved, a few bytes per conversation whatever the number of messages.
+ * .MyRatchets is written after each message, or once per batch before the batch is released,
+ * so a key is never used again after a restart.
+ * Entry = conversationId:Base64(heads of the chains)</pre>
+ */
+public class MyRatchets {
+    /**
+     * Filename
+     */
+    public static final String FILENAME = ".MyRatchets";
+    private final HashMap<String, byte[]> states;
+    private final HashMap<String, Ratchet> ratchets;
+
+    /**
+     * Constructor MyRatchets
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public MyRatchets() throws IOException, GeneralSecurityException {
+        this.states = readFile();
+        this.ratchets = new HashMap<>();
+    }
+
+    /**
+     * Read .MyRatchets
+     *
+     * @return Return HashMap
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private HashMap<String, byte[]> readFile() throws IOException, GeneralSecurityException {
+        HashMap<String, byte[]> map = new HashMap<>();
+
+        if (Tools.isFileExists(FILENAME)) {
+            byte[] cipheredData = Tools.readFile(FILENAME);
+            if (cipheredData.length != 0) {
+                byte[] rawData = Tools.readEncryptedFile(FILENAME);
+                String[] rawRatchets = new String(rawData).split(",");
+
+                for (String rawRatchet : rawRatchets) {
+                    String[] ratchetInfo = rawRatchet.split(":");
+                    map.put(ratchetInfo[0], Tools.toBytes(ratchetInfo[1]));
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Save MyRatchets to .MyRatchets
+     *
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void saveFile() throws IOException, GeneralSecurityException {
+        for (Map.Entry<String, Ratchet> ratchet : ratchets.entrySet()) {
+            states.put(ratchet.getKey(), ratchet.getValue().toBytes());
+        }
+
+        String output = states.entrySet().stream()
+                .map(state -> state.getKey() + ":" + Tools.toBase64(state.getValue()))
+                .collect(Collectors.joining(","));
+
+        if (states.size() > 0) {
+            Tools.writeEncryptFile(FILENAME, output.getBytes(StandardCharsets.UTF_8));
+        } else {
+            Tools.deleteFile(FILENAME);
+            Tools.createFile(FILENAME);
+        }
+    }
+
+    /**
+     * Get the Ratchet of a conversation, restored from .MyRatchets or started
+     *
+     * @param conversation Conversation
+     * @return Return the Ratchet of the conversation
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized Ratchet getRatchet(Conversation conversation) throws GeneralSecurityException {
+        String id = conversation.getId();
+        Ratchet ratchet = ratchets.get(id);
+        if (ratchet == null) {
+            byte[] state = states.get(id);
+            ratchet = state != null ? new Ratchet(conversation, state) : new Ratchet(conversation);
+            ratchets.put(id, ratchet);
+            states.put(id, ratchet.toBytes());
+        }
+        return ratchet;
+    }
+
+    /**
+     * Cipher a message with the next key of a conversation and save the new head
+     *
+     * @param conversation Conversation
+     * @param input        Text in Bytes
+     * @return Return the ratchet message
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized byte[] cipher(Conversation conversation, byte[] input) throws IOException, GeneralSecurityException {
+        byte[] cipherMessage = getRatchet(conversation).cipher(input);
+        saveFile();
+        return cipherMessage;
+    }
+
+    /**
+     * Cipher a batch of messages with the next keys of a conversation without saving the new head
+     * <pre>Call saveFile() before releasing the ratchet messages, a message whose head was not saved must be dropped</pre>
+     *
+     * @param conversation Conversation
+     * @param inputs       Texts in Bytes
+     * @return Return the ratchet messages in the order of the inputs
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized List<byte[]> cipherAll(Conversation conversation, List<byte[]> inputs) throws GeneralSecurityException {
+        Ratchet ratchet = getRatchet(conversation);
+        List<byte[]> cipherMessages = new ArrayList<>(inputs.size());
+        for (byte[] input : inputs) {
+            cipherMessages.add(ratchet.cipher(input));
+        }
+        return cipherMessages;
+    }
+
+    /**
+     * Decipher a ratchet message of a conversation and save the new head
+     *
+     * @param conversation  Conversation
+     * @param cipherMessage Ratchet message
+     * @return Return the deciphered message
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the message is not authentic, already deciphered or too far ahead
+     */
+    public synchronized byte[] decipher(Conversation conversation, byte[] cipherMessage) throws IOException, GeneralSecurityException {
+        byte[] message = getRatchet(conversation).decipher(cipherMessage);
+        saveFile();
+        return message;
+    }
+
+    /**
+     * Delete the Ratchet of a conversation
+     *
+     * @param conversation Conversation
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized void deleteRatchet(Conversation conversation) throws IOException, GeneralSecurityException {
+        String id = conversation.getId();
+        ratchets.remove(id);
+        if (states.remove(id) != null) {
+            saveFile();
+        }
+    }
+
+    /**
+     * Get the number of ratchets
+     *
+     * @return Return the number of ratchets
+     */
+    public synchronized int getSize() {
+        return states.size();
+    }
+}
@@ -7,9 +7,25 @@ import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
 
+import fr.upec.e2ee.E2EE;
+import fr.upec.e2ee.R;
 import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.protocol.Communication;
+import fr.upec.e2ee.protocol.Compression;
 import fr.upec.e2ee.protocol.Conversation;
+import fr.upec.e2ee.protocol.DecipheredMessage;
+import fr.upec.e2ee.protocol.KeyId;
+import fr.upec.e2ee.protocol.Message1;
+import fr.upec.e2ee.protocol.PrekeyBundle;
+import fr.upec.e2ee.protocol.PrekeyMessage;
+import fr.upec.e2ee.protocol.RandomService;
+import fr.upec.e2ee.protocol.Ratchet;
+import fr.upec.e2ee.protocol.Resumption;
+import fr.upec.e2ee.protocol.SecretBuild;
+import fr.upec.e2ee.protocol.SigningSubkey;
 
 /**
  * Contain user state
@@ -26,8 +42,15 @@ public class MyState {
     public static final String DEFAULT_ALIAS = "fr.upec.e2ee.keypair";
     private final MyDirectory myDirectory;
     private final MyConversations myConversations;
+    private final MyIvCounters myIvCounters;
+    private final MyDictionaries myDictionaries;
+    private final MyRatchets myRatchets;
+    private final MyOutbox myOutbox;
+    private final MyPrekeys myPrekeys;
+    private static SigningSubkey mySigningSubkey; //In memory only, shared by the MyState of each screen
+    private static PublicKey mySigningSubkeyIdentity;
     private MyKeyPair myKeyPair;
-    private int myNonce;
+    private int myNonce; //Not used by Message1 anymore, kept in .MyState for the files of the previous versions
 
     /**
      * Create MyState for unit test
@@ -39,6 +62,11 @@ public class MyState {
         this.myKeyPair = new MyKeyPair(alias);
         this.myDirectory = new MyDirectory();
         this.myConversations = new MyConversations();
+        this.myIvCounters = new MyIvCounters();
+        this.myDictionaries = new MyDictionaries();
+        this.myRatchets = new MyRatchets();
+        this.myOutbox = new MyOutbox(myConversations, myIvCounters, E2EE.COMPRESS_MESSAGES ? myDictionaries : null, E2EE.RATCHET_MESSAGES ? myRatchets : null);
+        this.myPrekeys = new MyPrekeys();
         this.myNonce = 0;
     }
 
@@ -48,12 +76,22 @@ public class MyState {
      * @param myKeyPair       MyKeyPair
      * @param myDirectory     MyDirectory
      * @param myConversations MyConversations
-     * @param myNonce         MyNonce
+     * @param myIvCounters    MyIvCounters
+     * @param myDictionaries  MyDictionaries
+     * @param myRatchets      MyRatchets
+     * @param myOutbox        MyOutbox
+     * @param myPrekeys       MyPrekeys
+     * @param myNonce         MyNonce, unused
      */
-    public MyState(MyKeyPair myKeyPair, MyDirectory myDirectory, MyConversations myConversations, int myNonce) {
+    public MyState(MyKeyPair myKeyPair, MyDirectory myDirectory, MyConversations myConversations, MyIvCounters myIvCounters, MyDictionaries myDictionaries, MyRatchets myRatchets, MyOutbox myOutbox, MyPrekeys myPrekeys, int myNonce) {
         this.myKeyPair = myKeyPair;
         this.myDirectory = myDirectory;
         this.myConversations = myConversations;
+        this.myIvCounters = myIvCounters;
+        this.myDictionaries = myDictionaries;
+        this.myRatchets = myRatchets;
+        this.myOutbox = myOutbox;
+        this.myPrekeys = myPrekeys;
         this.myNonce = myNonce;
     }
 
@@ -70,9 +108,22 @@ public class MyState {
             String data = new String(Tools.readEncryptedFile(MyState.FILENAME));
             String[] rawData = data.split(",");
             if (isEqualsDigest(rawData)) {
+                MyConversations myConversations = new MyConversations();
+                MyIvCounters myIvCounters = new MyIvCounters();
+                MyDictionaries myDictionaries = new MyDictionaries();
+                MyRatchets myRatchets = new MyRatchets();
+                MyPrekeys myPrekeys = new MyPrekeys();
+                if (E2EE.PREKEYS) {
+                    myPrekeys.refill();
+                }
                 return new MyState(MyKeyPair.load(alias),
                         new MyDirectory(),
-                        new MyConversations(),
+                        myConversations,
+                        myIvCounters,
+                        myDictionaries,
+                        myRatchets,
+                        new MyOutbox(myConversations, myIvCounters, E2EE.COMPRESS_MESSAGES ? myDictionaries : null, E2EE.RATCHET_MESSAGES ? myRatchets : null),
+                        myPrekeys,
                         ByteBuffer.wrap(Tools.toBytes(rawData[2])).getInt());
             } else {
                 throw new IllegalStateException("""
@@ -128,6 +179,100 @@ public class MyState {
         return myKeyPair.getMyPrivateKey();
     }
 
+    /**
+     * Get my SigningSubkey, a new one is certified by my Private Key if there is none, it is expiring or MyKeyPair changed
+     *
+     * @return Return my SigningSubkey
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public SigningSubkey getMySigningSubkey() throws GeneralSecurityException {
+        synchronized (MyState.class) {
+            if (!hasMySigningSubkey()) {
+                mySigningSubkey = new SigningSubkey(getMyPrivateKey());
+                mySigningSubkeyIdentity = getMyPublicKey();
+            }
+            return mySigningSubkey;
+        }
+    }
+
+    /**
+     * Check if my SigningSubkey can be used without a new certificate
+     *
+     * @return Return a boolean if there is a SigningSubkey of MyKeyPair not expiring
+     */
+    public boolean hasMySigningSubkey() {
+        synchronized (MyState.class) {
+            return mySigningSubkey != null && !mySigningSubkey.isExpiring() && getMyPublicKey().equals(mySigningSubkeyIdentity);
+        }
+    }
+
+    /**
+     * Create my Message1 signed by my SigningSubkey if DELEGATED_SIGNING else by my Private Key
+     *
+     * @param myMessage1 My Message1
+     * @return Return the signed Message1 as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public String createMessage1(Message1 myMessage1) throws GeneralSecurityException {
+        if (E2EE.DELEGATED_SIGNING) {
+            return Communication.createMessage1(myMessage1, getMySigningSubkey(), getMyPublicKey());
+        }
+        return Communication.createMessage1(myMessage1, getMyPrivateKey(), getMyPublicKey());
+    }
+
+    /**
+     * Create my Message2, signed by my SigningSubkey if DELEGATED_SIGNING else by my Private Key,
+     * with the fingerprint of my Public Key if MESSAGE2_KEY_HINT
+     *
+     * @param mySecretBuild My SecretBuild
+     * @return Return the signed and ciphered Message2 as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public String createMessage2(SecretBuild mySecretBuild) throws GeneralSecurityException {
+        PublicKey hint = E2EE.MESSAGE2_KEY_HINT ? getMyPublicKey() : null;
+        if (E2EE.DELEGATED_SIGNING) {
+            return Communication.createMessage2(getMySigningSubkey(), hint, mySecretBuild);
+        }
+        return Communication.createMessage2(getMyPrivateKey(), hint, mySecretBuild);
+    }
+
+    /**
+     * Create my bundle of prekeys, signed by my SigningSubkey if DELEGATED_SIGNING else by my Private Key
+     * <pre>Only the last-resort prekey is generated at once if missing, the one-time prekeys are filled in the background
+     * and a first bundle may contain none of them</pre>
+     *
+     * @return Return the signed bundle as Base64, to publish
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public String createPrekeyBundle() throws IOException, GeneralSecurityException {
+        myPrekeys.ensureLastResort();
+        myPrekeys.refill();
+        if (E2EE.DELEGATED_SIGNING) {
+            return Tools.toBase64(myPrekeys.getBundle(getMySigningSubkey(), getMyPublicKey()));
+        }
+        return Tools.toBase64(myPrekeys.getBundle(getMyPrivateKey(), getMyPublicKey()));
+    }
+
+    /**
+     * Start a conversation with the bundle of prekeys of a person of MyDirectory and save it
+     *
+     * @param bundle       Bundle of prekeys as Base64
+     * @param firstMessage First message of the conversation
+     * @return Return the prekey message as Base64, to send
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the signature of the bundle is invalid
+     */
+    public String startConversation(String bundle, byte[] firstMessage) throws IOException, GeneralSecurityException {
+        PrekeyBundle prekeyBundle = PrekeyBundle.open(myDirectory, Tools.toBytes(bundle.trim()));
+        PrekeyMessage prekeyMessage = E2EE.DELEGATED_SIGNING
+                ? new PrekeyMessage(prekeyBundle, firstMessage, getMySigningSubkey(), getMyPublicKey())
+                : new PrekeyMessage(prekeyBundle, firstMessage, getMyPrivateKey(), getMyPublicKey());
+        addAConversation(prekeyMessage.getConversation());
+        save();
+        return Tools.toBase64(prekeyMessage.toBytes());
+    }
+
     /**
      * Get all conversations
      *
@@ -146,8 +291,54 @@ public class MyState {
         return myDirectory;
     }
 
+    /**
+     * Get MyIvCounters
+     *
+     * @return Return MyIvCounters
+     */
+    public MyIvCounters getMyIvCounters() {
+        return myIvCounters;
+    }
+
+    /**
+     * Get MyDictionaries
+     *
+     * @return Return MyDictionaries
+     */
+    public MyDictionaries getMyDictionaries() {
+        return myDictionaries;
+    }
+
+    /**
+     * Get MyRatchets
+     *
+     * @return Return MyRatchets
+     */
+    public MyRatchets getMyRatchets() {
+        return myRatchets;
+    }
+
+    /**
+     * Get MyOutbox
+     *
+     * @return Return MyOutbox
+     */
+    public MyOutbox getMyOutbox() {
+        return myOutbox;
+    }
+
+    /**
+     * Get MyPrekeys
+     *
+     * @return Return MyPrekeys
+     */
+    public MyPrekeys getMyPrekeys() {
+        return myPrekeys;
+    }
+
     /**
      * Get my nonce
+     * <pre>Message1 has a random nonce, this one is only kept for the files of the previous versions</pre>
      *
      * @return int MyNonce
      */
@@ -157,20 +348,21 @@ public class MyState {
 
     /**
      * Increment myNonce
+     * <pre>Unused, see getMyNonce()</pre>
      *
      * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
      */
     public void incrementMyNonce() throws NoSuchAlgorithmException {
         int temp;
         do {
-            temp = Tools.generateSecureRandom().nextInt(100);
+            temp = RandomService.nextInt(100);
         } while (temp == 0);
         this.myNonce += temp;
     }
 
     /**
      * Save MyState in a file
-     * <pre>Contain digest .MyDirectory, digest .MyConversations, Base64 myNonce</pre>
+     * <pre>Contain digest .MyDirectory, digest .MyConversations, Base64 myNonce (unused, kept for the file format)</pre>
      *
      * @throws IOException              Throws IOException if there is an I/O exception
      * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
@@ -186,6 +378,105 @@ public class MyState {
         Tools.writeEncryptFile(MyState.FILENAME, (checksumMyDirectory + "," + checksumMyConversations + "," + myNonceBase64).getBytes(StandardCharsets.UTF_8));
     }
 
+    /**
+     * Decipher a message of any conversation
+     * <pre>The conversation is found with the key identifier of the message (see {@link KeyId}),
+     * then the message is decompressed and added to the dictionary of the conversation</pre>
+     *
+     * @param cipherMessage Ciphered message as Base64, e.g. pasted from the clipboard
+     * @return Return the conversation and the deciphered message, null if no conversation can decipher it
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     * @throws NoSuchElementException   Throws NoSuchElementException if the prekey of a prekey message was already used and no conversation can decipher it
+     */
+    public DecipheredMessage decipherAnything(String cipherMessage) throws IOException, GeneralSecurityException {
+        DecipheredMessage decipheredMessage = null;
+        try {
+            byte[] cipherMessageBytes = Tools.toBytes(cipherMessage.trim());
+            if (PrekeyMessage.isPrekeyMessage(cipherMessageBytes)) {
+                decipheredMessage = decipherPrekey(cipherMessageBytes);
+            } else if (Ratchet.isRatchet(cipherMessageBytes)) {
+                decipheredMessage = decipherRatchet(cipherMessageBytes);
+            }
+            if (decipheredMessage == null) {
+                decipheredMessage = myConversations.decipher(cipherMessageBytes); //Also an untagged message whose IV starts like a header
+            }
+            if (decipheredMessage == null && PrekeyMessage.isPrekeyMessage(cipherMessageBytes)
+                    && myPrekeys.isConsumed(PrekeyMessage.getPrekeyId(cipherMessageBytes))) {
+                throw new NoSuchElementException(E2EE.getContext().getResources().getText(R.string.err_prekey_used).toString());
+            }
+        } catch (IllegalArgumentException e) {
+            return null; //Not Base64
+        }
+        if (decipheredMessage == null) {
+            return null;
+        }
+
+        Conversation conversation = decipheredMessage.getConversation();
+        if (!decipheredMessage.isPreviousKey()) {
+            confirmResumption(conversation);
+        }
+        try {
+            byte[] message = Compression.decompress(decipheredMessage.getMessage(), myDictionaries.getCandidateDictionaries(conversation));
+            myDictionaries.addReceived(conversation, message);
+            myDictionaries.saveFile();
+            return new DecipheredMessage(conversation, message);
+        } catch (DataFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decipher a ratchet message with the conversation of its key identifier
+     * <pre>The header is only a hint like {@link KeyId}, null lets the message be tried as untagged</pre>
+     *
+     * @param cipherMessage Ratchet message
+     * @return Return the conversation and the deciphered message, null if no ratchet can decipher it
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private DecipheredMessage decipherRatchet(byte[] cipherMessage) throws IOException, GeneralSecurityException {
+        Conversation conversation = myConversations.getConversationByKeyId(Ratchet.getKeyId(cipherMessage));
+        if (conversation == null) {
+            return null;
+        }
+        Conversation ratchetConversation = conversation;
+        if (conversation.getKeyId() != Ratchet.getKeyId(cipherMessage)) {
+            ratchetConversation = myConversations.getPrevious(conversation);
+        }
+        try {
+            return new DecipheredMessage(conversation, myRatchets.decipher(ratchetConversation, cipherMessage), ratchetConversation != conversation);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null; //Not authentic, already deciphered or not a ratchet message
+        }
+    }
+
+    /**
+     * Decipher a prekey message with my prekeys, then add and save its conversation
+     * <pre>The header is only a hint like {@link KeyId}, null lets the message be tried as untagged.
+     * A message of the last-resort prekey received again does not add its conversation twice</pre>
+     *
+     * @param cipherMessage Prekey message
+     * @return Return the new conversation and the first message, null if the prekey is unknown or used, the sender unknown or the message not authentic
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private DecipheredMessage decipherPrekey(byte[] cipherMessage) throws IOException, GeneralSecurityException {
+        DecipheredMessage decipheredMessage;
+        try {
+            decipheredMessage = myPrekeys.decipher(myDirectory, getMyPublicKey(), cipherMessage);
+        } catch (GeneralSecurityException | NoSuchElementException | IllegalArgumentException e) {
+            return null; //Unknown or used prekey, unknown sender, not authentic or not a prekey message
+        }
+        Conversation known = myConversations.getConversationByKeyId(decipheredMessage.getConversation().getKeyId());
+        if (known != null) {
+            return new DecipheredMessage(known, decipheredMessage.getMessage());
+        }
+        addAConversation(decipheredMessage.getConversation());
+        save();
+        return decipheredMessage;
+    }
+
     /**
      * Add a new conversation to the list of conversations
      *
@@ -195,6 +486,47 @@ public class MyState {
         myConversations.addConversation(conversation);
     }
 
+    /**
+     * Forget the previous secret of a conversation and its ratchet once the other person used the new secret
+     *
+     * @param conversation Conversation of a message deciphered with its current secret
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private void confirmResumption(Conversation conversation) throws IOException, GeneralSecurityException {
+        Conversation previous = myConversations.confirmResumption(conversation);
+        if (previous != null) {
+            myRatchets.deleteRatchet(previous);
+        }
+    }
+
+    /**
+     * Start the resumption of a conversation with the Public Key of the other person in MyDirectory
+     *
+     * @param conversation Conversation to re-key
+     * @return Return my Resumption, whose message is sent to the other person
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public Resumption startResumption(Conversation conversation) throws GeneralSecurityException {
+        return new Resumption(conversation, getMyPublicKey(), myDirectory.getPublicKey(conversation.getName()));
+    }
+
+    /**
+     * Re-key a conversation with the resumption message of the other person
+     *
+     * @param resumption   My resumption of the conversation
+     * @param otherMessage Resumption message of the other person
+     * @return Return the re-keyed conversation
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the message is not from the other person of the conversation
+     */
+    public Conversation resumeConversation(Resumption resumption, byte[] otherMessage) throws IOException, GeneralSecurityException {
+        Conversation conversation = resumption.handle(otherMessage);
+        myConversations.replaceConversation(resumption.getConversation(), conversation);
+        myIvCounters.deleteCounter(resumption.getConversation());
+        return conversation;
+    }
+
     /**
      * Replace MyKeyPair by a new one and save the new one. Alias by default: fr.upec.e2ee.keypair
      *
@@ -1,12 +1,11 @@
 package fr.upec.e2ee.protocol;
 
-import fr.upec.e2ee.Tools;
-
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.ShortBufferException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
+import java.security.InvalidKeyException;
+import java.security.spec.AlgorithmParameterSpec;
 
 /**
  * Cipher and Decipher text
@@ -20,6 +19,80 @@ public class Cipher {
      * Galois Counter Mode Tag
      */
     public static final int GCM_TAG_LENGTH = 16;
+    /**
+     * Transformation used for AES-GCM
+     */
+    public static final String TRANSFORMATION = "AES_256/GCM/NoPadding";
+    /**
+     * One engine per suite per thread, resolved once from the provider
+     */
+    private static final ThreadLocal<javax.crypto.Cipher[]> ENGINES = ThreadLocal.withInitial(() -> new javax.crypto.Cipher[CipherSuite.values().length]);
+
+    /**
+     * Get the AES-GCM engine of the current thread
+     *
+     * @return Return the engine of the current thread
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static javax.crypto.Cipher getEngine() throws GeneralSecurityException {
+        return getEngine(CipherSuite.AES_256_GCM);
+    }
+
+    /**
+     * Get the engine of the current thread for a suite
+     * <pre>The provider lookup is done only on the first call of each thread</pre>
+     *
+     * @param cipherSuite CipherSuite
+     * @return Return the engine of the current thread
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static javax.crypto.Cipher getEngine(CipherSuite cipherSuite) throws GeneralSecurityException {
+        javax.crypto.Cipher[] engines = ENGINES.get();
+        javax.crypto.Cipher engine = engines[cipherSuite.ordinal()];
+        if (engine == null) {
+            engine = cipherSuite.newEngine();
+            engines[cipherSuite.ordinal()] = engine;
+        }
+        return engine;
+    }
+
+    /**
+     * Get the engine of the current thread for a suite, initialized
+     * <pre>Some providers refuse to initialize a ChaCha20 engine twice in a row with the same key and nonce
+     * (e.g. deciphering the input just ciphered), the engine is then replaced by a fresh one for deciphering only,
+     * so the guard of the provider against a nonce reused for ciphering is kept</pre>
+     *
+     * @param cipherSuite   CipherSuite
+     * @param opmode        ENCRYPT_MODE or DECRYPT_MODE
+     * @param secretKey     Symmetric Key
+     * @param parameterSpec Parameters of the suite
+     * @return Return the initialized engine of the current thread
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private static javax.crypto.Cipher initEngine(CipherSuite cipherSuite, int opmode, SecretKey secretKey, AlgorithmParameterSpec parameterSpec) throws GeneralSecurityException {
+        javax.crypto.Cipher engine = getEngine(cipherSuite);
+        try {
+            engine.init(opmode, secretKey, parameterSpec);
+        } catch (InvalidKeyException e) {
+            if (cipherSuite == CipherSuite.AES_256_GCM || opmode != javax.crypto.Cipher.DECRYPT_MODE) {
+                throw e;
+            }
+            engine = cipherSuite.newEngine();
+            engine.init(opmode, secretKey, parameterSpec);
+            ENGINES.get()[cipherSuite.ordinal()] = engine;
+        }
+        return engine;
+    }
+
+    /**
+     * Generate a random IV
+     *
+     * @return Return a random IV
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static byte[] generateIv() throws GeneralSecurityException {
+        return RandomService.nextIv();
+    }
 
     /**
      * Cipher an input
@@ -30,16 +103,39 @@ public class Cipher {
      * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
      */
     public static byte[] cipher(SecretKey secretKey, byte[] input) throws GeneralSecurityException {
-        // Get Cipher Instance
-        javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance("AES_256/GCM/NoPadding");
+        return cipher(CipherSuite.AES_256_GCM, secretKey, generateIv(), input);
+    }
 
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom random = Tools.generateSecureRandom();
-        random.nextBytes(iv);
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
+    /**
+     * Cipher an input with a given IV
+     * <pre>The IV MUST never be used twice with the same key</pre>
+     *
+     * @param secretKey Symmetric Key
+     * @param iv        IV of GCM_IV_LENGTH bytes
+     * @param input     Text in Bytes
+     * @return Return a ciphered input in Bytes
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] cipher(SecretKey secretKey, byte[] iv, byte[] input) throws GeneralSecurityException {
+        return cipher(CipherSuite.AES_256_GCM, secretKey, iv, input);
+    }
 
-        // Initialize Cipher for ENCRYPT_MODE
-        cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
+    /**
+     * Cipher an input with a suite and a given IV
+     * <pre>The IV MUST never be used twice with the same key</pre>
+     *
+     * @param cipherSuite CipherSuite
+     * @param secretKey   Symmetric Key
+     * @param iv          IV of GCM_IV_LENGTH bytes
+     * @param input       Text in Bytes
+     * @return Return a ciphered input in Bytes
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] cipher(CipherSuite cipherSuite, SecretKey secretKey, byte[] iv, byte[] input) throws GeneralSecurityException {
+        AlgorithmParameterSpec parameterSpec = cipherSuite.getParameterSpec(iv, 0);
+
+        // Get Cipher Instance initialized for ENCRYPT_MODE
+        javax.crypto.Cipher cipher = initEngine(cipherSuite, javax.crypto.Cipher.ENCRYPT_MODE, secretKey, parameterSpec);
 
         byte[] cipherText = cipher.doFinal(input);
 
@@ -58,15 +154,148 @@ public class Cipher {
      * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
      */
     public static byte[] decipher(SecretKey secretKey, byte[] cipherMessage) throws GeneralSecurityException {
-        // Get Cipher Instance
-        javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance("AES_256/GCM/NoPadding");
+        return decipher(CipherSuite.AES_256_GCM, secretKey, cipherMessage);
+    }
 
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, cipherMessage, 0, GCM_IV_LENGTH);
+    /**
+     * Decipher a ciphered input with a suite
+     *
+     * @param cipherSuite   CipherSuite
+     * @param secretKey     Symmetric Key
+     * @param cipherMessage Ciphered input in Bytes
+     * @return Return an input in Bytes
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] decipher(CipherSuite cipherSuite, SecretKey secretKey, byte[] cipherMessage) throws GeneralSecurityException {
+        AlgorithmParameterSpec parameterSpec = cipherSuite.getParameterSpec(cipherMessage, 0);
 
-        // Initialize Cipher for DECRYPT_MODE
-        cipher.init(javax.crypto.Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
+        // Get Cipher Instance initialized for DECRYPT_MODE
+        javax.crypto.Cipher cipher = initEngine(cipherSuite, javax.crypto.Cipher.DECRYPT_MODE, secretKey, parameterSpec);
 
         // Perform Decryption and Return
         return cipher.doFinal(cipherMessage, GCM_IV_LENGTH, cipherMessage.length - GCM_IV_LENGTH);
     }
+
+    /**
+     * Get the exact size of a ciphered input
+     *
+     * @param inputLength Length of the input
+     * @return Return the size of the ciphered input
+     */
+    public static int getCipherOutputSize(int inputLength) {
+        return GCM_IV_LENGTH + inputLength + GCM_TAG_LENGTH;
+    }
+
+    /**
+     * Get the exact size of a deciphered input
+     *
+     * @param cipherMessageLength Length of the ciphered input
+     * @return Return the size of the deciphered input
+     */
+    public static int getDecipherOutputSize(int cipherMessageLength) {
+        if (cipherMessageLength < GCM_IV_LENGTH + GCM_TAG_LENGTH) {
+            throw new IllegalArgumentException("Ciphered input too short");
+        }
+        return cipherMessageLength - GCM_IV_LENGTH - GCM_TAG_LENGTH;
+    }
+
+    /**
+     * Cipher an input into a buffer supplied by the caller
+     * <pre>IV and ciphertext are written directly in the output, from its position.
+     * Works with heap and direct buffers. The output must have
+     * {@link #getCipherOutputSize(int)} bytes remaining</pre>
+     *
+     * @param secretKey Symmetric Key
+     * @param input     Text, from its position to its limit
+     * @param output    Output, IV then ciphered text
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static int cipher(SecretKey secretKey, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        return cipher(CipherSuite.AES_256_GCM, secretKey, generateIv(), input, output);
+    }
+
+    /**
+     * Cipher an input into a buffer supplied by the caller with a given IV
+     * <pre>The IV MUST never be used twice with the same key</pre>
+     *
+     * @param secretKey Symmetric Key
+     * @param iv        IV of GCM_IV_LENGTH bytes
+     * @param input     Text, from its position to its limit
+     * @param output    Output, IV then ciphered text
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static int cipher(SecretKey secretKey, byte[] iv, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        return cipher(CipherSuite.AES_256_GCM, secretKey, iv, input, output);
+    }
+
+    /**
+     * Cipher an input into a buffer supplied by the caller with a suite and a given IV
+     * <pre>The IV MUST never be used twice with the same key</pre>
+     *
+     * @param cipherSuite CipherSuite
+     * @param secretKey   Symmetric Key
+     * @param iv          IV of GCM_IV_LENGTH bytes
+     * @param input       Text, from its position to its limit
+     * @param output      Output, IV then ciphered text
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static int cipher(CipherSuite cipherSuite, SecretKey secretKey, byte[] iv, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        int outputSize = getCipherOutputSize(input.remaining());
+        if (output.remaining() < outputSize) {
+            throw new ShortBufferException("Need " + outputSize + " bytes in the output");
+        }
+
+        javax.crypto.Cipher cipher = initEngine(cipherSuite, javax.crypto.Cipher.ENCRYPT_MODE, secretKey, cipherSuite.getParameterSpec(iv, 0));
+
+        output.put(iv);
+        return GCM_IV_LENGTH + cipher.doFinal(input, output);
+    }
+
+    /**
+     * Decipher a ciphered input into a buffer supplied by the caller
+     * <pre>Works with heap and direct buffers. The output must have
+     * {@link #getDecipherOutputSize(int)} bytes remaining</pre>
+     *
+     * @param secretKey     Symmetric Key
+     * @param cipherMessage Ciphered input, from its position to its limit
+     * @param output        Output
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static int decipher(SecretKey secretKey, ByteBuffer cipherMessage, ByteBuffer output) throws GeneralSecurityException {
+        return decipher(CipherSuite.AES_256_GCM, secretKey, cipherMessage, output);
+    }
+
+    /**
+     * Decipher a ciphered input into a buffer supplied by the caller with a suite
+     *
+     * @param cipherSuite   CipherSuite
+     * @param secretKey     Symmetric Key
+     * @param cipherMessage Ciphered input, from its position to its limit
+     * @param output        Output
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static int decipher(CipherSuite cipherSuite, SecretKey secretKey, ByteBuffer cipherMessage, ByteBuffer output) throws GeneralSecurityException {
+        int outputSize = getDecipherOutputSize(cipherMessage.remaining());
+        if (output.remaining() < outputSize) {
+            throw new ShortBufferException("Need " + outputSize + " bytes in the output");
+        }
+
+        AlgorithmParameterSpec parameterSpec;
+        if (cipherMessage.hasArray()) {
+            parameterSpec = cipherSuite.getParameterSpec(cipherMessage.array(), cipherMessage.arrayOffset() + cipherMessage.position());
+            cipherMessage.position(cipherMessage.position() + GCM_IV_LENGTH);
+        } else {
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            cipherMessage.get(iv);
+            parameterSpec = cipherSuite.getParameterSpec(iv, 0);
+        }
+        javax.crypto.Cipher cipher = initEngine(cipherSuite, javax.crypto.Cipher.DECRYPT_MODE, secretKey, parameterSpec);
+
+        return cipher.doFinal(cipherMessage, output);
+    }
 }
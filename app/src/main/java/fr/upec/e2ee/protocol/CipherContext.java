@@ -0,0 +1,167 @@
+package fr.upec.e2ee.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+import fr.upec.e2ee.mystate.MyIvCounters;
+
+/**
+ * Cipher and Decipher bound to the key of one Conversation
+ * <pre>The SecretKey is built once per context
+ * and the engine is reused per thread, so repeated calls skip the provider lookup
+ * and the key setup. Same format as {@link Cipher}
+ * With MyIvCounters, the IVs come from the counter of the conversation instead of {@link RandomService}
+ * Messages tagged with the key identifier of the context are accepted by decipher</pre>
+ */
+public class CipherContext {
+    private final CipherSuite cipherSuite;
+    private final SecretKey secretKey;
+    private final long keyId;
+    private final Conversation conversation;
+    private final MyIvCounters myIvCounters;
+
+    /**
+     * Constructor of CipherContext
+     *
+     * @param conversation Conversation holding the SecretKey
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public CipherContext(Conversation conversation) throws GeneralSecurityException {
+        this(conversation, null);
+    }
+
+    /**
+     * Constructor of CipherContext with counter-based IVs
+     *
+     * @param conversation Conversation holding the SecretKey
+     * @param myIvCounters MyIvCounters giving the IVs, null for random IVs
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public CipherContext(Conversation conversation, MyIvCounters myIvCounters) throws GeneralSecurityException {
+        this.cipherSuite = conversation.getCipherSuite();
+        this.secretKey = cipherSuite.toSecretKey(conversation.getSecretKey());
+        this.keyId = conversation.getKeyId();
+        this.conversation = conversation;
+        this.myIvCounters = myIvCounters;
+    }
+
+    /**
+     * Constructor of CipherContext using AES-256-GCM
+     *
+     * @param secretKey SecretKey in byte[]
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public CipherContext(byte[] secretKey) throws GeneralSecurityException {
+        this(new Conversation(null, 0, secretKey), null);
+    }
+
+    /**
+     * Get the next IV
+     *
+     * @return Return an IV
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private byte[] nextIv() throws GeneralSecurityException {
+        if (myIvCounters != null) {
+            try {
+                return myIvCounters.nextIv(conversation);
+            } catch (IOException e) {
+                throw new GeneralSecurityException("Could not reserve IVs", e);
+            }
+        }
+        return RandomService.nextIv();
+    }
+
+    /**
+     * Cipher an input
+     *
+     * @param input Text in Bytes
+     * @return Return a ciphered input in Bytes
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public byte[] cipher(byte[] input) throws GeneralSecurityException {
+        return Cipher.cipher(cipherSuite, secretKey, nextIv(), input);
+    }
+
+    /**
+     * Cipher an input and tag it with the key identifier
+     *
+     * @param input Text in Bytes
+     * @return Return a tagged ciphered input in Bytes
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     * @see KeyId
+     */
+    public byte[] cipherWithKeyId(byte[] input) throws GeneralSecurityException {
+        return KeyId.tag(keyId, cipher(input));
+    }
+
+    /**
+     * Decipher a ciphered input, tagged or not
+     *
+     * @param cipherMessage Ciphered input in Bytes
+     * @return Return an input in Bytes
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public byte[] decipher(byte[] cipherMessage) throws GeneralSecurityException {
+        if (KeyId.isTagged(cipherMessage) && KeyId.getKeyId(cipherMessage) == keyId) {
+            return Cipher.decipher(cipherSuite, secretKey, KeyId.untag(cipherMessage));
+        }
+        return Cipher.decipher(cipherSuite, secretKey, cipherMessage);
+    }
+
+    /**
+     * Cipher an input into a buffer supplied by the caller
+     *
+     * @param input  Text, from its position to its limit
+     * @param output Output, IV then ciphered text
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     * @see Cipher#cipher(SecretKey, ByteBuffer, ByteBuffer)
+     */
+    public int cipher(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        return Cipher.cipher(cipherSuite, secretKey, nextIv(), input, output);
+    }
+
+    /**
+     * Decipher a ciphered input into a buffer supplied by the caller
+     *
+     * @param cipherMessage Ciphered input, from its position to its limit
+     * @param output        Output
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     * @see Cipher#decipher(SecretKey, ByteBuffer, ByteBuffer)
+     */
+    public int decipher(ByteBuffer cipherMessage, ByteBuffer output) throws GeneralSecurityException {
+        return Cipher.decipher(cipherSuite, secretKey, cipherMessage, output);
+    }
+
+    /**
+     * Get the CipherSuite of the context
+     *
+     * @return Return the CipherSuite
+     */
+    public CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * Get the key identifier of the context
+     *
+     * @return Return the key identifier
+     */
+    public long getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * Get the SecretKey of the context
+     *
+     * @return Return the SecretKey
+     */
+    SecretKey getSecretKey() {
+        return secretKey;
+    }
+}
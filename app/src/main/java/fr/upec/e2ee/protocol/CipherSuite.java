@@ -0,0 +1,229 @@
+package fr.upec.e2ee.protocol;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Symmetric cipher suites of a Conversation
+ * <pre>Every suite uses a 32 bytes key, a 12 bytes IV and a 16 bytes tag,
+ * so the ciphered format (IV + ciphertext + tag) is the same for all suites</pre>
+ */
+public enum CipherSuite {
+    /**
+     * AES-256-GCM, default suite
+     */
+    AES_256_GCM((byte) 0, "AES", Cipher.TRANSFORMATION),
+    /**
+     * ChaCha20-Poly1305, faster on devices without AES instructions
+     */
+    CHACHA20_POLY1305((byte) 1, "ChaCha20", "ChaCha20/Poly1305/NoPadding", "ChaCha20-Poly1305");
+
+    private static volatile CipherSuite preferred = AES_256_GCM;
+    private final byte id;
+    private final String keyAlgorithm;
+    private final String[] transformations;
+    private volatile String transformation;
+    private volatile Boolean supported;
+
+    CipherSuite(byte id, String keyAlgorithm, String... transformations) {
+        this.id = id;
+        this.keyAlgorithm = keyAlgorithm;
+        this.transformations = transformations;
+    }
+
+    /**
+     * Get a CipherSuite from its identifier
+     *
+     * @param id Identifier
+     * @return Return the CipherSuite
+     */
+    public static CipherSuite fromId(byte id) {
+        for (CipherSuite cipherSuite : values()) {
+            if (cipherSuite.id == id) {
+                return cipherSuite;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cipher suite " + id);
+    }
+
+    /**
+     * Get the suites supported by this device as a mask
+     *
+     * @return Return a mask where the bit i is set if the suite of identifier i is supported
+     */
+    public static byte getSupportedMask() {
+        byte mask = 0;
+        for (CipherSuite cipherSuite : values()) {
+            if (cipherSuite.isSupported()) {
+                mask |= 1 << cipherSuite.id;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Get the preferred suite of this device
+     *
+     * @return Return the preferred CipherSuite
+     */
+    public static CipherSuite getPreferred() {
+        return preferred;
+    }
+
+    /**
+     * Set the preferred suite of this device
+     *
+     * @param cipherSuite Preferred CipherSuite
+     */
+    public static void setPreferred(CipherSuite cipherSuite) {
+        if (!cipherSuite.isSupported()) {
+            throw new IllegalArgumentException("Unsupported cipher suite " + cipherSuite);
+        }
+        preferred = cipherSuite;
+    }
+
+    /**
+     * Choose the suite of a conversation from what both persons advertised
+     * <pre>ChaCha20-Poly1305 is chosen if both support it and at least one prefers it
+     * (it stays fast everywhere while AES without AES instructions is slow), else AES-256-GCM.
+     * The result does not depend on who computes it</pre>
+     *
+     * @param myMask         Mask advertised in my Message1
+     * @param myPreferred    Preferred suite advertised in my Message1
+     * @param otherMask      Mask advertised in the other Message1
+     * @param otherPreferred Preferred suite advertised in the other Message1
+     * @return Return the CipherSuite of the conversation
+     */
+    public static CipherSuite negotiate(byte myMask, CipherSuite myPreferred, byte otherMask, CipherSuite otherPreferred) {
+        if (CHACHA20_POLY1305.isIn(myMask) && CHACHA20_POLY1305.isIn(otherMask)
+                && (myPreferred == CHACHA20_POLY1305 || otherPreferred == CHACHA20_POLY1305)) {
+            return CHACHA20_POLY1305;
+        }
+        return AES_256_GCM;
+    }
+
+    /**
+     * Run a short micro-benchmark and prefer the fastest supported suite on this device
+     *
+     * @return Return the fastest CipherSuite
+     */
+    public static CipherSuite selectFastest() {
+        byte[] key = new byte[32];
+        byte[] iv = new byte[Cipher.GCM_IV_LENGTH];
+        byte[] input = new byte[16 * 1024];
+        CipherSuite fastest = AES_256_GCM;
+        long fastestTime = Long.MAX_VALUE;
+
+        for (CipherSuite cipherSuite : values()) {
+            if (!cipherSuite.isSupported()) {
+                continue;
+            }
+            try {
+                SecretKey secretKey = cipherSuite.toSecretKey(key);
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < 32; i++) {
+                    iv[0] = (byte) i; //Never the same IV twice with the same key
+                    long start = System.nanoTime();
+                    Cipher.cipher(cipherSuite, secretKey, iv, input);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                if (best < fastestTime) {
+                    fastestTime = best;
+                    fastest = cipherSuite;
+                }
+            } catch (GeneralSecurityException ignored) {
+            }
+        }
+
+        preferred = fastest;
+        return fastest;
+    }
+
+    /**
+     * Get the identifier of the suite
+     *
+     * @return Return the identifier
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Check if the suite is in a mask
+     *
+     * @param mask Mask of suites
+     * @return Return a boolean if the suite is in the mask
+     */
+    public boolean isIn(byte mask) {
+        return (mask & (1 << id)) != 0;
+    }
+
+    /**
+     * Check if this device supports the suite
+     *
+     * @return Return a boolean if the suite is supported
+     */
+    public boolean isSupported() {
+        if (supported == null) {
+            try {
+                newEngine();
+                supported = true;
+            } catch (GeneralSecurityException e) {
+                supported = false;
+            }
+        }
+        return supported;
+    }
+
+    /**
+     * Create a new engine for the suite
+     *
+     * @return Return a new engine
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the suite is not supported
+     */
+    javax.crypto.Cipher newEngine() throws GeneralSecurityException {
+        if (transformation != null) {
+            return javax.crypto.Cipher.getInstance(transformation);
+        }
+        GeneralSecurityException exception = null;
+        for (String name : transformations) {
+            try {
+                javax.crypto.Cipher engine = javax.crypto.Cipher.getInstance(name);
+                transformation = name;
+                return engine;
+            } catch (GeneralSecurityException e) {
+                exception = e;
+            }
+        }
+        throw exception;
+    }
+
+    /**
+     * Decode Bytes to a SecretKey of the suite
+     *
+     * @param secretKeyBytes SecretKey in byte[]
+     * @return Return a SecretKey
+     */
+    public SecretKey toSecretKey(byte[] secretKeyBytes) {
+        return new SecretKeySpec(secretKeyBytes, keyAlgorithm);
+    }
+
+    /**
+     * Build the parameters of the suite from an IV
+     *
+     * @param iv     Buffer containing the IV
+     * @param offset Offset of the IV in the buffer
+     * @return Return the parameters
+     */
+    AlgorithmParameterSpec getParameterSpec(byte[] iv, int offset) {
+        if (this == AES_256_GCM) {
+            return new GCMParameterSpec(Cipher.GCM_TAG_LENGTH * 8, iv, offset, Cipher.GCM_IV_LENGTH);
+        }
+        return new IvParameterSpec(iv, offset, Cipher.GCM_IV_LENGTH);
+    }
+}
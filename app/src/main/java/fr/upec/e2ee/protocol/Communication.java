@@ -7,6 +7,7 @@ import static fr.upec.e2ee.Tools.toLong;
 import static fr.upec.e2ee.Tools.toPublicKey;
 import static fr.upec.e2ee.Tools.toSecretKey;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -30,8 +31,35 @@ public class Communication {
         return toBase64(message1.toBytes());
     }
 
+    /**
+     * Create Message1 signed by my Private Key, see {@link SignedMessage1}
+     *
+     * @param message1     Message1 object
+     * @param myPrivateKey Your Private Key
+     * @param myPublicKey  Your Public Key
+     * @return Return the signed Message1 as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static String createMessage1(Message1 message1, PrivateKey myPrivateKey, PublicKey myPublicKey) throws GeneralSecurityException {
+        return toBase64(SignedMessage1.sign(message1, myPrivateKey, myPublicKey));
+    }
+
+    /**
+     * Create Message1 signed by my SigningSubkey, see {@link SignedMessage1}
+     *
+     * @param message1        Message1 object
+     * @param mySigningSubkey Your SigningSubkey
+     * @param myPublicKey     Your Public Key
+     * @return Return the signed Message1 as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static String createMessage1(Message1 message1, SigningSubkey mySigningSubkey, PublicKey myPublicKey) throws GeneralSecurityException {
+        return toBase64(SignedMessage1.sign(message1, mySigningSubkey, myPublicKey));
+    }
+
     /**
      * Handle the message 1 received from other
+     * <pre>The signature of a signed Message1 is not verified, Message2 authenticates the other person</pre>
      *
      * @param myMessage1    My Message1
      * @param otherMessage1 Message 1 received from other
@@ -40,14 +68,88 @@ public class Communication {
      */
     public static SecretBuild handleMessage1(Message1 myMessage1, String otherMessage1) throws GeneralSecurityException {
         byte[] otherMessage1Bytes = toBytes(otherMessage1);
+        if (SignedMessage1.isSigned(otherMessage1Bytes)) {
+            otherMessage1Bytes = SignedMessage1.getMessage1(otherMessage1Bytes);
+        }
+
+        return buildSecret(myMessage1, otherMessage1Bytes);
+    }
+
+    /**
+     * Handle the signed message 1 received from other and create the conversation, without Message2
+     * <pre>The secret is bound to both identities, see {@link SignedMessage1}</pre>
+     *
+     * @param myDirectory   My Directory
+     * @param myMessage1    My Message1, sent signed
+     * @param myPublicKey   My Public Key, which signed my Message1
+     * @param otherMessage1 Signed Message 1 received from other
+     * @return Return the conversation with the signer of the Message1
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the signature is invalid
+     */
+    public static Conversation handleMessage1(MyDirectory myDirectory, Message1 myMessage1, PublicKey myPublicKey, String otherMessage1) throws GeneralSecurityException {
+        byte[] otherMessage1Bytes = toBytes(otherMessage1);
+        if (!SignedMessage1.isSigned(otherMessage1Bytes)) {
+            throw new IllegalArgumentException("Message1 not signed");
+        }
+        long otherTimestamp = toLong(otherMessage1Bytes, 0, 8);
+        if (Math.abs(Tools.getCurrentTime() - otherTimestamp) > SignedMessage1.MAX_AGE) {
+            throw new IllegalArgumentException("Message1 too old");
+        }
 
-        if (otherMessage1Bytes.length != 192) {
+        String otherPersonName = SignedMessage1.getSigner(myDirectory, otherMessage1Bytes);
+        SecretBuild mySecretBuild = buildSecret(myMessage1, SignedMessage1.getMessage1(otherMessage1Bytes));
+        byte[] secretKey = SignedMessage1.bind(mySecretBuild.getSymKey(), myPublicKey, myDirectory.getPublicKey(otherPersonName));
+
+        return new Conversation(otherPersonName, mySecretBuild.getMyDate(), secretKey, mySecretBuild.getCipherSuite());
+    }
+
+    /**
+     * Agree on the suites and the secret from my Message1 and the Message1 of the other
+     *
+     * @param myMessage1         My Message1
+     * @param otherMessage1Bytes Message 1 received from other, without signature
+     * @return Return a SecretBuild
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private static SecretBuild buildSecret(Message1 myMessage1, byte[] otherMessage1Bytes) throws GeneralSecurityException {
+        if (otherMessage1Bytes.length != Message1.SIZE && otherMessage1Bytes.length != Message1.EXTENDED_SIZE
+                && otherMessage1Bytes.length != Message1.CURVE25519_SIZE) {
             throw new IllegalArgumentException(E2EE.getContext().getResources().getText(R.string.err_ex_size).toString());
         }
 
         long otherTimestamp = toLong(otherMessage1Bytes, 0, 8);
         byte[] otherNonce = copyOfRange(otherMessage1Bytes, 8, 72);
-        byte[] otherPubKeyByte = copyOfRange(otherMessage1Bytes, 72, 192);
+        boolean otherCurve25519 = otherMessage1Bytes.length == Message1.CURVE25519_SIZE;
+        byte[] otherPubKeyByte = otherCurve25519 ? null : copyOfRange(otherMessage1Bytes, 72, 192);
+
+        //Previous versions only know AES-256-GCM
+        byte otherCipherSuiteMask = (byte) (1 << CipherSuite.AES_256_GCM.getId());
+        CipherSuite otherPreferredCipherSuite = CipherSuite.AES_256_GCM;
+        byte otherKeySuiteMask = (byte) (1 << KeySuite.SECP384R1_P256.getId());
+        byte[] otherAgreementKey = null;
+        if (otherMessage1Bytes.length > Message1.SIZE || otherCurve25519) {
+            int offset = otherCurve25519 ? 72 : 192; //After the X25519 Public Key or the secp384r1 Public Key
+            byte expectedVersion = otherCurve25519 ? Message1.VERSION_CURVE25519 : Message1.VERSION;
+            if (otherMessage1Bytes[offset] != expectedVersion) {
+                throw new IllegalArgumentException(E2EE.getContext().getResources().getText(R.string.err_ex_size).toString());
+            }
+            otherCipherSuiteMask = otherMessage1Bytes[offset + 1];
+            try {
+                otherPreferredCipherSuite = CipherSuite.fromId(otherMessage1Bytes[offset + 2]);
+            } catch (IllegalArgumentException e) {
+                otherPreferredCipherSuite = CipherSuite.AES_256_GCM; //Unknown suite from a newer version
+            }
+        }
+        if (otherCurve25519) {
+            otherKeySuiteMask = otherMessage1Bytes[75];
+            otherAgreementKey = copyOfRange(otherMessage1Bytes, 76, Message1.CURVE25519_SIZE);
+        }
+        CipherSuite cipherSuite = CipherSuite.negotiate(myMessage1.getCipherSuiteMask(), myMessage1.getPreferredCipherSuite(),
+                otherCipherSuiteMask, otherPreferredCipherSuite);
+        KeySuite keySuite = KeySuite.negotiate(myMessage1.getKeySuiteMask(), otherKeySuiteMask);
+        if (keySuite == KeySuite.SECP384R1_P256 && (myMessage1.getPrivateKey() == null || otherPubKeyByte == null)) {
+            throw new IllegalArgumentException("A Curve25519 Message1 needs a Curve25519 Message1");
+        }
 
         byte[] xor = new byte[64];
         byte[] myDigestNonce = Tools.digest(myMessage1.getNonce());
@@ -56,16 +158,26 @@ public class Communication {
             xor[i] = (byte) (myDigestNonce[i] ^ otherDigestNonce[i]);
         }
 
-        PublicKey otherPubKey = toPublicKey(otherPubKeyByte);
-        byte[] symKey = KeyExchange.createSharedKey(myMessage1.getPrivateKey(), otherPubKey, xor, "brenski").getEncoded();
+        byte[] symKey;
+        if (keySuite == KeySuite.CURVE25519) {
+            PublicKey otherAgreementPubKey = KeySuite.CURVE25519.toAgreementPublicKey(otherAgreementKey);
+            symKey = KeyExchange.createSharedKey(myMessage1.getAgreementPrivateKey(), otherAgreementPubKey, xor, "brenski").getEncoded();
+        } else {
+            PublicKey otherPubKey = toPublicKey(otherPubKeyByte);
+            symKey = KeyExchange.createSharedKey(myMessage1.getPrivateKey(), otherPubKey, xor, "brenski").getEncoded();
+        }
 
         return new SecretBuild(myMessage1.getTimestamp(),
                 otherTimestamp,
                 myMessage1.getNonce(),
                 otherNonce,
-                myMessage1.getPublicKey().getEncoded(),
+                myMessage1.getPublicKey() == null ? null : myMessage1.getPublicKey().getEncoded(),
                 otherPubKeyByte,
-                symKey);
+                symKey,
+                cipherSuite,
+                keySuite,
+                myMessage1.getAgreementPublicKey(),
+                otherAgreementKey);
     }
 
     /**
@@ -77,9 +189,58 @@ public class Communication {
      * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
      */
     public static String createMessage2(PrivateKey myPrivateKey, SecretBuild mySecretBuild) throws GeneralSecurityException {
+        return createMessage2(myPrivateKey, null, mySecretBuild);
+    }
+
+    /**
+     * Create message 2 by signing then ciphering, with the fingerprint of my Public Key after the signature
+     * <pre>The fingerprint lets the other person verify only my key instead of the whole directory,
+     * it is ciphered with the signature so it is not seen by an eavesdropper</pre>
+     *
+     * @param myPrivateKey  Your Private Key
+     * @param myPublicKey   Your Public Key, null to not add the fingerprint
+     * @param mySecretBuild Your SecretBuild
+     * @return Return the signed and ciphered message 2 as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static String createMessage2(PrivateKey myPrivateKey, PublicKey myPublicKey, SecretBuild mySecretBuild) throws GeneralSecurityException {
         byte[] message2Base64 = mySecretBuild.toBytesWithoutSymKey();
 
-        byte[] signedMessage = Sign.sign(myPrivateKey, message2Base64);
+        return cipherMessage2(Sign.sign(myPrivateKey, message2Base64), myPublicKey, mySecretBuild);
+    }
+
+    /**
+     * Create message 2 by signing with my subkey then ciphering, with the fingerprint of my Public Key after the signature
+     * <pre>The identity key is not used, the certificate of the subkey comes with the signature</pre>
+     *
+     * @param mySigningSubkey Your SigningSubkey
+     * @param myPublicKey     Your Public Key, null to not add the fingerprint
+     * @param mySecretBuild   Your SecretBuild
+     * @return Return the signed and ciphered message 2 as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static String createMessage2(SigningSubkey mySigningSubkey, PublicKey myPublicKey, SecretBuild mySecretBuild) throws GeneralSecurityException {
+        byte[] message2Base64 = mySecretBuild.toBytesWithoutSymKey();
+
+        return cipherMessage2(mySigningSubkey.sign(message2Base64), myPublicKey, mySecretBuild);
+    }
+
+    /**
+     * Add the fingerprint of my Public Key to the signature of message 2 then cipher it
+     *
+     * @param signedMessage Signature of message 2
+     * @param myPublicKey   Your Public Key, null to not add the fingerprint
+     * @param mySecretBuild Your SecretBuild
+     * @return Return the ciphered message 2 as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private static String cipherMessage2(byte[] signedMessage, PublicKey myPublicKey, SecretBuild mySecretBuild) throws GeneralSecurityException {
+        if (myPublicKey != null) {
+            signedMessage = ByteBuffer.allocate(signedMessage.length + MyDirectory.HINT_LENGTH)
+                    .put(signedMessage)
+                    .putLong(MyDirectory.getFingerprint(myPublicKey.getEncoded()))
+                    .array();
+        }
         byte[] cipheredSignedMessage = Cipher.cipher(toSecretKey(mySecretBuild.getSymKey()), signedMessage);
 
         return toBase64(cipheredSignedMessage);
@@ -101,8 +262,10 @@ public class Communication {
         byte[] cipheredSignedOtherMessage2 = toBytes(otherMessage2);
         byte[] signedMessage = Cipher.decipher(toSecretKey(mySecretBuild.getSymKey()), cipheredSignedOtherMessage2);
 
-        String otherPersonName = myDirectory.getSigner(signedMessage, expectedMessage2); //null == invalid
+        String otherPersonName = SigningSubkey.isDelegated(signedMessage)
+                ? SigningSubkey.getSigner(myDirectory, signedMessage, expectedMessage2)
+                : myDirectory.getSigner(signedMessage, expectedMessage2);
 
-        return new Conversation(otherPersonName, mySecretBuild.getMyDate(), mySecretBuild.getSymKey());
+        return new Conversation(otherPersonName, mySecretBuild.getMyDate(), mySecretBuild.getSymKey(), mySecretBuild.getCipherSuite());
     }
 }
@@ -0,0 +1,145 @@
+package fr.upec.e2ee.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compress a message before ciphering it
+ * <pre>The header byte is the first byte of the plaintext, so it is ciphered and authenticated with the message
+ * No header = message not compressed (short message, or compression does not help), same as the previous versions
+ * 0xF9 = raw Deflate
+ * 0xFA = zlib with a dictionary, the zlib header gives the Adler-32 of the dictionary
+ * 0xF8 to 0xFF never start a UTF-8 text, so a text message is never mistaken for a compressed one</pre>
+ */
+public class Compression {
+    /**
+     * Header of a raw Deflate message
+     */
+    public static final byte DEFLATE = (byte) 0xF9;
+    /**
+     * Header of a zlib message with a dictionary
+     */
+    public static final byte DEFLATE_DICTIONARY = (byte) 0xFA;
+    /**
+     * Messages under this size are not compressed
+     */
+    public static final int THRESHOLD = 32;
+    /**
+     * Messages under this size use the dictionary of the conversation
+     */
+    public static final int DICTIONARY_THRESHOLD = 1024;
+    /**
+     * Maximum size of a decompressed message
+     */
+    public static final int MAX_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Compress a message if it makes it smaller
+     *
+     * @param input      Message
+     * @param dictionary Dictionary of the conversation, null if none
+     * @return Return the message to cipher, with its header if compressed
+     */
+    public static byte[] compress(byte[] input, byte[] dictionary) {
+        if (input.length < THRESHOLD) {
+            return input;
+        }
+
+        boolean useDictionary = dictionary != null && dictionary.length > 0 && input.length < DICTIONARY_THRESHOLD;
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, !useDictionary);
+        try {
+            if (useDictionary) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length);
+            output.write(useDictionary ? DEFLATE_DICTIONARY : DEFLATE);
+            byte[] buffer = new byte[Math.min(input.length, 8192)];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+                if (output.size() >= input.length) {
+                    return input; //Does not compress
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress a deciphered message
+     *
+     * @param input        Deciphered message
+     * @param dictionaries Possible dictionaries of the conversation, the one matching the zlib header is used
+     * @return Return the message
+     * @throws DataFormatException Throws DataFormatException if the message is corrupted or its dictionary is unknown
+     */
+    public static byte[] decompress(byte[] input, List<byte[]> dictionaries) throws DataFormatException {
+        if (!isCompressed(input)) {
+            return input;
+        }
+
+        Inflater inflater = new Inflater(input[0] == DEFLATE);
+        try {
+            inflater.setInput(input, 1, input.length - 1);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(findDictionary(inflater.getAdler(), dictionaries));
+                    } else if (inflater.needsInput()) {
+                        throw new DataFormatException("Truncated message");
+                    }
+                }
+                output.write(buffer, 0, length);
+                if (output.size() > MAX_SIZE) {
+                    throw new DataFormatException("Message too large");
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Check if a deciphered message is compressed
+     *
+     * @param input Deciphered message
+     * @return Return a boolean if the message has a compression header
+     */
+    public static boolean isCompressed(byte[] input) {
+        return input.length > 0 && (input[0] == DEFLATE || input[0] == DEFLATE_DICTIONARY);
+    }
+
+    /**
+     * Find the dictionary used by the sender
+     *
+     * @param adler        Adler-32 from the zlib header
+     * @param dictionaries Possible dictionaries
+     * @return Return the dictionary
+     * @throws DataFormatException Throws DataFormatException if no dictionary matches
+     */
+    private static byte[] findDictionary(int adler, List<byte[]> dictionaries) throws DataFormatException {
+        if (dictionaries != null) {
+            Adler32 checksum = new Adler32();
+            for (byte[] dictionary : dictionaries) {
+                checksum.reset();
+                checksum.update(dictionary);
+                if ((int) checksum.getValue() == adler) {
+                    return dictionary;
+                }
+            }
+        }
+        throw new DataFormatException("Unknown dictionary");
+    }
+}
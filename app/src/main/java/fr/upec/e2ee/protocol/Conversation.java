@@ -1,24 +1,50 @@
 package fr.upec.e2ee.protocol;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import fr.upec.e2ee.Tools;
+
 /**
  * A Conversation
+ * <pre>Everything derived from the secret comes from one HKDF when it is first needed:
+ * keyId (8 bytes) + id (16 bytes) + streamKey (64 bytes) = HKDF(zeros, conversation secret, "conversation")</pre>
  */
 public class Conversation {
+    private static final String INFO = "conversation";
+    private static final byte[] SALT = new byte[Hkdf.HASH_LENGTH];
     private final String name;
     private final long date;
     private final byte[] secretKey;
+    private final CipherSuite cipherSuite;
+    private long keyId;
+    private String id;
+    private byte[] streamKey;
 
     /**
-     * Constructor of Conversation
+     * Constructor of Conversation using AES-256-GCM
      *
      * @param name      Name of the other person
      * @param date      Date of the conversation
      * @param secretKey SecretKey for the conversation
      */
     public Conversation(String name, long date, byte[] secretKey) {
+        this(name, date, secretKey, CipherSuite.AES_256_GCM);
+    }
+
+    /**
+     * Constructor of Conversation
+     *
+     * @param name        Name of the other person
+     * @param date        Date of the conversation
+     * @param secretKey   SecretKey for the conversation
+     * @param cipherSuite CipherSuite negotiated for the conversation
+     */
+    public Conversation(String name, long date, byte[] secretKey, CipherSuite cipherSuite) {
         this.name = name;
         this.date = date;
         this.secretKey = secretKey;
+        this.cipherSuite = cipherSuite;
     }
 
     /**
@@ -47,4 +73,66 @@ public class Conversation {
     public long getDate() {
         return date;
     }
+
+    /**
+     * Get the CipherSuite of the conversation
+     *
+     * @return Return the CipherSuite
+     */
+    public CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * Derive the key identifier, the identifier and the stream key of the conversation once
+     *
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private synchronized void derive() throws GeneralSecurityException {
+        if (streamKey != null) {
+            return;
+        }
+        byte[] keyIdBytes = new byte[8];
+        byte[] idBytes = new byte[16];
+        byte[] streamKeyBytes = new byte[Hkdf.HASH_LENGTH];
+        Hkdf.derive(SALT, secretKey, INFO, keyIdBytes, idBytes, streamKeyBytes);
+        keyId = ByteBuffer.wrap(keyIdBytes).getLong();
+        id = Tools.toBase64(idBytes);
+        streamKey = streamKeyBytes;
+    }
+
+    /**
+     * Get the key identifier of the conversation, put in front of its messages
+     *
+     * @return Return the key identifier
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     * @see KeyId
+     */
+    public long getKeyId() throws GeneralSecurityException {
+        derive();
+        return keyId;
+    }
+
+    /**
+     * Get the identifier of the conversation in the files of MyState, e.g. its IV counter
+     *
+     * @return Return the identifier as Base64
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public String getId() throws GeneralSecurityException {
+        derive();
+        return id;
+    }
+
+    /**
+     * Get the stream key of the conversation, the key of each stream is expanded from it
+     *
+     * @return Return the stream key
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     * @see StreamCipher
+     */
+    public byte[] getStreamKey() throws GeneralSecurityException {
+        derive();
+        return streamKey;
+    }
 }
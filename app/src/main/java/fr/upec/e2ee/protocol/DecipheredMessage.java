@@ -0,0 +1,60 @@
+package fr.upec.e2ee.protocol;
+
+/**
+ * A deciphered message and its Conversation
+ */
+public class DecipheredMessage {
+    private final Conversation conversation;
+    private final byte[] message;
+    private final boolean previousKey;
+
+    /**
+     * Constructor of DecipheredMessage
+     *
+     * @param conversation Conversation of the message
+     * @param message      Deciphered message
+     */
+    public DecipheredMessage(Conversation conversation, byte[] message) {
+        this(conversation, message, false);
+    }
+
+    /**
+     * Constructor of DecipheredMessage
+     *
+     * @param conversation Conversation of the message
+     * @param message      Deciphered message
+     * @param previousKey  Message ciphered with the secret the conversation had before a resumption
+     */
+    public DecipheredMessage(Conversation conversation, byte[] message, boolean previousKey) {
+        this.conversation = conversation;
+        this.message = message;
+        this.previousKey = previousKey;
+    }
+
+    /**
+     * Get the conversation of the message
+     *
+     * @return Return the conversation
+     */
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    /**
+     * Get the deciphered message
+     *
+     * @return Return the message
+     */
+    public byte[] getMessage() {
+        return message;
+    }
+
+    /**
+     * Check if the message was ciphered with the previous secret of the conversation
+     *
+     * @return Return a boolean if the other person did not use the resumed secret yet
+     */
+    public boolean isPreviousKey() {
+        return previousKey;
+    }
+}
@@ -0,0 +1,143 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+
+/**
+ * Cipher one message for many conversations at once
+ * <pre>The message is ciphered once with a random data key,
+ * then only the data key is ciphered with the key of each conversation
+ * version = byte = 1 byte
+ * cipherSuite = byte = 1 byte, suite of the message
+ * count = unsigned short = 2 bytes
+ * wrappedKeys = count * WRAPPED_KEY_LENGTH bytes, data key ciphered with each conversation (IV + key + tag)
+ * message = data key ciphered message (IV + ciphertext + tag)
+ * Envelope total size = 4 + count * 60 + 28 + message length</pre>
+ */
+public class Envelope {
+    /**
+     * Version of the format
+     */
+    public static final byte VERSION = 1;
+    /**
+     * Header length
+     */
+    public static final int HEADER_LENGTH = 4;
+    /**
+     * Data key length
+     */
+    public static final int DATA_KEY_LENGTH = 32;
+    /**
+     * Length of a data key ciphered with a conversation
+     */
+    public static final int WRAPPED_KEY_LENGTH = Cipher.getCipherOutputSize(DATA_KEY_LENGTH);
+    /**
+     * Maximum number of recipients
+     */
+    public static final int MAX_RECIPIENTS = 0xFFFF;
+
+    /**
+     * Cipher a message for many conversations
+     * <pre>ChaCha20-Poly1305 is used for the message only if every conversation uses it, else AES-256-GCM</pre>
+     *
+     * @param conversations Conversations receiving the message
+     * @param input         Text in Bytes
+     * @return Return the envelope in Bytes
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] cipher(List<Conversation> conversations, byte[] input) throws GeneralSecurityException {
+        if (conversations.isEmpty() || conversations.size() > MAX_RECIPIENTS) {
+            throw new IllegalArgumentException("Between 1 and " + MAX_RECIPIENTS + " conversations");
+        }
+
+        CipherSuite cipherSuite = CipherSuite.CHACHA20_POLY1305;
+        for (Conversation conversation : conversations) {
+            if (conversation.getCipherSuite() != CipherSuite.CHACHA20_POLY1305) {
+                cipherSuite = CipherSuite.AES_256_GCM;
+                break;
+            }
+        }
+
+        byte[] dataKey = RandomService.nextBytes(DATA_KEY_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate(getCipherSize(conversations.size(), input.length));
+        buffer.put(VERSION);
+        buffer.put(cipherSuite.getId());
+        buffer.putShort((short) conversations.size());
+        try {
+            for (Conversation conversation : conversations) {
+                CipherSuite wrapSuite = conversation.getCipherSuite();
+                buffer.put(Cipher.cipher(wrapSuite, wrapSuite.toSecretKey(conversation.getSecretKey()), Cipher.generateIv(), dataKey));
+            }
+            Cipher.cipher(cipherSuite, cipherSuite.toSecretKey(dataKey), Cipher.generateIv(), ByteBuffer.wrap(input), buffer);
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decipher an envelope with one conversation
+     * <pre>Each ciphered data key is tried until one is authenticated by the key of the conversation</pre>
+     *
+     * @param conversation Conversation receiving the message
+     * @param envelope     Envelope in Bytes
+     * @return Return the text in Bytes
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the conversation is not a recipient or the envelope is altered
+     */
+    public static byte[] decipher(Conversation conversation, byte[] envelope) throws GeneralSecurityException {
+        int count = getRecipientCount(envelope);
+        CipherSuite cipherSuite = CipherSuite.fromId(envelope[1]);
+        CipherSuite wrapSuite = conversation.getCipherSuite();
+        SecretKey wrapKey = wrapSuite.toSecretKey(conversation.getSecretKey());
+
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_LENGTH + i * WRAPPED_KEY_LENGTH;
+            byte[] dataKey;
+            try {
+                dataKey = Cipher.decipher(wrapSuite, wrapKey, Arrays.copyOfRange(envelope, offset, offset + WRAPPED_KEY_LENGTH));
+            } catch (AEADBadTagException e) {
+                continue; //Data key of another conversation
+            }
+            try {
+                int messageOffset = HEADER_LENGTH + count * WRAPPED_KEY_LENGTH;
+                return Cipher.decipher(cipherSuite, cipherSuite.toSecretKey(dataKey), Arrays.copyOfRange(envelope, messageOffset, envelope.length));
+            } finally {
+                Arrays.fill(dataKey, (byte) 0);
+            }
+        }
+        throw new AEADBadTagException("Not a recipient of the envelope");
+    }
+
+    /**
+     * Get the number of recipients of an envelope
+     *
+     * @param envelope Envelope in Bytes
+     * @return Return the number of recipients
+     */
+    public static int getRecipientCount(byte[] envelope) {
+        if (envelope.length < HEADER_LENGTH || envelope[0] != VERSION) {
+            throw new IllegalArgumentException("Not an envelope");
+        }
+        int count = ((envelope[2] & 0xFF) << 8) | (envelope[3] & 0xFF);
+        if (envelope.length < HEADER_LENGTH + (long) count * WRAPPED_KEY_LENGTH + Cipher.getCipherOutputSize(0)) {
+            throw new IllegalArgumentException("Envelope too short");
+        }
+        return count;
+    }
+
+    /**
+     * Get the exact size of an envelope
+     *
+     * @param recipients  Number of conversations
+     * @param inputLength Length of the input
+     * @return Return the size of the envelope
+     */
+    public static int getCipherSize(int recipients, int inputLength) {
+        return HEADER_LENGTH + recipients * WRAPPED_KEY_LENGTH + Cipher.getCipherOutputSize(inputLength);
+    }
+}
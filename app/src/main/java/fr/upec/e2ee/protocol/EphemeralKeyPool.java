@@ -0,0 +1,160 @@
+package fr.upec.e2ee.protocol;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.upec.e2ee.E2EE;
+
+/**
+ * Pool of ephemeral key pairs generated in advance for Message1
+ * <pre>The key pairs are generated on a background thread of low priority and kept in memory only.
+ * Each key pair is removed from the pool when it is taken, so it is never used for two handshakes.
+ * If the pool is empty, the key pair is generated on the calling thread as before,
+ * and a refill is started after each take if E2EE.PRECOMPUTE_EPHEMERAL_KEYS is set</pre>
+ */
+public class EphemeralKeyPool {
+    /**
+     * Maximum number of key pairs in the pool
+     */
+    public static final int CAPACITY = 4;
+    /**
+     * Curve of the ephemeral key pairs
+     */
+    public static final String CURVE = "secp384r1";
+    private static final ArrayBlockingQueue<KeyPair> POOL = new ArrayBlockingQueue<>(CAPACITY);
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EphemeralKeyPool");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private static final AtomicBoolean refilling = new AtomicBoolean();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong refilled = new AtomicLong();
+    private static final AtomicLong refillTime = new AtomicLong();
+
+    /**
+     * Generate an ephemeral key pair
+     *
+     * @return Return a new key pair
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static KeyPair generate() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec(CURVE), RandomService.getSecureRandom());
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    /**
+     * Take a key pair from the pool, or generate it if the pool is empty
+     *
+     * @return Return a key pair never given before
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static KeyPair take() throws GeneralSecurityException {
+        KeyPair keyPair = POOL.poll();
+        if (keyPair != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            keyPair = generate();
+        }
+        if (E2EE.PRECOMPUTE_EPHEMERAL_KEYS) {
+            refill();
+        }
+        return keyPair;
+    }
+
+    /**
+     * Fill the pool in the background, does nothing if a refill is running
+     */
+    public static void refill() {
+        if (POOL.remainingCapacity() > 0 && refilling.compareAndSet(false, true)) {
+            EXECUTOR.execute(() -> {
+                boolean failed = false;
+                try {
+                    while (POOL.remainingCapacity() > 0) {
+                        long start = System.nanoTime();
+                        KeyPair keyPair = generate();
+                        refillTime.addAndGet(System.nanoTime() - start);
+                        refilled.incrementAndGet();
+                        if (!POOL.offer(keyPair)) {
+                            break;
+                        }
+                    }
+                } catch (GeneralSecurityException e) {
+                    failed = true; //take() generates inline
+                } finally {
+                    refilling.set(false);
+                }
+                //A take between the last check and the reset of the flag did not start a refill
+                if (!failed && POOL.remainingCapacity() > 0) {
+                    refill();
+                }
+            });
+        }
+    }
+
+    /**
+     * Remove all key pairs of the pool
+     */
+    public static void clear() {
+        POOL.clear();
+    }
+
+    /**
+     * Get the number of key pairs ready
+     *
+     * @return Return the size of the pool
+     */
+    public static int size() {
+        return POOL.size();
+    }
+
+    /**
+     * Get the number of takes served by the pool
+     *
+     * @return Return the number of hits
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of takes generated inline
+     *
+     * @return Return the number of misses
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the ratio of takes served by the pool
+     *
+     * @return Return the hit rate between 0 and 1, 0 before the first take
+     */
+    public static double getHitRate() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * Get the average time to generate a key pair in the background
+     *
+     * @return Return the refill time per key pair in nanoseconds, 0 before the first refill
+     */
+    public static long getAverageRefillTime() {
+        long count = refilled.get();
+        return count == 0 ? 0 : refillTime.get() / count;
+    }
+}
@@ -0,0 +1,323 @@
+package fr.upec.e2ee.protocol;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fr.upec.e2ee.E2EE;
+import fr.upec.e2ee.Tools;
+
+/**
+ * Answer many inbound Message1 at once for a service identity
+ * <pre>Each inbound Message1 gets its own Message1, its ECDH, HKDF and signature of Message2 on a bounded pool of threads.
+ * The queue of the pool is bounded: when it is full, the calling thread runs the handshake itself,
+ * so a large batch does not hold all the pending tasks in memory.
+ * A Message1 that can not be handled fails alone, the other handshakes of the batch go on.
+ * The ephemeral key pairs are generated by the threads of the pool, not taken from the {@link EphemeralKeyPool}
+ * which a batch would empty at once. The latency of a handshake is measured from its submission.
+ * The SecretBuild of each Response is kept by the caller until the Message2 of the other person comes back</pre>
+ */
+public class HandshakeResponder {
+    /**
+     * Number of pending handshakes per thread before the calling thread helps
+     */
+    public static final int QUEUE_PER_THREAD = 16;
+    private final PrivateKey myPrivateKey;
+    private final PublicKey myPublicKey;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * HandshakeResponder Constructor with one thread per core
+     *
+     * @param myPrivateKey Private Key of the service identity
+     * @param myPublicKey  Public Key of the service identity, null to not add its fingerprint to Message2
+     */
+    public HandshakeResponder(PrivateKey myPrivateKey, PublicKey myPublicKey) {
+        this(myPrivateKey, myPublicKey, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * HandshakeResponder Constructor
+     *
+     * @param myPrivateKey Private Key of the service identity
+     * @param myPublicKey  Public Key of the service identity, null to not add its fingerprint to Message2
+     * @param threads      Number of threads
+     */
+    public HandshakeResponder(PrivateKey myPrivateKey, PublicKey myPublicKey, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread");
+        }
+        this.myPrivateKey = myPrivateKey;
+        this.myPublicKey = myPublicKey;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "HandshakeResponder");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Answer one inbound Message1
+     *
+     * @param otherMessage1 Message1 received as Base64
+     * @return Return the Response
+     */
+    public Response respond(String otherMessage1) {
+        return respond(otherMessage1, System.nanoTime());
+    }
+
+    /**
+     * Answer one inbound Message1 submitted at a given time
+     *
+     * @param otherMessage1 Message1 received as Base64
+     * @param submitted     Time of the submission from System.nanoTime()
+     * @return Return the Response
+     */
+    private Response respond(String otherMessage1, long submitted) {
+        try {
+            Message1 myMessage1 = new Message1(Tools.getCurrentTime(), CipherSuite.getPreferred(), KeySuite.getPreferred(), E2EE.ADVERTISE_CIPHER_SUITES, false);
+            SecretBuild secretBuild = Communication.handleMessage1(myMessage1, otherMessage1);
+            String message2 = Communication.createMessage2(myPrivateKey, myPublicKey, secretBuild);
+            return new Response(otherMessage1, Communication.createMessage1(myMessage1), message2, secretBuild, null, System.nanoTime() - submitted);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return new Response(otherMessage1, null, null, null, e, System.nanoTime() - submitted);
+        }
+    }
+
+    /**
+     * Answer a batch of inbound Message1 in parallel
+     *
+     * @param otherMessages1 Messages1 received as Base64
+     * @return Return the Report with the Responses in the order of the batch
+     * @throws InterruptedException Throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Report respondAll(Collection<String> otherMessages1) throws InterruptedException {
+        long start = System.nanoTime();
+        List<Future<Response>> futures = new ArrayList<>(otherMessages1.size());
+        for (String otherMessage1 : otherMessages1) {
+            long submitted = System.nanoTime();
+            futures.add(executor.submit(() -> respond(otherMessage1, submitted)));
+        }
+
+        List<Response> responses = new ArrayList<>(futures.size());
+        for (Future<Response> future : futures) {
+            try {
+                responses.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause()); //respond() catches every Exception, only an Error comes here
+            }
+        }
+        return new Report(responses, System.nanoTime() - start);
+    }
+
+    /**
+     * Stop the threads, the handshakes already submitted are finished
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Answer to one inbound Message1
+     */
+    public static class Response {
+        private final String otherMessage1;
+        private final String myMessage1;
+        private final String message2;
+        private final SecretBuild secretBuild;
+        private final Exception exception;
+        private final long latency;
+
+        /**
+         * Response Constructor
+         *
+         * @param otherMessage1 Message1 received
+         * @param myMessage1    My Message1 as Base64, null if failed
+         * @param message2      My Message2 as Base64, null if failed
+         * @param secretBuild   Pending SecretBuild, null if failed
+         * @param exception     Exception of the handshake, null if succeeded
+         * @param latency       Time to answer in nanoseconds
+         */
+        Response(String otherMessage1, String myMessage1, String message2, SecretBuild secretBuild, Exception exception, long latency) {
+            this.otherMessage1 = otherMessage1;
+            this.myMessage1 = myMessage1;
+            this.message2 = message2;
+            this.secretBuild = secretBuild;
+            this.exception = exception;
+            this.latency = latency;
+        }
+
+        /**
+         * Check if the handshake succeeded
+         *
+         * @return Return a boolean if Message1 and Message2 were created
+         */
+        public boolean isSuccess() {
+            return exception == null;
+        }
+
+        /**
+         * Get the Message1 received
+         *
+         * @return Return the Message1 as Base64
+         */
+        public String getOtherMessage1() {
+            return otherMessage1;
+        }
+
+        /**
+         * Get my Message1 to send back
+         *
+         * @return Return my Message1 as Base64
+         */
+        public String getMyMessage1() {
+            return myMessage1;
+        }
+
+        /**
+         * Get my Message2 to send back
+         *
+         * @return Return my Message2 as Base64
+         */
+        public String getMessage2() {
+            return message2;
+        }
+
+        /**
+         * Get the SecretBuild waiting for the Message2 of the other person
+         *
+         * @return Return the SecretBuild
+         */
+        public SecretBuild getSecretBuild() {
+            return secretBuild;
+        }
+
+        /**
+         * Get the reason of the failure
+         *
+         * @return Return the exception, null if succeeded
+         */
+        public Exception getException() {
+            return exception;
+        }
+
+        /**
+         * Get the time to answer, waiting in the queue included
+         *
+         * @return Return the latency in nanoseconds
+         */
+        public long getLatency() {
+            return latency;
+        }
+    }
+
+    /**
+     * Responses of a batch with its throughput and latencies
+     */
+    public static class Report {
+        private final List<Response> responses;
+        private final long elapsed;
+        private final long[] latencies;
+        private final int failures;
+
+        /**
+         * Report Constructor
+         *
+         * @param responses Responses in the order of the batch
+         * @param elapsed   Time of the whole batch in nanoseconds
+         */
+        Report(List<Response> responses, long elapsed) {
+            this.responses = responses;
+            this.elapsed = elapsed;
+            this.latencies = new long[responses.size()];
+            int failed = 0;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = responses.get(i).getLatency();
+                if (!responses.get(i).isSuccess()) {
+                    failed++;
+                }
+            }
+            Arrays.sort(latencies);
+            this.failures = failed;
+        }
+
+        /**
+         * Get the Responses
+         *
+         * @return Return the Responses in the order of the batch
+         */
+        public List<Response> getResponses() {
+            return responses;
+        }
+
+        /**
+         * Get the number of failed handshakes
+         *
+         * @return Return the number of failures
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * Get the time of the whole batch
+         *
+         * @return Return the elapsed time in nanoseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Get the number of handshakes answered per second
+         *
+         * @return Return the throughput, 0 for an empty batch
+         */
+        public double getThroughput() {
+            return elapsed == 0 ? 0 : responses.size() * 1e9 / elapsed;
+        }
+
+        /**
+         * Get a percentile of the latencies (nearest rank)
+         *
+         * @param percentile Percentile between 0 and 100
+         * @return Return the latency in nanoseconds, 0 for an empty batch
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("Percentile between 0 and 100");
+            }
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * latencies.length);
+            return latencies[Math.max(0, rank - 1)];
+        }
+
+        /**
+         * Summarize the batch
+         *
+         * @return Return the size, failures, throughput and p50/p90/p99/max latencies in milliseconds
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d handshakes, %d failed, %.1f/s, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                    responses.size(), failures, getThroughput(),
+                    getPercentile(50) / 1e6, getPercentile(90) / 1e6, getPercentile(99) / 1e6, getPercentile(100) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC Key Derivation Function (HKDF) with SHA-512 writing into the buffers of the caller
+ * <pre>See <a href="https://www.rfc-editor.org/rfc/rfc5869">RFC5869</a>
+ * The Mac and the working blocks are kept per thread, so a derivation does not look up the provider
+ * and does not allocate the blocks of the output.
+ * Several sub-keys are derived with one expand: the outputs are consecutive slices of the same output keying material,
+ * so the first slice is the same as a derivation of its length alone with the same info</pre>
+ */
+public class Hkdf {
+    /**
+     * Algorithm of the Mac
+     */
+    public static final String ALGORITHM = "HmacSHA512";
+    /**
+     * Output length of the Mac
+     */
+    public static final int HASH_LENGTH = 64;
+    /**
+     * Maximum output length of an expand
+     */
+    public static final int MAX_LENGTH = 255 * HASH_LENGTH;
+    private static final byte[] ZERO_SALT = new byte[HASH_LENGTH];
+    private static final ThreadLocal<State> STATES = ThreadLocal.withInitial(State::new);
+
+    /**
+     * Get the Mac of the current thread
+     *
+     * @return Return the Mac of the current thread
+     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     */
+    private static Mac getMac() throws NoSuchAlgorithmException {
+        State state = STATES.get();
+        if (state.mac == null) {
+            state.mac = Mac.getInstance(ALGORITHM);
+        }
+        return state.mac;
+    }
+
+    /**
+     * HKDF Extract
+     *
+     * @param salt Salt value (a non-secret random value), zeros if empty
+     * @param ikm  Input Keying Material
+     * @param prk  Output of HASH_LENGTH bytes for the PseudoRandom Key
+     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
+     */
+    public static void extract(byte[] salt, byte[] ikm, byte[] prk) throws NoSuchAlgorithmException, InvalidKeyException {
+        extract(salt, 0, salt.length, ikm, prk);
+    }
+
+    /**
+     * HKDF Extract with a salt in a part of an array
+     *
+     * @param salt       Array holding the salt
+     * @param saltOffset Offset of the salt
+     * @param saltLength Length of the salt, zeros if 0
+     * @param ikm        Input Keying Material
+     * @param prk        Output of HASH_LENGTH bytes for the PseudoRandom Key
+     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
+     */
+    public static void extract(byte[] salt, int saltOffset, int saltLength, byte[] ikm, byte[] prk) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (prk.length < HASH_LENGTH) {
+            throw new IllegalArgumentException("PRK too short");
+        }
+        Mac mac = getMac();
+        mac.init(saltLength == 0
+                ? new SecretKeySpec(ZERO_SALT, ALGORITHM)
+                : new SecretKeySpec(salt, saltOffset, saltLength, ALGORITHM));
+        mac.update(ikm);
+        doFinal(mac, prk, 0);
+    }
+
+    /**
+     * HKDF Expand into a part of an array
+     *
+     * @param prk    PseudoRandom Key
+     * @param info   Information binding the output to its use
+     * @param output Output
+     * @param offset Offset in the output
+     * @param length Number of bytes to derive
+     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
+     */
+    public static void expand(byte[] prk, byte[] info, byte[] output, int offset, int length) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (prk == null || length <= 0 || length > MAX_LENGTH || offset < 0 || offset + length > output.length) {
+            throw new IllegalArgumentException();
+        }
+        Mac mac = getMac();
+        mac.init(new SecretKeySpec(prk, ALGORITHM));
+
+        byte[] block = STATES.get().block;
+        for (int i = 0; i * HASH_LENGTH < length; i++) {
+            if (i > 0) {
+                mac.update(block);
+            }
+            mac.update(info);
+            mac.update((byte) (i + 1));
+            doFinal(mac, block, 0);
+            System.arraycopy(block, 0, output, offset + i * HASH_LENGTH, Math.min(HASH_LENGTH, length - i * HASH_LENGTH));
+        }
+        Arrays.fill(block, (byte) 0);
+    }
+
+    /**
+     * HKDF Expand into several sub-keys in one pass
+     * <pre>Each output is filled entirely, in order, from the same output keying material</pre>
+     *
+     * @param prk     PseudoRandom Key
+     * @param info    Information binding the outputs to their use
+     * @param outputs Sub-keys to fill
+     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
+     */
+    public static void expand(byte[] prk, byte[] info, byte[]... outputs) throws NoSuchAlgorithmException, InvalidKeyException {
+        int length = 0;
+        for (byte[] output : outputs) {
+            length += output.length;
+        }
+        if (prk == null || length <= 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException();
+        }
+        Mac mac = getMac();
+        mac.init(new SecretKeySpec(prk, ALGORITHM));
+
+        byte[] block = STATES.get().block;
+        int output = 0;
+        int outputPosition = 0;
+        for (int i = 0; i * HASH_LENGTH < length; i++) {
+            if (i > 0) {
+                mac.update(block);
+            }
+            mac.update(info);
+            mac.update((byte) (i + 1));
+            doFinal(mac, block, 0);
+
+            int blockPosition = 0;
+            while (blockPosition < HASH_LENGTH && output < outputs.length) {
+                int count = Math.min(HASH_LENGTH - blockPosition, outputs[output].length - outputPosition);
+                System.arraycopy(block, blockPosition, outputs[output], outputPosition, count);
+                blockPosition += count;
+                outputPosition += count;
+                if (outputPosition == outputs[output].length) {
+                    output++;
+                    outputPosition = 0;
+                }
+            }
+        }
+        Arrays.fill(block, (byte) 0);
+    }
+
+    /**
+     * HKDF Extract then Expand into several sub-keys
+     * <pre>The PseudoRandom Key stays in the working block of the thread and is erased after use</pre>
+     *
+     * @param salt    Salt value (a non-secret random value), zeros if empty
+     * @param ikm     Input Keying Material
+     * @param info    Information binding the outputs to their use
+     * @param outputs Sub-keys to fill
+     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
+     */
+    public static void derive(byte[] salt, byte[] ikm, String info, byte[]... outputs) throws NoSuchAlgorithmException, InvalidKeyException {
+        byte[] prk = STATES.get().prk;
+        try {
+            extract(salt, ikm, prk);
+            expand(prk, info.getBytes(StandardCharsets.UTF_8), outputs);
+        } finally {
+            Arrays.fill(prk, (byte) 0);
+        }
+    }
+
+    /**
+     * Finish a Mac into an array
+     *
+     * @param mac    Mac
+     * @param output Output
+     * @param offset Offset in the output
+     */
+    private static void doFinal(Mac mac, byte[] output, int offset) {
+        try {
+            mac.doFinal(output, offset);
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Working state of a thread
+     */
+    private static class State {
+        private final byte[] block = new byte[HASH_LENGTH];
+        private final byte[] prk = new byte[HASH_LENGTH];
+        private Mac mac;
+    }
+}
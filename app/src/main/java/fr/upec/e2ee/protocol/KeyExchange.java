@@ -1,15 +1,13 @@
 package fr.upec.e2ee.protocol;
 
-import javax.crypto.KeyAgreement;
-import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
 
 /**
  * KeyExchange for the key negotiation/agreement
@@ -24,19 +22,17 @@ public class KeyExchange {
      * @return Return a PseudoRandom Key
      * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
      * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
+     * @see Hkdf#extract(byte[], byte[], byte[])
      */
     public static byte[] hkdfExtract(byte[] salt, byte[] ikm) throws NoSuchAlgorithmException, InvalidKeyException {
-        SecretKey secretKey = new SecretKeySpec(salt, "HmacSHA512");
-        Mac mac = Mac.getInstance("HmacSHA512");
-        mac.init(secretKey);
-        return mac.doFinal(ikm);
+        byte[] prk = new byte[Hkdf.HASH_LENGTH];
+        Hkdf.extract(salt, ikm, prk);
+        return prk;
     }
 
-
     /**
      * HMAC Key Derivation Function (HKDF) Expand
-     * <pre>Based on the library HKDF by Patrick Favre-Bulle in <a href="https://github.com/patrickfav/hkdf">GitHub</a>
-     * See <a href="https://www.rfc-editor.org/rfc/rfc5869">RFC5869</a></pre>
+     * <pre>See <a href="https://www.rfc-editor.org/rfc/rfc5869">RFC5869</a></pre>
      *
      * @param prk  PseudoRandom Key
      * @param info An information
@@ -44,46 +40,20 @@ public class KeyExchange {
      * @return Return a HKDF
      * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
      * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
+     * @see Hkdf#expand(byte[], byte[], byte[], int, int)
      */
     public static byte[] hkdfExpand(byte[] prk, String info, int olb) throws NoSuchAlgorithmException, InvalidKeyException {
         if (olb <= 0 || prk == null) {
             throw new IllegalArgumentException();
         }
-
-        SecretKey secretKey = new SecretKeySpec(prk, "HmacSHA512");
-        Mac mac = Mac.getInstance("HmacSHA512");
-        mac.init(secretKey);
-
-        byte[] blockN = new byte[0];
-
-        int iterations = (int) Math.ceil(((double) olb) / ((double) mac.getMacLength()));
-        if (iterations > 255) {
-            throw new IllegalArgumentException();
-        }
-
-        byte[] infoBytes = info.getBytes(StandardCharsets.UTF_8);
-        ByteBuffer buffer = ByteBuffer.allocate(olb);
-        int remainingBytes = olb;
-        int stepSize;
-
-        for (int i = 0; i < iterations; i++) {
-            mac.update(blockN);
-            mac.update(infoBytes);
-            mac.update((byte) (i + 1));
-
-            blockN = mac.doFinal();
-
-            stepSize = Math.min(remainingBytes, blockN.length);
-
-            buffer.put(blockN, 0, stepSize);
-            remainingBytes -= stepSize;
-        }
-
-        return buffer.array();
+        byte[] output = new byte[olb];
+        Hkdf.expand(prk, info.getBytes(StandardCharsets.UTF_8), output, 0, olb);
+        return output;
     }
 
     /**
      * Create a shared key for the key negotiation/agreement using ECDH+HKDF(SHA512)
+     * <pre>The agreement (ECDH or X25519) follows the suite of the keys, see {@link KeySuite}</pre>
      *
      * @param privateKey     Your Private Key
      * @param publicKeyOther Public Key of the other person
@@ -94,15 +64,12 @@ public class KeyExchange {
      * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
      */
     public static SecretKey createSharedKey(PrivateKey privateKey, PublicKey publicKeyOther, byte[] salt, String info) throws NoSuchAlgorithmException, InvalidKeyException {
-        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
-        keyAgreement.init(privateKey);
-        keyAgreement.doPhase(publicKeyOther, true);
-        byte[] keyAgreed = keyAgreement.generateSecret();
-        SecretKey symKey = new SecretKeySpec(keyAgreed, "ECDH");
+        byte[] keyAgreed = KeySuite.of(privateKey).agree(privateKey, publicKeyOther);
 
-        byte[] hkdfExtract = hkdfExtract(salt, symKey.getEncoded());
-        byte[] hkdfExpand = hkdfExpand(hkdfExtract, info, 32);
+        byte[] symKey = new byte[32];
+        Hkdf.derive(salt, keyAgreed, info, symKey);
+        Arrays.fill(keyAgreed, (byte) 0);
 
-        return new SecretKeySpec(hkdfExpand, "AES");
+        return new SecretKeySpec(symKey, "AES");
     }
 }
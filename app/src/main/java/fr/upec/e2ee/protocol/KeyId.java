@@ -0,0 +1,82 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Key identifier of a Conversation put in front of a ciphered message
+ * <pre>keyId = 8 bytes derived with the other keys of the conversation, does not reveal the secret (see {@link Conversation})
+ * marker = byte = 0xE2
+ * version = byte = 1
+ * keyId = long = 8 bytes
+ * Tagged message = marker + version + keyId + ciphered message (IV + ciphertext + tag)
+ * A message of the previous versions starts with a random IV, so it may start like a tagged message (1 in 65536):
+ * the key identifier is only a hint and a message is tried as untagged if the hint fails</pre>
+ */
+public class KeyId {
+    /**
+     * First byte of a tagged message
+     */
+    public static final byte MARKER = (byte) 0xE2;
+    /**
+     * Version of the header
+     */
+    public static final byte VERSION = 1;
+    /**
+     * Header length
+     */
+    public static final int HEADER_LENGTH = 10;
+    /**
+     * Put the key identifier in front of a ciphered message
+     *
+     * @param keyId         Key identifier
+     * @param cipherMessage Ciphered message
+     * @return Return the tagged message
+     */
+    public static byte[] tag(long keyId, byte[] cipherMessage) {
+        return ByteBuffer.allocate(HEADER_LENGTH + cipherMessage.length)
+                .put(MARKER)
+                .put(VERSION)
+                .putLong(keyId)
+                .put(cipherMessage)
+                .array();
+    }
+
+    /**
+     * Check if a message looks tagged
+     *
+     * @param message Message
+     * @return Return a boolean if the message starts with a header
+     */
+    public static boolean isTagged(byte[] message) {
+        return message.length >= HEADER_LENGTH + Cipher.getCipherOutputSize(0)
+                && message[0] == MARKER
+                && message[1] == VERSION;
+    }
+
+    /**
+     * Get the key identifier of a tagged message
+     *
+     * @param message Tagged message
+     * @return Return the key identifier
+     */
+    public static long getKeyId(byte[] message) {
+        if (!isTagged(message)) {
+            throw new IllegalArgumentException("Message not tagged");
+        }
+        return ByteBuffer.wrap(message, 2, 8).getLong();
+    }
+
+    /**
+     * Remove the header of a tagged message
+     *
+     * @param message Tagged message
+     * @return Return the ciphered message
+     */
+    public static byte[] untag(byte[] message) {
+        if (!isTagged(message)) {
+            throw new IllegalArgumentException("Message not tagged");
+        }
+        return Arrays.copyOfRange(message, HEADER_LENGTH, message.length);
+    }
+}
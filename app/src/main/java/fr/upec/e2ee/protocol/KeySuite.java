@@ -0,0 +1,309 @@
+package fr.upec.e2ee.protocol;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * Asymmetric suites of the handshake
+ * <pre>SECP384R1_P256 = ECDH secp384r1 for the ephemeral keys, SHA512withECDSA P-256 for the identity keys, default suite
+ * CURVE25519 = X25519 for the ephemeral keys, Ed25519 for the identity keys
+ * Curve25519 keys are 32 bytes and Ed25519 signatures are 64 bytes, fixed width without DER.
+ * Their X.509 encoding is a fixed prefix of 12 bytes followed by the raw key</pre>
+ */
+public enum KeySuite {
+    /**
+     * ECDH secp384r1 and ECDSA P-256, default suite
+     */
+    SECP384R1_P256((byte) 0, "ECDH", "SHA512withECDSA", null, null),
+    /**
+     * X25519 and Ed25519
+     */
+    CURVE25519((byte) 1, "X25519", "Ed25519",
+            new byte[]{0x30, 0x2A, 0x30, 0x05, 0x06, 0x03, 0x2B, 0x65, 0x6E, 0x03, 0x21, 0x00},
+            new byte[]{0x30, 0x2A, 0x30, 0x05, 0x06, 0x03, 0x2B, 0x65, 0x70, 0x03, 0x21, 0x00});
+
+    /**
+     * Length of a raw Curve25519 key
+     */
+    public static final int KEY_LENGTH = 32;
+    /**
+     * Length of an Ed25519 signature
+     */
+    public static final int SIGNATURE_LENGTH = 64;
+    private static volatile KeySuite preferred = SECP384R1_P256;
+    private final byte id;
+    private final String agreement;
+    private final String signature;
+    private final byte[] agreementKeyPrefix;
+    private final byte[] signatureKeyPrefix;
+    private volatile Boolean supported;
+
+    KeySuite(byte id, String agreement, String signature, byte[] agreementKeyPrefix, byte[] signatureKeyPrefix) {
+        this.id = id;
+        this.agreement = agreement;
+        this.signature = signature;
+        this.agreementKeyPrefix = agreementKeyPrefix;
+        this.signatureKeyPrefix = signatureKeyPrefix;
+    }
+
+    /**
+     * Get a KeySuite from its identifier
+     *
+     * @param id Identifier
+     * @return Return the KeySuite
+     */
+    public static KeySuite fromId(byte id) {
+        for (KeySuite keySuite : values()) {
+            if (keySuite.id == id) {
+                return keySuite;
+            }
+        }
+        throw new IllegalArgumentException("Unknown key suite " + id);
+    }
+
+    /**
+     * Get the suites supported by this device as a mask
+     *
+     * @return Return a mask where the bit i is set if the suite of identifier i is supported
+     */
+    public static byte getSupportedMask() {
+        byte mask = 0;
+        for (KeySuite keySuite : values()) {
+            if (keySuite.isSupported()) {
+                mask |= 1 << keySuite.id;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Get the preferred suite of this device
+     *
+     * @return Return the preferred KeySuite
+     */
+    public static KeySuite getPreferred() {
+        return preferred;
+    }
+
+    /**
+     * Set the preferred suite of this device
+     *
+     * @param keySuite Preferred KeySuite
+     */
+    public static void setPreferred(KeySuite keySuite) {
+        if (!keySuite.isSupported()) {
+            throw new IllegalArgumentException("Unsupported key suite " + keySuite);
+        }
+        preferred = keySuite;
+    }
+
+    /**
+     * Choose the suite of the ephemeral agreement from what both persons advertised
+     * <pre>Curve25519 is chosen if both support it, else secp384r1.
+     * The result does not depend on who computes it</pre>
+     *
+     * @param myMask    Mask advertised in my Message1
+     * @param otherMask Mask advertised in the other Message1
+     * @return Return the KeySuite of the agreement
+     */
+    public static KeySuite negotiate(byte myMask, byte otherMask) {
+        if (CURVE25519.isIn(myMask) && CURVE25519.isIn(otherMask)) {
+            return CURVE25519;
+        }
+        return SECP384R1_P256;
+    }
+
+    /**
+     * Find the suite of a key
+     *
+     * @param key Public or Private Key
+     * @return Return the KeySuite of the key
+     */
+    public static KeySuite of(Key key) {
+        String algorithm = key.getAlgorithm();
+        if ("Ed25519".equalsIgnoreCase(algorithm) || "EdDSA".equalsIgnoreCase(algorithm)
+                || "X25519".equalsIgnoreCase(algorithm) || "XDH".equalsIgnoreCase(algorithm)) {
+            return CURVE25519;
+        }
+        return SECP384R1_P256;
+    }
+
+    /**
+     * Check if an encoded public key is an Ed25519 key
+     *
+     * @param encoded X.509 encoded Public Key
+     * @return Return a boolean if the key is an Ed25519 key
+     */
+    public static boolean isEd25519(byte[] encoded) {
+        return encoded.length == CURVE25519.signatureKeyPrefix.length + KEY_LENGTH
+                && Arrays.equals(CURVE25519.signatureKeyPrefix, Arrays.copyOf(encoded, CURVE25519.signatureKeyPrefix.length));
+    }
+
+    /**
+     * Get the identifier of the suite
+     *
+     * @return Return the identifier
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Check if the suite is in a mask
+     *
+     * @param mask Mask of suites
+     * @return Return a boolean if the suite is in the mask
+     */
+    public boolean isIn(byte mask) {
+        return (mask & (1 << id)) != 0;
+    }
+
+    /**
+     * Check if this device supports the suite
+     *
+     * @return Return a boolean if the suite is supported
+     */
+    public boolean isSupported() {
+        if (supported == null) {
+            try {
+                KeyAgreement.getInstance(agreement);
+                Signature.getInstance(signature);
+                if (this == CURVE25519) {
+                    KeyPairGenerator.getInstance(agreement);
+                    KeyFactory.getInstance(agreement);
+                    KeyFactory.getInstance(signature);
+                }
+                supported = true;
+            } catch (GeneralSecurityException e) {
+                supported = false;
+            }
+        }
+        return supported;
+    }
+
+    /**
+     * Get the name of the signature algorithm
+     *
+     * @return Return the signature algorithm
+     */
+    public String getSignatureAlgorithm() {
+        return signature;
+    }
+
+    /**
+     * Generate an ephemeral key pair of the suite
+     * <pre>secp384r1 key pairs come from {@link EphemeralKeyPool}, X25519 key pairs are cheap and generated inline</pre>
+     *
+     * @return Return a new key pair
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public KeyPair generateAgreementKeyPair() throws GeneralSecurityException {
+        return generateAgreementKeyPair(true);
+    }
+
+    /**
+     * Generate an ephemeral key pair of the suite, with or without the {@link EphemeralKeyPool}
+     *
+     * @param pooled Take a secp384r1 key pair from the pool, else generate it on the calling thread
+     * @return Return a new key pair
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public KeyPair generateAgreementKeyPair(boolean pooled) throws GeneralSecurityException {
+        if (this == SECP384R1_P256) {
+            return pooled ? EphemeralKeyPool.take() : EphemeralKeyPool.generate();
+        }
+        return KeyPairGenerator.getInstance(agreement).generateKeyPair();
+    }
+
+    /**
+     * Get the raw bytes of a Curve25519 public key
+     *
+     * @param publicKey Public Key of the suite
+     * @return Return the raw key of KEY_LENGTH bytes
+     * @throws InvalidKeyException Throws InvalidKeyException if the key is not a Curve25519 key
+     */
+    public static byte[] toRaw(PublicKey publicKey) throws InvalidKeyException {
+        byte[] encoded = publicKey.getEncoded();
+        if (encoded.length != CURVE25519.agreementKeyPrefix.length + KEY_LENGTH) {
+            throw new InvalidKeyException("Not a Curve25519 key");
+        }
+        return Arrays.copyOfRange(encoded, encoded.length - KEY_LENGTH, encoded.length);
+    }
+
+    /**
+     * Decode a raw X25519 public key
+     *
+     * @param raw Raw key of KEY_LENGTH bytes
+     * @return Return the Public Key
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public PublicKey toAgreementPublicKey(byte[] raw) throws GeneralSecurityException {
+        return toPublicKey(agreement, agreementKeyPrefix, raw);
+    }
+
+    /**
+     * Decode a raw Ed25519 public key
+     *
+     * @param raw Raw key of KEY_LENGTH bytes
+     * @return Return the Public Key
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public PublicKey toSignaturePublicKey(byte[] raw) throws GeneralSecurityException {
+        return toPublicKey(signature, signatureKeyPrefix, raw);
+    }
+
+    /**
+     * Decode a raw Curve25519 public key with its fixed X.509 prefix
+     *
+     * @param algorithm Algorithm of the key
+     * @param prefix    X.509 prefix
+     * @param raw       Raw key of KEY_LENGTH bytes
+     * @return Return the Public Key
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private PublicKey toPublicKey(String algorithm, byte[] prefix, byte[] raw) throws GeneralSecurityException {
+        if (prefix == null || raw.length != KEY_LENGTH) {
+            throw new InvalidKeyException("Not a Curve25519 key");
+        }
+        byte[] encoded = Arrays.copyOf(prefix, prefix.length + KEY_LENGTH);
+        System.arraycopy(raw, 0, encoded, prefix.length, KEY_LENGTH);
+        return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Compute the shared secret of an ephemeral agreement
+     *
+     * @param privateKey     My ephemeral Private Key
+     * @param publicKeyOther Ephemeral Public Key of the other person
+     * @return Return the shared secret
+     * @throws NoSuchAlgorithmException Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @throws InvalidKeyException      Throws InvalidKeyException if there is an invalid key
+     */
+    public byte[] agree(PrivateKey privateKey, PublicKey publicKeyOther) throws NoSuchAlgorithmException, InvalidKeyException {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance(agreement);
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(publicKeyOther, true);
+        byte[] secret = keyAgreement.generateSecret();
+
+        int bits = 0;
+        for (byte b : secret) {
+            bits |= b;
+        }
+        if (bits == 0) {
+            throw new InvalidKeyException("Small order public key"); //X25519 with a low-order point gives zeros
+        }
+        return secret;
+    }
+}
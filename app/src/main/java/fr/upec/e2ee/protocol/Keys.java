@@ -1,5 +1,6 @@
 package fr.upec.e2ee.protocol;
 
+import android.os.Build;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 
@@ -12,16 +13,16 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.ProviderException;
 import java.security.spec.ECGenParameterSpec;
 
-import fr.upec.e2ee.Tools;
-
 /**
  * Generate Key Pair
  */
 public class Keys {
     /**
      * Generate a KeyPair with a SecureRandom to be stored in KeyStore
+     * <pre>Ed25519 if Curve25519 is the preferred KeySuite and the KeyStore supports it (Android 13), else P-256</pre>
      *
      * @param alias Alias for KeyStore
      * @return Return KeyPair
@@ -29,6 +30,13 @@ public class Keys {
      * @throws InvalidAlgorithmParameterException InvalidAlgorithmParameterException if there is an invalid or inappropriate algorithm parameter
      */
     public static KeyPair generate(String alias) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, NoSuchProviderException {
+        if (KeySuite.getPreferred() == KeySuite.CURVE25519 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            try {
+                return generateEd25519(alias);
+            } catch (InvalidAlgorithmParameterException | ProviderException ignored) {
+                //KeyStore without Curve25519, P-256 below
+            }
+        }
         KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
         keyPairGenerator.initialize(new KeyGenParameterSpec.Builder(
                 alias,
@@ -37,7 +45,28 @@ public class Keys {
                 .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
                 .setUserAuthenticationRequired(true) //Deactivated for test
                 .setUserAuthenticationValidityDurationSeconds(3 * 60) //Deactivated for test
-                .build(), Tools.generateSecureRandom());
+                .build(), RandomService.getSecureRandom());
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    /**
+     * Generate an Ed25519 KeyPair to be stored in KeyStore
+     *
+     * @param alias Alias for KeyStore
+     * @return Return KeyPair
+     * @throws NoSuchAlgorithmException           Throws NoSuchAlgorithmException if there is not the expected algorithm
+     * @throws InvalidAlgorithmParameterException InvalidAlgorithmParameterException if the KeyStore does not support Ed25519
+     */
+    private static KeyPair generateEd25519(String alias) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, NoSuchProviderException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
+        keyPairGenerator.initialize(new KeyGenParameterSpec.Builder(
+                alias,
+                KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
+                .setDigests(KeyProperties.DIGEST_NONE) //Ed25519 hashes the message itself
+                .setAlgorithmParameterSpec(new ECGenParameterSpec("ed25519"))
+                .setUserAuthenticationRequired(true) //Deactivated for test
+                .setUserAuthenticationValidityDurationSeconds(3 * 60) //Deactivated for test
+                .build(), RandomService.getSecureRandom());
         return keyPairGenerator.generateKeyPair();
     }
 
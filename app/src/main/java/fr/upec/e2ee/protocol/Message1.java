@@ -2,43 +2,139 @@ package fr.upec.e2ee.protocol;
 
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.security.spec.ECGenParameterSpec;
 
-import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.E2EE;
 
 /**
  * Object for Message 1
  * <pre>timestamp = long = 8 bytes
  * nonce = byte[64] = 64 bytes
  * DHKeyPair -> PublicKey = 120 bytes
- * Message 1 total size = 192 bytes</pre>
+ * Message 1 total size = 192 bytes
+ *
+ * If the preferred CipherSuite is not AES-256-GCM, or ChaCha20-Poly1305 is supported and advertised, the cipher suites are appended:
+ * version = byte = 1 byte
+ * cipherSuiteMask = byte = 1 byte
+ * preferredCipherSuite = byte = 1 byte
+ * Extended Message 1 total size = 195 bytes
+ * Otherwise Message 1 stays compatible with the previous versions and only AES-256-GCM is advertised,
+ * then ChaCha20-Poly1305 can not be chosen even if the other person prefers it
+ *
+ * If the preferred KeySuite is Curve25519, the X25519 PublicKey replaces the secp384r1 PublicKey:
+ * timestamp = long = 8 bytes
+ * nonce = byte[64] = 64 bytes
+ * version = byte = 2
+ * cipherSuiteMask = byte = 1 byte
+ * preferredCipherSuite = byte = 1 byte
+ * keySuiteMask = byte = 1 byte
+ * X25519 PublicKey = 32 bytes
+ * Curve25519 Message 1 total size = 108 bytes
+ * No secp384r1 key pair is generated, so both persons must prefer Curve25519</pre>
  */
 public class Message1 {
+    /**
+     * Size of Message1
+     */
+    public static final int SIZE = 192;
+    /**
+     * Size of Message1 with the cipher suites
+     */
+    public static final int EXTENDED_SIZE = 195;
+    /**
+     * Size of Message1 with the cipher suites and the key suites
+     */
+    public static final int CURVE25519_SIZE = 108;
+    /**
+     * Version of the extension
+     */
+    public static final byte VERSION = 1;
+    /**
+     * Version of the extension with the key suites
+     */
+    public static final byte VERSION_CURVE25519 = 2;
     private final long timestamp;
     private final byte[] nonce;
     private final KeyPair ECKeyPair;
+    private final CipherSuite preferredCipherSuite;
+    private final byte cipherSuiteMask;
+    private final byte keySuiteMask;
+    private final KeyPair agreementKeyPair;
+    private final boolean extended;
 
     /**
-     * Message1 Constructor
+     * Message1 Constructor using the preferred CipherSuite of this device
      *
      * @param timestamp UNIX Timestamp
-     * @param nonce     Nonce (salt)
      */
-    public Message1(long timestamp, int nonce) throws GeneralSecurityException {
-        this.timestamp = timestamp;
+    public Message1(long timestamp) throws GeneralSecurityException {
+        this(timestamp, CipherSuite.getPreferred());
+    }
+
+    /**
+     * Message1 Constructor
+     *
+     * @param timestamp            UNIX Timestamp
+     * @param preferredCipherSuite Preferred CipherSuite
+     */
+    public Message1(long timestamp, CipherSuite preferredCipherSuite) throws GeneralSecurityException {
+        this(timestamp, preferredCipherSuite, KeySuite.getPreferred());
+    }
+
+    /**
+     * Message1 Constructor with a KeySuite
+     *
+     * @param timestamp            UNIX Timestamp
+     * @param preferredCipherSuite Preferred CipherSuite
+     * @param preferredKeySuite    Preferred KeySuite
+     */
+    public Message1(long timestamp, CipherSuite preferredCipherSuite, KeySuite preferredKeySuite) throws GeneralSecurityException {
+        this(timestamp, preferredCipherSuite, preferredKeySuite, E2EE.ADVERTISE_CIPHER_SUITES);
+    }
+
+    /**
+     * Message1 Constructor with a KeySuite, advertising or not the cipher suites when AES-256-GCM is preferred
+     *
+     * @param timestamp             UNIX Timestamp
+     * @param preferredCipherSuite  Preferred CipherSuite
+     * @param preferredKeySuite     Preferred KeySuite
+     * @param advertiseCipherSuites Advertise the supported cipher suites if ChaCha20-Poly1305 is supported, even if AES-256-GCM is preferred
+     */
+    public Message1(long timestamp, CipherSuite preferredCipherSuite, KeySuite preferredKeySuite, boolean advertiseCipherSuites) throws GeneralSecurityException {
+        this(timestamp, preferredCipherSuite, preferredKeySuite, advertiseCipherSuites, true);
+    }
 
-        SecureRandom random = Tools.generateSecureRandom();
-        random.setSeed(nonce);
-        this.nonce = random.generateSeed(64);
+    /**
+     * Message1 Constructor with a KeySuite, taking or not the key pair from the {@link EphemeralKeyPool}
+     * <pre>A batch of handshakes empties the pool at once, its key pairs are better generated by the threads of the batch</pre>
+     *
+     * @param timestamp             UNIX Timestamp
+     * @param preferredCipherSuite  Preferred CipherSuite
+     * @param preferredKeySuite     Preferred KeySuite
+     * @param advertiseCipherSuites Advertise the supported cipher suites if ChaCha20-Poly1305 is supported, even if AES-256-GCM is preferred
+     * @param pooled                Take the secp384r1 key pair from the EphemeralKeyPool, else generate it on the calling thread
+     */
+    public Message1(long timestamp, CipherSuite preferredCipherSuite, KeySuite preferredKeySuite, boolean advertiseCipherSuites, boolean pooled) throws GeneralSecurityException {
+        this.timestamp = timestamp;
+        this.preferredCipherSuite = preferredCipherSuite;
+        if (preferredKeySuite == KeySuite.CURVE25519) {
+            this.keySuiteMask = (byte) (1 << KeySuite.CURVE25519.getId());
+            this.agreementKeyPair = KeySuite.CURVE25519.generateAgreementKeyPair(pooled);
+        } else {
+            this.keySuiteMask = (byte) (1 << KeySuite.SECP384R1_P256.getId());
+            this.agreementKeyPair = null;
+        }
+        this.extended = preferredCipherSuite != CipherSuite.AES_256_GCM || agreementKeyPair != null
+                || (advertiseCipherSuites && CipherSuite.CHACHA20_POLY1305.isSupported());
+        this.cipherSuiteMask = extended
+                ? CipherSuite.getSupportedMask()
+                : (byte) (1 << CipherSuite.AES_256_GCM.getId());
 
-        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
-        keyPairGenerator.initialize(new ECGenParameterSpec("secp384r1"), Tools.generateSecureRandom());
-        this.ECKeyPair = keyPairGenerator.generateKeyPair();
+        this.nonce = RandomService.nextBytes(64);
+        this.ECKeyPair = agreementKeyPair == null ? KeySuite.SECP384R1_P256.generateAgreementKeyPair(pooled) : null;
     }
 
     /**
@@ -47,13 +143,33 @@ public class Message1 {
      * @return Return Message1 as byte[]
      */
     public byte[] toBytes() {
-        ByteBuffer buffer = ByteBuffer.allocate(192);
+        ByteBuffer buffer = ByteBuffer.allocate(agreementKeyPair != null ? CURVE25519_SIZE : isExtended() ? EXTENDED_SIZE : SIZE);
         buffer.putLong(timestamp);
         buffer.put(nonce);
-        buffer.put(ECKeyPair.getPublic().getEncoded());
+        if (ECKeyPair != null) {
+            buffer.put(ECKeyPair.getPublic().getEncoded());
+        }
+        if (isExtended()) {
+            buffer.put(agreementKeyPair != null ? VERSION_CURVE25519 : VERSION);
+            buffer.put(cipherSuiteMask);
+            buffer.put(preferredCipherSuite.getId());
+        }
+        if (agreementKeyPair != null) {
+            buffer.put(keySuiteMask);
+            buffer.put(getAgreementPublicKey());
+        }
         return buffer.array();
     }
 
+    /**
+     * Check if Message1 advertises the cipher suites
+     *
+     * @return Return a boolean if Message1 is extended
+     */
+    private boolean isExtended() {
+        return extended;
+    }
+
     /**
      * Getter for Timestamp
      *
@@ -75,18 +191,70 @@ public class Message1 {
     /**
      * Get Private key
      *
-     * @return Return the Private key
+     * @return Return the secp384r1 Private key, null for a Curve25519 Message1
      */
     public PrivateKey getPrivateKey() {
-        return ECKeyPair.getPrivate();
+        return ECKeyPair == null ? null : ECKeyPair.getPrivate();
     }
 
     /**
      * get Public key
      *
-     * @return Return the Public key
+     * @return Return the secp384r1 Public key, null for a Curve25519 Message1
      */
     public PublicKey getPublicKey() {
-        return ECKeyPair.getPublic();
+        return ECKeyPair == null ? null : ECKeyPair.getPublic();
+    }
+
+    /**
+     * Get the advertised cipher suites
+     *
+     * @return Return the mask of the advertised cipher suites
+     */
+    public byte getCipherSuiteMask() {
+        return cipherSuiteMask;
+    }
+
+    /**
+     * Get the preferred CipherSuite
+     *
+     * @return Return the preferred CipherSuite
+     */
+    public CipherSuite getPreferredCipherSuite() {
+        return preferredCipherSuite;
+    }
+
+    /**
+     * Get the advertised key suites
+     *
+     * @return Return the mask of the advertised key suites
+     */
+    public byte getKeySuiteMask() {
+        return keySuiteMask;
+    }
+
+    /**
+     * Get the X25519 Private Key
+     *
+     * @return Return the X25519 Private Key, null if Curve25519 is not advertised
+     */
+    public PrivateKey getAgreementPrivateKey() {
+        return agreementKeyPair == null ? null : agreementKeyPair.getPrivate();
+    }
+
+    /**
+     * Get the raw X25519 Public Key
+     *
+     * @return Return the X25519 Public Key of 32 bytes, null if Curve25519 is not advertised
+     */
+    public byte[] getAgreementPublicKey() {
+        if (agreementKeyPair == null) {
+            return null;
+        }
+        try {
+            return KeySuite.toRaw(agreementKeyPair.getPublic());
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
     }
 }
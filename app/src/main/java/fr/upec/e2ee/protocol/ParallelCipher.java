@@ -0,0 +1,172 @@
+package fr.upec.e2ee.protocol;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Cipher and Decipher multi-megabyte payloads on all cores
+ * <pre>Same format as {@link StreamCipher}: each segment has its own nonce,
+ * so the segments are ciphered independently then stay in order in the output</pre>
+ */
+public class ParallelCipher {
+    /**
+     * Number of segments under which a task is not split anymore
+     */
+    private static final int THRESHOLD = 2;
+
+    /**
+     * Cipher an input with the common ForkJoinPool
+     *
+     * @param streamKey Stream key of the conversation
+     * @param input     Plaintext
+     * @return Return the ciphertext
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] cipher(byte[] streamKey, byte[] input) throws GeneralSecurityException {
+        return cipher(streamKey, input, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Cipher an input
+     *
+     * @param streamKey Stream key of the conversation
+     * @param input     Plaintext
+     * @param pool      ForkJoinPool running the segments
+     * @return Return the ciphertext
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] cipher(byte[] streamKey, byte[] input, ForkJoinPool pool) throws GeneralSecurityException {
+        long cipherSize = StreamCipher.getCipherSize(input.length);
+        if (cipherSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Input too large, use StreamCipher");
+        }
+
+        byte[] header = StreamCipher.newHeader();
+        SecretKey key = StreamCipher.deriveKey(streamKey, header);
+        byte[] output = new byte[(int) cipherSize];
+        System.arraycopy(header, 0, output, 0, header.length);
+
+        int segments = Math.max(1, (input.length + StreamCipher.SEGMENT_SIZE - 1) / StreamCipher.SEGMENT_SIZE);
+        invoke(pool, new SegmentTask(true, key, header, input, output, segments, input.length, 0, segments));
+        return output;
+    }
+
+    /**
+     * Decipher an input with the common ForkJoinPool
+     *
+     * @param streamKey     Stream key of the conversation
+     * @param cipherMessage Ciphertext
+     * @return Return the plaintext
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] decipher(byte[] streamKey, byte[] cipherMessage) throws GeneralSecurityException {
+        return decipher(streamKey, cipherMessage, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decipher an input
+     *
+     * @param streamKey     Stream key of the conversation
+     * @param cipherMessage Ciphertext
+     * @param pool          ForkJoinPool running the segments
+     * @return Return the plaintext
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] decipher(byte[] streamKey, byte[] cipherMessage, ForkJoinPool pool) throws GeneralSecurityException {
+        int plainSize = (int) StreamCipher.getPlainSize(cipherMessage.length);
+
+        byte[] header = Arrays.copyOf(cipherMessage, StreamCipher.HEADER_LENGTH);
+        SecretKey key = StreamCipher.deriveKey(streamKey, header);
+        byte[] output = new byte[plainSize];
+
+        int segments = Math.max(1, (plainSize + StreamCipher.SEGMENT_SIZE - 1) / StreamCipher.SEGMENT_SIZE);
+        invoke(pool, new SegmentTask(false, key, header, cipherMessage, output, segments, plainSize, 0, segments));
+        return output;
+    }
+
+    /**
+     * Run the root task and unwrap the security exception
+     *
+     * @param pool ForkJoinPool
+     * @param task Root task
+     * @throws GeneralSecurityException Throws GeneralSecurityException if a segment failed
+     */
+    private static void invoke(ForkJoinPool pool, SegmentTask task) throws GeneralSecurityException {
+        try {
+            pool.invoke(task);
+        } catch (SegmentException e) {
+            //The exception may be rethrown as a copy wrapping the original one
+            Throwable cause = e.getCause();
+            while (!(cause instanceof GeneralSecurityException)) {
+                cause = cause.getCause();
+            }
+            throw (GeneralSecurityException) cause;
+        }
+    }
+
+    /**
+     * Unchecked wrapper to get a GeneralSecurityException out of a ForkJoinTask
+     */
+    private static class SegmentException extends RuntimeException {
+        SegmentException(GeneralSecurityException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Cipher or decipher a range of segments, split in two while it is too large
+     */
+    private static class SegmentTask extends RecursiveAction {
+        private final boolean encrypt;
+        private final SecretKey key;
+        private final byte[] header;
+        private final byte[] input;
+        private final byte[] output;
+        private final int segments;
+        private final int plainSize;
+        private final int from;
+        private final int to;
+
+        SegmentTask(boolean encrypt, SecretKey key, byte[] header, byte[] input, byte[] output, int segments, int plainSize, int from, int to) {
+            this.encrypt = encrypt;
+            this.key = key;
+            this.header = header;
+            this.input = input;
+            this.output = output;
+            this.segments = segments;
+            this.plainSize = plainSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SegmentTask(encrypt, key, header, input, output, segments, plainSize, from, middle),
+                        new SegmentTask(encrypt, key, header, input, output, segments, plainSize, middle, to));
+                return;
+            }
+
+            try {
+                for (int i = from; i < to; i++) {
+                    boolean last = i == segments - 1;
+                    int plainOffset = i * StreamCipher.SEGMENT_SIZE;
+                    int plainLength = last ? plainSize - plainOffset : StreamCipher.SEGMENT_SIZE;
+                    int cipherOffset = StreamCipher.HEADER_LENGTH + i * StreamCipher.CIPHER_SEGMENT_SIZE;
+                    if (encrypt) {
+                        StreamCipher.cipherSegment(key, header, i, last, input, plainOffset, plainLength, output, cipherOffset);
+                    } else {
+                        StreamCipher.decipherSegment(key, header, i, last, input, cipherOffset, plainLength + Cipher.GCM_TAG_LENGTH, output, plainOffset);
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                throw new SegmentException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.mystate.MyDirectory;
+
+/**
+ * Bundle of one-time prekeys published by a person, so anyone in its directory can start a conversation without Message1
+ * <pre>Each prekey is a secp384r1 Public Key (see {@link EphemeralKeyPool}) whose Private Key stays with its owner until it is used once.
+ * The bundle also has a last-resort prekey, never consumed, picked when the bundle has no one-time prekey or is older than MAX_AGE,
+ * so a copy of the bundle kept too long still starts a conversation.
+ * version = byte = 1 byte
+ * timestamp = long = 8 bytes
+ * cipherSuiteMask = byte = 1 byte
+ * preferredCipherSuite = byte = 1 byte
+ * count = short = 2 bytes
+ * prekeys = count * (identifier = int = 4 bytes + PublicKey = 120 bytes)
+ * last-resort prekey = PublicKey = 120 bytes
+ * Then the signature of the owner, its fingerprint and the length of the signature, like {@link SignedMessage1}</pre>
+ */
+public class PrekeyBundle {
+    /**
+     * Version of the bundle
+     */
+    public static final byte VERSION = 2;
+    /**
+     * Length of an encoded prekey
+     */
+    public static final int KEY_LENGTH = 120;
+    /**
+     * Maximum number of prekeys in a bundle
+     */
+    public static final int MAX_PREKEYS = 100;
+    /**
+     * Identifier of the last-resort prekey
+     */
+    public static final int LAST_RESORT_ID = -1;
+    /**
+     * Age in seconds after which the one-time prekeys of a bundle are likely used by other persons
+     */
+    public static final long MAX_AGE = 7 * 24 * 60 * 60;
+    private static final int HEADER_LENGTH = 1 + 8 + 1 + 1 + 2;
+    private static final int ENTRY_LENGTH = 4 + KEY_LENGTH;
+    private static final byte[] CONTEXT = "e2ee-prekey-bundle".getBytes(StandardCharsets.UTF_8);
+    private final String name;
+    private final long timestamp;
+    private final byte cipherSuiteMask;
+    private final CipherSuite preferredCipherSuite;
+    private final LinkedHashMap<Integer, byte[]> prekeys;
+    private final byte[] lastResort;
+    private final PublicKey publicKey;
+
+    /**
+     * PrekeyBundle Constructor for a verified bundle
+     *
+     * @param name                 Name of the owner
+     * @param publicKey            Public Key of the owner in MyDirectory
+     * @param timestamp            Timestamp of the bundle
+     * @param cipherSuiteMask      Cipher suites of the owner
+     * @param preferredCipherSuite Preferred CipherSuite of the owner
+     * @param prekeys              Encoded one-time prekeys by identifier
+     * @param lastResort           Encoded last-resort prekey
+     */
+    private PrekeyBundle(String name, PublicKey publicKey, long timestamp, byte cipherSuiteMask, CipherSuite preferredCipherSuite,
+                         LinkedHashMap<Integer, byte[]> prekeys, byte[] lastResort) {
+        this.name = name;
+        this.publicKey = publicKey;
+        this.timestamp = timestamp;
+        this.cipherSuiteMask = cipherSuiteMask;
+        this.preferredCipherSuite = preferredCipherSuite;
+        this.prekeys = prekeys;
+        this.lastResort = lastResort;
+    }
+
+    /**
+     * Create a bundle signed by my Private Key
+     *
+     * @param prekeys      Public one-time prekeys by identifier
+     * @param lastResort   Public last-resort prekey
+     * @param myPrivateKey Your Private Key
+     * @param myPublicKey  Your Public Key, for the fingerprint
+     * @return Return the signed bundle
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] create(Map<Integer, PublicKey> prekeys, PublicKey lastResort, PrivateKey myPrivateKey, PublicKey myPublicKey) throws GeneralSecurityException {
+        byte[] body = encode(prekeys, lastResort);
+        return SignedMessage1.append(body, Sign.sign(myPrivateKey, SignedMessage1.toSigned(CONTEXT, body, body.length)), myPublicKey);
+    }
+
+    /**
+     * Create a bundle signed by my SigningSubkey
+     *
+     * @param prekeys         Public one-time prekeys by identifier
+     * @param lastResort      Public last-resort prekey
+     * @param mySigningSubkey Your SigningSubkey
+     * @param myPublicKey     Your Public Key, for the fingerprint
+     * @return Return the signed bundle
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] create(Map<Integer, PublicKey> prekeys, PublicKey lastResort, SigningSubkey mySigningSubkey, PublicKey myPublicKey) throws GeneralSecurityException {
+        byte[] body = encode(prekeys, lastResort);
+        return SignedMessage1.append(body, mySigningSubkey.sign(SignedMessage1.toSigned(CONTEXT, body, body.length)), myPublicKey);
+    }
+
+    /**
+     * Encode the bundle without its signature
+     *
+     * @param prekeys    Public one-time prekeys by identifier
+     * @param lastResort Public last-resort prekey
+     * @return Return the body of the bundle
+     */
+    private static byte[] encode(Map<Integer, PublicKey> prekeys, PublicKey lastResort) {
+        if (prekeys.size() > MAX_PREKEYS) {
+            throw new IllegalArgumentException("At most " + MAX_PREKEYS + " prekeys");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + prekeys.size() * ENTRY_LENGTH + KEY_LENGTH)
+                .put(VERSION)
+                .putLong(Tools.getCurrentTime())
+                .put(CipherSuite.getSupportedMask())
+                .put(CipherSuite.getPreferred().getId())
+                .putShort((short) prekeys.size());
+        for (Map.Entry<Integer, PublicKey> prekey : prekeys.entrySet()) {
+            byte[] encoded = prekey.getValue().getEncoded();
+            if (encoded.length != KEY_LENGTH) {
+                throw new IllegalArgumentException("Not a secp384r1 prekey");
+            }
+            buffer.putInt(prekey.getKey()).put(encoded);
+        }
+        byte[] encoded = lastResort.getEncoded();
+        if (encoded.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("Not a secp384r1 prekey");
+        }
+        return buffer.put(encoded).array();
+    }
+
+    /**
+     * Verify and read the bundle of a person of MyDirectory
+     *
+     * @param myDirectory My Directory
+     * @param bundle      Signed bundle
+     * @return Return the PrekeyBundle
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the signature is invalid
+     */
+    public static PrekeyBundle open(MyDirectory myDirectory, byte[] bundle) throws GeneralSecurityException {
+        int bodyLength = SignedMessage1.getBodyLength(bundle);
+        if (bodyLength < HEADER_LENGTH + KEY_LENGTH || bundle[0] != VERSION) {
+            throw new IllegalArgumentException("Not a prekey bundle");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bundle, 1, bodyLength - 1);
+        long timestamp = buffer.getLong();
+        byte cipherSuiteMask = buffer.get();
+        byte preferredId = buffer.get();
+        int count = buffer.getShort() & 0xFFFF;
+        if (count > MAX_PREKEYS || bodyLength != HEADER_LENGTH + count * ENTRY_LENGTH + KEY_LENGTH) {
+            throw new IllegalArgumentException("Not a prekey bundle");
+        }
+
+        String name = SignedMessage1.getSigner(myDirectory, bundle, bodyLength, CONTEXT);
+
+        CipherSuite preferredCipherSuite;
+        try {
+            preferredCipherSuite = CipherSuite.fromId(preferredId);
+        } catch (IllegalArgumentException e) {
+            preferredCipherSuite = CipherSuite.AES_256_GCM; //Unknown suite from a newer version
+        }
+        LinkedHashMap<Integer, byte[]> prekeys = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int id = buffer.getInt();
+            byte[] encoded = new byte[KEY_LENGTH];
+            buffer.get(encoded);
+            prekeys.put(id, encoded);
+        }
+        byte[] lastResort = new byte[KEY_LENGTH];
+        buffer.get(lastResort);
+        return new PrekeyBundle(name, myDirectory.getPublicKey(name), timestamp, cipherSuiteMask, preferredCipherSuite, prekeys, lastResort);
+    }
+
+    /**
+     * Pick a random one-time prekey, or the last-resort prekey if there is none or the bundle is older than MAX_AGE
+     * <pre>Two persons picking the same prekey is unlikely with a full bundle, the owner accepts only the first one
+     * and tells the second one that the prekey was already used</pre>
+     *
+     * @return Return the identifier of the prekey, LAST_RESORT_ID for the last-resort prekey
+     */
+    public int pickPrekeyId() {
+        if (prekeys.isEmpty() || Tools.getCurrentTime() - timestamp > MAX_AGE) {
+            return LAST_RESORT_ID;
+        }
+        Integer[] ids = prekeys.keySet().toArray(new Integer[0]);
+        return ids[RandomService.getSecureRandom().nextInt(ids.length)];
+    }
+
+    /**
+     * Get a prekey
+     *
+     * @param id Identifier of the prekey
+     * @return Return the prekey
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the prekey can not be decoded
+     */
+    public PublicKey getPrekey(int id) throws GeneralSecurityException {
+        byte[] encoded = id == LAST_RESORT_ID ? lastResort : prekeys.get(id);
+        if (encoded == null) {
+            throw new IllegalArgumentException("Unknown prekey");
+        }
+        return Tools.toPublicKey(Arrays.copyOf(encoded, encoded.length));
+    }
+
+    /**
+     * Get the name of the owner in MyDirectory
+     *
+     * @return Return the name of the owner
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the Public Key of the owner in MyDirectory
+     *
+     * @return Return the identity Public Key of the owner
+     */
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Get the timestamp of the bundle
+     *
+     * @return Return UNIX Timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the number of one-time prekeys
+     *
+     * @return Return the number of one-time prekeys
+     */
+    public int getSize() {
+        return prekeys.size();
+    }
+
+    /**
+     * Get the cipher suites of the owner
+     *
+     * @return Return the mask of the cipher suites
+     */
+    public byte getCipherSuiteMask() {
+        return cipherSuiteMask;
+    }
+
+    /**
+     * Get the preferred CipherSuite of the owner
+     *
+     * @return Return the preferred CipherSuite
+     */
+    public CipherSuite getPreferredCipherSuite() {
+        return preferredCipherSuite;
+    }
+}
@@ -0,0 +1,224 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.mystate.MyDirectory;
+
+/**
+ * First message of a conversation started with a prekey of the other person, without Message1 nor Message2
+ * <pre>The sender takes a prekey of a {@link PrekeyBundle} and an ephemeral key pair of the {@link EphemeralKeyPool}:
+ * secret + key of the first message = HKDF(salt = header + identities, ECDH(ephemeral, prekey), "prekey") = 32 + 32 bytes
+ * identities = smallest identity Public Key + largest identity Public Key of the sender and the owner of the prekey,
+ * so a message signed again by someone else can not be deciphered as coming from this person.
+ * The signature covers CONTEXT + the prekey + the header + the ciphered message, so it is bound to the owner of the prekey.
+ * The prekeyId is PrekeyBundle.LAST_RESORT_ID if the last-resort prekey was used.
+ * marker = byte = 0xE2
+ * version = byte = 4
+ * prekeyId = int = 4 bytes
+ * timestamp = long = 8 bytes
+ * cipherSuite = byte = 1 byte
+ * ephemeral Public Key = 120 bytes
+ * Prekey message = header + ciphered message (IV + ciphertext + tag) + signature, fingerprint and length like {@link SignedMessage1}</pre>
+ */
+public class PrekeyMessage {
+    /**
+     * First byte of a prekey message, same as {@link KeyId}
+     */
+    public static final byte MARKER = KeyId.MARKER;
+    /**
+     * Version of the header
+     */
+    public static final byte VERSION = 4;
+    /**
+     * Header length
+     */
+    public static final int HEADER_LENGTH = 1 + 1 + 4 + 8 + 1 + PrekeyBundle.KEY_LENGTH;
+    private static final int KEY_LENGTH = 32;
+    private static final String INFO = "prekey";
+    private static final byte[] CONTEXT = "e2ee-prekey-message".getBytes(StandardCharsets.UTF_8);
+    private final Conversation conversation;
+    private final byte[] message;
+
+    /**
+     * Start a conversation with a prekey of a bundle, signed by my Private Key
+     *
+     * @param bundle       PrekeyBundle of the other person
+     * @param firstMessage First message of the conversation
+     * @param myPrivateKey Your Private Key
+     * @param myPublicKey  Your Public Key, for the fingerprint
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public PrekeyMessage(PrekeyBundle bundle, byte[] firstMessage, PrivateKey myPrivateKey, PublicKey myPublicKey) throws GeneralSecurityException {
+        this(bundle, firstMessage, myPrivateKey, null, myPublicKey);
+    }
+
+    /**
+     * Start a conversation with a prekey of a bundle, signed by my SigningSubkey
+     *
+     * @param bundle          PrekeyBundle of the other person
+     * @param firstMessage    First message of the conversation
+     * @param mySigningSubkey Your SigningSubkey
+     * @param myPublicKey     Your Public Key, for the fingerprint
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public PrekeyMessage(PrekeyBundle bundle, byte[] firstMessage, SigningSubkey mySigningSubkey, PublicKey myPublicKey) throws GeneralSecurityException {
+        this(bundle, firstMessage, null, mySigningSubkey, myPublicKey);
+    }
+
+    /**
+     * Start a conversation with a prekey of a bundle
+     *
+     * @param bundle          PrekeyBundle of the other person
+     * @param firstMessage    First message of the conversation
+     * @param myPrivateKey    Your Private Key, or null
+     * @param mySigningSubkey Your SigningSubkey, or null
+     * @param myPublicKey     Your Public Key, for the fingerprint
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private PrekeyMessage(PrekeyBundle bundle, byte[] firstMessage, PrivateKey myPrivateKey, SigningSubkey mySigningSubkey, PublicKey myPublicKey) throws GeneralSecurityException {
+        int prekeyId = bundle.pickPrekeyId();
+        PublicKey prekey = bundle.getPrekey(prekeyId);
+        KeyPair ephemeral = EphemeralKeyPool.take();
+        long timestamp = Tools.getCurrentTime();
+        CipherSuite cipherSuite = CipherSuite.negotiate(CipherSuite.getSupportedMask(), CipherSuite.getPreferred(),
+                bundle.getCipherSuiteMask(), bundle.getPreferredCipherSuite());
+
+        byte[] header = ByteBuffer.allocate(HEADER_LENGTH)
+                .put(MARKER)
+                .put(VERSION)
+                .putInt(prekeyId)
+                .putLong(timestamp)
+                .put(cipherSuite.getId())
+                .put(ephemeral.getPublic().getEncoded())
+                .array();
+        byte[] secret = new byte[KEY_LENGTH];
+        byte[] firstKey = new byte[KEY_LENGTH];
+        Hkdf.derive(getSalt(header, myPublicKey, bundle.getPublicKey()), KeySuite.SECP384R1_P256.agree(ephemeral.getPrivate(), prekey), INFO, secret, firstKey);
+        byte[] cipheredMessage = Cipher.cipher(cipherSuite, cipherSuite.toSecretKey(firstKey), Cipher.generateIv(), firstMessage);
+        Arrays.fill(firstKey, (byte) 0);
+
+        byte[] body = ByteBuffer.allocate(HEADER_LENGTH + cipheredMessage.length)
+                .put(header)
+                .put(cipheredMessage)
+                .array();
+        byte[] signed = SignedMessage1.toSigned(getContext(prekey), body, body.length);
+        byte[] signature = mySigningSubkey != null ? mySigningSubkey.sign(signed) : Sign.sign(myPrivateKey, signed);
+
+        this.conversation = new Conversation(bundle.getName(), timestamp, secret, cipherSuite);
+        this.message = SignedMessage1.append(body, signature, myPublicKey);
+    }
+
+    /**
+     * Get the context of the signature, bound to the prekey
+     *
+     * @param prekey Prekey used by the message
+     * @return Return CONTEXT followed by the prekey
+     */
+    private static byte[] getContext(PublicKey prekey) {
+        byte[] encoded = prekey.getEncoded();
+        return ByteBuffer.allocate(CONTEXT.length + encoded.length)
+                .put(CONTEXT)
+                .put(encoded)
+                .array();
+    }
+
+    /**
+     * Get the salt of the HKDF, bound to the identities of both persons
+     *
+     * @param header         Header of the prekey message
+     * @param myPublicKey    My identity Public Key
+     * @param otherPublicKey Identity Public Key of the other person
+     * @return Return the header followed by the identities
+     */
+    private static byte[] getSalt(byte[] header, PublicKey myPublicKey, PublicKey otherPublicKey) {
+        byte[] identities = SignedMessage1.getIdentities(myPublicKey, otherPublicKey);
+        return ByteBuffer.allocate(HEADER_LENGTH + identities.length)
+                .put(header, 0, HEADER_LENGTH)
+                .put(identities)
+                .array();
+    }
+
+    /**
+     * Check if a message is a prekey message
+     *
+     * @param message Message received
+     * @return Return a boolean if the message starts with the header of a prekey message
+     */
+    public static boolean isPrekeyMessage(byte[] message) {
+        return message.length >= HEADER_LENGTH + Cipher.getCipherOutputSize(0) + KeySuite.SIGNATURE_LENGTH + SignedMessage1.TRAILER_LENGTH
+                && message[0] == MARKER
+                && message[1] == VERSION;
+    }
+
+    /**
+     * Get the identifier of the prekey used by a prekey message
+     *
+     * @param message Prekey message
+     * @return Return the identifier of the prekey
+     */
+    public static int getPrekeyId(byte[] message) {
+        if (!isPrekeyMessage(message)) {
+            throw new IllegalArgumentException("Not a prekey message");
+        }
+        return ByteBuffer.wrap(message, 2, 4).getInt();
+    }
+
+    /**
+     * Verify and decipher a prekey message with my prekey
+     *
+     * @param myDirectory My Directory
+     * @param myPublicKey My Public Key, owner of the prekey
+     * @param message     Prekey message
+     * @param prekey      My prekey of the identifier of the message
+     * @return Return the new conversation with the sender and the first message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the signature is invalid or the message is not authentic
+     */
+    public static DecipheredMessage open(MyDirectory myDirectory, PublicKey myPublicKey, byte[] message, KeyPair prekey) throws GeneralSecurityException {
+        int bodyLength = isPrekeyMessage(message) ? SignedMessage1.getBodyLength(message) : -1;
+        if (bodyLength < HEADER_LENGTH + Cipher.getCipherOutputSize(0)) {
+            throw new IllegalArgumentException("Not a prekey message");
+        }
+        String name = SignedMessage1.getSigner(myDirectory, message, bodyLength, getContext(prekey.getPublic()));
+
+        ByteBuffer buffer = ByteBuffer.wrap(message, 6, HEADER_LENGTH - 6);
+        long timestamp = buffer.getLong();
+        CipherSuite cipherSuite = CipherSuite.fromId(buffer.get());
+        if (!cipherSuite.isSupported()) {
+            throw new IllegalArgumentException("Unsupported cipher suite");
+        }
+        PublicKey ephemeral = Tools.toPublicKey(Arrays.copyOfRange(message, HEADER_LENGTH - PrekeyBundle.KEY_LENGTH, HEADER_LENGTH));
+
+        byte[] secret = new byte[KEY_LENGTH];
+        byte[] firstKey = new byte[KEY_LENGTH];
+        Hkdf.derive(getSalt(message, myPublicKey, myDirectory.getPublicKey(name)), KeySuite.SECP384R1_P256.agree(prekey.getPrivate(), ephemeral), INFO, secret, firstKey);
+        byte[] firstMessage = Cipher.decipher(cipherSuite, cipherSuite.toSecretKey(firstKey), Arrays.copyOfRange(message, HEADER_LENGTH, bodyLength));
+        Arrays.fill(firstKey, (byte) 0);
+
+        return new DecipheredMessage(new Conversation(name, timestamp, secret, cipherSuite), firstMessage);
+    }
+
+    /**
+     * Get the conversation started by the message
+     *
+     * @return Return the Conversation with the owner of the bundle
+     */
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    /**
+     * Get the prekey message to send
+     *
+     * @return Return the prekey message
+     */
+    public byte[] toBytes() {
+        return message.clone();
+    }
+}
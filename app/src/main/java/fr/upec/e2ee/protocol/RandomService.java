@@ -0,0 +1,133 @@
+package fr.upec.e2ee.protocol;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Randomness shared by the whole application
+ * <pre>One SecureRandom per thread, seeded once by the provider (DRBG when available, else the default,
+ * which reads the system entropy on Android), so there is no lock between threads and no seeding per call.
+ * Small draws (IVs, nonces, prefixes) come from a per-thread pool of POOL_SIZE bytes filled in one call,
+ * the bytes of the pool are erased once given. Nothing here blocks like generateSeed</pre>
+ */
+public class RandomService {
+    /**
+     * Size of the pool of each thread
+     */
+    public static final int POOL_SIZE = 4096;
+    /**
+     * Draws larger than this size do not use the pool
+     */
+    public static final int MAX_POOLED = 64;
+    private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(RandomService::newSecureRandom);
+    private static final ThreadLocal<Pool> POOLS = ThreadLocal.withInitial(Pool::new);
+
+    /**
+     * Create a SecureRandom seeded by the provider
+     *
+     * @return Return a new SecureRandom
+     */
+    private static SecureRandom newSecureRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+
+    /**
+     * Get the SecureRandom of the current thread
+     * <pre>MUST NOT be seeded with setSeed nor shared with another thread</pre>
+     *
+     * @return Return the SecureRandom of the current thread
+     */
+    public static SecureRandom getSecureRandom() {
+        return RANDOMS.get();
+    }
+
+    /**
+     * Fill an array with random bytes
+     *
+     * @param bytes Array to fill
+     */
+    public static void nextBytes(byte[] bytes) {
+        nextBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Fill a part of an array with random bytes
+     *
+     * @param bytes  Array to fill
+     * @param offset Offset in the array
+     * @param length Number of bytes
+     */
+    public static void nextBytes(byte[] bytes, int offset, int length) {
+        if (length <= MAX_POOLED) {
+            POOLS.get().take(bytes, offset, length);
+        } else if (offset == 0 && length == bytes.length) {
+            getSecureRandom().nextBytes(bytes);
+        } else {
+            byte[] random = new byte[length];
+            getSecureRandom().nextBytes(random);
+            System.arraycopy(random, 0, bytes, offset, length);
+            Arrays.fill(random, (byte) 0);
+        }
+    }
+
+    /**
+     * Generate random bytes
+     *
+     * @param size Number of bytes
+     * @return Return random bytes
+     */
+    public static byte[] nextBytes(int size) {
+        byte[] bytes = new byte[size];
+        nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Generate a random IV
+     *
+     * @return Return an IV of GCM_IV_LENGTH bytes
+     */
+    public static byte[] nextIv() {
+        return nextBytes(Cipher.GCM_IV_LENGTH);
+    }
+
+    /**
+     * Generate a random int
+     *
+     * @param bound Upper bound (exclusive)
+     * @return Return an int between 0 and bound
+     */
+    public static int nextInt(int bound) {
+        return getSecureRandom().nextInt(bound);
+    }
+
+    /**
+     * Pool of random bytes of a thread
+     */
+    private static class Pool {
+        private final byte[] buffer = new byte[POOL_SIZE];
+        private int position = POOL_SIZE;
+
+        /**
+         * Copy random bytes from the pool, refilled in one call when empty
+         *
+         * @param bytes  Output
+         * @param offset Offset in the output
+         * @param length Number of bytes
+         */
+        void take(byte[] bytes, int offset, int length) {
+            if (POOL_SIZE - position < length) {
+                getSecureRandom().nextBytes(buffer);
+                position = 0;
+            }
+            System.arraycopy(buffer, position, bytes, offset, length);
+            Arrays.fill(buffer, position, position + length, (byte) 0); //Given only once
+            position += length;
+        }
+    }
+}
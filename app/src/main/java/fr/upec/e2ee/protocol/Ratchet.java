@@ -0,0 +1,414 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Symmetric hash ratchet of a Conversation, one key per message
+ * <pre>Both persons share the secret of the conversation and have no role, so each one sends on its own chain
+ * identified by a random chainId drawn once:
+ * chain key 0 = HKDF(salt = chainId, conversation secret, "ratchet-chain") = 32 bytes
+ * chain key n+1 + message key n = HKDF-Expand(chain key n, "ratchet-step") = 32 + 32 bytes, one HMAC per message
+ * The chain key is overwritten at each step, so the head of a chain does not give the keys of the previous messages.
+ * A message after a gap derives the keys of the missing messages once and keeps them in a cache of MAX_SKIPPED_KEYS keys,
+ * the least recently used key is evicted (and erased) first. Only the heads of the chains are saved, not the cache.
+ * marker = byte = 0xE2
+ * version = byte = 2
+ * keyId = long = 8 bytes
+ * chainId = long = 8 bytes
+ * counter = int = 4 bytes
+ * Ratchet message = header + ciphered message (IV + ciphertext + tag)</pre>
+ */
+public class Ratchet {
+    /**
+     * First byte of a ratchet message, same as {@link KeyId}
+     */
+    public static final byte MARKER = KeyId.MARKER;
+    /**
+     * Version of the header
+     */
+    public static final byte VERSION = 2;
+    /**
+     * Header length
+     */
+    public static final int HEADER_LENGTH = 22;
+    /**
+     * Maximum number of messages skipped by one message
+     */
+    public static final int MAX_SKIP = 1000;
+    /**
+     * Maximum number of keys of skipped messages kept
+     */
+    public static final int MAX_SKIPPED_KEYS = 256;
+    /**
+     * Maximum number of chains received, one per device of the other person
+     */
+    public static final int MAX_CHAINS = 8;
+    private static final int KEY_LENGTH = 32;
+    private static final int CHAIN_LENGTH = 8 + 4 + KEY_LENGTH;
+    private static final String CHAIN_INFO = "ratchet-chain";
+    private static final byte[] STEP_INFO = "ratchet-step".getBytes(StandardCharsets.UTF_8);
+    private final Conversation conversation;
+    private final long keyId;
+    private final LinkedHashMap<Long, Chain> receivingChains;
+    private final LinkedHashMap<Index, byte[]> skippedKeys;
+    private Chain sendingChain;
+
+    /**
+     * Start the ratchet of a conversation
+     *
+     * @param conversation Conversation
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public Ratchet(Conversation conversation) throws GeneralSecurityException {
+        this.conversation = conversation;
+        this.keyId = conversation.getKeyId();
+        this.receivingChains = newChains();
+        this.skippedKeys = newSkippedKeys();
+        this.sendingChain = newChain(conversation, RandomService.getSecureRandom().nextLong());
+    }
+
+    /**
+     * Restore the ratchet of a conversation from its heads
+     *
+     * @param conversation Conversation
+     * @param state        Heads of the chains from toBytes()
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public Ratchet(Conversation conversation, byte[] state) throws GeneralSecurityException {
+        if (state.length < CHAIN_LENGTH + 1 || (state.length - CHAIN_LENGTH - 1) % CHAIN_LENGTH != 0) {
+            throw new IllegalArgumentException("Invalid ratchet state");
+        }
+        this.conversation = conversation;
+        this.keyId = conversation.getKeyId();
+        this.receivingChains = newChains();
+        this.skippedKeys = newSkippedKeys();
+
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        this.sendingChain = Chain.read(buffer);
+        int count = buffer.get() & 0xFF;
+        for (int i = 0; i < count; i++) {
+            Chain chain = Chain.read(buffer);
+            receivingChains.put(chain.id, chain);
+        }
+    }
+
+    /**
+     * Derive the first key of a chain
+     *
+     * @param conversation Conversation
+     * @param chainId      Identifier of the chain
+     * @return Return the chain at its first message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private static Chain newChain(Conversation conversation, long chainId) throws GeneralSecurityException {
+        byte[] chainKey = new byte[KEY_LENGTH];
+        Hkdf.derive(ByteBuffer.allocate(8).putLong(chainId).array(), conversation.getSecretKey(), CHAIN_INFO, chainKey);
+        return new Chain(chainId, 0, chainKey);
+    }
+
+    /**
+     * Create the map of the received chains, the least recently used chain is evicted
+     *
+     * @return Return an empty map
+     */
+    private static LinkedHashMap<Long, Chain> newChains() {
+        return new LinkedHashMap<Long, Chain>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Chain> eldest) {
+                if (size() > MAX_CHAINS) {
+                    Arrays.fill(eldest.getValue().key, (byte) 0);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Create the cache of the skipped keys, the least recently used key is evicted
+     *
+     * @return Return an empty cache
+     */
+    private static LinkedHashMap<Index, byte[]> newSkippedKeys() {
+        return new LinkedHashMap<Index, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Index, byte[]> eldest) {
+                if (size() > MAX_SKIPPED_KEYS) {
+                    Arrays.fill(eldest.getValue(), (byte) 0);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Check if a message looks like a ratchet message
+     *
+     * @param message Message
+     * @return Return a boolean if the message starts with a ratchet header
+     */
+    public static boolean isRatchet(byte[] message) {
+        return message.length >= HEADER_LENGTH + Cipher.getCipherOutputSize(0)
+                && message[0] == MARKER
+                && message[1] == VERSION;
+    }
+
+    /**
+     * Get the key identifier of the conversation of a ratchet message
+     *
+     * @param message Ratchet message
+     * @return Return the key identifier
+     */
+    public static long getKeyId(byte[] message) {
+        if (!isRatchet(message)) {
+            throw new IllegalArgumentException("Not a ratchet message");
+        }
+        return ByteBuffer.wrap(message, 2, 8).getLong();
+    }
+
+    /**
+     * Cipher an input with the next key of my chain
+     *
+     * @param input Text in Bytes
+     * @return Return the ratchet message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public synchronized byte[] cipher(byte[] input) throws GeneralSecurityException {
+        if (sendingChain.counter == Integer.MAX_VALUE) {
+            Arrays.fill(sendingChain.key, (byte) 0);
+            sendingChain = newChain(conversation, RandomService.getSecureRandom().nextLong());
+        }
+        long chainId = sendingChain.id;
+        int counter = sendingChain.counter;
+        byte[] messageKey = new byte[KEY_LENGTH];
+        try {
+            sendingChain.step(messageKey);
+            CipherSuite cipherSuite = conversation.getCipherSuite();
+            byte[] cipherMessage = Cipher.cipher(cipherSuite, cipherSuite.toSecretKey(messageKey), RandomService.nextIv(), input);
+            return ByteBuffer.allocate(HEADER_LENGTH + cipherMessage.length)
+                    .put(MARKER)
+                    .put(VERSION)
+                    .putLong(keyId)
+                    .putLong(chainId)
+                    .putInt(counter)
+                    .put(cipherMessage)
+                    .array();
+        } finally {
+            Arrays.fill(messageKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Decipher a ratchet message of the other person
+     * <pre>The chain moves forward only if the message is authentic, a key is erased once its message is deciphered</pre>
+     *
+     * @param message Ratchet message
+     * @return Return the deciphered message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the message is not authentic, already deciphered or too far ahead
+     */
+    public synchronized byte[] decipher(byte[] message) throws GeneralSecurityException {
+        if (getKeyId(message) != keyId) {
+            throw new IllegalArgumentException("Not a ratchet message of this conversation");
+        }
+        ByteBuffer header = ByteBuffer.wrap(message, 10, 12);
+        long chainId = header.getLong();
+        int counter = header.getInt();
+        if (chainId == sendingChain.id) {
+            throw new GeneralSecurityException("Reflected ratchet message");
+        }
+        if (counter < 0) {
+            throw new GeneralSecurityException("Invalid ratchet counter");
+        }
+        byte[] cipherMessage = Arrays.copyOfRange(message, HEADER_LENGTH, message.length);
+
+        Index index = new Index(chainId, counter);
+        byte[] skippedKey = skippedKeys.get(index);
+        if (skippedKey != null) {
+            byte[] plaintext = decipher(skippedKey, cipherMessage);
+            Arrays.fill(skippedKeys.remove(index), (byte) 0);
+            return plaintext;
+        }
+
+        Chain chain = receivingChains.get(chainId);
+        if (chain != null && counter < chain.counter) {
+            throw new GeneralSecurityException("Ratchet message already deciphered or its key was evicted");
+        }
+        if (counter - (chain != null ? chain.counter : 0) > MAX_SKIP) {
+            throw new GeneralSecurityException("Too many skipped ratchet messages");
+        }
+
+        //Work on a copy, the chain is kept if the message is not authentic
+        Chain next = chain != null ? chain.copy() : newChain(conversation, chainId);
+        LinkedHashMap<Index, byte[]> newSkippedKeys = new LinkedHashMap<>();
+        byte[] messageKey = new byte[KEY_LENGTH];
+        try {
+            while (next.counter < counter) {
+                byte[] key = new byte[KEY_LENGTH];
+                newSkippedKeys.put(new Index(chainId, next.counter), key);
+                next.step(key);
+            }
+            next.step(messageKey);
+            byte[] plaintext = decipher(messageKey, cipherMessage);
+
+            if (chain != null) {
+                Arrays.fill(chain.key, (byte) 0);
+            }
+            receivingChains.put(chainId, next);
+            skippedKeys.putAll(newSkippedKeys);
+            newSkippedKeys.clear();
+            return plaintext;
+        } finally {
+            Arrays.fill(messageKey, (byte) 0);
+            for (byte[] key : newSkippedKeys.values()) {
+                Arrays.fill(key, (byte) 0);
+            }
+            if (receivingChains.get(chainId) != next) {
+                Arrays.fill(next.key, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Decipher with a message key
+     *
+     * @param messageKey    Message key
+     * @param cipherMessage Ciphered message without the header
+     * @return Return the deciphered message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private byte[] decipher(byte[] messageKey, byte[] cipherMessage) throws GeneralSecurityException {
+        CipherSuite cipherSuite = conversation.getCipherSuite();
+        return Cipher.decipher(cipherSuite, cipherSuite.toSecretKey(messageKey), cipherMessage);
+    }
+
+    /**
+     * Encode the heads of the chains, the skipped keys are not saved
+     * <pre>sending chain = chainId (8 bytes) + counter (4 bytes) + chain key (32 bytes)
+     * count = byte = 1 byte
+     * receiving chains = count * 44 bytes</pre>
+     *
+     * @return Return the state of the ratchet
+     */
+    public synchronized byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(CHAIN_LENGTH + 1 + receivingChains.size() * CHAIN_LENGTH);
+        sendingChain.write(buffer);
+        buffer.put((byte) receivingChains.size());
+        for (Chain chain : receivingChains.values()) {
+            chain.write(buffer);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Get the number of keys of skipped messages kept
+     *
+     * @return Return the size of the cache
+     */
+    public synchronized int getSkippedKeysSize() {
+        return skippedKeys.size();
+    }
+
+    /**
+     * Get the conversation of the ratchet
+     *
+     * @return Return the conversation
+     */
+    public Conversation getConversation() {
+        return conversation;
+    }
+
+    /**
+     * Head of a chain
+     */
+    private static class Chain {
+        private final long id;
+        private final byte[] key;
+        private int counter;
+
+        Chain(long id, int counter, byte[] key) {
+            this.id = id;
+            this.counter = counter;
+            this.key = key;
+        }
+
+        /**
+         * Read a chain
+         *
+         * @param buffer Buffer at the start of the chain
+         * @return Return the chain
+         */
+        static Chain read(ByteBuffer buffer) {
+            long id = buffer.getLong();
+            int counter = buffer.getInt();
+            byte[] key = new byte[KEY_LENGTH];
+            buffer.get(key);
+            return new Chain(id, counter, key);
+        }
+
+        /**
+         * Write the chain
+         *
+         * @param buffer Buffer
+         */
+        void write(ByteBuffer buffer) {
+            buffer.putLong(id).putInt(counter).put(key);
+        }
+
+        /**
+         * Copy the chain
+         *
+         * @return Return a chain with its own key
+         */
+        Chain copy() {
+            return new Chain(id, counter, key.clone());
+        }
+
+        /**
+         * Move the chain to the next message
+         *
+         * @param messageKey Output for the key of the current message
+         * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+         */
+        void step(byte[] messageKey) throws GeneralSecurityException {
+            //The Mac copies the chain key before the output overwrites it
+            Hkdf.expand(key, STEP_INFO, key, messageKey);
+            counter++;
+        }
+    }
+
+    /**
+     * Position of a message in a chain
+     */
+    private static class Index {
+        private final long chainId;
+        private final int counter;
+
+        Index(long chainId, int counter) {
+            this.chainId = chainId;
+            this.counter = counter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Index)) {
+                return false;
+            }
+            Index index = (Index) o;
+            return chainId == index.chainId && counter == index.counter;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(chainId) + counter;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import fr.upec.e2ee.Tools;
+
+/**
+ * Re-key an existing Conversation without a new handshake
+ * <pre>Each person sends one resumption message, the new secret comes from the current secret and both nonces:
+ * new secret = HKDF(salt = smallest nonce + largest nonce, current secret, "resumption") = 32 bytes
+ * The messages are authenticated with a key derived from the current secret, so only the other person can send one
+ * and no public-key operation is needed. The new secret is not forward secret with respect to the current one.
+ * The MAC also covers the direction, the person with the smallest identity Public Key sends 0 and the other 1,
+ * so a message sent back to its sender is refused. A message older than MAX_AGE is refused.
+ * The previous secret is kept by {@link fr.upec.e2ee.mystate.MyConversations} until a message comes with the new one.
+ * version = byte = 1 byte
+ * keyId = long = 8 bytes
+ * timestamp = long = 8 bytes
+ * nonce = byte[32] = 32 bytes
+ * mac = HMAC-SHA512 truncated = 32 bytes
+ * Resumption message total size = 81 bytes</pre>
+ */
+public class Resumption {
+    /**
+     * Version of the resumption message
+     */
+    public static final byte VERSION = 1;
+    /**
+     * Length of a nonce
+     */
+    public static final int NONCE_LENGTH = 32;
+    /**
+     * Length of the MAC
+     */
+    public static final int MAC_LENGTH = 32;
+    /**
+     * Size of a resumption message
+     */
+    public static final int SIZE = 1 + 8 + 8 + NONCE_LENGTH + MAC_LENGTH;
+    /**
+     * Maximum difference in seconds between the timestamp of a resumption message and now
+     */
+    public static final long MAX_AGE = 24 * 60 * 60;
+    private static final String INFO = "resumption";
+    private static final String AUTH_INFO = "resumption-auth";
+    private final Conversation conversation;
+    private final long timestamp;
+    private final byte[] nonce;
+    private final byte[] authKey;
+    private final byte direction;
+
+    /**
+     * Start the resumption of a conversation
+     *
+     * @param conversation   Conversation to re-key
+     * @param myPublicKey    My Public Key
+     * @param otherPublicKey Public Key of the other person of the conversation
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public Resumption(Conversation conversation, PublicKey myPublicKey, PublicKey otherPublicKey) throws GeneralSecurityException {
+        int order = compare(myPublicKey.getEncoded(), otherPublicKey.getEncoded());
+        if (order == 0) {
+            throw new IllegalArgumentException("Same Public Key for both persons");
+        }
+        this.direction = (byte) (order < 0 ? 0 : 1);
+        this.conversation = conversation;
+        this.timestamp = Tools.getCurrentTime();
+        this.nonce = RandomService.nextBytes(NONCE_LENGTH);
+        this.authKey = new byte[32];
+        Hkdf.derive(new byte[0], conversation.getSecretKey(), AUTH_INFO, authKey);
+    }
+
+    /**
+     * Get the key identifier of the conversation of a resumption message
+     *
+     * @param message Resumption message
+     * @return Return the key identifier
+     */
+    public static long getKeyId(byte[] message) {
+        if (!isResumption(message)) {
+            throw new IllegalArgumentException("Not a resumption message");
+        }
+        return ByteBuffer.wrap(message, 1, 8).getLong();
+    }
+
+    /**
+     * Check if a message looks like a resumption message
+     *
+     * @param message Message
+     * @return Return a boolean if the message has the size and the version of a resumption message
+     */
+    public static boolean isResumption(byte[] message) {
+        return message.length == SIZE && message[0] == VERSION;
+    }
+
+    /**
+     * Compute the MAC of a resumption message
+     *
+     * @param direction Direction of the message, 0 from the person with the smallest Public Key, else 1
+     * @param message   Resumption message, the MAC is not read
+     * @return Return the MAC
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private byte[] mac(byte direction, byte[] message) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(Hkdf.ALGORITHM);
+        mac.init(new SecretKeySpec(authKey, Hkdf.ALGORITHM));
+        mac.update(direction);
+        mac.update(message, 0, SIZE - MAC_LENGTH);
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+
+    /**
+     * Encode my resumption message
+     *
+     * @return Return the resumption message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public byte[] toBytes() throws GeneralSecurityException {
+        byte[] message = ByteBuffer.allocate(SIZE)
+                .put(VERSION)
+                .putLong(conversation.getKeyId())
+                .putLong(timestamp)
+                .put(nonce)
+                .array();
+        System.arraycopy(mac(direction, message), 0, message, SIZE - MAC_LENGTH, MAC_LENGTH);
+        return message;
+    }
+
+    /**
+     * Handle the resumption message of the other person and derive the new conversation
+     *
+     * @param otherMessage Resumption message of the other person
+     * @return Return the conversation with the new secret
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the message is not from the other person of the conversation or too old
+     */
+    public Conversation handle(byte[] otherMessage) throws GeneralSecurityException {
+        if (!isResumption(otherMessage) || getKeyId(otherMessage) != conversation.getKeyId()) {
+            throw new IllegalArgumentException("Not a resumption message of this conversation");
+        }
+        if (!MessageDigest.isEqual(mac((byte) (1 - direction), otherMessage), Arrays.copyOfRange(otherMessage, SIZE - MAC_LENGTH, SIZE))) {
+            throw new AEADBadTagException("Invalid resumption message");
+        }
+        long otherTimestamp = ByteBuffer.wrap(otherMessage, 9, 8).getLong();
+        if (Math.abs(Tools.getCurrentTime() - otherTimestamp) > MAX_AGE) {
+            throw new GeneralSecurityException("Resumption message too old");
+        }
+        byte[] otherNonce = Arrays.copyOfRange(otherMessage, 17, 17 + NONCE_LENGTH);
+        if (MessageDigest.isEqual(nonce, otherNonce)) {
+            throw new GeneralSecurityException("Reflected resumption message");
+        }
+
+        boolean mineFirst = compare(nonce, otherNonce) < 0; //Same salt for both persons
+        byte[] salt = ByteBuffer.allocate(2 * NONCE_LENGTH)
+                .put(mineFirst ? nonce : otherNonce)
+                .put(mineFirst ? otherNonce : nonce)
+                .array();
+        byte[] secretKey = new byte[32];
+        Hkdf.derive(salt, conversation.getSecretKey(), INFO, secretKey);
+
+        return new Conversation(conversation.getName(), Math.max(timestamp, otherTimestamp), secretKey, conversation.getCipherSuite());
+    }
+
+    /**
+     * Compare two nonces or two encoded Public Keys as unsigned numbers
+     *
+     * @param a First array
+     * @param b Second array
+     * @return Return a negative number if a is smaller, 0 if equal, else a positive number
+     */
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Get the conversation to re-key
+     *
+     * @return Return the conversation
+     */
+    public Conversation getConversation() {
+        return conversation;
+    }
+}
@@ -15,9 +15,18 @@ import fr.upec.e2ee.Tools;
  * byte[] myPubKey = 120 bytes
  * byte[] otherPubKey = 120 bytes
  * byte[] symKey = 32 bytes
- * SecretBuild total size = 416 bytes</pre>
+ * SecretBuild total size = 416 bytes
+ * If the CipherSuite is not AES-256-GCM, its identifier is appended (1 byte),
+ * so the signed SecretBuild covers the negotiated CipherSuite
+ * If the KeySuite is Curve25519, the CipherSuite (1 byte), the KeySuite (1 byte)
+ * and the X25519 Public Keys (2 * 32 bytes) are appended, so the signed SecretBuild covers the keys really agreed.
+ * A Curve25519 Message1 has no secp384r1 Public Key, its place is filled with zeros</pre>
  */
 public class SecretBuild {
+    /**
+     * Length of an encoded secp384r1 Public Key
+     */
+    public static final int PUBLIC_KEY_LENGTH = 120;
     private final long myDate;
     private final long otherDate;
     private final byte[] myNonce;
@@ -25,6 +34,10 @@ public class SecretBuild {
     private final byte[] myPubKey;
     private final byte[] otherPubKey;
     private final byte[] symKey;
+    private final CipherSuite cipherSuite;
+    private final KeySuite keySuite;
+    private final byte[] myAgreementKey;
+    private final byte[] otherAgreementKey;
     private String name;
 
     /**
@@ -39,13 +52,56 @@ public class SecretBuild {
      * @param symKey      Symmetric Key as Base64
      */
     public SecretBuild(long myDate, long otherDate, byte[] myNonce, byte[] otherNonce, byte[] myPubKey, byte[] otherPubKey, byte[] symKey) {
+        this(myDate, otherDate, myNonce, otherNonce, myPubKey, otherPubKey, symKey, CipherSuite.AES_256_GCM);
+    }
+
+    /**
+     * SecretBuild Constructor with a CipherSuite
+     *
+     * @param myDate      My Date as UNIX Timestamp
+     * @param otherDate   Other Date as UNIX Timestamp
+     * @param myNonce     My Nonce (salt)
+     * @param otherNonce  Other Nonce (salt)
+     * @param myPubKey    My Public Key as Base64
+     * @param otherPubKey My Public Key as Base64
+     * @param symKey      Symmetric Key as Base64
+     * @param cipherSuite Negotiated CipherSuite
+     */
+    public SecretBuild(long myDate, long otherDate, byte[] myNonce, byte[] otherNonce, byte[] myPubKey, byte[] otherPubKey, byte[] symKey, CipherSuite cipherSuite) {
+        this(myDate, otherDate, myNonce, otherNonce, myPubKey, otherPubKey, symKey, cipherSuite, KeySuite.SECP384R1_P256, null, null);
+    }
+
+    /**
+     * SecretBuild Constructor with a CipherSuite and a KeySuite
+     *
+     * @param myDate            My Date as UNIX Timestamp
+     * @param otherDate         Other Date as UNIX Timestamp
+     * @param myNonce           My Nonce (salt)
+     * @param otherNonce        Other Nonce (salt)
+     * @param myPubKey          My Public Key as Base64, null for a Curve25519 Message1
+     * @param otherPubKey       My Public Key as Base64, null for a Curve25519 Message1
+     * @param symKey            Symmetric Key as Base64
+     * @param cipherSuite       Negotiated CipherSuite
+     * @param keySuite          Negotiated KeySuite
+     * @param myAgreementKey    My raw X25519 Public Key, null for secp384r1
+     * @param otherAgreementKey Other raw X25519 Public Key, null for secp384r1
+     */
+    public SecretBuild(long myDate, long otherDate, byte[] myNonce, byte[] otherNonce, byte[] myPubKey, byte[] otherPubKey, byte[] symKey,
+                       CipherSuite cipherSuite, KeySuite keySuite, byte[] myAgreementKey, byte[] otherAgreementKey) {
+        if (keySuite == KeySuite.CURVE25519 && (myAgreementKey == null || otherAgreementKey == null)) {
+            throw new IllegalArgumentException("Missing X25519 Public Key");
+        }
         this.myDate = myDate;
         this.otherDate = otherDate;
         this.myNonce = myNonce;
         this.otherNonce = otherNonce;
-        this.myPubKey = myPubKey;
-        this.otherPubKey = otherPubKey;
+        this.myPubKey = myPubKey != null ? myPubKey : new byte[PUBLIC_KEY_LENGTH];
+        this.otherPubKey = otherPubKey != null ? otherPubKey : new byte[PUBLIC_KEY_LENGTH];
         this.symKey = symKey;
+        this.cipherSuite = cipherSuite;
+        this.keySuite = keySuite;
+        this.myAgreementKey = keySuite == KeySuite.CURVE25519 ? myAgreementKey : null;
+        this.otherAgreementKey = keySuite == KeySuite.CURVE25519 ? otherAgreementKey : null;
     }
 
     /**
@@ -61,6 +117,10 @@ public class SecretBuild {
         this.myPubKey = mySecretBuild.otherPubKey;
         this.otherPubKey = mySecretBuild.myPubKey;
         this.symKey = null;
+        this.cipherSuite = mySecretBuild.cipherSuite;
+        this.keySuite = mySecretBuild.keySuite;
+        this.myAgreementKey = mySecretBuild.otherAgreementKey;
+        this.otherAgreementKey = mySecretBuild.myAgreementKey;
     }
 
     /**
@@ -76,6 +136,16 @@ public class SecretBuild {
         this.myPubKey = Arrays.copyOfRange(conversation, 144, 264);
         this.otherPubKey = Arrays.copyOfRange(conversation, 264, 384);
         this.symKey = Arrays.copyOfRange(conversation, 384, 416);
+        this.cipherSuite = conversation.length > 416 ? CipherSuite.fromId(conversation[416]) : CipherSuite.AES_256_GCM;
+        if (conversation.length > 417) {
+            this.keySuite = KeySuite.fromId(conversation[417]);
+            this.myAgreementKey = Arrays.copyOfRange(conversation, 418, 418 + KeySuite.KEY_LENGTH);
+            this.otherAgreementKey = Arrays.copyOfRange(conversation, 418 + KeySuite.KEY_LENGTH, 418 + 2 * KeySuite.KEY_LENGTH);
+        } else {
+            this.keySuite = KeySuite.SECP384R1_P256;
+            this.myAgreementKey = null;
+            this.otherAgreementKey = null;
+        }
         this.name = name;
     }
 
@@ -90,7 +160,11 @@ public class SecretBuild {
                 this.otherDate == other.myDate && //Nonce can't be compared
                 Arrays.equals(this.myPubKey, other.otherPubKey) &&
                 Arrays.equals(this.otherPubKey, other.myPubKey) &&
-                Arrays.equals(this.symKey, other.symKey);
+                Arrays.equals(this.symKey, other.symKey) &&
+                this.cipherSuite == other.cipherSuite &&
+                this.keySuite == other.keySuite &&
+                Arrays.equals(this.myAgreementKey, other.otherAgreementKey) &&
+                Arrays.equals(this.otherAgreementKey, other.myAgreementKey);
     }
 
     /**
@@ -99,13 +173,14 @@ public class SecretBuild {
      * @return Return SecretBuild as byte[]
      */
     public byte[] toBytesWithoutSymKey() {
-        ByteBuffer buffer = ByteBuffer.allocate(384);
+        ByteBuffer buffer = ByteBuffer.allocate(384 + getCipherSuiteLength());
         buffer.putLong(myDate);
         buffer.putLong(otherDate);
         buffer.put(myNonce);
         buffer.put(otherNonce);
         buffer.put(myPubKey);
         buffer.put(otherPubKey);
+        putCipherSuite(buffer);
         return buffer.array();
     }
 
@@ -115,7 +190,7 @@ public class SecretBuild {
      * @return Return SecretBuild as byte[]
      */
     public byte[] toBytesWithSymKey() {
-        ByteBuffer buffer = ByteBuffer.allocate(416);
+        ByteBuffer buffer = ByteBuffer.allocate(416 + getCipherSuiteLength());
         buffer.putLong(myDate);
         buffer.putLong(otherDate);
         buffer.put(myNonce);
@@ -124,9 +199,39 @@ public class SecretBuild {
         buffer.put(otherPubKey);
         assert symKey != null;
         buffer.put(symKey);
+        putCipherSuite(buffer);
         return buffer.array();
     }
 
+    /**
+     * Get the length of the encoded suites
+     *
+     * @return Return 0 for AES-256-GCM and secp384r1 (same bytes as the previous versions),
+     * 1 for another CipherSuite, 2 + 2 * 32 for Curve25519
+     */
+    private int getCipherSuiteLength() {
+        if (keySuite == KeySuite.CURVE25519) {
+            return 2 + 2 * KeySuite.KEY_LENGTH;
+        }
+        return cipherSuite == CipherSuite.AES_256_GCM ? 0 : 1;
+    }
+
+    /**
+     * Encode the suites if they are not AES-256-GCM and secp384r1
+     *
+     * @param buffer Buffer
+     */
+    private void putCipherSuite(ByteBuffer buffer) {
+        if (getCipherSuiteLength() != 0) {
+            buffer.put(cipherSuite.getId());
+        }
+        if (keySuite == KeySuite.CURVE25519) {
+            buffer.put(keySuite.getId());
+            buffer.put(myAgreementKey);
+            buffer.put(otherAgreementKey);
+        }
+    }
+
     /**
      * Get my UNIX timestamp
      *
@@ -181,6 +286,24 @@ public class SecretBuild {
         return symKey;
     }
 
+    /**
+     * Get the negotiated CipherSuite
+     *
+     * @return Return the CipherSuite
+     */
+    public CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * Get the negotiated KeySuite
+     *
+     * @return Return the KeySuite
+     */
+    public KeySuite getKeySuite() {
+        return keySuite;
+    }
+
     /**
      * Get name of the user for the message
      *
@@ -0,0 +1,176 @@
+package fr.upec.e2ee.protocol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Read any range of a file ciphered by {@link StreamCipher} without deciphering what comes before
+ * <pre>Segment i starts at HEADER_LENGTH + i * CIPHER_SEGMENT_SIZE, so a position gives its segment directly
+ * and a read only deciphers the segments covering the range.
+ * The file is mapped by regions of REGION_SEGMENTS segments, so files larger than 2 GiB can be read.
+ * Each segment is authenticated with its index and the last flag,
+ * so a moved, altered or truncated segment is detected when it is read</pre>
+ */
+public class SeekableDecipher implements Closeable {
+    /**
+     * Number of segments per mapped region (about 1 GiB)
+     */
+    public static final int REGION_SEGMENTS = 16 * 1024;
+    private static final long REGION_SIZE = (long) REGION_SEGMENTS * StreamCipher.CIPHER_SEGMENT_SIZE;
+    private final FileChannel channel;
+    private final byte[] header;
+    private final SecretKey key;
+    private final long cipherSize;
+    private final long plainSize;
+    private final long segments;
+    private final MappedByteBuffer[] regions;
+    private final byte[] segment = new byte[StreamCipher.SEGMENT_SIZE];
+    private long segmentIndex = -1;
+    private int segmentLength;
+
+    /**
+     * Open a ciphered file of a conversation
+     *
+     * @param conversation Conversation holding the stream key
+     * @param file         Ciphered file
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the header is not valid
+     */
+    public SeekableDecipher(Conversation conversation, File file) throws IOException, GeneralSecurityException {
+        this(conversation.getStreamKey(), file);
+    }
+
+    /**
+     * Open a ciphered file
+     *
+     * @param streamKey Stream key of the conversation
+     * @param file      Ciphered file
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the header is not valid
+     */
+    public SeekableDecipher(byte[] streamKey, File file) throws IOException, GeneralSecurityException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.cipherSize = channel.size();
+            this.plainSize = StreamCipher.getPlainSize(cipherSize);
+            this.segments = Math.max(1, (plainSize + StreamCipher.SEGMENT_SIZE - 1) / StreamCipher.SEGMENT_SIZE);
+
+            ByteBuffer headerBuffer = ByteBuffer.allocate(StreamCipher.HEADER_LENGTH);
+            while (headerBuffer.hasRemaining()) {
+                if (channel.read(headerBuffer, headerBuffer.position()) == -1) {
+                    throw new GeneralSecurityException("Truncated stream");
+                }
+            }
+            this.header = headerBuffer.array();
+            this.key = StreamCipher.deriveKey(streamKey, header);
+            this.regions = new MappedByteBuffer[(int) ((segments + REGION_SEGMENTS - 1) / REGION_SEGMENTS)];
+        } catch (IOException | GeneralSecurityException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the size of the plaintext
+     *
+     * @return Return the size of the plaintext
+     */
+    public long size() {
+        return plainSize;
+    }
+
+    /**
+     * Read a range of the plaintext
+     *
+     * @param position Position in the plaintext
+     * @param output   Output
+     * @param offset   Offset in the output
+     * @param length   Maximum number of bytes to read
+     * @return Return the number of bytes read, -1 if the position is at the end of the plaintext
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if a segment is altered
+     */
+    public synchronized int read(long position, byte[] output, int offset, int length) throws IOException, GeneralSecurityException {
+        if (position < 0 || offset < 0 || length < 0 || offset + length > output.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (position >= plainSize) {
+            return length == 0 ? 0 : -1;
+        }
+
+        int total = (int) Math.min(length, plainSize - position);
+        int done = 0;
+        while (done < total) {
+            long index = (position + done) / StreamCipher.SEGMENT_SIZE;
+            int inSegment = (int) ((position + done) % StreamCipher.SEGMENT_SIZE);
+            loadSegment(index);
+            int count = Math.min(total - done, segmentLength - inSegment);
+            System.arraycopy(segment, inSegment, output, offset + done, count);
+            done += count;
+        }
+        return total;
+    }
+
+    /**
+     * Read a range of the plaintext
+     *
+     * @param position Position in the plaintext
+     * @param length   Number of bytes to read
+     * @return Return the plaintext, shorter than length at the end of the plaintext
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if a segment is altered
+     */
+    public byte[] read(long position, int length) throws IOException, GeneralSecurityException {
+        byte[] output = new byte[(int) Math.max(0, Math.min(length, plainSize - position))];
+        read(position, output, 0, output.length);
+        return output;
+    }
+
+    /**
+     * Decipher a segment, the last deciphered segment is kept for the next reads
+     *
+     * @param index Index of the segment
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the segment is altered
+     */
+    private void loadSegment(long index) throws IOException, GeneralSecurityException {
+        if (index == segmentIndex) {
+            return;
+        }
+        segmentIndex = -1;
+
+        int region = (int) (index / REGION_SEGMENTS);
+        MappedByteBuffer mapped = regions[region];
+        if (mapped == null) {
+            long start = StreamCipher.HEADER_LENGTH + region * REGION_SIZE;
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, cipherSize - start));
+            regions[region] = mapped;
+        }
+
+        ByteBuffer input = mapped.duplicate();
+        int start = (int) ((index % REGION_SEGMENTS) * StreamCipher.CIPHER_SEGMENT_SIZE);
+        input.position(start);
+        input.limit(Math.min(start + StreamCipher.CIPHER_SEGMENT_SIZE, input.capacity()));
+
+        segmentLength = StreamCipher.decipherSegment(key, header, index, index == segments - 1, input, ByteBuffer.wrap(segment));
+        segmentIndex = index;
+    }
+
+    /**
+     * Close the file
+     *
+     * @throws IOException Throws IOException if there is an I/O exception
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,176 @@
+package fr.upec.e2ee.protocol;
+
+import java.security.SignatureException;
+import java.util.Arrays;
+
+/**
+ * Convert P-256 ECDSA signatures between R and S (64 bytes) and DER, in the buffers of the caller
+ * <pre>R and S are fixed halves of HALF_LENGTH bytes, big-endian and padded with zeros.
+ * DER = 0x30 + length + (0x02 + length + R) + (0x02 + length + S), an INTEGER has no useless leading zero
+ * and a zero in front if its first byte is 0x80 or more. The lengths are always under 128, so they take one byte.
+ * Only strict DER is accepted, like the DER parser of the previous versions. No BigInteger, no DER object,
+ * so the result is the same on every API level</pre>
+ */
+public class SignatureTranscoder {
+    /**
+     * Length of R or S
+     */
+    public static final int HALF_LENGTH = 32;
+    /**
+     * Length of R and S
+     */
+    public static final int RAW_LENGTH = 2 * HALF_LENGTH;
+    /**
+     * Maximum length of a DER signature
+     */
+    public static final int MAX_DER_LENGTH = 2 + 2 * (2 + HALF_LENGTH + 1);
+    private static final byte TAG_SEQUENCE = 0x30;
+    private static final byte TAG_INTEGER = 0x02;
+
+    /**
+     * Encode R and S to DER
+     * <pre>The halves of a shorter signature of the previous versions (k bytes each, k up to HALF_LENGTH) are accepted</pre>
+     *
+     * @param raw       Array holding R and S
+     * @param rawOffset Offset of R
+     * @param rawLength Length of R and S
+     * @param der       Output of at least MAX_DER_LENGTH bytes after derOffset
+     * @param derOffset Offset in the output
+     * @return Return the length of the DER signature
+     * @throws SignatureException Throws SignatureException if the signature does not have the length of R and S
+     */
+    public static int toDer(byte[] raw, int rawOffset, int rawLength, byte[] der, int derOffset) throws SignatureException {
+        if (rawLength <= 0 || rawLength % 2 != 0 || rawLength > RAW_LENGTH) {
+            throw new SignatureException("Could not encode signature");
+        }
+        if (der.length - derOffset < MAX_DER_LENGTH) {
+            throw new IllegalArgumentException("Output too short");
+        }
+        int half = rawLength / 2;
+        int rLength = getIntegerLength(raw, rawOffset, half);
+        int sLength = getIntegerLength(raw, rawOffset + half, half);
+
+        int position = derOffset;
+        der[position++] = TAG_SEQUENCE;
+        der[position++] = (byte) (2 + rLength + 2 + sLength);
+        position = putInteger(raw, rawOffset, half, rLength, der, position);
+        position = putInteger(raw, rawOffset + half, half, sLength, der, position);
+        return position - derOffset;
+    }
+
+    /**
+     * Decode DER to R and S
+     *
+     * @param der       Array holding the DER signature
+     * @param derOffset Offset of the DER signature
+     * @param derLength Length of the DER signature
+     * @param raw       Output of at least RAW_LENGTH bytes after rawOffset
+     * @param rawOffset Offset in the output
+     * @return Return RAW_LENGTH
+     * @throws SignatureException Throws SignatureException if the signature is not a strict DER P-256 signature
+     */
+    public static int toRaw(byte[] der, int derOffset, int derLength, byte[] raw, int rawOffset) throws SignatureException {
+        if (raw.length - rawOffset < RAW_LENGTH) {
+            throw new IllegalArgumentException("Output too short");
+        }
+        int end = derOffset + derLength;
+        if (derLength < 8 || derLength > MAX_DER_LENGTH
+                || der[derOffset] != TAG_SEQUENCE
+                || (der[derOffset + 1] & 0xFF) != derLength - 2) {
+            throw new SignatureException("Invalid encoding for signature");
+        }
+        int position = getInteger(der, derOffset + 2, end, raw, rawOffset);
+        position = getInteger(der, position, end, raw, rawOffset + HALF_LENGTH);
+        if (position != end) {
+            throw new SignatureException("Invalid encoding for signature"); //Trailing data
+        }
+        return RAW_LENGTH;
+    }
+
+    /**
+     * Get the length of the DER content of an unsigned big-endian integer
+     *
+     * @param raw    Array holding the integer
+     * @param offset Offset of the integer
+     * @param length Length of the integer
+     * @return Return the length without the leading zeros, plus one if the first byte is 0x80 or more
+     */
+    private static int getIntegerLength(byte[] raw, int offset, int length) {
+        int zeros = getLeadingZeros(raw, offset, length);
+        return length - zeros + (raw[offset + zeros] < 0 ? 1 : 0);
+    }
+
+    /**
+     * Count the leading zeros of an unsigned big-endian integer, the last byte is always kept
+     *
+     * @param raw    Array holding the integer
+     * @param offset Offset of the integer
+     * @param length Length of the integer
+     * @return Return the number of leading zeros
+     */
+    private static int getLeadingZeros(byte[] raw, int offset, int length) {
+        int zeros = 0;
+        while (zeros < length - 1 && raw[offset + zeros] == 0) {
+            zeros++;
+        }
+        return zeros;
+    }
+
+    /**
+     * Write a DER INTEGER
+     *
+     * @param raw           Array holding the unsigned integer
+     * @param offset        Offset of the integer
+     * @param length        Length of the integer
+     * @param contentLength Length of the DER content from getIntegerLength
+     * @param der           Output
+     * @param position      Position in the output
+     * @return Return the position after the INTEGER
+     */
+    private static int putInteger(byte[] raw, int offset, int length, int contentLength, byte[] der, int position) {
+        int zeros = getLeadingZeros(raw, offset, length);
+        der[position++] = TAG_INTEGER;
+        der[position++] = (byte) contentLength;
+        if (raw[offset + zeros] < 0) {
+            der[position++] = 0; //Positive
+        }
+        System.arraycopy(raw, offset + zeros, der, position, length - zeros);
+        return position + length - zeros;
+    }
+
+    /**
+     * Read a DER INTEGER into a half
+     *
+     * @param der      Array holding the DER signature
+     * @param position Position of the INTEGER
+     * @param end      End of the DER signature
+     * @param raw      Output
+     * @param offset   Offset of the half in the output
+     * @return Return the position after the INTEGER
+     * @throws SignatureException Throws SignatureException if the INTEGER is not strict DER or does not fit in a half
+     */
+    private static int getInteger(byte[] der, int position, int end, byte[] raw, int offset) throws SignatureException {
+        if (end - position < 3 || der[position] != TAG_INTEGER) {
+            throw new SignatureException("Invalid encoding for signature");
+        }
+        int length = der[position + 1] & 0xFF;
+        position += 2;
+        if (length == 0 || length > end - position
+                || der[position] < 0 //Negative
+                || (length > 1 && der[position] == 0 && der[position + 1] >= 0)) { //Useless leading zero
+            throw new SignatureException("Invalid encoding for signature");
+        }
+        int start = position;
+        int magnitude = length;
+        if (length > 1 && der[position] == 0) {
+            start++;
+            magnitude--;
+        }
+        if (magnitude > HALF_LENGTH) {
+            throw new SignatureException("Invalid encoding for signature");
+        }
+        Arrays.fill(raw, offset, offset + HALF_LENGTH - magnitude, (byte) 0);
+        System.arraycopy(der, start, raw, offset + HALF_LENGTH - magnitude, magnitude);
+        return position + length;
+    }
+}
@@ -0,0 +1,255 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import fr.upec.e2ee.mystate.MyDirectory;
+
+/**
+ * Message1 signed by the identity of its sender, so the conversation is created after one exchange without Message2
+ * <pre>The signature covers CONTEXT + the whole Message1: timestamp, nonce, ephemeral keys and suites.
+ * The signature does not name the other person, so the secret of the conversation is bound to both identities:
+ * secret = HKDF(salt = smallest identity Public Key + largest identity Public Key, secret of the Message1, "signed-message1") = 32 bytes
+ * A Message1 signed again by someone else gives another secret than the one of its sender, so its messages are refused.
+ * Message1 = 192, 195 or 108 bytes
+ * signature = KeySuite.SIGNATURE_LENGTH bytes, or a delegated signature of a {@link SigningSubkey}
+ * fingerprint = fingerprint of the Public Key of the sender = 8 bytes
+ * length of the signature = short = 2 bytes
+ * A message with the length of an unsigned Message1 is never taken as signed</pre>
+ */
+public class SignedMessage1 {
+    /**
+     * Length of the fingerprint and the length of the signature
+     */
+    public static final int TRAILER_LENGTH = MyDirectory.HINT_LENGTH + 2;
+    /**
+     * Maximum difference in seconds between the timestamp of a signed Message1 and now
+     */
+    public static final long MAX_AGE = 24 * 60 * 60;
+    private static final byte[] CONTEXT = "e2ee-signed-message1".getBytes(StandardCharsets.UTF_8);
+    private static final String INFO = "signed-message1";
+
+    /**
+     * Sign a Message1 with my Private Key
+     *
+     * @param message1     Message1
+     * @param myPrivateKey Your Private Key
+     * @param myPublicKey  Your Public Key, for the fingerprint
+     * @return Return the signed Message1
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] sign(Message1 message1, PrivateKey myPrivateKey, PublicKey myPublicKey) throws GeneralSecurityException {
+        byte[] message1Bytes = message1.toBytes();
+        return append(message1Bytes, Sign.sign(myPrivateKey, toSigned(CONTEXT, message1Bytes, message1Bytes.length)), myPublicKey);
+    }
+
+    /**
+     * Sign a Message1 with my SigningSubkey
+     *
+     * @param message1        Message1
+     * @param mySigningSubkey Your SigningSubkey
+     * @param myPublicKey     Your Public Key, for the fingerprint
+     * @return Return the signed Message1
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static byte[] sign(Message1 message1, SigningSubkey mySigningSubkey, PublicKey myPublicKey) throws GeneralSecurityException {
+        byte[] message1Bytes = message1.toBytes();
+        return append(message1Bytes, mySigningSubkey.sign(toSigned(CONTEXT, message1Bytes, message1Bytes.length)), myPublicKey);
+    }
+
+    /**
+     * Get the bytes signed by the sender
+     *
+     * @param context Context of the signature
+     * @param body    Array starting with the signed body
+     * @param length  Length of the body
+     * @return Return the context followed by the body
+     */
+    static byte[] toSigned(byte[] context, byte[] body, int length) {
+        return ByteBuffer.allocate(context.length + length)
+                .put(context)
+                .put(body, 0, length)
+                .array();
+    }
+
+    /**
+     * Append the signature, the fingerprint and the length of the signature to a body, also used by the prekeys
+     *
+     * @param body        Message1 or another signed body
+     * @param signature   Signature of the body
+     * @param myPublicKey Your Public Key
+     * @return Return the signed body
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static byte[] append(byte[] body, byte[] signature, PublicKey myPublicKey) throws GeneralSecurityException {
+        return ByteBuffer.allocate(body.length + signature.length + TRAILER_LENGTH)
+                .put(body)
+                .put(signature)
+                .putLong(MyDirectory.getFingerprint(myPublicKey.getEncoded()))
+                .putShort((short) signature.length)
+                .array();
+    }
+
+    /**
+     * Bind a secret to the identities of both persons
+     *
+     * @param secret         Secret agreed without the identities
+     * @param info           Info of the HKDF
+     * @param myPublicKey    My identity Public Key
+     * @param otherPublicKey Identity Public Key of the other person
+     * @return Return the secret bound to both identities, the same for both persons
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static byte[] bind(byte[] secret, String info, PublicKey myPublicKey, PublicKey otherPublicKey) throws GeneralSecurityException {
+        byte[] bound = new byte[secret.length];
+        Hkdf.derive(getIdentities(myPublicKey, otherPublicKey), secret, info, bound);
+        return bound;
+    }
+
+    /**
+     * Get the identities of both persons in the same order for both, also used by the prekeys
+     *
+     * @param myPublicKey    My identity Public Key
+     * @param otherPublicKey Identity Public Key of the other person
+     * @return Return the smallest encoded Public Key followed by the largest
+     */
+    static byte[] getIdentities(PublicKey myPublicKey, PublicKey otherPublicKey) {
+        byte[] mine = myPublicKey.getEncoded();
+        byte[] other = otherPublicKey.getEncoded();
+        boolean mineFirst = compare(mine, other) < 0;
+        return ByteBuffer.allocate(mine.length + other.length)
+                .put(mineFirst ? mine : other)
+                .put(mineFirst ? other : mine)
+                .array();
+    }
+
+    /**
+     * Bind the secret of a signed Message1 to the identities of both persons
+     *
+     * @param secret         Secret agreed with the Message1
+     * @param myPublicKey    My identity Public Key
+     * @param otherPublicKey Identity Public Key of the signer of the other Message1
+     * @return Return the secret of the conversation
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static byte[] bind(byte[] secret, PublicKey myPublicKey, PublicKey otherPublicKey) throws GeneralSecurityException {
+        return bind(secret, INFO, myPublicKey, otherPublicKey);
+    }
+
+    /**
+     * Compare two encoded Public Keys as unsigned numbers
+     *
+     * @param a First Public Key
+     * @param b Second Public Key
+     * @return Return a negative number if a is smaller, 0 if equal, else a positive number
+     */
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Get the length of the body before the signature
+     *
+     * @param signed Signed body
+     * @return Return the length of the body, -1 if there is no room for the signature
+     */
+    static int getBodyLength(byte[] signed) {
+        if (signed.length < TRAILER_LENGTH + KeySuite.SIGNATURE_LENGTH) {
+            return -1;
+        }
+        int signatureLength = ByteBuffer.wrap(signed, signed.length - 2, 2).getShort() & 0xFFFF;
+        if (signatureLength < KeySuite.SIGNATURE_LENGTH || signatureLength > signed.length - TRAILER_LENGTH) {
+            return -1;
+        }
+        return signed.length - TRAILER_LENGTH - signatureLength;
+    }
+
+    /**
+     * Get the person who signed a body
+     *
+     * @param myDirectory My Directory
+     * @param signed      Signed body
+     * @param bodyLength  Length of the body from getBodyLength
+     * @param context     Context of the signature
+     * @return Return the name of the signer
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the signature or its certificate is invalid
+     */
+    static String getSigner(MyDirectory myDirectory, byte[] signed, int bodyLength, byte[] context) throws GeneralSecurityException {
+        byte[] signature = Arrays.copyOfRange(signed, bodyLength, signed.length - 2); //With the fingerprint
+        byte[] signedBytes = toSigned(context, signed, bodyLength);
+        return SigningSubkey.isDelegated(signature)
+                ? SigningSubkey.getSigner(myDirectory, signature, signedBytes)
+                : myDirectory.getSigner(signature, signedBytes);
+    }
+
+    /**
+     * Get the length of the Message1 inside a signed Message1
+     *
+     * @param signedMessage1 Signed Message1
+     * @return Return the length of the Message1, -1 if the message is not a signed Message1
+     */
+    private static int getMessage1Length(byte[] signedMessage1) {
+        if (signedMessage1.length == Message1.SIZE || signedMessage1.length == Message1.EXTENDED_SIZE
+                || signedMessage1.length == Message1.CURVE25519_SIZE) {
+            return -1; //Message1 not signed
+        }
+        int length = getBodyLength(signedMessage1);
+        if (length != Message1.SIZE && length != Message1.EXTENDED_SIZE && length != Message1.CURVE25519_SIZE) {
+            return -1;
+        }
+        if (length == Message1.CURVE25519_SIZE && signedMessage1[72] != Message1.VERSION_CURVE25519) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Check if a message is a signed Message1
+     *
+     * @param message Message received
+     * @return Return a boolean if the message is a Message1 followed by a signature
+     */
+    public static boolean isSigned(byte[] message) {
+        return getMessage1Length(message) != -1;
+    }
+
+    /**
+     * Get the Message1 of a signed Message1, without checking the signature
+     *
+     * @param signedMessage1 Signed Message1
+     * @return Return the Message1
+     */
+    public static byte[] getMessage1(byte[] signedMessage1) {
+        int length = getMessage1Length(signedMessage1);
+        if (length == -1) {
+            throw new IllegalArgumentException("Not a signed Message1");
+        }
+        return Arrays.copyOf(signedMessage1, length);
+    }
+
+    /**
+     * Get the person who signed a signed Message1
+     *
+     * @param myDirectory    My Directory
+     * @param signedMessage1 Signed Message1
+     * @return Return the name of the signer
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the signature or its certificate is invalid
+     */
+    public static String getSigner(MyDirectory myDirectory, byte[] signedMessage1) throws GeneralSecurityException {
+        int length = getMessage1Length(signedMessage1);
+        if (length == -1) {
+            throw new IllegalArgumentException("Not a signed Message1");
+        }
+        return getSigner(myDirectory, signedMessage1, length, CONTEXT);
+    }
+}
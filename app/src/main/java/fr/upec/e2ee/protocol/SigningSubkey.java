@@ -0,0 +1,232 @@
+package fr.upec.e2ee.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateExpiredException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import fr.upec.e2ee.Tools;
+import fr.upec.e2ee.mystate.MyDirectory;
+
+/**
+ * Software signing key certified once by the identity key of the KeyStore
+ * <pre>The identity key signs the certificate of a short-lived subkey kept in memory only,
+ * then every Message2 is signed by the subkey without going through the KeyStore or asking the user.
+ * The subkey is Ed25519 if Curve25519 is the preferred KeySuite, else P-256.
+ * version = byte = 1 byte
+ * expiration = long = 8 bytes
+ * length of the subkey = short = 2 bytes
+ * subkey = X.509 Public Key
+ * certificate signature = signature of CONTEXT + previous fields by the identity key = 64 bytes
+ * Delegated signature = certificate + signature of the message by the subkey (64 bytes)</pre>
+ */
+public class SigningSubkey {
+    /**
+     * Version of the certificate
+     */
+    public static final byte VERSION = 1;
+    /**
+     * Default lifetime of a subkey in seconds
+     */
+    public static final long DEFAULT_LIFETIME = 60 * 60;
+    /**
+     * Maximum lifetime of a subkey in seconds, a longer certificate is refused
+     */
+    public static final long MAX_LIFETIME = 24 * 60 * 60;
+    /**
+     * Time in seconds before the expiration from which a new subkey is needed
+     */
+    public static final long RENEW_MARGIN = 5 * 60;
+    private static final byte[] CONTEXT = "e2ee-signing-subkey".getBytes(StandardCharsets.UTF_8);
+    private static final int HEADER_LENGTH = 1 + 8 + 2;
+    private final PrivateKey privateKey;
+    private final PublicKey publicKey;
+    private final long expiration;
+    private final byte[] certificate;
+
+    /**
+     * Generate a subkey valid for DEFAULT_LIFETIME and certify it
+     *
+     * @param identityKey Private Key of the identity, used once
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public SigningSubkey(PrivateKey identityKey) throws GeneralSecurityException {
+        this(identityKey, DEFAULT_LIFETIME);
+    }
+
+    /**
+     * Generate a subkey and certify it
+     *
+     * @param identityKey Private Key of the identity, used once
+     * @param lifetime    Lifetime of the subkey in seconds, up to MAX_LIFETIME
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public SigningSubkey(PrivateKey identityKey, long lifetime) throws GeneralSecurityException {
+        if (lifetime <= 0 || lifetime > MAX_LIFETIME) {
+            throw new IllegalArgumentException("Lifetime between 1 and " + MAX_LIFETIME + " seconds");
+        }
+        KeyPair keyPair = generateKeyPair();
+        this.privateKey = keyPair.getPrivate();
+        this.publicKey = keyPair.getPublic();
+        this.expiration = Tools.getCurrentTime() + lifetime;
+
+        byte[] encoded = publicKey.getEncoded();
+        byte[] body = ByteBuffer.allocate(HEADER_LENGTH + encoded.length)
+                .put(VERSION)
+                .putLong(expiration)
+                .putShort((short) encoded.length)
+                .put(encoded)
+                .array();
+        byte[] identitySignature = Sign.sign(identityKey, toSigned(body, 0, body.length));
+        this.certificate = ByteBuffer.allocate(body.length + identitySignature.length)
+                .put(body)
+                .put(identitySignature)
+                .array();
+    }
+
+    /**
+     * Generate the key pair of a subkey, in software
+     *
+     * @return Return the key pair
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        if (KeySuite.getPreferred() == KeySuite.CURVE25519) {
+            return KeyPairGenerator.getInstance(KeySuite.CURVE25519.getSignatureAlgorithm()).generateKeyPair();
+        }
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"), RandomService.getSecureRandom());
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    /**
+     * Get the bytes signed by the identity key
+     *
+     * @param certificate Array holding the certificate
+     * @param offset      Offset of the certificate
+     * @param length      Length of the certificate without its signature
+     * @return Return CONTEXT followed by the certificate without its signature
+     */
+    private static byte[] toSigned(byte[] certificate, int offset, int length) {
+        return ByteBuffer.allocate(CONTEXT.length + length)
+                .put(CONTEXT)
+                .put(certificate, offset, length)
+                .array();
+    }
+
+    /**
+     * Check if a signed Message2 is a delegated signature
+     * <pre>A signature of the previous versions is exactly KeySuite.SIGNATURE_LENGTH bytes,
+     * followed or not by the fingerprint of the signer</pre>
+     *
+     * @param signedMessage Signed Message2
+     * @return Return a boolean if the signature starts with a certificate
+     */
+    public static boolean isDelegated(byte[] signedMessage) {
+        return signedMessage.length > HEADER_LENGTH + 2 * KeySuite.SIGNATURE_LENGTH && signedMessage[0] == VERSION;
+    }
+
+    /**
+     * Get the person who certified the subkey of a delegated signature
+     * <pre>The message is verified with the subkey first, then the certificate is verified like a Message2 of the previous versions,
+     * with the fingerprint of the signer if it follows the delegated signature</pre>
+     *
+     * @param myDirectory     My Directory
+     * @param signedMessage   Delegated signature, followed or not by the fingerprint of the signer
+     * @param expectedMessage Expected message
+     * @return Return the name of the person who certified the subkey
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the certificate is expired or a signature is invalid
+     */
+    public static String getSigner(MyDirectory myDirectory, byte[] signedMessage, byte[] expectedMessage) throws GeneralSecurityException {
+        if (!isDelegated(signedMessage)) {
+            throw new IllegalArgumentException("Not a delegated signature");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(signedMessage, 1, signedMessage.length - 1);
+        long expiration = buffer.getLong();
+        int keyLength = buffer.getShort() & 0xFFFF;
+        int bodyLength = HEADER_LENGTH + keyLength;
+        int signedLength = bodyLength + 2 * KeySuite.SIGNATURE_LENGTH;
+        int hintLength = signedMessage.length - signedLength;
+        if (hintLength != 0 && hintLength != MyDirectory.HINT_LENGTH) {
+            throw new SignatureException("Invalid delegated signature");
+        }
+
+        long now = Tools.getCurrentTime();
+        if (expiration < now) {
+            throw new CertificateExpiredException("Signing subkey expired");
+        }
+        if (expiration > now + MAX_LIFETIME) {
+            throw new SignatureException("Signing subkey valid for too long");
+        }
+
+        PublicKey subkey = Tools.toPublicKey(Arrays.copyOfRange(signedMessage, HEADER_LENGTH, bodyLength));
+        byte[] messageSignature = Arrays.copyOfRange(signedMessage, bodyLength + KeySuite.SIGNATURE_LENGTH, signedLength);
+        if (!Sign.verify(subkey, messageSignature, expectedMessage)) {
+            throw new SignatureException("Invalid delegated signature");
+        }
+
+        byte[] identitySignature = ByteBuffer.allocate(KeySuite.SIGNATURE_LENGTH + hintLength)
+                .put(signedMessage, bodyLength, KeySuite.SIGNATURE_LENGTH)
+                .put(signedMessage, signedLength, hintLength)
+                .array();
+        return myDirectory.getSigner(identitySignature, toSigned(signedMessage, 0, bodyLength));
+    }
+
+    /**
+     * Sign a message with the subkey
+     *
+     * @param input Message
+     * @return Return the delegated signature, certificate + signature of the message
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public byte[] sign(byte[] input) throws GeneralSecurityException {
+        byte[] signature = Sign.sign(privateKey, input);
+        return ByteBuffer.allocate(certificate.length + signature.length)
+                .put(certificate)
+                .put(signature)
+                .array();
+    }
+
+    /**
+     * Check if a new subkey is needed
+     *
+     * @return Return a boolean if the subkey expires in less than RENEW_MARGIN
+     */
+    public boolean isExpiring() {
+        return Tools.getCurrentTime() + RENEW_MARGIN >= expiration;
+    }
+
+    /**
+     * Get the expiration of the subkey
+     *
+     * @return Return the expiration in seconds
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * Get the Public Key of the subkey
+     *
+     * @return Return the Public Key
+     */
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Get the certificate of the subkey
+     *
+     * @return Return the certificate
+     */
+    public byte[] getCertificate() {
+        return certificate.clone();
+    }
+}
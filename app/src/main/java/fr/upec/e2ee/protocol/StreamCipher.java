@@ -0,0 +1,543 @@
+package fr.upec.e2ee.protocol;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import fr.upec.e2ee.Tools;
+
+/**
+ * Cipher and Decipher streams of any size with a constant memory
+ * <pre>Segmented AES-GCM (STREAM construction)
+ * header = version (1 byte) + salt (32 bytes) + nonce prefix (7 bytes) = 40 bytes
+ * segment i = AES-GCM(key, nonce prefix + i (4 bytes) + last (1 byte), plaintext i) = plaintext i + 16 bytes
+ * key = HKDF-Expand(stream key of the conversation, "stream" + salt), see {@link Conversation#getStreamKey()}
+ * Every segment holds SEGMENT_SIZE bytes of plaintext except the last one</pre>
+ */
+public class StreamCipher {
+    /**
+     * Version of the format
+     */
+    public static final byte VERSION = 1;
+    /**
+     * Salt length
+     */
+    public static final int SALT_LENGTH = 32;
+    /**
+     * Nonce prefix length
+     */
+    public static final int NONCE_PREFIX_LENGTH = 7;
+    /**
+     * Header length
+     */
+    public static final int HEADER_LENGTH = 1 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+    /**
+     * Plaintext size of a segment
+     */
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    /**
+     * Ciphertext size of a segment
+     */
+    public static final int CIPHER_SEGMENT_SIZE = SEGMENT_SIZE + Cipher.GCM_TAG_LENGTH;
+    private static final byte[] INFO = "stream".getBytes(StandardCharsets.UTF_8);
+    private static final long MAX_SEGMENTS = 1L << 32;
+
+    /**
+     * Generate a new random header
+     *
+     * @return Return a header
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static byte[] newHeader() throws GeneralSecurityException {
+        byte[] header = new byte[HEADER_LENGTH];
+        RandomService.nextBytes(header, 1, header.length - 1);
+        header[0] = VERSION;
+        return header;
+    }
+
+    /**
+     * Derive the key of a stream from the stream key of the conversation and the salt of the header
+     * <pre>The stream key is already a PseudoRandom Key, so only one expand is done per stream</pre>
+     *
+     * @param streamKey Stream key of the conversation
+     * @param header    Header of the stream
+     * @return Return the key of the stream
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static SecretKey deriveKey(byte[] streamKey, byte[] header) throws GeneralSecurityException {
+        if (header.length != HEADER_LENGTH || header[0] != VERSION) {
+            throw new GeneralSecurityException("Unknown stream header");
+        }
+        byte[] info = Arrays.copyOf(INFO, INFO.length + SALT_LENGTH);
+        System.arraycopy(header, 1, info, INFO.length, SALT_LENGTH);
+        byte[] key = new byte[32];
+        Hkdf.expand(streamKey, info, key, 0, key.length);
+        return Tools.toSecretKey(key);
+    }
+
+    /**
+     * Build the nonce of a segment
+     *
+     * @param header Header of the stream
+     * @param index  Index of the segment
+     * @param last   If the segment is the last one
+     * @return Return the nonce as GCMParameterSpec
+     */
+    static GCMParameterSpec segmentNonce(byte[] header, long index, boolean last) {
+        if (index < 0 || index >= MAX_SEGMENTS) {
+            throw new IllegalArgumentException("Too many segments");
+        }
+        byte[] nonce = new byte[Cipher.GCM_IV_LENGTH];
+        System.arraycopy(header, 1 + SALT_LENGTH, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[7] = (byte) (index >>> 24);
+        nonce[8] = (byte) (index >>> 16);
+        nonce[9] = (byte) (index >>> 8);
+        nonce[10] = (byte) index;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(Cipher.GCM_TAG_LENGTH * 8, nonce);
+    }
+
+    /**
+     * Cipher a segment
+     *
+     * @param key       Key of the stream
+     * @param header    Header of the stream
+     * @param index     Index of the segment
+     * @param last      If the segment is the last one
+     * @param input     Plaintext
+     * @param inOffset  Offset in the plaintext
+     * @param inLength  Length of the plaintext
+     * @param output    Output
+     * @param outOffset Offset in the output
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static int cipherSegment(SecretKey key, byte[] header, long index, boolean last, byte[] input, int inOffset, int inLength, byte[] output, int outOffset) throws GeneralSecurityException {
+        javax.crypto.Cipher engine = Cipher.getEngine();
+        engine.init(javax.crypto.Cipher.ENCRYPT_MODE, key, segmentNonce(header, index, last));
+        return engine.doFinal(input, inOffset, inLength, output, outOffset);
+    }
+
+    /**
+     * Decipher a segment
+     *
+     * @param key       Key of the stream
+     * @param header    Header of the stream
+     * @param index     Index of the segment
+     * @param last      If the segment is the last one
+     * @param input     Ciphertext
+     * @param inOffset  Offset in the ciphertext
+     * @param inLength  Length of the ciphertext
+     * @param output    Output
+     * @param outOffset Offset in the output
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static int decipherSegment(SecretKey key, byte[] header, long index, boolean last, byte[] input, int inOffset, int inLength, byte[] output, int outOffset) throws GeneralSecurityException {
+        javax.crypto.Cipher engine = Cipher.getEngine();
+        engine.init(javax.crypto.Cipher.DECRYPT_MODE, key, segmentNonce(header, index, last));
+        return engine.doFinal(input, inOffset, inLength, output, outOffset);
+    }
+
+    /**
+     * Decipher a segment between buffers
+     * <pre>Works with heap, direct and mapped buffers</pre>
+     *
+     * @param key    Key of the stream
+     * @param header Header of the stream
+     * @param index  Index of the segment
+     * @param last   If the segment is the last one
+     * @param input  Ciphertext, from its position to its limit
+     * @param output Output
+     * @return Return the number of bytes written
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    static int decipherSegment(SecretKey key, byte[] header, long index, boolean last, ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+        javax.crypto.Cipher engine = Cipher.getEngine();
+        engine.init(javax.crypto.Cipher.DECRYPT_MODE, key, segmentNonce(header, index, last));
+        return engine.doFinal(input, output);
+    }
+
+    /**
+     * Get the size of the ciphered stream
+     *
+     * @param plainSize Size of the plaintext
+     * @return Return the size of the ciphertext
+     */
+    public static long getCipherSize(long plainSize) {
+        long segments = Math.max(1, (plainSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        return HEADER_LENGTH + plainSize + segments * Cipher.GCM_TAG_LENGTH;
+    }
+
+    /**
+     * Get the size of the deciphered stream
+     *
+     * @param cipherSize Size of the ciphertext
+     * @return Return the size of the plaintext
+     * @throws GeneralSecurityException Throws GeneralSecurityException if the size is not valid
+     */
+    public static long getPlainSize(long cipherSize) throws GeneralSecurityException {
+        long body = cipherSize - HEADER_LENGTH;
+        if (body < Cipher.GCM_TAG_LENGTH) {
+            throw new GeneralSecurityException("Truncated stream");
+        }
+        long segments = Math.max(1, (body + CIPHER_SEGMENT_SIZE - 1) / CIPHER_SEGMENT_SIZE);
+        long lastSegment = body - (segments - 1) * CIPHER_SEGMENT_SIZE;
+        if (lastSegment < Cipher.GCM_TAG_LENGTH) {
+            throw new GeneralSecurityException("Truncated stream");
+        }
+        return body - segments * Cipher.GCM_TAG_LENGTH;
+    }
+
+    /**
+     * Wrap an OutputStream to cipher everything written in it
+     * <pre>The stream MUST be closed to write the last segment</pre>
+     *
+     * @param streamKey Stream key of the conversation
+     * @param out       OutputStream receiving the ciphertext
+     * @return Return an OutputStream receiving the plaintext
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static OutputStream newCipherStream(byte[] streamKey, OutputStream out) throws IOException, GeneralSecurityException {
+        return new CipherOutputStream(streamKey, out);
+    }
+
+    /**
+     * Wrap an InputStream to decipher everything read from it
+     *
+     * @param streamKey Stream key of the conversation
+     * @param in        InputStream giving the ciphertext
+     * @return Return an InputStream giving the plaintext
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static InputStream newDecipherStream(byte[] streamKey, InputStream in) throws IOException, GeneralSecurityException {
+        return new DecipherInputStream(streamKey, in);
+    }
+
+    /**
+     * Wrap a WritableByteChannel to cipher everything written in it
+     *
+     * @param streamKey Stream key of the conversation
+     * @param out       WritableByteChannel receiving the ciphertext
+     * @return Return a WritableByteChannel receiving the plaintext
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static WritableByteChannel newCipherChannel(byte[] streamKey, WritableByteChannel out) throws IOException, GeneralSecurityException {
+        return Channels.newChannel(newCipherStream(streamKey, Channels.newOutputStream(out)));
+    }
+
+    /**
+     * Wrap a ReadableByteChannel to decipher everything read from it
+     *
+     * @param streamKey Stream key of the conversation
+     * @param in        ReadableByteChannel giving the ciphertext
+     * @return Return a ReadableByteChannel giving the plaintext
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static ReadableByteChannel newDecipherChannel(byte[] streamKey, ReadableByteChannel in) throws IOException, GeneralSecurityException {
+        return Channels.newChannel(newDecipherStream(streamKey, Channels.newInputStream(in)));
+    }
+
+    /**
+     * Cipher an InputStream into an OutputStream
+     *
+     * @param streamKey Stream key of the conversation
+     * @param in        Plaintext, read to the end and left open
+     * @param out       Ciphertext, flushed and left open
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static void cipher(byte[] streamKey, InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        CipherOutputStream cipherStream = new CipherOutputStream(streamKey, out);
+        transfer(in, cipherStream);
+        cipherStream.finish();
+    }
+
+    /**
+     * Decipher an InputStream into an OutputStream
+     *
+     * @param streamKey Stream key of the conversation
+     * @param in        Ciphertext, read to the end and left open
+     * @param out       Plaintext, flushed and left open
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static void decipher(byte[] streamKey, InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        DecipherInputStream decipherStream = new DecipherInputStream(streamKey, in);
+        try {
+            transfer(decipherStream, out);
+        } finally {
+            decipherStream.erase();
+        }
+        out.flush();
+    }
+
+    /**
+     * Cipher a ReadableByteChannel into a WritableByteChannel
+     *
+     * @param streamKey Stream key of the conversation
+     * @param in        Plaintext, read to the end and left open
+     * @param out       Ciphertext, left open
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static void cipher(byte[] streamKey, ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+        cipher(streamKey, Channels.newInputStream(in), Channels.newOutputStream(out));
+    }
+
+    /**
+     * Decipher a ReadableByteChannel into a WritableByteChannel
+     *
+     * @param streamKey Stream key of the conversation
+     * @param in        Ciphertext, read to the end and left open
+     * @param out       Plaintext, left open
+     * @throws IOException              Throws IOException if there is an I/O exception
+     * @throws GeneralSecurityException Throws GeneralSecurityException if there is a security-related exception
+     */
+    public static void decipher(byte[] streamKey, ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+        decipher(streamKey, Channels.newInputStream(in), Channels.newOutputStream(out));
+    }
+
+    /**
+     * Copy an InputStream into an OutputStream
+     *
+     * @param in  InputStream
+     * @param out OutputStream
+     * @throws IOException Throws IOException if there is an I/O exception
+     */
+    private static void transfer(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Read until the buffer is full or the end of the stream
+     *
+     * @param in     InputStream
+     * @param buffer Buffer
+     * @param offset Offset in the buffer
+     * @param length Length to read
+     * @return Return the number of bytes read
+     * @throws IOException Throws IOException if there is an I/O exception
+     */
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, offset + total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * OutputStream ciphering segment by segment
+     */
+    private static class CipherOutputStream extends FilterOutputStream {
+        private final byte[] header;
+        private final SecretKey key;
+        private final byte[] plainSegment = new byte[SEGMENT_SIZE];
+        private final byte[] cipherSegment = new byte[CIPHER_SEGMENT_SIZE];
+        private int position = 0;
+        private long index = 0;
+        private boolean finished = false;
+        private boolean closed = false;
+
+        CipherOutputStream(byte[] streamKey, OutputStream out) throws IOException, GeneralSecurityException {
+            super(out);
+            this.header = newHeader();
+            this.key = deriveKey(streamKey, header);
+            out.write(header);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                if (position == SEGMENT_SIZE) {
+                    //More data is coming, so the full segment is not the last one
+                    writeSegment(false);
+                }
+                int step = Math.min(len, SEGMENT_SIZE - position);
+                System.arraycopy(b, off, plainSegment, position, step);
+                position += step;
+                off += step;
+                len -= step;
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            try {
+                int length = cipherSegment(key, header, index++, last, plainSegment, 0, position, cipherSegment, 0);
+                out.write(cipherSegment, 0, length);
+                position = 0;
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Write the last segment and flush the wrapped stream without closing it
+         *
+         * @throws IOException Throws IOException if there is an I/O exception
+         */
+        void finish() throws IOException {
+            if (!finished) {
+                writeSegment(true);
+                finished = true;
+                Arrays.fill(plainSegment, (byte) 0);
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                finish();
+                closed = true;
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * InputStream deciphering segment by segment
+     */
+    private static class DecipherInputStream extends FilterInputStream {
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private final SecretKey key;
+        private final byte[] cipherSegment = new byte[CIPHER_SEGMENT_SIZE + 1];
+        private final byte[] plainSegment = new byte[SEGMENT_SIZE];
+        private int buffered = 0;
+        private int position = 0;
+        private int limit = 0;
+        private long index = 0;
+        private boolean lastRead = false;
+
+        DecipherInputStream(byte[] streamKey, InputStream in) throws IOException, GeneralSecurityException {
+            super(in);
+            if (readFully(in, header, 0, HEADER_LENGTH) != HEADER_LENGTH) {
+                throw new GeneralSecurityException("Truncated stream");
+            }
+            this.key = deriveKey(streamKey, header);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (lastRead) {
+                    return -1;
+                }
+                readSegment();
+            }
+            int step = Math.min(len, limit - position);
+            System.arraycopy(plainSegment, position, b, off, step);
+            position += step;
+            return step;
+        }
+
+        /**
+         * Read and decipher the next segment
+         * <pre>One more byte is read ahead to know if the segment is the last one</pre>
+         */
+        private void readSegment() throws IOException {
+            buffered += readFully(in, cipherSegment, buffered, cipherSegment.length - buffered);
+            boolean last = buffered <= CIPHER_SEGMENT_SIZE;
+            int length = last ? buffered : CIPHER_SEGMENT_SIZE;
+            try {
+                if (length < Cipher.GCM_TAG_LENGTH) {
+                    throw new GeneralSecurityException("Truncated stream");
+                }
+                limit = decipherSegment(key, header, index++, last, cipherSegment, 0, length, plainSegment, 0);
+                position = 0;
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            if (last) {
+                lastRead = true;
+                buffered = 0;
+            } else {
+                cipherSegment[0] = cipherSegment[CIPHER_SEGMENT_SIZE];
+                buffered = 1;
+            }
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long skipped = 0;
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        /**
+         * Erase the plaintext buffered without closing the wrapped stream
+         */
+        void erase() {
+            Arrays.fill(plainSegment, (byte) 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            erase();
+            super.close();
+        }
+    }
+}
@@ -17,19 +17,23 @@ import androidx.fragment.app.FragmentManager;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.zip.DataFormatException;
 
 import fr.upec.e2ee.E2EE;
 import fr.upec.e2ee.R;
 import fr.upec.e2ee.Tools;
 import fr.upec.e2ee.databinding.FragmentConversationBinding;
 import fr.upec.e2ee.mystate.MyState;
-import fr.upec.e2ee.protocol.Cipher;
+import fr.upec.e2ee.protocol.CipherContext;
+import fr.upec.e2ee.protocol.Compression;
 import fr.upec.e2ee.protocol.Conversation;
+import fr.upec.e2ee.protocol.Ratchet;
 import fr.upec.e2ee.ui.home.HomeFragment;
 
 public class ConversationFragment extends Fragment {
     private MyState myState;
     private Conversation conversation;
+    private CipherContext cipherContext;
     private @NonNull FragmentConversationBinding binding;
 
     public static ConversationFragment newInstance() {
@@ -56,6 +60,11 @@ public class ConversationFragment extends Fragment {
         assert bundle != null;
         int index = bundle.getInt("Conv");
         conversation = myState.getMyConversations().getConversation(index);
+        try {
+            cipherContext = new CipherContext(conversation, myState.getMyIvCounters());
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
 
         final ImageButton copyButton = binding.copyConvButton;
         final ImageButton pasteButton = binding.pasteConvButton;
@@ -64,11 +73,15 @@ public class ConversationFragment extends Fragment {
         final ImageButton shareButton = binding.shareConvButton;
         final ImageButton deleteButton = binding.deleteConvButton;
         final EditText messageTextZone = binding.message;
+        if (bundle.getString("Message") != null) { //Deciphered from the clipboard
+            messageTextZone.setText(bundle.getString("Message"));
+        }
 
         //Copy
         copyButton.setOnClickListener(view -> {
             if (!messageTextZone.getText().toString().isEmpty()) {
                 Tools.copyToClipboard("Message", messageTextZone.getText().toString());
+                removeFromOutbox(messageTextZone.getText().toString());
             } else {
                 messageTextZone.setError(getResources().getText(R.string.conv_empty_message).toString());
             }
@@ -84,8 +97,15 @@ public class ConversationFragment extends Fragment {
         cipherButton.setOnClickListener(view -> {
             if (!messageTextZone.getText().toString().isEmpty()) {
                 try {
-                    String cipheredMessage = Tools.toBase64(Cipher.cipher(Tools.toSecretKey(conversation.getSecretKey()), messageTextZone.getText().toString().getBytes(StandardCharsets.UTF_8)));
-                    messageTextZone.setText(cipheredMessage);
+                    //Ciphered in the background by the outbox
+                    myState.getMyOutbox().add(conversation, messageTextZone.getText().toString().getBytes(StandardCharsets.UTF_8))
+                            .whenComplete((cipheredMessage, e) -> view.post(() -> {
+                                if (e == null) {
+                                    messageTextZone.setText(cipheredMessage);
+                                } else {
+                                    Toast.makeText(E2EE.getContext(), R.string.err_unex, Toast.LENGTH_SHORT).show();
+                                }
+                            }));
                 } catch (GeneralSecurityException e) {
                     Toast.makeText(E2EE.getContext(), R.string.err_unex, Toast.LENGTH_SHORT).show();
                 }
@@ -98,11 +118,25 @@ public class ConversationFragment extends Fragment {
         decipherButton.setOnClickListener(view -> {
             if (!messageTextZone.getText().toString().isEmpty()) {
                 try {
-                    String decipheredMessage = new String(Cipher.decipher(Tools.toSecretKey(conversation.getSecretKey()), Tools.toBytes(messageTextZone.getText().toString())));
-                    messageTextZone.setText(decipheredMessage);
-                } catch (GeneralSecurityException e) {
+                    byte[] cipherMessage = Tools.toBytes(messageTextZone.getText().toString());
+                    byte[] message = null;
+                    if (Ratchet.isRatchet(cipherMessage)) {
+                        try {
+                            message = myState.getMyRatchets().decipher(conversation, cipherMessage);
+                        } catch (GeneralSecurityException | IllegalArgumentException ignored) {
+                            //Untagged message whose IV starts like a ratchet header, tried below
+                        }
+                    }
+                    if (message == null) {
+                        message = cipherContext.decipher(cipherMessage);
+                    }
+                    message = Compression.decompress(message, myState.getMyDictionaries().getCandidateDictionaries(conversation));
+                    myState.getMyDictionaries().addReceived(conversation, message);
+                    myState.getMyDictionaries().saveFile();
+                    messageTextZone.setText(new String(message, StandardCharsets.UTF_8));
+                } catch (GeneralSecurityException | IOException e) {
                     Toast.makeText(E2EE.getContext(), R.string.err_unex, Toast.LENGTH_SHORT).show();
-                } catch (IllegalArgumentException e) {
+                } catch (IllegalArgumentException | DataFormatException e) {
                     Toast.makeText(E2EE.getContext(), R.string.err_msg_wrong, Toast.LENGTH_SHORT).show();
                 }
             } else {
@@ -114,6 +148,7 @@ public class ConversationFragment extends Fragment {
         shareButton.setOnClickListener(view -> {
             if (!messageTextZone.getText().toString().isEmpty()) {
                 Tools.shareIntent(messageTextZone.getText().toString());
+                removeFromOutbox(messageTextZone.getText().toString());
             } else {
                 messageTextZone.setError(getResources().getText(R.string.conv_empty_message).toString());
             }
@@ -125,6 +160,10 @@ public class ConversationFragment extends Fragment {
             Toast.makeText(E2EE.getContext(), R.string.conv_deleted, Toast.LENGTH_SHORT).show();
 
             try {
+                myState.getMyIvCounters().deleteCounter(conversation);
+                myState.getMyRatchets().deleteRatchet(conversation);
+                myState.getMyOutbox().deleteConversation(conversation);
+                myState.getMyDictionaries().deleteConversation(conversation);
                 myState.save();
             } catch (IOException | GeneralSecurityException e) {
                 throw new RuntimeException(e);
@@ -140,6 +179,19 @@ public class ConversationFragment extends Fragment {
         return root;
     }
 
+    /**
+     * Remove a ciphered message from the outbox once it left the application
+     *
+     * @param cipheredMessage Ciphered message as Base64, ignored if it is not in the outbox
+     */
+    private void removeFromOutbox(String cipheredMessage) {
+        try {
+            myState.getMyOutbox().remove(conversation, cipheredMessage);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -9,6 +9,7 @@ import android.widget.ArrayAdapter;
 import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
@@ -18,19 +19,35 @@ import androidx.fragment.app.FragmentTransaction;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import fr.upec.e2ee.E2EE;
 import fr.upec.e2ee.R;
+import fr.upec.e2ee.Tools;
 import fr.upec.e2ee.databinding.FragmentHomeBinding;
 import fr.upec.e2ee.mystate.MyState;
+import fr.upec.e2ee.protocol.DecipheredMessage;
 import fr.upec.e2ee.ui.conversation.ConversationFragment;
 import fr.upec.e2ee.ui.message1.Message1Fragment;
 
 public class HomeFragment extends Fragment {
+    /**
+     * Single thread deciphering the messages of the clipboard, so two messages never change MyState at the same time
+     */
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Clipboard");
+        thread.setDaemon(true);
+        return thread;
+    });
     ListView listView;
     ListAdapter listAdapter;
     TextView textView;
     FloatingActionButton fab;
+    FloatingActionButton openClipboardFab;
     private MyState myState;
     private FragmentHomeBinding binding;
 
@@ -57,6 +74,7 @@ public class HomeFragment extends Fragment {
         textView = binding.emptyConv;
         listView = binding.homeConvList;
         fab = binding.fabStartConv;
+        openClipboardFab = binding.fabOpenClipboard;
 
         fab.setOnClickListener(view -> {
             FragmentManager fragmentManager = getParentFragmentManager();
@@ -66,9 +84,12 @@ public class HomeFragment extends Fragment {
             fragmentTransaction.commit();
         });
 
+        openClipboardFab.setOnClickListener(view -> openClipboardMessage());
+
         listView.setClickable(true);
         listView.setOnItemClickListener((parent, view, position, id) -> {
             fab.setVisibility(View.GONE);
+            openClipboardFab.setVisibility(View.GONE);
             ConversationFragment conversationFragment = ConversationFragment.newInstance();
             Bundle bundle = new Bundle();
             bundle.putInt("Conv", position);
@@ -127,6 +148,70 @@ public class HomeFragment extends Fragment {
         binding = null;
     }
 
+    /**
+     * Decipher the message in the clipboard in the background and open its conversation
+     * <pre>The clipboard is read only when the user asks, a prekey message creates a conversation</pre>
+     */
+    private void openClipboardMessage() {
+        String clipboard;
+        try {
+            clipboard = Tools.pasteFromClipboard();
+        } catch (RuntimeException e) {
+            clipboard = null; //Empty clipboard
+        }
+        if (clipboard == null) {
+            Toast.makeText(E2EE.getContext(), R.string.home_no_message, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String message = clipboard;
+        MyState state = myState;
+        View root = listView;
+        EXECUTOR.execute(() -> {
+            DecipheredMessage decipheredMessage;
+            try {
+                decipheredMessage = state.decipherAnything(message);
+            } catch (IOException | GeneralSecurityException e) {
+                decipheredMessage = null;
+            } catch (NoSuchElementException e) {
+                root.post(() -> Toast.makeText(E2EE.getContext(), E2EE.getContext().getResources().getText(R.string.err_msg).toString() + e.getMessage(), Toast.LENGTH_LONG).show());
+                return;
+            }
+            if (decipheredMessage == null) {
+                root.post(() -> Toast.makeText(E2EE.getContext(), R.string.home_no_message, Toast.LENGTH_SHORT).show());
+                return;
+            }
+            DecipheredMessage opened = decipheredMessage;
+            root.post(() -> openConversation(state.getMyConversations().indexOf(opened.getConversation()),
+                    new String(opened.getMessage(), StandardCharsets.UTF_8)));
+        });
+    }
+
+    /**
+     * Open a conversation with a deciphered message
+     *
+     * @param position Index of the conversation
+     * @param message  Deciphered message
+     */
+    private void openConversation(int position, String message) {
+        if (position < 0 || !isResumed()) {
+            return;
+        }
+        Toast.makeText(E2EE.getContext(), getResources().getString(R.string.conv_message_from, myState.getMyConversations().getConversation(position).getName()), Toast.LENGTH_SHORT).show();
+        fab.setVisibility(View.GONE);
+        openClipboardFab.setVisibility(View.GONE);
+        ConversationFragment conversationFragment = ConversationFragment.newInstance();
+        Bundle bundle = new Bundle();
+        bundle.putInt("Conv", position);
+        bundle.putString("Message", message);
+        conversationFragment.setArguments(bundle);
+
+        getParentFragmentManager().beginTransaction()
+                .replace(R.id.nav_host_fragment_content_main, conversationFragment, "childConv")
+                .addToBackStack("home")
+                .commit();
+    }
+
     private void generateFragment() {
         FragmentManager fm = getParentFragmentManager();
         for (int i = 0; i < fm.getBackStackEntryCount(); i++) {
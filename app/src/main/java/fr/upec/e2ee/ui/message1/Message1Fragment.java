@@ -21,6 +21,7 @@ import androidx.fragment.app.FragmentTransaction;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.NoSuchElementException;
 
 import fr.upec.e2ee.E2EE;
 import fr.upec.e2ee.R;
@@ -28,13 +29,17 @@ import fr.upec.e2ee.Tools;
 import fr.upec.e2ee.databinding.FragmentMessage1Binding;
 import fr.upec.e2ee.mystate.MyState;
 import fr.upec.e2ee.protocol.Communication;
+import fr.upec.e2ee.protocol.Conversation;
 import fr.upec.e2ee.protocol.Message1;
 import fr.upec.e2ee.protocol.SecretBuild;
+import fr.upec.e2ee.protocol.SignedMessage1;
+import fr.upec.e2ee.ui.home.HomeFragment;
 import fr.upec.e2ee.ui.message2.Message2Fragment;
 
 public class Message1Fragment extends Fragment {
     private MyState myState;
     private Message1 myMessage1 = null;
+    private String myMessage1Text = null;
     private SecretBuild mySecretBuild = null;
     private @NonNull FragmentMessage1Binding binding;
 
@@ -70,10 +75,15 @@ public class Message1Fragment extends Fragment {
         //Generate Message 1
         generateMessage1Button.setOnClickListener(view -> {
             try {
-                myMessage1 = new Message1(Tools.getCurrentTime(), myState.getMyNonce());
-                myState.incrementMyNonce();
-                myState.save();
-
+                myMessage1 = new Message1(Tools.getCurrentTime());
+                myMessage1Text = Communication.createMessage1(myMessage1);
+                if (E2EE.SIGNED_MESSAGE1) {
+                    try {
+                        myMessage1Text = myState.createMessage1(myMessage1);
+                    } catch (GeneralSecurityException ignored) {
+                        //KeyStore not unlocked, Message2 will authenticate
+                    }
+                }
                 generateMessage1Button.setEnabled(false);
                 resetMessage1Button.setEnabled(true);
                 shareMessage1Button.setEnabled(true);
@@ -87,7 +97,7 @@ public class Message1Fragment extends Fragment {
                 otherMessage1Text.setText("");
 
                 Toast.makeText(E2EE.getContext(), R.string.m1_generated, Toast.LENGTH_SHORT).show();
-            } catch (GeneralSecurityException | IOException e) {
+            } catch (GeneralSecurityException e) {
                 Toast.makeText(E2EE.getContext(), R.string.err_unex, Toast.LENGTH_SHORT).show();
             }
         });
@@ -108,10 +118,10 @@ public class Message1Fragment extends Fragment {
         });
 
         //Share Message 1
-        shareMessage1Button.setOnClickListener(view -> startActivity(Tools.shareIntent(Tools.toBase64(myMessage1.toBytes()))));
+        shareMessage1Button.setOnClickListener(view -> startActivity(Tools.shareIntent(myMessage1Text)));
 
         //Copy Message 1
-        copyMessage1Button.setOnClickListener(view -> Tools.copyToClipboard("Message1", Tools.toBase64(myMessage1.toBytes())));
+        copyMessage1Button.setOnClickListener(view -> Tools.copyToClipboard("Message1", myMessage1Text));
 
         //Generate QRCode button
         genQRCMessage1Button.setOnClickListener(view -> {
@@ -121,7 +131,7 @@ public class Message1Fragment extends Fragment {
             final ImageView qrcode = qrCodeView.findViewById(R.id.qrc_view);
 
             try {
-                Bitmap bitmap = Tools.generateQRCode(Tools.toBase64(myMessage1.toBytes()));
+                Bitmap bitmap = Tools.generateQRCode(myMessage1Text);
                 qrcode.setImageBitmap(bitmap);
                 builder.setView(qrCodeView)
                         .setTitle(R.string.qrc_m1)
@@ -139,7 +149,22 @@ public class Message1Fragment extends Fragment {
         //Validate Message 1
         validateMessage1Button.setOnClickListener(view -> {
             try {
-                mySecretBuild = Communication.handleMessage1(myMessage1, otherMessage1Text.getText().toString());
+                String otherMessage1 = otherMessage1Text.getText().toString();
+                if (E2EE.SIGNED_MESSAGE1 && SignedMessage1.isSigned(Tools.toBytes(myMessage1Text)) && SignedMessage1.isSigned(Tools.toBytes(otherMessage1))) {
+                    //Both Message1 are signed, no Message2
+                    Conversation conversation = Communication.handleMessage1(myState.getMyDirectory(), myMessage1, myState.getMyPublicKey(), otherMessage1);
+                    myState.addAConversation(conversation);
+                    myState.save();
+
+                    Toast.makeText(E2EE.getContext(), R.string.conv_created, Toast.LENGTH_SHORT).show();
+
+                    getParentFragmentManager().beginTransaction()
+                            .replace(R.id.nav_host_fragment_content_main, HomeFragment.newInstance())
+                            .commit();
+                    return;
+                }
+
+                mySecretBuild = Communication.handleMessage1(myMessage1, otherMessage1);
                 Fragment fragment = Message2Fragment.newInstance();
                 Bundle bundle = new Bundle();
                 bundle.putByteArray("SC", mySecretBuild.toBytesWithSymKey());
@@ -150,7 +175,9 @@ public class Message1Fragment extends Fragment {
                 fragmentTransaction.replace(R.id.nav_host_fragment_content_main, fragment);
                 fragmentTransaction.addToBackStack(null);
                 fragmentTransaction.commit();
-            } catch (GeneralSecurityException e) {
+            } catch (NoSuchElementException e) {
+                Toast.makeText(E2EE.getContext(), getResources().getText(R.string.err_msg).toString() + e.getMessage(), Toast.LENGTH_SHORT).show();
+            } catch (GeneralSecurityException | IOException e) {
                 Toast.makeText(E2EE.getContext(), R.string.err_unex, Toast.LENGTH_SHORT).show();
             } catch (IllegalArgumentException e) {
                 Toast.makeText(E2EE.getContext(), getResources().getText(R.string.err_msg).toString() + e.getMessage(), Toast.LENGTH_LONG).show();
@@ -98,25 +98,7 @@ public class Message2Fragment extends Fragment {
 
             @Override
             public void onAuthenticationSucceeded(@NonNull BiometricPrompt.AuthenticationResult result) {
-                try {
-                    myMessage2 = Communication.createMessage2(myState.getMyPrivateKey(), mySecretBuild);
-                } catch (GeneralSecurityException e) {
-                    Toast.makeText(E2EE.getContext(), R.string.err_unex, Toast.LENGTH_SHORT).show();
-                }
-
-                generateMessage2Button.setEnabled(false);
-                resetMessage2Button.setEnabled(true);
-                shareMessage2Button.setEnabled(true);
-                copyMessage2Button.setEnabled(true);
-                genQRCMessage2Button.setEnabled(true);
-                genQRCMessage2Button.setClickable(true);
-                pasteMessage2Button.setEnabled(true);
-                otherMessage2Text.setEnabled(true);
-                validateMessage2Text.setEnabled(true);
-
-                otherMessage2Text.setText("");
-
-                Toast.makeText(E2EE.getContext(), R.string.m2_generated, Toast.LENGTH_SHORT).show();
+                generateMessage2();
 
                 super.onAuthenticationSucceeded(result);
             }
@@ -135,9 +117,13 @@ public class Message2Fragment extends Fragment {
                 .setNegativeButtonText(res.getText(R.string.cancel))
                 .build();
 
-        //Generate Message 2
+        //Generate Message 2, the biometric prompt is skipped only if the delegation was turned on
         generateMessage2Button.setOnClickListener(view -> {
-            biometricPrompt.authenticate(promptInfo);
+            if (E2EE.DELEGATED_SIGNING && myState.hasMySigningSubkey()) {
+                generateMessage2(); //No KeyStore operation, the subkey was certified after a prompt
+            } else {
+                biometricPrompt.authenticate(promptInfo);
+            }
         });
 
         //Reset Message 2
@@ -209,6 +195,31 @@ public class Message2Fragment extends Fragment {
         return root;
     }
 
+    /**
+     * Sign and cipher my Message 2 then enable the buttons to send it
+     */
+    private void generateMessage2() {
+        try {
+            myMessage2 = myState.createMessage2(mySecretBuild);
+        } catch (GeneralSecurityException e) {
+            Toast.makeText(E2EE.getContext(), R.string.err_unex, Toast.LENGTH_SHORT).show();
+        }
+
+        generateMessage2Button.setEnabled(false);
+        resetMessage2Button.setEnabled(true);
+        shareMessage2Button.setEnabled(true);
+        copyMessage2Button.setEnabled(true);
+        genQRCMessage2Button.setEnabled(true);
+        genQRCMessage2Button.setClickable(true);
+        pasteMessage2Button.setEnabled(true);
+        otherMessage2Text.setEnabled(true);
+        validateMessage2Text.setEnabled(true);
+
+        otherMessage2Text.setText("");
+
+        Toast.makeText(E2EE.getContext(), R.string.m2_generated, Toast.LENGTH_SHORT).show();
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();